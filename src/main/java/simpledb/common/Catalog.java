@@ -1,6 +1,7 @@
 package simpledb.common;
 
 import simpledb.common.Type;
+import simpledb.index.SecondaryIndex;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
 import simpledb.storage.TupleDesc;
@@ -27,6 +28,9 @@ public class Catalog {
     private final Map<Integer, String> idToNameMap;
     private final Map<Integer, DbFile> idToDbMap;
     private final Map<Integer, String> idToPkeyMap;
+    // 每个表的二级索引；索引的B+树文件不是表，但BufferPool要能通过id找到它们
+    private final Map<Integer, List<SecondaryIndex>> idToIndexesMap;
+    private final Map<Integer, DbFile> indexIdToFileMap;
 
     /**
      * Constructor.
@@ -37,6 +41,8 @@ public class Catalog {
         idToNameMap = new HashMap<>();
         idToDbMap = new HashMap<>();
         idToPkeyMap = new HashMap<>();
+        idToIndexesMap = new HashMap<>();
+        indexIdToFileMap = new HashMap<>();
     }
 
     /**
@@ -46,13 +52,17 @@ public class Catalog {
      *    this file/tupledesc param for the calls getTupleDesc and getFile
      * @param name the name of the table -- may be an empty string.  May not be null.  If a name
      * conflict exists, use the last table to be added as the table for a given name.
+     * A different DbFile already added with the same id is replaced and closed.
      * @param pkeyField the name of the primary key field
      */
     public void addTable(DbFile file, String name, String pkeyField) {
         // TODO: pkeyField实现
         nameToIdMap.put(name, file.getId());
         idToNameMap.put(file.getId(), name);
-        idToDbMap.put(file.getId(), file);
+        DbFile replaced = idToDbMap.put(file.getId(), file);
+        if (replaced != null && replaced != file) {
+            replaced.close();
+        }
         idToPkeyMap.put(file.getId(), pkeyField);
     }
 
@@ -98,8 +108,39 @@ public class Catalog {
      *     function passed to addTable
      */
     public DbFile getDatabaseFile(int tableid) throws NoSuchElementException {
-        if(!idToDbMap.containsKey(tableid) || idToDbMap.get(tableid) == null) throw new NoSuchElementException();
-        return idToDbMap.get(tableid);
+        DbFile file = idToDbMap.get(tableid);
+        if(file == null) file = indexIdToFileMap.get(tableid);
+        if(file == null) throw new NoSuchElementException();
+        return file;
+    }
+
+    /**
+     * Add a secondary index over a table in the catalog. From now on, tuples
+     * inserted into or deleted from the table through the BufferPool are
+     * added to or removed from the index as well.
+     * @param index the index to add; its B+ tree file can then be found with
+     *    getDatabaseFile(index.getFile().getId())
+     * @throws NoSuchElementException if the indexed table doesn't exist
+     * @see SecondaryIndex#build
+     */
+    public void addIndex(SecondaryIndex index) throws NoSuchElementException {
+        int tableid = index.getTableId();
+        if(!idToDbMap.containsKey(tableid)) throw new NoSuchElementException();
+        // 复制后替换，遍历旧列表的读者不受影响
+        List<SecondaryIndex> indexes = new ArrayList<>(getIndexes(tableid));
+        indexes.add(index);
+        idToIndexesMap.put(tableid, Collections.unmodifiableList(indexes));
+        indexIdToFileMap.put(index.getFile().getId(), index.getFile());
+    }
+
+    /**
+     * Returns the secondary indexes over the specified table, or an empty
+     * list if it has none.
+     * @param tableid The id of the table, as specified by the DbFile.getId()
+     *     function passed to addTable
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        return idToIndexesMap.getOrDefault(tableid, Collections.emptyList());
     }
 
     public String getPrimaryKey(int tableid) throws NoSuchElementException{
@@ -116,12 +157,16 @@ public class Catalog {
         return idToNameMap.get(id);
     }
     
-    /** Delete all tables from the catalog */
+    /** Delete all tables from the catalog, closing their files */
     public void clear() {
+        idToDbMap.values().forEach(DbFile::close);
+        indexIdToFileMap.values().forEach(DbFile::close);
         nameToIdMap.clear();
         idToNameMap.clear();
         idToDbMap.clear();
         idToPkeyMap.clear();
+        idToIndexesMap.clear();
+        indexIdToFileMap.clear();
     }
     
     /**
@@ -2,14 +2,16 @@ package simpledb.common;
 
 import simpledb.storage.BufferPool;
 import simpledb.storage.LogFile;
+import simpledb.storage.ReplacementPolicy;
+import simpledb.storage.TempFileManager;
 
 import java.io.*;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Database is a class that initializes several static variables used by the
- * database system (the catalog, the buffer pool, and the log files, in
- * particular.)
+ * database system (the catalog, the buffer pool, the log files and the
+ * temporary files of operators, in particular.)
  * <p>
  * Provides a set of methods that can be used to access these variables from
  * anywhere.
@@ -23,6 +25,7 @@ public class Database {
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
+    private final TempFileManager _tempfiles;
 
     private Database() {
         _catalog = new Catalog();
@@ -35,6 +38,7 @@ public class Database {
             System.exit(1);
         }
         _logfile = tmp;
+        _tempfiles = new TempFileManager();
         // startControllerThread();
     }
 
@@ -48,6 +52,11 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /** Return the temporary file manager of the static Database instance */
+    public static TempFileManager getTempFileManager() {
+        return _instance.get()._tempfiles;
+    }
+
     /** Return the catalog of the static Database instance */
     public static Catalog getCatalog() {
         return _instance.get()._catalog;
@@ -58,11 +67,23 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(new BufferPool(pages));
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * that evicts pages with the given replacement policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy policy) {
+        return resetBufferPool(new BufferPool(pages, policy));
+    }
+
+    private static BufferPool resetBufferPool(BufferPool bufferPool) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), bufferPool);
         } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException e) {
             e.printStackTrace();
         }
@@ -72,7 +93,10 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        Database old = _instance.getAndSet(new Database());
+        old._tempfiles.deleteAll();
+        // 关闭旧catalog中各表的文件
+        old._catalog.clear();
     }
 
 }
@@ -28,6 +28,11 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(byte[] data, int offset) {
+            return new IntField(readInt(data, offset));
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -46,6 +51,12 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(byte[] data, int offset) {
+            int strLen = readInt(data, offset);
+            return new StringField(new String(data, offset + 4, strLen), STRING_LEN);
+        }
     };
     
     public static final int STRING_LEN = 128;
@@ -64,4 +75,21 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   decoded from the given bytes, in the format written by Field.serialize.
+   * @param data the bytes to decode from, e.g. a whole page
+   * @param offset the position of the field in data
+   */
+    public abstract Field parse(byte[] data, int offset);
+
+  /**
+   * @return the int stored big-endian at offset, in the format written by
+   *   IntField.serialize, without allocating an IntField.
+   */
+    public static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
 }
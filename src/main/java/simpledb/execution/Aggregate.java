@@ -1,38 +1,74 @@
 package simpledb.execution;
 
+import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.storage.SpillFile;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.Type;
 
+import java.io.IOException;
 import java.util.NoSuchElementException;
 
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min). Any number of aggregates, each over a single column, grouped by any
+ * number of columns, are computed in one pass over the child by a
+ * {@link HashAggregator}.
+ * <p>
+ * If the groups outgrow the memory budget, the groups so far and the rest of
+ * the child are partitioned by a hash of the group-by columns into spill
+ * files, as partial aggregates. Each partition is then finished by an
+ * Aggregate of its own over the partials, which partitions again if it still
+ * does not fit.
+ * <p>
+ * The same partial aggregates let an aggregate be split across parallel
+ * pipelines: see {@link #partials()} and {@link #mergePartials(OpIterator)}.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
-    private final int afield;
-    private final String afieldName;
-    private final int gfield;
-    private final String gfieldName;
-    private final Aggregator.Op aop;
+    private final int[] afields;
+    private final String[] afieldNames;
+    private final int[] gfields;
+    private final String[] gfieldNames;
+    private final Aggregator.Op[] aops;
+    private final Type[] gfieldTypes;
     private final TupleDesc td;
-    private Aggregator aggregator = null;
+    private final TupleDesc partialTd;
+    // 子节点返回的是部分聚合，而不是要聚合的元组
+    private final boolean mergesPartials;
+    // 返回各组的部分聚合，而不是聚合结果
+    private final boolean returnsPartials;
+    // 当前返回结果的迭代器：内存中的聚合结果，或正在处理的溢出分区的子聚合
+    transient private OpIterator results = null;
+
+    /** The default memory budget of the groups, in bytes. */
+    public final static long DEFAULT_MEMORY_BUDGET = 64L << 20;
+    // 分区数的上限；每个分区有一个写缓冲
+    private final static int MAX_PARTITIONS = 64;
+    // 递归分区的最大深度；到这一层仍放不下时不再分区，忽略内存预算
+    private final static int MAX_DEPTH = 3;
+
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    // 本聚合是第几层递归分区产生的，最外层为0
+    private int depth = 0;
+    // 按分组列分区写入的部分聚合，没有元组的分区为null；未分区时为null
+    transient private SpillFile[] partitions = null;
+    // 正在处理的分区及其子聚合
+    transient private int partition = -1;
+    transient private Aggregate sub = null;
+    transient private int spills = 0;
+    transient private long spilledBytes = 0;
+    transient private long peakMemory = 0;
 
 
     /**
-     * Constructor.
-     * <p>
-     * Implementation hint: depending on the type of afield, you will want to
-     * construct an {@link IntegerAggregator} or {@link StringAggregator} to help
-     * you with your implementation of readNext().
+     * Constructor for a single aggregate with at most one group-by column.
      *
      * @param child  The OpIterator that is feeding us tuples.
      * @param afield The column over which we are computing an aggregate.
@@ -41,122 +77,393 @@ public class Aggregate extends Operator {
      * @param aop    The aggregation operator to use
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
+        this(child, gfield == Aggregator.NO_GROUPING ? new int[0] : new int[]{ gfield },
+                new int[]{ afield }, new Aggregator.Op[]{ aop });
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param child   The OpIterator that is feeding us tuples.
+     * @param gfields The columns over which we are grouping the result, empty
+     *                if there is no grouping
+     * @param afields The columns over which we are computing aggregates
+     * @param aops    The aggregation operator of each column in afields
+     * @throws IllegalArgumentException if an aggregate other than COUNT is
+     *                                  over a column that is not INT_TYPE
+     */
+    public Aggregate(OpIterator child, int[] gfields, int[] afields, Aggregator.Op[] aops) {
+        if (afields.length != aops.length || afields.length == 0) {
+            throw new IllegalArgumentException("every aggregate needs one field and one operator");
+        }
         this.child = child;
-        this.afield = afield;
-        this.gfield = gfield;
-        this.aop = aop;
+        this.gfields = gfields.clone();
+        this.afields = afields.clone();
+        this.aops = aops.clone();
         TupleDesc origin_td = child.getTupleDesc();
-        this.afieldName = origin_td.getFieldName(afield);
-        if(gfield != Aggregator.NO_GROUPING) {
-            this.gfieldName = origin_td.getFieldName(gfield);
-            Type[] types = new Type[]{ origin_td.getFieldType(gfield), origin_td.getFieldType(afield) };
-            String [] fields = new String[]{ afieldName, gfieldName };
-            this.td = new TupleDesc(types, fields);
-        } else {
-            this.gfieldName = null;
-            Type[] types = new Type[]{ origin_td.getFieldType(afield) };
-            String [] fields = new String[]{ afieldName };
-            this.td = new TupleDesc(types, fields);
+        this.gfieldNames = new String[gfields.length];
+        this.gfieldTypes = new Type[gfields.length];
+        for (int i = 0; i < gfields.length; i++) {
+            gfieldNames[i] = origin_td.getFieldName(gfields[i]);
+            gfieldTypes[i] = origin_td.getFieldType(gfields[i]);
         }
-        Type gType = null;
-        if(gfield != Aggregator.NO_GROUPING) gType = origin_td.getFieldType(gfield);
-        if(origin_td.getFieldType(afield) == Type.INT_TYPE) {
-            this.aggregator = new IntegerAggregator(gfield, gType, afield, aop);
-        } else if(origin_td.getFieldType(afield) == Type.STRING_TYPE) {
-            this.aggregator = new StringAggregator(gfield, gType, afield, aop);
+        this.afieldNames = new String[afields.length];
+        for (int i = 0; i < afields.length; i++) {
+            afieldNames[i] = origin_td.getFieldName(afields[i]);
+            if (aops[i] != Aggregator.Op.COUNT && origin_td.getFieldType(afields[i]) != Type.INT_TYPE) {
+                throw new IllegalArgumentException(aops[i] + " is not supported over " + afieldNames[i]);
+            }
         }
+        // 输出的列名：分组列沿用子节点的列名，聚合列为被聚合列的列名，SUM_COUNT的计数列名为count
+        HashAggregator aggregator = new HashAggregator(gfields, gfieldTypes, afields, aops);
+        TupleDesc aggTd = aggregator.getTupleDesc();
+        String[] names = new String[aggTd.numFields()];
+        System.arraycopy(gfieldNames, 0, names, 0, gfields.length);
+        int col = gfields.length;
+        for (int i = 0; i < afields.length; i++) {
+            names[col++] = afieldNames[i];
+            if (aops[i] == Aggregator.Op.SUM_COUNT) names[col++] = "count";
+        }
+        Type[] types = new Type[aggTd.numFields()];
+        for (int i = 0; i < types.length; i++) types[i] = aggTd.getFieldType(i);
+        this.td = new TupleDesc(types, names);
+        this.partialTd = aggregator.getPartialTupleDesc();
+        this.mergesPartials = false;
+        this.returnsPartials = false;
+    }
+
+    // 与other计算相同的聚合，子节点换成child
+    private Aggregate(OpIterator child, Aggregate other, boolean mergesPartials, boolean returnsPartials) {
+        this.child = child;
+        this.gfields = other.gfields;
+        this.gfieldNames = other.gfieldNames;
+        this.gfieldTypes = other.gfieldTypes;
+        this.afields = other.afields;
+        this.afieldNames = other.afieldNames;
+        this.aops = other.aops;
+        this.td = other.td;
+        this.partialTd = other.partialTd;
+        this.mergesPartials = mergesPartials;
+        this.returnsPartials = returnsPartials;
+        this.memoryBudget = other.memoryBudget;
+    }
+
+    /**
+     * @return an Aggregate over the same child that returns the partial
+     *         aggregate of each group, with the TupleDesc
+     *         {@link HashAggregator#getPartialTupleDesc()}, instead of its
+     *         result. Partial aggregates keep sums and counts as 64-bit
+     *         values, so that merging them does not overflow.
+     */
+    public Aggregate partials() {
+        return new Aggregate(child, this, mergesPartials, true);
+    }
+
+    /**
+     * @param partials partial aggregates of the groups, returned by
+     *                 Aggregates made with {@link #partials()} from an
+     *                 Aggregate with the same group-by fields and aggregates
+     *                 as this one; a group may have several
+     * @return an Aggregate that merges the partial aggregates and returns
+     *         the same tuples as this Aggregate over all of their input
+     */
+    public Aggregate mergePartials(OpIterator partials) {
+        return new Aggregate(partials, this, true, false);
     }
 
     /**
      * @return If this aggregate is accompanied by a groupby, return the groupby
      * field index in the <b>INPUT</b> tuples. If not, return
-     * {@link Aggregator#NO_GROUPING}
+     * {@link Aggregator#NO_GROUPING}. With several group-by fields, the first.
      */
     public int groupField() {
-        return this.gfield;
+        return gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
     }
 
     /**
      * @return If this aggregate is accompanied by a group by, return the name
      * of the groupby field in the <b>OUTPUT</b> tuples. If not, return
-     * null;
+     * null; With several group-by fields, the first.
      */
     public String groupFieldName() {
-        return this.gfieldName;
+        return gfields.length == 0 ? null : gfieldNames[0];
+    }
+
+    /**
+     * @return the group-by field indexes in the <b>INPUT</b> tuples, empty if
+     * there is no grouping
+     */
+    public int[] groupFields() {
+        return gfields.clone();
     }
 
     /**
-     * @return the aggregate field
+     * @return the names of the group-by fields in the <b>OUTPUT</b> tuples
+     */
+    public String[] groupFieldNames() {
+        return gfieldNames.clone();
+    }
+
+    /**
+     * @return the aggregate field; with several aggregates, the first
      */
     public int aggregateField() {
-        return this.afield;
+        return afields[0];
     }
 
     /**
      * @return return the name of the aggregate field in the <b>OUTPUT</b>
-     * tuples
+     * tuples; with several aggregates, the first
      */
     public String aggregateFieldName() {
-        return this.afieldName;
+        return afieldNames[0];
     }
 
     /**
-     * @return return the aggregate operator
+     * @return return the aggregate operator; with several aggregates, the
+     * first
      */
     public Aggregator.Op aggregateOp() {
-        return this.aop;
+        return aops[0];
+    }
+
+    /**
+     * @return the aggregate field of each aggregate
+     */
+    public int[] aggregateFields() {
+        return afields.clone();
+    }
+
+    /**
+     * @return the names of the aggregate fields in the <b>OUTPUT</b> tuples
+     */
+    public String[] aggregateFieldNames() {
+        return afieldNames.clone();
+    }
+
+    /**
+     * @return the aggregate operator of each aggregate
+     */
+    public Aggregator.Op[] aggregateOps() {
+        return aops.clone();
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
         return aop.toString();
     }
 
+    /**
+     * Set the memory the groups may use, in bytes. If there are more groups,
+     * they are partitioned to temporary files and aggregated one partition
+     * at a time.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return the number of partition files written by the last open() and
+     *         by the partitions finished since
+     */
+    public int getSpillCount() {
+        return spills;
+    }
+
+    /**
+     * @return the number of bytes written to disk by the last open() and by
+     *         the partitions finished since
+     */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * @return the estimated peak memory of the groups held in memory at once,
+     *         in bytes, since the last open()
+     */
+    public long getPeakMemory() {
+        return peakMemory;
+    }
+
     public void open() throws NoSuchElementException, DbException,
             TransactionAbortedException {
         child.open();
         super.open();
-        while(child.hasNext()) {
-            Tuple t = child.next();
-            aggregator.mergeTupleIntoGroup(t);
+        dropPartitions();
+        spills = 0;
+        spilledBytes = 0;
+        peakMemory = 0;
+        long groupSize = HashAggregator.estimateGroupSize(gfieldTypes, aops.length);
+        long maxGroups = Math.max(1, memoryBudget / groupSize);
+        // 按batch读取子节点，所有聚合在一趟中直接在列向量上进行
+        HashAggregator aggregator = new HashAggregator(gfields, gfieldTypes, afields, aops);
+        TupleBatch batch;
+        while((batch = child.nextBatch()) != null) {
+            if (partitions != null) {
+                for (int i = 0; i < batch.size(); i++) {
+                    Tuple t = batch.getTuple(batch.row(i));
+                    spill(mergesPartials ? t : aggregator.partialOf(t));
+                }
+                continue;
+            }
+            if (mergesPartials) {
+                for (int i = 0; i < batch.size(); i++) {
+                    aggregator.mergePartial(batch.getTuple(batch.row(i)));
+                }
+            } else {
+                aggregator.mergeBatch(batch);
+            }
+            peakMemory = Math.max(peakMemory, aggregator.numGroups() * groupSize);
+            if (aggregator.numGroups() > maxGroups && gfields.length > 0 && depth < MAX_DEPTH) {
+                partition(aggregator, maxGroups);
+                // 内存中的组已经写出，之后只用它把子节点的元组转换成部分聚合
+                aggregator = new HashAggregator(gfields, gfieldTypes, afields, aops);
+            }
         }
-        child = aggregator.iterator();
-        child.open();
+        if (partitions == null) {
+            results = returnsPartials ? aggregator.partialIterator() : aggregator.iterator();
+            results.open();
+            return;
+        }
+        for (SpillFile file : partitions) {
+            if (file == null) continue;
+            file.finishWriting();
+            spills++;
+            spilledBytes += file.numBytes();
+        }
+    }
+
+    // 分区数使每个分区的组大约能放进内存；基数估计偏小时至少按两倍内存计算
+    private int numPartitions(long maxGroups) {
+        int card = child instanceof Operator ? ((Operator) child).getEstimatedCardinality() : 0;
+        long expected = Math.max(card, 2 * maxGroups);
+        long n = (expected + maxGroups - 1) / maxGroups + 1;
+        return (int) Math.min(MAX_PARTITIONS, n);
+    }
+
+    // 组数超出内存预算：把内存中的组作为部分聚合分区写出，之后子节点的元组也写入分区
+    private void partition(HashAggregator aggregator, long maxGroups)
+            throws DbException, TransactionAbortedException {
+        partitions = new SpillFile[numPartitions(maxGroups)];
+        OpIterator partials = aggregator.partialIterator();
+        partials.open();
+        while (partials.hasNext()) {
+            spill(partials.next());
+        }
+        partials.close();
+    }
+
+    // 每层递归使用不同的hash函数，否则一个分区的组在下一层会全部落入同一分区
+    private int partitionOf(Tuple partial) {
+        int h = depth * 0x9E3779B9;
+        for (int i = 0; i < gfields.length; i++) {
+            h = 31 * h + partial.getField(i).hashCode();
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % partitions.length;
+    }
+
+    private void spill(Tuple partial) throws DbException {
+        int p = partitionOf(partial);
+        if (partitions[p] == null) {
+            try {
+                partitions[p] = Database.getTempFileManager().createSpillFile(partial.getTupleDesc());
+            } catch (IOException e) {
+                throw new DbException("Failed to create spill file: " + e.getMessage());
+            }
+        }
+        partitions[p].append(partial);
+    }
+
+    // 关闭当前分区的子聚合，打开下一个分区的子聚合；返回false表示没有更多分区
+    private boolean nextPartition() throws DbException, TransactionAbortedException {
+        if (partitions == null) return false;
+        closePartition();
+        while (++partition < partitions.length) {
+            if (partitions[partition] == null) continue;
+            // 分区中是部分聚合，直接合并各组的状态
+            sub = new Aggregate(new SpillScan(partitions[partition]), this, true, returnsPartials);
+            sub.depth = depth + 1;
+            sub.open();
+            results = sub;
+            return true;
+        }
+        return false;
+    }
+
+    // 子聚合的统计并入本聚合；分区文件留到close时删除，rewind时重新聚合
+    private void closePartition() {
+        if (sub == null) return;
+        sub.close();
+        spills += sub.spills;
+        spilledBytes += sub.spilledBytes;
+        peakMemory = Math.max(peakMemory, sub.peakMemory);
+        sub = null;
+        results = null;
+    }
+
+    private void dropPartitions() {
+        if (partitions == null) return;
+        closePartition();
+        for (SpillFile file : partitions) {
+            if (file != null) file.delete();
+        }
+        partitions = null;
+        partition = -1;
     }
 
     /**
-     * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate. If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * Returns the next tuple: the group-by fields, if any, in the order they
+     * were given, followed by the result of each aggregate. Should return null
+     * if there are no more tuples.
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if(child.hasNext()) return child.next();
-        return null;
+        while (true) {
+            if (results != null && results.hasNext()) return results.next();
+            if (!nextPartition()) return null;
+        }
     }
 
+    /**
+     * Returns the results again, without reading the child again. Spilled
+     * partitions are aggregated again from their files.
+     */
     public void rewind() throws DbException, TransactionAbortedException {
-        child.rewind();
+        if (partitions == null) {
+            results.rewind();
+            return;
+        }
+        closePartition();
+        partition = -1;
     }
 
     /**
-     * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * Returns the TupleDesc of this Aggregate: the group by fields, if any,
+     * followed by one aggregate value column per aggregate. SUM_COUNT adds a
+     * count column after the sum. An Aggregate made by {@link #partials()}
+     * returns partial aggregates instead.
      * <p>
-     * The name of an aggregate column should be informative. For example:
-     * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
-     * given in the constructor, and child_td is the TupleDesc of the child
-     * iterator.
+     * The group by columns keep the names they have in the child; an
+     * aggregate column is named after the column it aggregates.
      */
     public TupleDesc getTupleDesc() {
-        return this.td;
+        return returnsPartials ? partialTd : this.td;
     }
 
     public void close() {
         super.close();
         child.close();
+        dropPartitions();
+        if(results != null) results.close();
+        results = null;
     }
 
     @Override
@@ -1,6 +1,7 @@
 package simpledb.execution;
 
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleIterator;
 
 import java.io.Serializable;
@@ -20,13 +21,14 @@ public interface Aggregator extends Serializable {
     enum Op implements Serializable {
         MIN, MAX, SUM, AVG, COUNT,
         /**
-         * SUM_COUNT: compute sum and count simultaneously, will be
-         * needed to compute distributed avg in lab7.
+         * SUM_COUNT: compute sum and count simultaneously, the partial
+         * aggregate of a distributed avg. The count is output in a column
+         * after the sum.
          * */
         SUM_COUNT,
         /**
-         * SC_AVG: compute the avg of a set of SUM_COUNT tuples,
-         * will be used to compute distributed avg in lab7.
+         * SC_AVG: compute the avg of a set of SUM_COUNT tuples, whose sum is
+         * the aggregate field and whose count is the field after it.
          * */
         SC_AVG;
 
@@ -79,6 +81,18 @@ public interface Aggregator extends Serializable {
      */
     void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge the selected rows of a batch into the aggregate. The default
+     * implementation merges them one tuple at a time.
+     *
+     * @param batch the batch containing aggregate and group-by columns
+     */
+    default void mergeBatch(TupleBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            mergeTupleIntoGroup(batch.getTuple(batch.row(i)));
+        }
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see TupleIterator for a possible helper
@@ -0,0 +1,93 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * BatchRowIterator reads its child one batch at a time through
+ * {@link OpIterator#nextBatch()} and returns the selected rows one tuple at a
+ * time. Placed on top of a subtree of operators with batch implementations,
+ * it lets the whole subtree run batch-at-a-time under a consumer that reads
+ * rows. The reverse adapter, from rows to batches, is the default
+ * implementation of nextBatch().
+ */
+public class BatchRowIterator extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    transient private TupleBatch batch = null;
+    // batch中下一个要返回的被选中行
+    transient private int index = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The child operator to read batches from
+     */
+    public BatchRowIterator(OpIterator child) {
+        this.child = child;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        batch = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        batch = null;
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the next selected row of the
+     * current batch, reading the next batch of the child when it is used up.
+     *
+     * @return The next tuple, or null if there are no more tuples
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (batch == null || index >= batch.size()) {
+            batch = child.nextBatch();
+            index = 0;
+            if (batch == null) return null;
+        }
+        return batch.getTuple(batch.row(index++));
+    }
+
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        // 当前batch中还有未返回的行时，先把它们逐行返回
+        if (batch != null && index < batch.size()) {
+            return super.fetchNextBatch();
+        }
+        batch = null;
+        return child.nextBatch();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{ this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        if (this.child != children[0]) {
+            this.child = children[0];
+        }
+    }
+}
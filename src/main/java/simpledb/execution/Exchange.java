@@ -0,0 +1,250 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Exchange runs several pipelines of operators in parallel, one worker thread
+ * per pipeline, and gathers the batches they produce into a single stream in
+ * the thread that reads the Exchange. The pipelines must have the same
+ * TupleDesc; the order of the output is not defined.
+ * <p>
+ * Usually the pipelines are copies of the same plan over the parts of a
+ * table, e.g. filters over SeqScans that share {@link
+ * simpledb.storage.PageMorsels}, and all of them run under the transaction of
+ * the query: their pages are locked for that transaction through the
+ * BufferPool, as if a single thread had read them. See {@link Parallel} for
+ * the usual ways to build such plans.
+ * <p>
+ * The first exception thrown by a worker stops the others and is rethrown to
+ * the reader of the Exchange.
+ */
+public class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The default number of pipelines of a parallel plan. */
+    public static final int DEFAULT_DEGREE = Runtime.getRuntime().availableProcessors();
+
+    // 线程数不设上限：Exchange嵌套时外层的worker会等待内层的worker，固定大小的线程池可能死锁
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "exchange-worker");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // 每个pipeline在队列中最多积压的batch数
+    private static final int BATCHES_PER_PIPELINE = 4;
+    // worker等待队列空位时检查是否已被取消的间隔
+    private static final long OFFER_TIMEOUT_MS = 100;
+
+    private OpIterator[] pipelines;
+
+    transient private BlockingQueue<TupleBatch> queue = null;
+    // 每个worker结束时放入的标记
+    transient private TupleBatch end = null;
+    transient private List<Future<?>> futures = new ArrayList<>();
+    transient private volatile boolean cancelled = false;
+    transient private AtomicReference<Throwable> failure = new AtomicReference<>();
+    // 已经结束的worker数
+    transient private int finished = 0;
+    // 已经open过的pipeline，再次运行时rewind
+    transient private boolean[] opened;
+
+    transient private TupleBatch batch = null;
+    transient private int index = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param pipelines
+     *            the pipelines to run in parallel, all with the same TupleDesc
+     */
+    public Exchange(OpIterator[] pipelines) {
+        setChildren(pipelines);
+    }
+
+    /** @return the number of pipelines run in parallel */
+    public int getDegree() {
+        return pipelines.length;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return pipelines[0].getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        start();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        stop();
+        for (int i = 0; i < pipelines.length; i++) {
+            if (opened[i]) pipelines[i].close();
+            opened[i] = false;
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        stop();
+        start();
+    }
+
+    // 重置pipeline共享的morsel，然后每个pipeline提交一个worker
+    private void start() {
+        for (OpIterator pipeline : pipelines) {
+            resetMorsels(pipeline);
+        }
+        queue = new ArrayBlockingQueue<>(BATCHES_PER_PIPELINE * pipelines.length);
+        end = new TupleBatch(getTupleDesc(), 1);
+        cancelled = false;
+        failure.set(null);
+        finished = 0;
+        batch = null;
+        for (int i = 0; i < pipelines.length; i++) {
+            final int worker = i;
+            final boolean rewind = opened[i];
+            opened[i] = true;
+            futures.add(WORKERS.submit(() -> run(worker, rewind)));
+        }
+    }
+
+    /**
+     * Reset the morsels of the morsel-driven scans in a pipeline, so that the
+     * scans read their table again.
+     */
+    static void resetMorsels(OpIterator op) {
+        if (op instanceof SeqScan && ((SeqScan) op).getMorsels() != null) {
+            ((SeqScan) op).getMorsels().reset();
+        } else if (op instanceof Operator) {
+            for (OpIterator child : ((Operator) op).getChildren()) {
+                if (child != null) resetMorsels(child);
+            }
+        }
+    }
+
+    private void run(int worker, boolean rewind) {
+        OpIterator pipeline = pipelines[worker];
+        try {
+            if (rewind) {
+                pipeline.rewind();
+            } else {
+                pipeline.open();
+            }
+            TupleBatch b;
+            while (!cancelled && (b = pipeline.nextBatch()) != null) {
+                while (!queue.offer(b, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    if (cancelled) return;
+                }
+            }
+        } catch (Throwable e) {
+            // 只保留第一个异常，并让其他worker尽快停下
+            failure.compareAndSet(null, e);
+            cancelled = true;
+        } finally {
+            putEnd();
+        }
+    }
+
+    private void putEnd() {
+        while (!cancelled) {
+            try {
+                if (queue.offer(end, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) return;
+            } catch (InterruptedException e) {
+                cancelled = true;
+            }
+        }
+        // 已取消时读者不再等待worker结束的标记，但队列为空时仍要唤醒它
+        queue.offer(end);
+    }
+
+    // 取消所有worker并等它们结束；pipeline只在读者线程里close
+    private void stop() {
+        cancelled = true;
+        if (queue != null) queue.clear();
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // run()自己处理异常
+            }
+            if (queue != null) queue.clear();
+        }
+        futures.clear();
+        queue = null;
+        batch = null;
+    }
+
+    private void rethrow(Throwable e) throws DbException, TransactionAbortedException {
+        if (e instanceof DbException) throw (DbException) e;
+        if (e instanceof TransactionAbortedException) throw (TransactionAbortedException) e;
+        if (e instanceof RuntimeException) throw (RuntimeException) e;
+        if (e instanceof Error) throw (Error) e;
+        throw new DbException("Exchange worker failed: " + e);
+    }
+
+    // 从队列取下一个batch，所有worker都结束时返回null
+    private TupleBatch take() throws DbException, TransactionAbortedException {
+        while (true) {
+            Throwable e = failure.get();
+            if (e != null) rethrow(e);
+            if (finished == pipelines.length) return null;
+            TupleBatch b;
+            try {
+                b = queue.take();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new DbException("interrupted while waiting for Exchange workers");
+            }
+            if (b == end) {
+                finished++;
+            } else {
+                return b;
+            }
+        }
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (batch == null || index >= batch.size()) {
+            batch = take();
+            index = 0;
+            if (batch == null) return null;
+        }
+        return batch.getTuple(batch.row(index++));
+    }
+
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        // 当前batch中还有未返回的行时，先把它们逐行返回
+        if (batch != null && index < batch.size()) {
+            return super.fetchNextBatch();
+        }
+        batch = null;
+        return take();
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return pipelines.clone();
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        if (children.length == 0) {
+            throw new IllegalArgumentException("Exchange needs at least one pipeline");
+        }
+        this.pipelines = children.clone();
+        this.opened = new boolean[children.length];
+    }
+}
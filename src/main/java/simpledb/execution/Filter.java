@@ -3,6 +3,7 @@ package simpledb.execution;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -75,6 +76,25 @@ public class Filter extends Operator {
         return null;
     }
 
+    /**
+     * Operator.fetchNextBatch implementation. Applies the predicate to whole
+     * batches of the child, skipping batches in which no tuple passes.
+     *
+     * @return The next batch with at least one tuple that passes the filter,
+     *         or null if there are no more tuples
+     * @see Predicate#filter(TupleBatch)
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch;
+        while((batch = child.nextBatch()) != null) {
+            predicate.filter(batch);
+            if(batch.size() > 0) {
+                return batch;
+            }
+        }
+        return null;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{ this.child };
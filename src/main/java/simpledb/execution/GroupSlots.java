@@ -0,0 +1,248 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Numbers the distinct values of one or more group-by columns 0, 1, 2, ... in
+ * the order they are first seen, so that aggregators can keep the state of
+ * every group in primitive arrays indexed by that number, its slot.
+ * <p>
+ * The values of a group are encoded into a single key. One or two INT_TYPE
+ * columns are packed into a long and looked up in an open-addressing table of
+ * longs, so grouping on int columns neither boxes the values nor allocates
+ * per row. Other combinations are encoded as the serialized bytes of their
+ * fields and looked up in a HashMap.
+ */
+public class GroupSlots {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private final Type[] types;
+    // 一到两个INT_TYPE列时分组值打包成long
+    private final boolean packed;
+    // 打包的分组值的开放寻址表，slots中存slot+1，0表示空
+    private long[] keys;
+    private int[] slots;
+    private int mask;
+    // 其他情况下分组值序列化后的字节
+    private final Map<ByteBuffer, Integer> encoded;
+
+    // 每个slot的分组值，按slot依次存放，每个slot占types.length个
+    private Field[] groups;
+    private int size = 0;
+
+    /**
+     * @param type the type of the group-by column
+     */
+    public GroupSlots(Type type) {
+        this(new Type[]{ type });
+    }
+
+    /**
+     * @param types the types of the group-by columns
+     */
+    public GroupSlots(Type[] types) {
+        if (types.length == 0) {
+            throw new IllegalArgumentException("a group needs at least one column");
+        }
+        this.types = types.clone();
+        boolean ints = types.length <= 2;
+        for (Type t : types) {
+            ints &= t == Type.INT_TYPE;
+        }
+        this.packed = ints;
+        if (packed) {
+            allocate(MIN_CAPACITY);
+            encoded = null;
+        } else {
+            encoded = new HashMap<>();
+        }
+        groups = new Field[MIN_CAPACITY * types.length];
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        slots = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static long pack(int first, int second) {
+        return ((long) first << 32) | (second & 0xffffffffL);
+    }
+
+    /** @return the number of group-by columns */
+    public int width() {
+        return types.length;
+    }
+
+    /**
+     * @return the slot of a group of one INT_TYPE column, adding it if it is
+     *         new
+     */
+    public int slotOf(int key) {
+        return slotOfPacked(key);
+    }
+
+    /**
+     * @return the slot of a group of two INT_TYPE columns, adding it if it is
+     *         new
+     */
+    public int slotOf(int first, int second) {
+        return slotOfPacked(pack(first, second));
+    }
+
+    private int slotOfPacked(long key) {
+        int i = hash(key) & mask;
+        while (slots[i] != 0) {
+            if (keys[i] == key) return slots[i] - 1;
+            i = (i + 1) & mask;
+        }
+        int slot = types.length == 1
+                ? add(new IntField((int) key))
+                : add(new IntField((int) (key >>> 32)), new IntField((int) key));
+        keys[i] = key;
+        slots[i] = slot + 1;
+        // 装载因子不超过0.5
+        if (size * 2 > keys.length) rehash();
+        return slot;
+    }
+
+    /**
+     * @return the slot of a group of one column, adding it if it is new
+     */
+    public int slotOf(Field group) {
+        return slotOf(new Field[]{ group });
+    }
+
+    /**
+     * @return the slot of a group, given the values of its columns, adding
+     *         it if it is new
+     */
+    public int slotOf(Field... group) {
+        if (packed) {
+            int first = ((IntField) group[0]).getValue();
+            return types.length == 1 ? slotOf(first) : slotOf(first, ((IntField) group[1]).getValue());
+        }
+        ByteBuffer key = encode(group);
+        Integer slot = encoded.get(key);
+        if (slot == null) {
+            slot = add(group.clone());
+            encoded.put(key, slot);
+        }
+        return slot;
+    }
+
+    /**
+     * @return the slot of the group of a tuple, adding it if it is new
+     * @param fields the group-by columns of the tuple
+     */
+    public int slotOf(Tuple t, int[] fields) {
+        Field[] group = new Field[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            group[i] = t.getField(fields[i]);
+        }
+        return slotOf(group);
+    }
+
+    /**
+     * Look up the groups of the selected rows of a batch, adding the new
+     * ones. Packed int columns are read from the batch's int columns.
+     *
+     * @param batch the batch
+     * @param fields the group-by columns of the batch
+     * @param out receives the slot of the i-th selected row at index i;
+     *            used if it is large enough
+     * @return the array holding the slots
+     */
+    public int[] slotsOf(TupleBatch batch, int[] fields, int[] out) {
+        int n = batch.size();
+        if (out == null || out.length < n) out = new int[n];
+        if (packed && types.length == 1) {
+            int[] col = batch.getIntColumn(fields[0]);
+            for (int i = 0; i < n; i++) out[i] = slotOf(col[batch.row(i)]);
+        } else if (packed) {
+            int[] first = batch.getIntColumn(fields[0]);
+            int[] second = batch.getIntColumn(fields[1]);
+            for (int i = 0; i < n; i++) {
+                int r = batch.row(i);
+                out[i] = slotOf(first[r], second[r]);
+            }
+        } else {
+            Field[] group = new Field[fields.length];
+            for (int i = 0; i < n; i++) {
+                int r = batch.row(i);
+                for (int j = 0; j < fields.length; j++) {
+                    group[j] = batch.getField(r, fields[j]);
+                }
+                out[i] = slotOf(group);
+            }
+        }
+        return out;
+    }
+
+    private ByteBuffer encode(Field[] group) {
+        int len = 0;
+        for (Type t : types) len += t.getLen();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(len);
+        DataOutputStream dos = new DataOutputStream(bytes);
+        try {
+            for (Field f : group) f.serialize(dos);
+        } catch (IOException e) {
+            // 写入内存不会失败
+            throw new IllegalStateException(e);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    private int add(Field... group) {
+        if ((size + 1) * types.length > groups.length) {
+            groups = Arrays.copyOf(groups, groups.length * 2);
+        }
+        System.arraycopy(group, 0, groups, size * types.length, types.length);
+        return size++;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldSlots = slots;
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldSlots[i] != 0) {
+                int j = hash(oldKeys[i]) & mask;
+                while (slots[j] != 0) j = (j + 1) & mask;
+                keys[j] = oldKeys[i];
+                slots[j] = oldSlots[i];
+            }
+        }
+    }
+
+    /** @return the value of the first group-by column of a slot */
+    public Field group(int slot) {
+        return group(slot, 0);
+    }
+
+    /** @return the value of a group-by column of a slot */
+    public Field group(int slot, int column) {
+        return groups[slot * types.length + column];
+    }
+
+    /** @return the number of groups */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,430 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+
+/**
+ * Computes any number of aggregates, grouped by any number of columns, in a
+ * single pass over its input. The groups are numbered by a
+ * {@link GroupSlots}, which encodes the values of the group-by columns into
+ * one key, and the state of every aggregate is kept in primitive arrays
+ * indexed by group slot: a long value (the minimum, maximum or sum) and a
+ * long count of the rows merged into the group.
+ * <p>
+ * Besides the aggregates over single values, it merges the partial
+ * aggregates of parallel plans: SUM_COUNT outputs the sum and the count of
+ * every group, and SC_AVG aggregates such (sum, count) pairs, read from
+ * afield and afield + 1, into averages. COUNT may be computed over a column
+ * of any type; the other aggregates need INT_TYPE columns.
+ * <p>
+ * The output tuples hold the group-by columns, in order, followed by one
+ * INT_TYPE column per aggregate (two for SUM_COUNT).
+ * <p>
+ * Operators that run out of memory, and the pipelines of parallel plans,
+ * pass groups on as partial aggregates, see {@link #partialIterator()} and
+ * {@link #partialOf(Tuple)}, which hold the 64-bit state of every aggregate
+ * without truncation, and finish them later with
+ * {@link #mergePartial(Tuple)}.
+ */
+public class HashAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+    private static final int INITIAL_GROUPS = 16;
+    private final int[] gbfields;
+    private final int[] afields;
+    private final Op[] ops;
+    private final TupleDesc td;
+    private final TupleDesc partialTd;
+    // 分组值到slot的映射；不分组时为null，唯一的组在slot 0
+    private final GroupSlots groups;
+    // 部分聚合中分组列的位置，即最前面的几列
+    private final int[] partialGbfields;
+    private int numGroups = 0;
+    // 每个聚合在每组的状态：MIN、MAX的值或其他聚合的和，以及合并进该组的行数
+    private final long[][] values;
+    private final long[][] counts;
+    // 一个batch中各行所在的组
+    private int[] batchSlots = null;
+
+    /**
+     * Constructor.
+     *
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields in the tuple, or
+     *            an empty array if there is no grouping
+     * @param gbfieldtypes
+     *            the types of the group-by fields
+     * @param afields
+     *            the 0-based indexes of the aggregate fields in the tuple; for
+     *            SC_AVG, the sum field, followed by the count field
+     * @param ops
+     *            the aggregation operator of each aggregate field
+     */
+    public HashAggregator(int[] gbfields, Type[] gbfieldtypes, int[] afields, Op[] ops) {
+        if (afields.length != ops.length || afields.length == 0) {
+            throw new IllegalArgumentException("every aggregate needs one field and one operator");
+        }
+        this.gbfields = gbfields.clone();
+        this.afields = afields.clone();
+        this.ops = ops.clone();
+        List<Type> types = new ArrayList<>(Arrays.asList(gbfieldtypes));
+        for (Op op : ops) {
+            types.add(Type.INT_TYPE);
+            if (op == Op.SUM_COUNT) types.add(Type.INT_TYPE);
+        }
+        this.td = new TupleDesc(types.toArray(new Type[0]));
+        // 部分聚合中MIN、MAX保存一列值，其余聚合的和与行数各占高、低两个INT字
+        List<Type> partialTypes = new ArrayList<>(Arrays.asList(gbfieldtypes));
+        for (Op op : ops) {
+            for (int i = 0; i < partialWidth(op); i++) partialTypes.add(Type.INT_TYPE);
+        }
+        this.partialTd = new TupleDesc(partialTypes.toArray(new Type[0]));
+        this.groups = gbfields.length == 0 ? null : new GroupSlots(gbfieldtypes);
+        this.partialGbfields = new int[gbfields.length];
+        for (int i = 0; i < gbfields.length; i++) partialGbfields[i] = i;
+        this.values = new long[ops.length][INITIAL_GROUPS];
+        this.counts = new long[ops.length][INITIAL_GROUPS];
+    }
+
+    /** @return the TupleDesc of the output tuples */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of groups so far */
+    public int numGroups() {
+        return numGroups;
+    }
+
+    /**
+     * Estimate the memory one group takes: its aggregate state, its group-by
+     * values and its entry in the group lookup table. Used to keep the groups
+     * within a memory budget.
+     */
+    public static long estimateGroupSize(Type[] gbfieldtypes, int numAggregates) {
+        long bytes = 16L * numAggregates;
+        boolean packed = gbfieldtypes.length <= 2;
+        int keyLen = 0;
+        for (Type t : gbfieldtypes) {
+            packed &= t == Type.INT_TYPE;
+            keyLen += t.getLen();
+            bytes += 8 + (t == Type.INT_TYPE ? 16 : 48 + 2L * Type.STRING_LEN);
+        }
+        // 打包的long键在装载因子0.5的表中；其他键是HashMap的entry、ByteBuffer和字节数组
+        return bytes + (packed ? 24 : 112 + keyLen);
+    }
+
+    private static boolean hasCount(Op op) {
+        return op == Op.AVG || op == Op.SC_AVG || op == Op.SUM_COUNT;
+    }
+
+    // 部分聚合中一个聚合所占的列数
+    private static int partialWidth(Op op) {
+        if (op == Op.MIN || op == Op.MAX) return 1;
+        return hasCount(op) ? 4 : 2;
+    }
+
+    // long按高、低两个INT字写入部分聚合
+    private static int setLong(Tuple t, int i, long v) {
+        t.setField(i, new IntField((int) (v >>> 32)));
+        t.setField(i + 1, new IntField((int) v));
+        return i + 2;
+    }
+
+    private static long getLong(Tuple t, int i) {
+        long high = ((IntField) t.getField(i)).getValue();
+        long low = ((IntField) t.getField(i + 1)).getValue();
+        return (high << 32) | (low & 0xffffffffL);
+    }
+
+    /**
+     * @return the TupleDesc of partial aggregates: the group-by columns
+     *         followed by the state of every aggregate. MIN and MAX keep their
+     *         value in one column; COUNT keeps its count, SUM its sum, and
+     *         AVG, SC_AVG and SUM_COUNT their sum followed by their count,
+     *         each as a 64-bit value split into a high and a low INT column
+     */
+    public TupleDesc getPartialTupleDesc() {
+        return partialTd;
+    }
+
+    /**
+     * @return the partial aggregate of a single input tuple
+     */
+    public Tuple partialOf(Tuple tup) {
+        Tuple t = new Tuple(partialTd);
+        int i = 0;
+        for (int gbfield : gbfields) {
+            t.setField(i++, tup.getField(gbfield));
+        }
+        for (int a = 0; a < ops.length; a++) {
+            if (ops[a] == Op.COUNT) {
+                i = setLong(t, i, 1);
+                continue;
+            }
+            if (ops[a] == Op.MIN || ops[a] == Op.MAX) {
+                t.setField(i++, tup.getField(afields[a]));
+                continue;
+            }
+            i = setLong(t, i, ((IntField) tup.getField(afields[a])).getValue());
+            if (hasCount(ops[a])) {
+                i = setLong(t, i, ops[a] == Op.SC_AVG ? ((IntField) tup.getField(afields[a] + 1)).getValue() : 1);
+            }
+        }
+        return t;
+    }
+
+    /**
+     * Merge a partial aggregate, with the TupleDesc
+     * {@link #getPartialTupleDesc()}, into the aggregates. Merging the
+     * partials of some tuples gives the same groups as merging the tuples.
+     *
+     * @param partial
+     *            a tuple of {@link #partialIterator()} or
+     *            {@link #partialOf(Tuple)} of an aggregator with the same
+     *            group-by field types and aggregates
+     */
+    public void mergePartial(Tuple partial) {
+        int slot = groups == null ? 0 : groups.slotOf(partial, partialGbfields);
+        grow(slot + 1);
+        int i = gbfields.length;
+        for (int a = 0; a < ops.length; a++) {
+            if (ops[a] == Op.MIN || ops[a] == Op.MAX) {
+                merge(a, slot, ((IntField) partial.getField(i++)).getValue(), 1);
+            } else if (ops[a] == Op.COUNT) {
+                merge(a, slot, 0, getLong(partial, i));
+                i += 2;
+            } else if (hasCount(ops[a])) {
+                merge(a, slot, getLong(partial, i), getLong(partial, i + 2));
+                i += 4;
+            } else {
+                merge(a, slot, getLong(partial, i), 1);
+                i += 2;
+            }
+        }
+    }
+
+    // 保证slot在状态数组范围内，并记录组数
+    private void grow(int groupCount) {
+        if (groupCount > values[0].length) {
+            int capacity = Math.max(values[0].length * 2, groupCount);
+            for (int a = 0; a < ops.length; a++) {
+                values[a] = Arrays.copyOf(values[a], capacity);
+                counts[a] = Arrays.copyOf(counts[a], capacity);
+            }
+        }
+        numGroups = Math.max(numGroups, groupCount);
+    }
+
+    /**
+     * Merge a new tuple into the aggregates, grouping as indicated in the
+     * constructor
+     *
+     * @param tup
+     *            the Tuple containing the aggregate and group-by fields
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        int slot = groups == null ? 0 : groups.slotOf(tup, gbfields);
+        grow(slot + 1);
+        for (int a = 0; a < ops.length; a++) {
+            long value = ops[a] == Op.COUNT ? 0 : ((IntField) tup.getField(afields[a])).getValue();
+            long count = ops[a] == Op.SC_AVG ? ((IntField) tup.getField(afields[a] + 1)).getValue() : 1;
+            merge(a, slot, value, count);
+        }
+    }
+
+    /**
+     * Merge the selected rows of a batch into the aggregates. The groups of
+     * all rows are looked up first; then each aggregate is updated from its
+     * primitive int column. Without grouping each aggregate folds the whole
+     * batch into one partial result before it is merged.
+     */
+    public void mergeBatch(TupleBatch batch) {
+        int n = batch.size();
+        if (n == 0) return;
+        if (groups == null) {
+            grow(1);
+            for (int a = 0; a < ops.length; a++) {
+                mergeBatchUngrouped(a, batch);
+            }
+            return;
+        }
+        batchSlots = groups.slotsOf(batch, gbfields, batchSlots);
+        grow(groups.size());
+        for (int a = 0; a < ops.length; a++) {
+            long[] v = values[a];
+            long[] c = counts[a];
+            if (ops[a] == Op.COUNT) {
+                for (int i = 0; i < n; i++) c[batchSlots[i]]++;
+                continue;
+            }
+            int[] vals = batch.getIntColumn(afields[a]);
+            if (ops[a] == Op.MIN || ops[a] == Op.MAX) {
+                boolean min = ops[a] == Op.MIN;
+                for (int i = 0; i < n; i++) {
+                    int s = batchSlots[i];
+                    int x = vals[batch.row(i)];
+                    if (c[s] == 0 || (min ? x < v[s] : x > v[s])) v[s] = x;
+                    c[s]++;
+                }
+            } else if (ops[a] == Op.SC_AVG) {
+                int[] cnts = batch.getIntColumn(afields[a] + 1);
+                for (int i = 0; i < n; i++) {
+                    int r = batch.row(i);
+                    v[batchSlots[i]] += vals[r];
+                    c[batchSlots[i]] += cnts[r];
+                }
+            } else {
+                for (int i = 0; i < n; i++) {
+                    int s = batchSlots[i];
+                    v[s] += vals[batch.row(i)];
+                    c[s]++;
+                }
+            }
+        }
+    }
+
+    private void mergeBatchUngrouped(int a, TupleBatch batch) {
+        int n = batch.size();
+        Op op = ops[a];
+        if (op == Op.COUNT) {
+            merge(a, 0, 0, n);
+            return;
+        }
+        int[] vals = batch.getIntColumn(afields[a]);
+        long partial;
+        if (op == Op.MIN) {
+            partial = Integer.MAX_VALUE;
+            for (int i = 0; i < n; i++) partial = Math.min(partial, vals[batch.row(i)]);
+        } else if (op == Op.MAX) {
+            partial = Integer.MIN_VALUE;
+            for (int i = 0; i < n; i++) partial = Math.max(partial, vals[batch.row(i)]);
+        } else {
+            partial = 0;
+            for (int i = 0; i < n; i++) partial += vals[batch.row(i)];
+        }
+        long count = n;
+        if (op == Op.SC_AVG) {
+            int[] cnts = batch.getIntColumn(afields[a] + 1);
+            count = 0;
+            for (int i = 0; i < n; i++) count += cnts[batch.row(i)];
+        }
+        merge(a, 0, partial, count);
+    }
+
+    /**
+     * Merge count rows into aggregate a of the group in the given slot. For
+     * MIN and MAX, value is the minimum or maximum of their values, otherwise
+     * their sum.
+     */
+    private void merge(int a, int slot, long value, long count) {
+        long[] v = values[a];
+        boolean first = counts[a][slot] == 0;
+        if (ops[a] == Op.MIN) {
+            v[slot] = first ? value : Math.min(v[slot], value);
+        } else if (ops[a] == Op.MAX) {
+            v[slot] = first ? value : Math.max(v[slot], value);
+        } else {
+            v[slot] += value;
+        }
+        counts[a][slot] += count;
+    }
+
+    private Tuple result(int slot, boolean partial) {
+        Tuple t = new Tuple(partial ? partialTd : td);
+        int i = 0;
+        for (int g = 0; g < gbfields.length; g++) {
+            t.setField(i++, groups.group(slot, g));
+        }
+        for (int a = 0; a < ops.length; a++) {
+            if (partial) {
+                if (ops[a] == Op.MIN || ops[a] == Op.MAX) {
+                    t.setField(i++, new IntField((int) values[a][slot]));
+                } else if (ops[a] == Op.COUNT) {
+                    i = setLong(t, i, counts[a][slot]);
+                } else {
+                    i = setLong(t, i, values[a][slot]);
+                    if (hasCount(ops[a])) i = setLong(t, i, counts[a][slot]);
+                }
+                continue;
+            }
+            long result;
+            switch (ops[a]) {
+                case COUNT:
+                    result = counts[a][slot];
+                    break;
+                case AVG:
+                case SC_AVG:
+                    result = values[a][slot] / counts[a][slot];
+                    break;
+                default:
+                    result = values[a][slot];
+            }
+            t.setField(i++, new IntField((int) result));
+            if (ops[a] == Op.SUM_COUNT) t.setField(i++, new IntField((int) counts[a][slot]));
+        }
+        return t;
+    }
+
+    /**
+     * Create a OpIterator over group aggregate results.
+     *
+     * @return a OpIterator whose tuples are the group-by values followed by
+     *         the aggregate values, in the order the groups were first seen
+     */
+    public OpIterator iterator() {
+        return iterator(false);
+    }
+
+    /**
+     * @return a OpIterator over the partial aggregates of the groups, with
+     *         the TupleDesc {@link #getPartialTupleDesc()}
+     */
+    public OpIterator partialIterator() {
+        return iterator(true);
+    }
+
+    private OpIterator iterator(boolean partial) {
+        return new OpIterator() {
+            // 下一个要返回的slot，-1表示未open
+            private int next = -1;
+            @Override
+            public void open() throws DbException, TransactionAbortedException {
+                next = 0;
+            }
+
+            @Override
+            public boolean hasNext() throws DbException, TransactionAbortedException {
+                return next >= 0 && next < numGroups;
+            }
+
+            @Override
+            public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+                if (!hasNext()) throw new NoSuchElementException();
+                return result(next++, partial);
+            }
+
+            @Override
+            public void rewind() throws DbException, TransactionAbortedException {
+                open();
+            }
+
+            @Override
+            public TupleDesc getTupleDesc() {
+                return partial ? partialTd : td;
+            }
+
+            @Override
+            public void close() {
+                next = -1;
+            }
+        };
+    }
+}
@@ -1,14 +1,29 @@
 package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
+import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.SpillFile;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin is a hybrid hash join. child1 is the build side: if it fits
+ * in the memory budget it is kept in a hash table and child2 is streamed past
+ * it. Otherwise both children are partitioned by a hash of the join key into
+ * spill files; the first partition of child1 stays in memory and is joined
+ * while child2 is being partitioned, and each spilled pair of partitions is
+ * then joined by a HashEquiJoin of its own, which partitions again if it
+ * still does not fit.
  */
 public class HashEquiJoin extends Operator {
 
@@ -55,28 +70,244 @@ public class HashEquiJoin extends Operator {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
     
-    final Map<Object, List<Tuple>> map = new HashMap<>();
-    public final static int MAP_SIZE = 20000;
+    /** The default memory budget of the build side, in bytes. */
+    public final static long DEFAULT_MEMORY_BUDGET = 64L << 20;
+    // 没有基数估计时建表的初始大小
+    private final static int DEFAULT_BUILD_SIZE = 1024;
+    // 分区数的上限；每个分区的两端各有一个写缓冲
+    private final static int MAX_PARTITIONS = 64;
+    // 递归分区的最大深度；数据倾斜到这一层仍放不下时，退化为分块建表、重复扫描探测端
+    private final static int MAX_DEPTH = 3;
+
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    // 建表端的hash表；INT_TYPE的连接列直接用值作为key，其他类型用hashCode，探测时再比较Field
+    transient IntTupleMap map = null;
+    transient private boolean intKeys;
+    // child1是否整个放进了map；是则只建一次表，否则要分区，或每个chunk都重新扫描child2
+    transient private boolean buildFits;
+
+    // 本join是第几层递归分区产生的，最外层为0
+    private int depth = 0;
+    // child1放不下时两端按连接键分区写入的溢出文件，没有元组的分区为null
+    transient private boolean partitioned = false;
+    transient private SpillFile[] buildSpills = null;
+    transient private SpillFile[] probeSpills = null;
+    // 留在内存map中的分区，-1表示所有分区都已溢出
+    transient private int resident = -1;
+    // 正在连接的溢出分区及其子join
+    transient private int partition = -1;
+    transient private HashEquiJoin sub = null;
+
+    /**
+     * Set the memory the build side may use, in bytes. If child1 does not fit,
+     * both children are partitioned to temporary files and the partitions are
+     * joined one at a time.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    private int keyOf(Field f) {
+        return intKeys ? ((IntField) f).getValue() : f.hashCode();
+    }
+
+    // hash表的大小取基数估计和内存预算中较小的一个，估计不准时表会自动扩容
+    private int expectedBuildSize(long maxEntries) {
+        int card = child1 instanceof Operator ? ((Operator) child1).getEstimatedCardinality() : 0;
+        if (card <= 0) card = DEFAULT_BUILD_SIZE;
+        return (int) Math.min(card, maxEntries);
+    }
+
+    private long maxEntries() {
+        long entrySize = IntTupleMap.estimateEntrySize(child1.getTupleDesc());
+        return Math.max(1, memoryBudget / entrySize);
+    }
 
     private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
+        long maxEntries = maxEntries();
+        if (map == null) {
+            map = new IntTupleMap(expectedBuildSize(maxEntries));
+        } else {
+            map.clear();
+        }
+        while (map.size() < maxEntries && child1.hasNext()) {
             t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+            map.put(keyOf(t1.getField(pred.getField1())), t1);
         }
-        return cnt > 0;
+        return map.size() > 0;
+    }
+
+    // 从child1的开头建表
+    private void build() throws DbException, TransactionAbortedException {
+        loadMap();
+        buildFits = !child1.hasNext();
+        if (!buildFits && depth < MAX_DEPTH) {
+            partitionBuild();
+        }
+    }
+
+    // 分区数使每个分区大约能放进内存；基数估计偏小时至少按两倍内存计算
+    private int numPartitions(long maxEntries) {
+        int card = child1 instanceof Operator ? ((Operator) child1).getEstimatedCardinality() : 0;
+        long expected = Math.max(card, 2 * maxEntries);
+        long n = (expected + maxEntries - 1) / maxEntries + 1;
+        return (int) Math.min(MAX_PARTITIONS, n);
+    }
 
+    // 每层递归使用不同的hash函数，否则一个分区的元组在下一层会全部落入同一分区
+    private int partitionOf(int key) {
+        int h = key + depth * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % buildSpills.length;
+    }
+
+    // map已满而child1还有元组：把map中的和剩下的child1元组分区，只有resident分区留在内存
+    private void partitionBuild() throws DbException, TransactionAbortedException {
+        long maxEntries = maxEntries();
+        int n = numPartitions(maxEntries);
+        partitioned = true;
+        buildSpills = new SpillFile[n];
+        probeSpills = new SpillFile[n];
+        resident = 0;
+        partition = -1;
+        IntTupleMap loaded = map;
+        map = new IntTupleMap(loaded.size() / n);
+        for (int i = 0; i < loaded.size(); i++) {
+            addBuildTuple(loaded.get(i), maxEntries);
+        }
+        while (child1.hasNext()) {
+            addBuildTuple(child1.next(), maxEntries);
+        }
+    }
+
+    private void addBuildTuple(Tuple t, long maxEntries) throws DbException {
+        int key = keyOf(t.getField(pred.getField1()));
+        int p = partitionOf(key);
+        if (p != resident) {
+            spill(buildSpills, p, t, child1.getTupleDesc());
+            return;
+        }
+        map.put(key, t);
+        if (map.size() > maxEntries) {
+            // resident分区本身也放不下，同样溢出到磁盘
+            for (int i = 0; i < map.size(); i++) {
+                spill(buildSpills, resident, map.get(i), child1.getTupleDesc());
+            }
+            map = new IntTupleMap(0);
+            resident = -1;
+        }
+    }
+
+    private void spill(SpillFile[] files, int p, Tuple t, TupleDesc td) throws DbException {
+        if (files[p] == null) {
+            try {
+                files[p] = Database.getTempFileManager().createSpillFile(td);
+            } catch (IOException e) {
+                throw new DbException("Failed to create spill file: " + e.getMessage());
+            }
+        }
+        files[p].append(t);
+    }
+
+    // 返回探测键所在的已溢出分区，-1表示在内存中的map里探测
+    private int spilledPartition(int key) {
+        if (!partitioned) return -1;
+        int p = partitionOf(key);
+        return p == resident ? -1 : p;
+    }
+
+    // 建表端为空的分区不会有匹配，探测端元组直接丢弃
+    private void spillProbe(int p, Tuple t) throws DbException {
+        if (buildSpills[p] != null) {
+            spill(probeSpills, p, t, child2.getTupleDesc());
+        }
+    }
+
+    /*
+     * child2读完时调用：分区时开始连接下一个溢出分区，分块建表时用child1的下一块重新扫描child2。
+     * 返回false表示join已经结束。
+     */
+    private boolean endOfProbe() throws DbException, TransactionAbortedException {
+        if (partitioned) {
+            map = null;
+            return nextPartition();
+        }
+        if (buildFits) {
+            return false;
+        }
+        child2.rewind();
+        return loadMap();
+    }
+
+    // 关闭当前分区的子join，打开下一个两端都有元组的分区的子join
+    private boolean nextPartition() throws DbException, TransactionAbortedException {
+        closePartition();
+        while (++partition < buildSpills.length) {
+            if (buildSpills[partition] == null || probeSpills[partition] == null) {
+                closePartition();
+                continue;
+            }
+            sub = new HashEquiJoin(pred, new SpillScan(buildSpills[partition]),
+                    new SpillScan(probeSpills[partition]));
+            sub.depth = depth + 1;
+            sub.memoryBudget = memoryBudget;
+            sub.open();
+            return true;
+        }
+        return false;
+    }
+
+    private void closePartition() {
+        if (sub != null) {
+            sub.close();
+            sub = null;
+        }
+        if (partition >= 0 && partition < buildSpills.length) {
+            deleteSpill(buildSpills, partition);
+            deleteSpill(probeSpills, partition);
+        }
+    }
+
+    private static void deleteSpill(SpillFile[] files, int p) {
+        if (files[p] != null) {
+            files[p].delete();
+            files[p] = null;
+        }
+    }
+
+    // 删除所有溢出文件，回到未分区的状态
+    private void dropPartitions() {
+        if (!partitioned) return;
+        if (sub != null) {
+            sub.close();
+            sub = null;
+        }
+        for (int p = 0; p < buildSpills.length; p++) {
+            deleteSpill(buildSpills, p);
+            deleteSpill(probeSpills, p);
+        }
+        partitioned = false;
+        buildSpills = null;
+        probeSpills = null;
+        resident = -1;
+        partition = -1;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
-        loadMap();
+        intKeys = child1.getTupleDesc().getFieldType(pred.getField1()) == Type.INT_TYPE
+                && child2.getTupleDesc().getFieldType(pred.getField2()) == Type.INT_TYPE;
+        build();
         super.open();
     }
 
@@ -86,16 +317,44 @@ public class HashEquiJoin extends Operator {
         child1.close();
         this.t1=null;
         this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        this.match=-1;
+        this.probe=null;
+        this.map=null;
+        dropPartitions();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        child1.rewind();
         child2.rewind();
+        match = -1;
+        probe = null;
+        if (!buildFits) {
+            dropPartitions();
+            child1.rewind();
+            build();
+        }
+    }
+
+    // 当前探测元组在map中的下一个候选匹配的下标，-1表示没有
+    transient private int match = -1;
+    // 非INT_TYPE连接列的探测值，用于排除hashCode相同但值不同的候选
+    transient private Field probeKey = null;
+
+    // 返回下一个真正匹配的建表端元组，并将match移到其后
+    private Tuple nextMatch() {
+        while (match != -1) {
+            Tuple candidate = map.get(match);
+            match = map.next(match);
+            if (intKeys || candidate.getField(pred.getField1()).equals(probeKey)) {
+                return candidate;
+            }
+        }
+        return null;
     }
 
-    transient Iterator<Tuple> listIt = null;
+    private void startProbe(Field key) {
+        probeKey = key;
+        match = map.first(keyOf(key));
+    }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
@@ -115,49 +374,104 @@ public class HashEquiJoin extends Operator {
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
-    private Tuple processList() {
-        t1 = listIt.next();
-
-        int td1n = t1.getTupleDesc().numFields();
-        int td2n = t2.getTupleDesc().numFields();
-
-        // set fields in combined tuple
-        Tuple t = new Tuple(comboTD);
-        for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
-        for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
-        return t;
-
-    }
-
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
-
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
-
-            // if match, create a combined tuple and fill it with the values
-            // from both tuples
-            List<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
+        while (true) {
+            if (sub != null) {
+                if (sub.hasNext()) return sub.next();
+                if (!nextPartition()) return null;
                 continue;
-            listIt = l.iterator();
-
-            return processList();
+            }
+            Tuple m = nextMatch();
+            if (m != null) {
+                t1 = m;
+                int td1n = t1.getTupleDesc().numFields();
+                int td2n = t2.getTupleDesc().numFields();
 
+                // set fields in combined tuple
+                Tuple t = new Tuple(comboTD);
+                for (int i = 0; i < td1n; i++)
+                    t.setField(i, t1.getField(i));
+                for (int i = 0; i < td2n; i++)
+                    t.setField(td1n + i, t2.getField(i));
+                return t;
+            }
+            // loop around child2
+            if (child2.hasNext()) {
+                t2 = child2.next();
+                Field key = t2.getField(pred.getField2());
+                int p = spilledPartition(keyOf(key));
+                if (p == -1) {
+                    startProbe(key);
+                } else {
+                    spillProbe(p, t2);
+                }
+                continue;
+            }
+            // child2 is done: advance child1
+            if (!endOfProbe()) {
+                return null;
+            }
         }
+    }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
-        }
+    // nextBatch的探测状态：当前child2的batch、其中下一个要探测的行，以及当前探测的行
+    transient private TupleBatch probe = null;
+    transient private int probeIndex = 0;
+    transient private int probeRow = 0;
 
-        return null;
+    /**
+     * Operator.fetchNextBatch implementation. Probes the hash table with whole
+     * batches of child2, reading int join keys straight from the column
+     * vector, and writes the joined rows into the columns of the output batch.
+     *
+     * @return The next batch of joined tuples, or null if there are no more
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch out = new TupleBatch(comboTD, TupleBatch.DEFAULT_SIZE);
+        int td1n = child1.getTupleDesc().numFields();
+        while (!out.isFull()) {
+            if (sub != null) {
+                // 先返回已经生成的行，子join的batch原样返回
+                if (out.numRows() > 0) break;
+                TupleBatch b = sub.nextBatch();
+                if (b != null) return b;
+                if (!nextPartition()) break;
+                continue;
+            }
+            Tuple m = nextMatch();
+            if (m != null) {
+                int row = out.addRow();
+                out.setFields(row, 0, m);
+                out.copyFields(row, td1n, probe, probeRow);
+                continue;
+            }
+            if (probe != null && probeIndex < probe.size()) {
+                probeRow = probe.row(probeIndex++);
+                Field key = null;
+                int k;
+                if (intKeys) {
+                    k = probe.getIntColumn(pred.getField2())[probeRow];
+                } else {
+                    key = probe.getField(probeRow, pred.getField2());
+                    k = keyOf(key);
+                }
+                int p = spilledPartition(k);
+                if (p != -1) {
+                    spillProbe(p, probe.getTuple(probeRow));
+                } else {
+                    probeKey = key;
+                    match = map.first(k);
+                }
+                continue;
+            }
+            probe = child2.nextBatch();
+            probeIndex = 0;
+            if (probe == null && !endOfProbe()) {
+                // child2 is done and so is child1
+                break;
+            }
+        }
+        return out.numRows() == 0 ? null : out;
     }
 
     @Override
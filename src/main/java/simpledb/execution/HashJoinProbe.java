@@ -0,0 +1,150 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * HashJoinProbe is one worker of a parallel hash join. All the workers share
+ * a {@link SharedJoinTable}: when opened, each of them helps build the table
+ * from its own build pipeline, then joins its own probe pipeline against the
+ * whole table. The workers are meant to be the pipelines of an
+ * {@link Exchange}, which runs them in parallel; see
+ * {@link Parallel#hashJoin(JoinPredicate, OpIterator[], OpIterator[])}.
+ * <p>
+ * As with HashEquiJoin, the tuples returned are the concatenation of a build
+ * tuple and a probe tuple, in that order, and the join field of the predicate
+ * is getField1() on the build side and getField2() on the probe side.
+ */
+public class HashJoinProbe extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final SharedJoinTable table;
+    private final int worker;
+    private final JoinPredicate pred;
+    private OpIterator probe;
+    private final TupleDesc comboTD;
+
+    // 是否参加了建表，close时要释放表
+    transient private boolean built = false;
+    transient private Tuple current = null;
+    transient private Field probeKey = null;
+    transient private IntTupleMap map = null;
+    // 当前探测元组在map中的下一个候选匹配的下标，-1表示没有
+    transient private int match = -1;
+
+    /**
+     * Constructor.
+     *
+     * @param table
+     *            the table shared by the workers of the join
+     * @param worker
+     *            the index of this worker, which builds from the table's
+     *            build pipeline with the same index
+     * @param p
+     *            the join predicate, which must be EQUALS
+     * @param probe
+     *            the probe pipeline of this worker
+     */
+    public HashJoinProbe(SharedJoinTable table, int worker, JoinPredicate p, OpIterator probe) {
+        if (p.getOperator() != Predicate.Op.EQUALS) {
+            throw new IllegalArgumentException("HashJoinProbe cannot join on " + p.getOperator());
+        }
+        if (p.getField1() != table.getKeyField()) {
+            throw new IllegalArgumentException("the table is not keyed on field " + p.getField1());
+        }
+        this.table = table;
+        this.worker = worker;
+        this.pred = p;
+        this.probe = probe;
+        this.comboTD = TupleDesc.merge(table.getTupleDesc(), probe.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        // 先建表：探测端open失败时，其他worker也不会一直等待这个worker建表
+        built = true;
+        table.build(worker);
+        probe.open();
+        current = null;
+        match = -1;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        probe.close();
+        if (built) {
+            table.release();
+            built = false;
+        }
+        current = null;
+        match = -1;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        probe.rewind();
+        current = null;
+        match = -1;
+    }
+
+    private Tuple nextMatch() {
+        while (match != -1) {
+            Tuple candidate = map.get(match);
+            match = map.next(match);
+            if (table.exactKeys() || candidate.getField(pred.getField1()).equals(probeKey)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            Tuple m = current == null ? null : nextMatch();
+            if (m != null) {
+                int td1n = m.getTupleDesc().numFields();
+                int td2n = current.getTupleDesc().numFields();
+                Tuple t = new Tuple(comboTD);
+                for (int i = 0; i < td1n; i++)
+                    t.setField(i, m.getField(i));
+                for (int i = 0; i < td2n; i++)
+                    t.setField(td1n + i, current.getField(i));
+                return t;
+            }
+            if (!probe.hasNext()) {
+                return null;
+            }
+            current = probe.next();
+            probeKey = current.getField(pred.getField2());
+            int key = table.keyOf(probeKey);
+            map = table.mapOf(key);
+            match = map.first(key);
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{ this.probe };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        if (this.probe != children[0]) {
+            this.probe = children[0];
+        }
+    }
+}
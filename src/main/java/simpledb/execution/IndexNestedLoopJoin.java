@@ -0,0 +1,291 @@
+package simpledb.execution;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeLookup;
+import simpledb.index.BTreeScan;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin joins child1 with a table stored in a B+ tree keyed on
+ * the join field of child2: instead of scanning the table, it searches the
+ * B+ tree for the tuples that match each tuple of child1. This is cheap when
+ * child1 has few tuples compared to the table, e.g. after a selective filter.
+ * <p>
+ * child2 must be a full scan of the table (a SeqScan, or a BTreeScan without
+ * an index predicate), possibly under filters, which are applied to the
+ * tuples found in the B+ tree. child2 itself is never read.
+ * <p>
+ * child1 is read in batches of {@link #OUTER_BATCH_SIZE} tuples, which are
+ * sorted on the join field, so that tuples with the same key share one search
+ * and, for EQUALS, consecutive searches continue on the leaf page where the
+ * previous one stopped.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of child1 tuples that are sorted and looked up together. */
+    public static final int OUTER_BATCH_SIZE = 1024;
+
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private TupleDesc comboTD;
+
+    // child2扫描的B+树及其上的Filter
+    transient private BTreeFile file;
+    transient private TransactionId tid;
+    transient private List<Predicate> innerFilters;
+
+    transient private BTreeLookup lookup = null;
+    // 按连接列排序的一批child1元组
+    transient private List<Tuple> outerBatch = new ArrayList<>();
+    transient private int outerIndex = 0;
+    transient private Tuple current = null;
+    // 相等连接时current的匹配元组；范围连接时在B+树上的搜索
+    transient private List<Tuple> matches = Collections.emptyList();
+    transient private int matchIndex = 0;
+    transient private DbFileIterator rangeSearch = null;
+
+    /**
+     * @return true if IndexNestedLoopJoin can join on the given operator
+     */
+    public static boolean supports(Predicate.Op op) {
+        return SortMergeJoin.supports(op);
+    }
+
+    /**
+     * @return true if inner is a scan of a B+ tree keyed on the given field,
+     *         possibly under filters, so that an IndexNestedLoopJoin can
+     *         search the B+ tree instead of reading inner
+     */
+    public static boolean canSearch(OpIterator inner, int field) {
+        while (inner instanceof Filter) {
+            inner = ((Filter) inner).getChildren()[0];
+        }
+        int tableId;
+        if (inner instanceof SeqScan) {
+            tableId = ((SeqScan) inner).getTableId();
+        } else if (inner instanceof BTreeScan && ((BTreeScan) inner).getIndexPredicate() == null) {
+            tableId = ((BTreeScan) inner).getTableId();
+        } else {
+            return false;
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    /**
+     * Constructor. Accepts the children to join and the predicate to join
+     * them on.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left relation to join
+     * @param child2
+     *            Scan of the right relation, which must be stored in a B+
+     *            tree keyed on the join field
+     * @throws IllegalArgumentException
+     *            if the operator of p is not supported or the B+ tree cannot
+     *            be searched for child2
+     * @see #canSearch(OpIterator, int)
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!supports(p.getOperator())) {
+            throw new IllegalArgumentException("IndexNestedLoopJoin cannot join on " + p.getOperator());
+        }
+        this.pred = p;
+        setChildren(new OpIterator[]{ child1, child2 });
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    /**
+     * @return the number of lookups by the last open() that searched the B+
+     *         tree from its root
+     */
+    public int getDescents() {
+        return lookup == null ? 0 : lookup.getDescents();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        reset();
+        lookup = file.lookup(tid);
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child1.close();
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        reset();
+    }
+
+    private void reset() {
+        outerBatch = new ArrayList<>();
+        outerIndex = 0;
+        current = null;
+        matches = Collections.emptyList();
+        matchIndex = 0;
+        if (rangeSearch != null) {
+            rangeSearch.close();
+            rangeSearch = null;
+        }
+    }
+
+    private Tuple combine(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = comboTD.numFields() - td1n;
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    private boolean passesFilters(Tuple t) {
+        for (Predicate p : innerFilters) {
+            if (!p.filter(t)) return false;
+        }
+        return true;
+    }
+
+    // 读下一批child1元组并按连接列排序，相同的key相邻
+    private boolean nextOuterBatch() throws DbException, TransactionAbortedException {
+        outerBatch.clear();
+        outerIndex = 0;
+        while (outerBatch.size() < OUTER_BATCH_SIZE && child1.hasNext()) {
+            outerBatch.add(child1.next());
+        }
+        outerBatch.sort(new TupleComparator(pred.getField1(), true));
+        return !outerBatch.isEmpty();
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. As with the other joins, the tuples returned are the
+     * concatenation of joining tuples from child1 and child2, but within each
+     * batch of child1 tuples they are in the order of the join field.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        boolean equals = pred.getOperator() == Predicate.Op.EQUALS;
+        while (true) {
+            if (current != null) {
+                Tuple t = equals ? nextMatch() : nextRangeMatch();
+                if (t != null) {
+                    return combine(current, t);
+                }
+            }
+            if (outerIndex == outerBatch.size() && !nextOuterBatch()) {
+                return null;
+            }
+            Tuple previous = current;
+            current = outerBatch.get(outerIndex++);
+            Field key = current.getField(pred.getField1());
+            if (equals) {
+                // 相同的key沿用上一个元组的匹配
+                if (previous == null
+                        || TupleComparator.compareFields(key, previous.getField(pred.getField1())) != 0) {
+                    matches = new ArrayList<>();
+                    for (Tuple t : lookup.lookup(key)) {
+                        if (passesFilters(t)) matches.add(t);
+                    }
+                }
+                matchIndex = 0;
+            } else {
+                if (rangeSearch != null) rangeSearch.close();
+                // t1.f1 op t2.f2即t2.f2 op' t1.f1，op'是op左右交换后的比较
+                rangeSearch = file.indexIterator(tid, new IndexPredicate(reverse(pred.getOperator()), key));
+                rangeSearch.open();
+            }
+        }
+    }
+
+    private Tuple nextMatch() {
+        return matchIndex < matches.size() ? matches.get(matchIndex++) : null;
+    }
+
+    private Tuple nextRangeMatch() throws DbException, TransactionAbortedException {
+        while (rangeSearch.hasNext()) {
+            Tuple t = rangeSearch.next();
+            if (passesFilters(t)) return t;
+        }
+        return null;
+    }
+
+    private static Predicate.Op reverse(Predicate.Op op) {
+        switch (op) {
+            case LESS_THAN:
+                return Predicate.Op.GREATER_THAN;
+            case LESS_THAN_OR_EQ:
+                return Predicate.Op.GREATER_THAN_OR_EQ;
+            case GREATER_THAN:
+                return Predicate.Op.LESS_THAN;
+            case GREATER_THAN_OR_EQ:
+                return Predicate.Op.LESS_THAN_OR_EQ;
+            default:
+                return op;
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{ this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        if (!canSearch(children[1], pred.getField2())) {
+            throw new IllegalArgumentException("IndexNestedLoopJoin needs a scan of a B+ tree keyed on the join field");
+        }
+        this.child1 = children[0];
+        this.child2 = children[1];
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        innerFilters = new ArrayList<>();
+        OpIterator inner = child2;
+        while (inner instanceof Filter) {
+            innerFilters.add(((Filter) inner).getPredicate());
+            inner = ((Filter) inner).getChildren()[0];
+        }
+        if (inner instanceof SeqScan) {
+            file = (BTreeFile) Database.getCatalog().getDatabaseFile(((SeqScan) inner).getTableId());
+            tid = ((SeqScan) inner).getTransactionId();
+        } else {
+            file = (BTreeFile) Database.getCatalog().getDatabaseFile(((BTreeScan) inner).getTableId());
+            tid = ((BTreeScan) inner).getTransactionId();
+        }
+    }
+}
@@ -11,6 +11,8 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
@@ -19,6 +21,8 @@ import java.io.IOException;
 public class Insert extends Operator {
 
     private static final long serialVersionUID = 1L;
+    // 每次交给BufferPool.insertTuples的元组数
+    static final int BATCH_SIZE = 4096;
     private OpIterator child;
     private final TupleDesc td;
     private final int tableId;
@@ -80,20 +84,25 @@ public class Insert extends Operator {
      * @return A 1-field tuple containing the number of inserted records, or
      *         null if called more than once.
      * @see Database#getBufferPool
-     * @see BufferPool#insertTuple
+     * @see BufferPool#insertTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         if(haveInsert) return null;
         int count = 0;
         BufferPool bufferPool = Database.getBufferPool();
+        // 分批插入，使每个页面在一批中只被查找、加锁和标记为脏页一次
+        List<Tuple> batch = new ArrayList<>(BATCH_SIZE);
         while(child.hasNext()) {
-            Tuple t = child.next();
-            try {
-                bufferPool.insertTuple(tid, tableId, t);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+            batch.add(child.next());
+            if(batch.size() == BATCH_SIZE || !child.hasNext()) {
+                try {
+                    bufferPool.insertTuples(tid, tableId, batch.iterator());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                count += batch.size();
+                batch.clear();
             }
-            ++count;
         }
         haveInsert = true;
         Tuple ret = new Tuple(td);
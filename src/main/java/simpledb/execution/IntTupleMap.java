@@ -0,0 +1,166 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.util.Arrays;
+
+/**
+ * A multimap from int keys to tuples, used as the build side of hash joins.
+ * Keys are stored in an open-addressing table of primitive arrays with linear
+ * probing, and the tuples of a key form a chain of indexes in insertion order,
+ * so neither puts nor lookups box the key or allocate per entry.
+ * <p>
+ * Lookups walk a chain by index:
+ * <pre>
+ * for (int i = map.first(key); i != -1; i = map.next(i)) {
+ *     Tuple t = map.get(i);
+ * }
+ * </pre>
+ */
+public class IntTupleMap {
+
+    private static final int MIN_CAPACITY = 16;
+
+    // 每个slot的key，以及该key的第一个和最后一个tuple的下标+1；head为0表示slot为空
+    private int[] slotKeys;
+    private int[] slotHeads;
+    private int[] slotTails;
+    private int mask;
+    private int distinct = 0;
+
+    // 所有tuple按插入顺序存放，next[i]为同一key的下一个tuple的下标+1，0表示链表结束
+    private Tuple[] tuples;
+    private int[] next;
+    private int size = 0;
+
+    /**
+     * Create an empty map.
+     *
+     * @param expectedSize the number of tuples expected, used to size the
+     *                     table so that it does not have to grow
+     */
+    public IntTupleMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        // 装载因子不超过0.5
+        while (capacity < 2L * expectedSize && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        allocateSlots(capacity);
+        int entries = Math.max(MIN_CAPACITY, expectedSize);
+        tuples = new Tuple[entries];
+        next = new int[entries];
+    }
+
+    private void allocateSlots(int capacity) {
+        slotKeys = new int[capacity];
+        slotHeads = new int[capacity];
+        slotTails = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // 返回key所在的slot，key不存在时返回应当插入的空slot
+    private int slotOf(int key) {
+        int slot = hash(key) & mask;
+        while (slotHeads[slot] != 0 && slotKeys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Add a tuple under the given key, after the tuples already there.
+     */
+    public void put(int key, Tuple t) {
+        if (size == tuples.length) {
+            tuples = Arrays.copyOf(tuples, size * 2);
+            next = Arrays.copyOf(next, size * 2);
+        }
+        tuples[size] = t;
+        next[size] = 0;
+        int entry = ++size;
+
+        int slot = slotOf(key);
+        if (slotHeads[slot] == 0) {
+            slotKeys[slot] = key;
+            slotHeads[slot] = entry;
+            slotTails[slot] = entry;
+            if (++distinct * 2 > slotKeys.length) {
+                rehash();
+            }
+        } else {
+            next[slotTails[slot] - 1] = entry;
+            slotTails[slot] = entry;
+        }
+    }
+
+    private void rehash() {
+        int[] oldKeys = slotKeys;
+        int[] oldHeads = slotHeads;
+        int[] oldTails = slotTails;
+        allocateSlots(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldHeads[i] != 0) {
+                int slot = slotOf(oldKeys[i]);
+                slotKeys[slot] = oldKeys[i];
+                slotHeads[slot] = oldHeads[i];
+                slotTails[slot] = oldTails[i];
+            }
+        }
+    }
+
+    /**
+     * @return the index of the first tuple stored under key, or -1 if there
+     *         is none
+     */
+    public int first(int key) {
+        return slotHeads[slotOf(key)] - 1;
+    }
+
+    /**
+     * @return the index of the tuple after the given one with the same key,
+     *         or -1 if it is the last one
+     */
+    public int next(int index) {
+        return next[index] - 1;
+    }
+
+    /** @return the tuple at the given index */
+    public Tuple get(int index) {
+        return tuples[index];
+    }
+
+    /** @return the number of tuples in the map */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Remove all tuples, keeping the allocated arrays for reuse.
+     */
+    public void clear() {
+        Arrays.fill(slotHeads, 0);
+        Arrays.fill(tuples, 0, size, null);
+        distinct = 0;
+        size = 0;
+    }
+
+    /**
+     * A rough estimate of the heap memory a tuple with the given schema takes
+     * once it is in the map: the Tuple and its fields, plus the map's own
+     * per-entry arrays. Used to keep the map within a memory budget.
+     */
+    public static long estimateEntrySize(TupleDesc td) {
+        long bytes = 32 + 4L * td.numFields() + 16;
+        for (int i = 0; i < td.numFields(); i++) {
+            bytes += td.getFieldType(i) == Type.INT_TYPE ? 16 : 48 + 2L * Type.STRING_LEN;
+        }
+        return bytes;
+    }
+}
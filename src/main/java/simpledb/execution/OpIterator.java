@@ -2,6 +2,7 @@ package simpledb.execution;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.io.Serializable;
@@ -39,6 +40,24 @@ public interface OpIterator extends Serializable{
    */
   Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException;
 
+  /**
+   * Returns the next rows of the operator as a column-oriented batch. The
+   * default implementation fills the batch from hasNext()/next(); operators
+   * that can work on whole batches override it. A consumer should read an
+   * iterator either one tuple or one batch at a time, not both.
+   *
+   * @return a batch with at least one selected row, or null if there are no
+   *   more tuples.
+   * @throws IllegalStateException If the iterator has not been opened
+   */
+  default TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+    TupleBatch batch = new TupleBatch(getTupleDesc(), TupleBatch.DEFAULT_SIZE);
+    while (!batch.isFull() && hasNext()) {
+      batch.addTuple(next());
+    }
+    return batch.numRows() == 0 ? null : batch;
+  }
+
   /**
    * Resets the iterator to the start.
    * @throws DbException when rewind is unsupported.
@@ -3,6 +3,7 @@ package simpledb.execution;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.util.NoSuchElementException;
@@ -49,6 +50,39 @@ public abstract class Operator implements OpIterator {
     protected abstract Tuple fetchNext() throws DbException,
             TransactionAbortedException;
 
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!this.open)
+            throw new IllegalStateException("Operator not yet open");
+
+        // a tuple fetched by hasNext() must not be lost
+        if (next != null) {
+            TupleBatch batch = new TupleBatch(getTupleDesc(), 1);
+            batch.addTuple(next);
+            next = null;
+            return batch;
+        }
+        return fetchNextBatch();
+    }
+
+    /**
+     * Returns the next batch of the iterator, or null if the iteration is
+     * finished. Operator uses this method to implement <code>nextBatch</code>.
+     * The default implementation fills the batch from <code>fetchNext</code>;
+     * operators that can work on whole batches override it.
+     *
+     * @return a batch with at least one selected row, or null if the
+     *         iteration is finished.
+     */
+    protected TupleBatch fetchNextBatch() throws DbException,
+            TransactionAbortedException {
+        TupleBatch batch = new TupleBatch(getTupleDesc(), TupleBatch.DEFAULT_SIZE);
+        Tuple t;
+        while (!batch.isFull() && (t = fetchNext()) != null) {
+            batch.addTuple(t);
+        }
+        return batch.numRows() == 0 ? null : batch;
+    }
+
     /**
      * Closes this iterator. If overridden by a subclass, they should call
      * super.close() in order for Operator's internal state to be consistent.
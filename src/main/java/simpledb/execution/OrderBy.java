@@ -1,30 +1,58 @@
 package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
+import simpledb.common.Database;
 import simpledb.common.DbException;
-import simpledb.storage.Field;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.SpillFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * If the child fits in the memory budget it is sorted in memory. Otherwise
+ * OrderBy is an external merge sort: it sorts budget-sized runs of the child,
+ * writes each run to a spill file, and merges the runs with a priority queue,
+ * in several passes if there are too many runs to read at once. With a
+ * {@link #setLimit limit} small enough to fit in memory, only the first tuples
+ * are kept, in a bounded heap, and nothing is spilled.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** The default memory budget of the sort, in bytes. */
+    public final static long DEFAULT_MEMORY_BUDGET = 64L << 20;
+    /** Passed to {@link #setLimit} to return every tuple. */
+    public final static int NO_LIMIT = -1;
+    // 一次归并最多读取的run数；每个run有一个读缓冲
+    private final static int MAX_MERGE_WIDTH = 64;
+
     private OpIterator child;
     private final TupleDesc td;
     private final List<Tuple> childTups = new ArrayList<>();
-    private final int orderByField;
+    private final int[] orderByFields;
+    private final boolean[] asc;
     private final String orderByFieldName;
     private Iterator<Tuple> it;
-    private final boolean asc;
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+    private int limit = NO_LIMIT;
+
+    // 放不进内存时的有序run；为空表示结果在childTups中
+    transient private List<SpillFile> runs = new ArrayList<>();
+    // 归并最后一趟的run，按各自的下一个元组排序
+    transient private PriorityQueue<RunCursor> merge = null;
+    transient private int returned = 0;
+    transient private int spills = 0;
+    transient private long spilledBytes = 0;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
-     * 
+     *
      * @param orderbyField
      *            the field to which the sort is applied.
      * @param asc
@@ -33,64 +61,275 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[]{ orderbyField }, new boolean[]{ asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields: tuples are
+     * ordered by the first field, ties by the second field, and so on.
+     *
+     * @param orderByFields
+     *            the fields to which the sort is applied, most significant first.
+     * @param asc
+     *            for each field, true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderByFields, boolean[] asc, OpIterator child) {
+        if (orderByFields.length == 0 || orderByFields.length != asc.length) {
+            throw new IllegalArgumentException("need one sort order per ORDER BY field");
+        }
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderByFields.clone();
+        this.asc = asc.clone();
+        this.orderByFieldName = td.getFieldName(orderByFields[0]);
     }
-    
+
     public boolean isASC()
     {
-	return this.asc;
+	return this.asc[0];
     }
-    
+
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
+    }
+
+    /** @return the fields the sort is applied to, most significant first */
+    public int[] getOrderByFields() {
+        return orderByFields.clone();
     }
-    
+
     public String getOrderFieldName()
     {
 	return this.orderByFieldName;
     }
-    
+
     public TupleDesc getTupleDesc() {
         return td;
     }
 
+    /**
+     * Set the memory the sort may use, in bytes. A child larger than this is
+     * sorted in runs that are spilled to disk and merged.
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Return only the first n tuples of the ordering, as in ORDER BY ... LIMIT n.
+     *
+     * @param n the number of tuples to return, or {@link #NO_LIMIT}
+     */
+    public void setLimit(int n) {
+        this.limit = n;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /** @return the number of sorted runs written to disk by the last open() */
+    public int getSpillCount() {
+        return spills;
+    }
+
+    /** @return the number of bytes written to disk by the last open() */
+    public long getSpilledBytes() {
+        return spilledBytes;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add(child.next());
-        childTups.sort(new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        deleteRuns();
+        childTups.clear();
+        spills = 0;
+        spilledBytes = 0;
+        TupleComparator comparator = new TupleComparator(orderByFields, asc);
+        long maxTuples = Math.max(1, memoryBudget / IntTupleMap.estimateEntrySize(td));
+        if (limit != NO_LIMIT && limit <= maxTuples) {
+            topN(comparator);
+        } else {
+            sortRuns(comparator, maxTuples);
+        }
         super.open();
+        rewind();
+    }
+
+    // 用大小为limit的堆保留最小的limit个元组，堆顶是其中最大的一个
+    private void topN(TupleComparator comparator) throws DbException, TransactionAbortedException {
+        PriorityQueue<Tuple> heap = new PriorityQueue<>(Math.max(1, limit), comparator.reversed());
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (heap.size() < limit) {
+                heap.add(t);
+            } else if (limit > 0 && comparator.compare(t, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(t);
+            }
+        }
+        childTups.addAll(heap);
+        childTups.sort(comparator);
+    }
+
+    // 按内存预算生成有序run；child全部放得下时不写盘
+    private void sortRuns(TupleComparator comparator, long maxTuples)
+            throws DbException, TransactionAbortedException {
+        while (child.hasNext()) {
+            childTups.add(child.next());
+            if (childTups.size() >= maxTuples && child.hasNext()) {
+                childTups.sort(comparator);
+                runs.add(writeRun(childTups));
+                childTups.clear();
+            }
+        }
+        childTups.sort(comparator);
+        if (runs.isEmpty()) {
+            return;
+        }
+        if (!childTups.isEmpty()) {
+            runs.add(writeRun(childTups));
+            childTups.clear();
+        }
+        // run太多时先逐组归并，直到最后一趟能同时读取所有run
+        while (runs.size() > MAX_MERGE_WIDTH) {
+            List<SpillFile> merged = new ArrayList<>();
+            for (int i = 0; i < runs.size(); i += MAX_MERGE_WIDTH) {
+                List<SpillFile> group = runs.subList(i, Math.min(runs.size(), i + MAX_MERGE_WIDTH));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                    continue;
+                }
+                PriorityQueue<RunCursor> queue = openRuns(group);
+                SpillFile run = newRun();
+                while (!queue.isEmpty()) {
+                    run.append(pollMerge(queue));
+                }
+                merged.add(finishRun(run));
+                for (SpillFile input : group) {
+                    input.delete();
+                }
+            }
+            runs = merged;
+        }
+    }
+
+    private SpillFile newRun() throws DbException {
+        try {
+            return Database.getTempFileManager().createSpillFile(td);
+        } catch (IOException e) {
+            throw new DbException("Failed to create spill file: " + e.getMessage());
+        }
+    }
+
+    private SpillFile finishRun(SpillFile run) throws DbException {
+        run.finishWriting();
+        spills++;
+        spilledBytes += run.numBytes();
+        return run;
+    }
+
+    private SpillFile writeRun(List<Tuple> tuples) throws DbException {
+        SpillFile run = newRun();
+        for (Tuple t : tuples) {
+            run.append(t);
+        }
+        return finishRun(run);
+    }
+
+    private PriorityQueue<RunCursor> openRuns(List<SpillFile> files)
+            throws DbException, TransactionAbortedException {
+        TupleComparator comparator = new TupleComparator(orderByFields, asc);
+        PriorityQueue<RunCursor> queue = new PriorityQueue<>(files.size(),
+                (a, b) -> comparator.compare(a.head, b.head));
+        for (SpillFile file : files) {
+            DbFileIterator run = file.iterator();
+            run.open();
+            if (run.hasNext()) {
+                queue.add(new RunCursor(run, run.next()));
+            } else {
+                run.close();
+            }
+        }
+        return queue;
+    }
+
+    // 取出所有run中最小的元组，并把它所在的run前进一个元组
+    private static Tuple pollMerge(PriorityQueue<RunCursor> queue)
+            throws DbException, TransactionAbortedException {
+        RunCursor cursor = queue.poll();
+        Tuple t = cursor.head;
+        if (cursor.run.hasNext()) {
+            cursor.head = cursor.run.next();
+            queue.add(cursor);
+        } else {
+            cursor.run.close();
+        }
+        return t;
+    }
+
+    private static void closeMerge(PriorityQueue<RunCursor> queue) {
+        if (queue == null) return;
+        for (RunCursor cursor : queue) {
+            cursor.run.close();
+        }
+        queue.clear();
+    }
+
+    private void deleteRuns() {
+        closeMerge(merge);
+        merge = null;
+        for (SpillFile run : runs) {
+            run.delete();
+        }
+        runs = new ArrayList<>();
     }
 
     public void close() {
         super.close();
         it = null;
+        deleteRuns();
+        childTups.clear();
     }
 
-    public void rewind() {
-        it = childTups.iterator();
+    public void rewind() throws DbException, TransactionAbortedException {
+        returned = 0;
+        if (runs.isEmpty()) {
+            it = childTups.iterator();
+        } else {
+            closeMerge(merge);
+            merge = openRuns(runs);
+        }
     }
 
     /**
      * Operator.fetchNext implementation. Returns tuples from the child operator
      * in order
-     * 
+     *
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException {
-        if (it != null && it.hasNext()) {
-            return it.next();
-        } else
+    protected Tuple fetchNext() throws NoSuchElementException, DbException, TransactionAbortedException {
+        if (limit != NO_LIMIT && returned >= limit) {
             return null;
+        }
+        Tuple t = null;
+        if (merge != null && !merge.isEmpty()) {
+            t = pollMerge(merge);
+        } else if (it != null && it.hasNext()) {
+            t = it.next();
+        }
+        if (t != null) {
+            returned++;
+        }
+        return t;
     }
 
     @Override
@@ -103,26 +342,14 @@ public class OrderBy extends Operator {
         this.child = children[0];
     }
 
-}
-
-class TupleComparator implements Comparator<Tuple> {
-    final int field;
-    final boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
+    // 一个run的读取位置及其下一个元组
+    private static class RunCursor {
+        final DbFileIterator run;
+        Tuple head;
 
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
+        RunCursor(DbFileIterator run, Tuple head) {
+            this.run = run;
+            this.head = head;
+        }
     }
-    
 }
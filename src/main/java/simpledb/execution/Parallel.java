@@ -0,0 +1,109 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.PageMorsels;
+import simpledb.transaction.TransactionId;
+
+import java.util.List;
+
+/**
+ * Builds parallel plans out of pipelines, one pipeline per worker thread of
+ * an {@link Exchange}. A parallel plan starts with the {@link #scans scans}
+ * of a table, which share its pages through morsels. Operators that work on
+ * one tuple at a time, such as Filter and Project, run in parallel by
+ * putting a copy on every pipeline, see {@link #filter} and {@link #project}.
+ * Aggregates and joins need all the tuples and are split into a part that
+ * runs on every pipeline and a part that combines the results of the
+ * pipelines.
+ * <p>
+ * For example, the parallel version of
+ * <code>SELECT SUM(t.a) FROM t WHERE t.b &gt; 5</code> is
+ * <pre>
+ * OpIterator[] p = Parallel.filter(new Predicate(1, Op.GREATER_THAN, five),
+ *         Parallel.scans(tid, tableId, "t", Exchange.DEFAULT_DEGREE));
+ * OpIterator sum = Parallel.aggregate(p, 0, Aggregator.NO_GROUPING, Aggregator.Op.SUM);
+ * </pre>
+ */
+public class Parallel {
+
+    /**
+     * @return degree SeqScans that together read every tuple of the table
+     *         once, by sharing one {@link PageMorsels}
+     */
+    public static SeqScan[] scans(TransactionId tid, int tableId, String tableAlias, int degree) {
+        PageMorsels morsels = new PageMorsels();
+        SeqScan[] scans = new SeqScan[degree];
+        for (int i = 0; i < degree; i++) {
+            scans[i] = new SeqScan(tid, tableId, tableAlias, morsels);
+        }
+        return scans;
+    }
+
+    /** @return a Filter on every pipeline */
+    public static OpIterator[] filter(Predicate p, OpIterator[] pipelines) {
+        OpIterator[] filters = new OpIterator[pipelines.length];
+        for (int i = 0; i < pipelines.length; i++) {
+            filters[i] = new Filter(p, pipelines[i]);
+        }
+        return filters;
+    }
+
+    /** @return a Project on every pipeline */
+    public static OpIterator[] project(List<Integer> fieldList, List<Type> typesList, OpIterator[] pipelines) {
+        OpIterator[] projects = new OpIterator[pipelines.length];
+        for (int i = 0; i < pipelines.length; i++) {
+            projects[i] = new Project(fieldList, typesList, pipelines[i]);
+        }
+        return projects;
+    }
+
+    /**
+     * The aggregate over the tuples of all pipelines. Every pipeline computes
+     * a partial aggregate of its own tuples, see {@link Aggregate#partials()},
+     * and the partial aggregates are gathered by an Exchange and merged by a
+     * final Aggregate. The partials keep sums and counts as 64-bit values, so
+     * an AVG whose sum overflows an int is still exact.
+     *
+     * @param pipelines the pipelines, all with the same TupleDesc
+     * @param afield the column to aggregate
+     * @param gfield the column to group by, or {@link Aggregator#NO_GROUPING}
+     * @param aop the aggregation operator: COUNT, SUM, MIN, MAX or AVG
+     * @return the final Aggregate, with the same TupleDesc as an Aggregate
+     *         over the tuples of all pipelines
+     * @throws IllegalArgumentException if aop cannot be merged
+     */
+    public static Aggregate aggregate(OpIterator[] pipelines, int afield, int gfield, Aggregator.Op aop) {
+        if (aop == Aggregator.Op.SUM_COUNT || aop == Aggregator.Op.SC_AVG) {
+            throw new IllegalArgumentException("cannot merge partial aggregates of " + aop);
+        }
+        Aggregate[] partials = new Aggregate[pipelines.length];
+        for (int i = 0; i < pipelines.length; i++) {
+            partials[i] = new Aggregate(pipelines[i], afield, gfield, aop).partials();
+        }
+        return partials[0].mergePartials(new Exchange(partials));
+    }
+
+    /**
+     * The equi-join of the tuples of all build pipelines with the tuples of
+     * all probe pipelines. The build pipelines together fill one shared hash
+     * table, which every probe pipeline then probes, see
+     * {@link SharedJoinTable} and {@link HashJoinProbe}.
+     *
+     * @param p the join predicate, with getField1() on the build side
+     * @param builds the build pipelines
+     * @param probes the probe pipelines, as many as build pipelines
+     * @return an Exchange of the probe pipelines; its tuples are build tuples
+     *         followed by probe tuples
+     */
+    public static Exchange hashJoin(JoinPredicate p, OpIterator[] builds, OpIterator[] probes) {
+        if (builds.length != probes.length) {
+            throw new IllegalArgumentException("a parallel join needs one build and one probe pipeline per worker");
+        }
+        SharedJoinTable table = new SharedJoinTable(builds, p.getField1());
+        OpIterator[] workers = new OpIterator[probes.length];
+        for (int i = 0; i < probes.length; i++) {
+            workers[i] = new HashJoinProbe(table, i, p, probes[i]);
+        }
+        return new Exchange(workers);
+    }
+}
@@ -1,7 +1,10 @@
 package simpledb.execution;
 
+import simpledb.common.Type;
 import simpledb.storage.Field;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 
 import java.io.Serializable;
 import java.util.NoSuchElementException;
@@ -106,6 +109,70 @@ public class Predicate implements Serializable {
         return t.getField(field).compare(op, operand);
     }
 
+    /**
+     * Narrows the selection of batch to the selected rows that pass this
+     * predicate. Comparisons of an int column against an IntField run over
+     * the primitive column vector without creating Fields.
+     *
+     * @param batch
+     *            The batch to filter
+     */
+    public void filter(TupleBatch batch) {
+        int n = batch.size();
+        int[] selection = new int[n];
+        int k = 0;
+        if (batch.getTupleDesc().getFieldType(field) == Type.INT_TYPE && operand instanceof IntField) {
+            int[] column = batch.getIntColumn(field);
+            int v = ((IntField) operand).getValue();
+            // 每种比较各用一个循环，循环内没有分支判断op
+            switch (op) {
+                case EQUALS:
+                case LIKE:
+                    for (int i = 0; i < n; i++) {
+                        int r = batch.row(i);
+                        if (column[r] == v) selection[k++] = r;
+                    }
+                    break;
+                case NOT_EQUALS:
+                    for (int i = 0; i < n; i++) {
+                        int r = batch.row(i);
+                        if (column[r] != v) selection[k++] = r;
+                    }
+                    break;
+                case GREATER_THAN:
+                    for (int i = 0; i < n; i++) {
+                        int r = batch.row(i);
+                        if (column[r] > v) selection[k++] = r;
+                    }
+                    break;
+                case GREATER_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++) {
+                        int r = batch.row(i);
+                        if (column[r] >= v) selection[k++] = r;
+                    }
+                    break;
+                case LESS_THAN:
+                    for (int i = 0; i < n; i++) {
+                        int r = batch.row(i);
+                        if (column[r] < v) selection[k++] = r;
+                    }
+                    break;
+                case LESS_THAN_OR_EQ:
+                    for (int i = 0; i < n; i++) {
+                        int r = batch.row(i);
+                        if (column[r] <= v) selection[k++] = r;
+                    }
+                    break;
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                int r = batch.row(i);
+                if (batch.getField(r, field).compare(op, operand)) selection[k++] = r;
+            }
+        }
+        batch.setSelection(selection, k);
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string"
@@ -4,6 +4,7 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.Type;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -81,6 +82,18 @@ public class Project extends Operator {
         return newTuple;
     }
 
+    /**
+     * Operator.fetchNextBatch implementation. Returns a view of the child's
+     * batch holding only the projected columns; nothing is copied.
+     *
+     * @return The next batch, or null if there are no more tuples
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch = child.nextBatch();
+        if (batch == null) return null;
+        return batch.project(outFieldIds, td);
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{this.child};
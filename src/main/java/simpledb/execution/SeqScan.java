@@ -7,7 +7,10 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Type;
 import simpledb.common.DbException;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.PageMorsels;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import javax.xml.crypto.Data;
@@ -24,6 +27,7 @@ public class SeqScan implements OpIterator {
     private final TransactionId tid;
     private int tableId;
     private String tableAlias;
+    private final PageMorsels morsels;
     private DbFileIterator dbFileIterator = null;
 
     /**
@@ -43,9 +47,30 @@ public class SeqScan implements OpIterator {
      *            tableAlias.null, or null.null).
      */
     public SeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this(tid, tableid, tableAlias, null);
+    }
+
+    /**
+     * Creates one of the scans of a parallel scan over a HeapFile. The scans
+     * share morsels, and each reads the pages of the morsels it claims, so
+     * together they return every tuple of the table once.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan, which must be a HeapFile.
+     * @param tableAlias
+     *            the alias of this table (needed by the parser)
+     * @param morsels
+     *            the morsels shared by the scans, or null to scan the whole
+     *            table
+     * @see HeapFile#iterator(TransactionId, PageMorsels)
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, PageMorsels morsels) {
         this.tid = tid;
         this.tableId = tableid;
         this.tableAlias = tableAlias;
+        this.morsels = morsels;
     }
 
     /**
@@ -57,6 +82,28 @@ public class SeqScan implements OpIterator {
         return Database.getCatalog().getTableName(tableId);
     }
 
+    /**
+     * @return the id of the table this operator scans
+     * */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /**
+     * @return the transaction this scan is running as a part of
+     * */
+    public TransactionId getTransactionId() {
+        return tid;
+    }
+
+    /**
+     * @return the morsels this scan claims its pages from, or null if it
+     *         scans the whole table
+     */
+    public PageMorsels getMorsels() {
+        return morsels;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      * */
@@ -88,7 +135,13 @@ public class SeqScan implements OpIterator {
 
     public void open() throws DbException, TransactionAbortedException {
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
-        dbFileIterator = dbFile.iterator(tid);
+        if (morsels == null) {
+            dbFileIterator = dbFile.iterator(tid);
+        } else if (dbFile instanceof HeapFile) {
+            dbFileIterator = ((HeapFile) dbFile).iterator(tid, morsels);
+        } else {
+            throw new DbException("only HeapFiles can be scanned by morsels");
+        }
         dbFileIterator.open();
     }
 
@@ -124,6 +177,13 @@ public class SeqScan implements OpIterator {
         return dbFileIterator.next();
     }
 
+    // 由DbFileIterator直接填充batch，HeapFile不需要为每一行创建Tuple
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if(dbFileIterator == null) return null;
+        TupleBatch batch = new TupleBatch(getTupleDesc(), TupleBatch.DEFAULT_SIZE);
+        return dbFileIterator.nextBatch(batch) ? batch : null;
+    }
+
     public void close() {
         if(dbFileIterator != null) {
             dbFileIterator.close();
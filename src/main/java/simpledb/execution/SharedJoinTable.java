@@ -0,0 +1,218 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SharedJoinTable is the build side of a parallel hash join: one hash table
+ * built by all the workers of an {@link Exchange} together and then probed
+ * by each of them, see {@link HashJoinProbe}.
+ * <p>
+ * The table is built in two phases. First every worker reads its own build
+ * pipeline and splits the tuples by a hash of the key into partitions of its
+ * own. Once all workers are done, they take the partitions in turn and build
+ * one {@link IntTupleMap} per partition from the tuples all workers put in
+ * it, so no two workers ever write to the same map. After the second phase
+ * the maps are only read.
+ * <p>
+ * Unlike {@link HashEquiJoin}, the build side is not spilled to disk and must
+ * fit in memory.
+ */
+public class SharedJoinTable {
+
+    // 每个worker约分到的分区数
+    private static final int PARTITIONS_PER_WORKER = 4;
+
+    private final OpIterator[] builds;
+    private final int keyField;
+    private final boolean intKeys;
+    private final int partitionBits;
+
+    // 第一阶段每个worker按分区存放的元组，下标为[worker][partition]
+    private List<Tuple>[][] local;
+    private IntTupleMap[] maps;
+    private CountDownLatch partitioned;
+    private CountDownLatch built;
+    private final AtomicInteger nextPartition = new AtomicInteger();
+    private final AtomicInteger released = new AtomicInteger();
+    private volatile Throwable failure = null;
+
+    /**
+     * Constructor.
+     *
+     * @param buildPipelines
+     *            one build pipeline per worker, all with the same TupleDesc
+     * @param keyField
+     *            the join field of the build pipelines
+     */
+    public SharedJoinTable(OpIterator[] buildPipelines, int keyField) {
+        this.builds = buildPipelines.clone();
+        this.keyField = keyField;
+        this.intKeys = builds[0].getTupleDesc().getFieldType(keyField) == Type.INT_TYPE;
+        int bits = 0;
+        while ((1 << bits) < PARTITIONS_PER_WORKER * builds.length) bits++;
+        this.partitionBits = Math.max(1, bits);
+        reset();
+    }
+
+    // 丢弃表；建表端的pipeline不是Exchange的子节点，由这里重置它们的morsel
+    @SuppressWarnings("unchecked")
+    private void reset() {
+        for (OpIterator build : builds) {
+            Exchange.resetMorsels(build);
+        }
+        local = (List<Tuple>[][]) new List<?>[builds.length][1 << partitionBits];
+        maps = new IntTupleMap[1 << partitionBits];
+        partitioned = new CountDownLatch(builds.length);
+        built = new CountDownLatch(builds.length);
+        nextPartition.set(0);
+        released.set(0);
+        failure = null;
+    }
+
+    /** @return the number of workers building the table */
+    public int getDegree() {
+        return builds.length;
+    }
+
+    /** @return the TupleDesc of the tuples in the table */
+    public TupleDesc getTupleDesc() {
+        return builds[0].getTupleDesc();
+    }
+
+    /** @return the join field of the tuples in the table */
+    public int getKeyField() {
+        return keyField;
+    }
+
+    /**
+     * @return the int the table stores a field under: the value of INT_TYPE
+     *         fields, the hashCode of others
+     */
+    int keyOf(Field f) {
+        return intKeys ? ((IntField) f).getValue() : f.hashCode();
+    }
+
+    /**
+     * @return true if a key equals the field of the tuples under it, so that
+     *         the candidates found for a key need not be compared
+     */
+    boolean exactKeys() {
+        return intKeys;
+    }
+
+    private int partitionOf(int key) {
+        return (key * 0x9E3779B9) >>> (32 - partitionBits);
+    }
+
+    /**
+     * @return the map that holds the tuples stored under the given key
+     */
+    IntTupleMap mapOf(int key) {
+        return maps[partitionOf(key)];
+    }
+
+    /**
+     * Run both phases of the build for one worker. Every worker must call
+     * this once, from its own thread; it returns when the whole table is
+     * built. If the build fails in any worker, it throws in all of them.
+     *
+     * @param worker the index of the calling worker
+     */
+    public void build(int worker) throws DbException, TransactionAbortedException {
+        try {
+            partition(worker);
+        } catch (DbException | TransactionAbortedException | RuntimeException | Error e) {
+            failure = e;
+            // 不参加第二阶段，其他worker看到failure后也会跳过建表
+            built.countDown();
+            throw e;
+        } finally {
+            partitioned.countDown();
+        }
+        await(partitioned);
+
+        try {
+            int p;
+            while (failure == null && (p = nextPartition.getAndIncrement()) < maps.length) {
+                buildMap(p);
+            }
+        } catch (RuntimeException | Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            built.countDown();
+        }
+        await(built);
+    }
+
+    private void partition(int worker) throws DbException, TransactionAbortedException {
+        List<Tuple>[] parts = local[worker];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = new ArrayList<>();
+        }
+        OpIterator build = builds[worker];
+        build.open();
+        try {
+            TupleBatch batch;
+            while (failure == null && (batch = build.nextBatch()) != null) {
+                for (int i = 0; i < batch.size(); i++) {
+                    Tuple t = batch.getTuple(batch.row(i));
+                    parts[partitionOf(keyOf(t.getField(keyField)))].add(t);
+                }
+            }
+        } finally {
+            build.close();
+        }
+    }
+
+    private void buildMap(int p) {
+        int size = 0;
+        for (List<Tuple>[] parts : local) {
+            size += parts[p].size();
+        }
+        IntTupleMap map = new IntTupleMap(size);
+        for (List<Tuple>[] parts : local) {
+            for (Tuple t : parts[p]) {
+                map.put(keyOf(t.getField(keyField)), t);
+            }
+            parts[p] = null;
+        }
+        maps[p] = map;
+    }
+
+    // 等待所有worker完成当前阶段；任何worker失败时其余worker也抛出异常
+    private void await(CountDownLatch phase) throws DbException {
+        try {
+            phase.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while building the join table");
+        }
+        if (failure != null) {
+            throw new DbException("Failed to build the join table: " + failure);
+        }
+    }
+
+    /**
+     * Called by every worker that called {@link #build(int)}, whether or not
+     * the build succeeded, when it is done probing. Once all of them are,
+     * the table is dropped, and the next {@link #build(int)} reads the build
+     * pipelines again.
+     */
+    public void release() {
+        if (released.incrementAndGet() == builds.length) {
+            reset();
+        }
+    }
+}
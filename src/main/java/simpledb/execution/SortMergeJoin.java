@@ -0,0 +1,244 @@
+package simpledb.execution;
+
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.util.*;
+
+/**
+ * SortMergeJoin joins two children that are already sorted in ascending
+ * order of their join fields, e.g. scans of B+ trees on the join key or the
+ * output of an OrderBy, by reading each child once.
+ * <p>
+ * For EQUALS only the run of child2 tuples with the current key is kept in
+ * memory. For the range predicates LESS_THAN, LESS_THAN_OR_EQ, GREATER_THAN
+ * and GREATER_THAN_OR_EQ the tuples of one child that match a tuple of the
+ * other form a prefix of that child, which only grows as the other child's key
+ * grows; this band of tuples is kept in memory and each tuple of the other
+ * child is joined with all of it.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+
+    // 相等连接时：child2中键等于groupKey的一段元组
+    // 范围连接时：inner中已确定与当前及之后的outer元组都匹配的前缀
+    transient private List<Tuple> buffer = new ArrayList<>();
+    transient private Field groupKey = null;
+    transient private int bufferIndex = 0;
+    // 当前的child1元组（相等连接）或outer元组（范围连接）
+    transient private Tuple current = null;
+    // 从inner（相等连接时为child2）读出但还没有放进buffer的元组
+    transient private Tuple pending = null;
+
+    /**
+     * @return true if SortMergeJoin can join on the given operator
+     */
+    public static boolean supports(Predicate.Op op) {
+        switch (op) {
+            case EQUALS:
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on. Both children must return their tuples in ascending order of
+     * the field they are joined on.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left relation to join
+     * @param child2
+     *            Iterator for the right relation to join
+     * @throws IllegalArgumentException
+     *            if the operator of p is not supported
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (!supports(p.getOperator())) {
+            throw new IllegalArgumentException("SortMergeJoin cannot join on " + p.getOperator());
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return pred;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return comboTD;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    /**
+     * @return the field of the output the tuples are returned in ascending
+     *         order of: the join field of child1, except for LESS_THAN and
+     *         LESS_THAN_OR_EQ, which return tuples in the order of child2
+     */
+    public int getSortedField() {
+        return child1IsOuter() ? pred.getField1()
+                : child1.getTupleDesc().numFields() + pred.getField2();
+    }
+
+    /*
+     * 范围连接时外层循环的一端。t1 > t2时与t1匹配的是child2的前缀，所以child1在外层；
+     * t1 < t2时与t2匹配的是child1的前缀，child2在外层。
+     */
+    private boolean child1IsOuter() {
+        Predicate.Op op = pred.getOperator();
+        return op != Predicate.Op.LESS_THAN && op != Predicate.Op.LESS_THAN_OR_EQ;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child1.open();
+        child2.open();
+        reset();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child2.close();
+        child1.close();
+        reset();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        child2.rewind();
+        reset();
+    }
+
+    private void reset() {
+        buffer = new ArrayList<>();
+        groupKey = null;
+        bufferIndex = 0;
+        current = null;
+        pending = null;
+    }
+
+    private Tuple combine(Tuple t1, Tuple t2) {
+        int td1n = t1.getTupleDesc().numFields();
+        int td2n = t2.getTupleDesc().numFields();
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, t2.getField(i));
+        return t;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples. As with the other joins, the tuples returned are the
+     * concatenation of joining tuples from child1 and child2.
+     *
+     * @return The next matching tuple.
+     */
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        return pred.getOperator() == Predicate.Op.EQUALS ? fetchNextEquals() : fetchNextRange();
+    }
+
+    private Tuple fetchNextEquals() throws TransactionAbortedException, DbException {
+        int f1 = pred.getField1(), f2 = pred.getField2();
+        while (true) {
+            if (current != null && bufferIndex < buffer.size()) {
+                return combine(current, buffer.get(bufferIndex++));
+            }
+            if (!child1.hasNext()) {
+                return null;
+            }
+            current = child1.next();
+            bufferIndex = 0;
+            Field key = current.getField(f1);
+            // child1中重复的键与同一段child2元组连接
+            if (groupKey != null && TupleComparator.compareFields(key, groupKey) == 0) {
+                continue;
+            }
+            buffer.clear();
+            groupKey = key;
+            while (true) {
+                if (pending == null) {
+                    if (!child2.hasNext()) break;
+                    pending = child2.next();
+                }
+                int c = TupleComparator.compareFields(pending.getField(f2), key);
+                if (c > 0) break;
+                if (c == 0) buffer.add(pending);
+                pending = null;
+            }
+            // child2已经读完，之后的child1元组不会再有匹配
+            if (buffer.isEmpty() && pending == null) {
+                return null;
+            }
+        }
+    }
+
+    private Tuple fetchNextRange() throws TransactionAbortedException, DbException {
+        boolean child1IsOuter = child1IsOuter();
+        OpIterator outer = child1IsOuter ? child1 : child2;
+        OpIterator inner = child1IsOuter ? child2 : child1;
+        int outerField = child1IsOuter ? pred.getField1() : pred.getField2();
+        int innerField = child1IsOuter ? pred.getField2() : pred.getField1();
+        Predicate.Op op = pred.getOperator();
+        boolean strict = op == Predicate.Op.LESS_THAN || op == Predicate.Op.GREATER_THAN;
+        while (true) {
+            if (current != null && bufferIndex < buffer.size()) {
+                Tuple matched = buffer.get(bufferIndex++);
+                return child1IsOuter ? combine(current, matched) : combine(matched, current);
+            }
+            if (!outer.hasNext()) {
+                return null;
+            }
+            current = outer.next();
+            bufferIndex = 0;
+            Field key = current.getField(outerField);
+            // inner中键小于（或不大于）key的元组都与current匹配
+            while (true) {
+                if (pending == null) {
+                    if (!inner.hasNext()) break;
+                    pending = inner.next();
+                }
+                int c = TupleComparator.compareFields(pending.getField(innerField), key);
+                if (strict ? c >= 0 : c > 0) break;
+                buffer.add(pending);
+                pending = null;
+            }
+        }
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{ this.child1, this.child2 };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
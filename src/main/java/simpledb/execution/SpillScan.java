@@ -0,0 +1,77 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * SpillScan reads the tuples of a {@link SpillFile} back in the order they
+ * were written. It lets operators that spill to disk run the spilled part of
+ * their work through ordinary operators. The scan does not own the file:
+ * whoever created the file deletes it after closing the scan.
+ */
+public class SpillScan extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private final transient SpillFile file;
+    private transient DbFileIterator it = null;
+
+    /**
+     * Constructor. The estimated cardinality of the scan is the number of
+     * tuples in the file.
+     *
+     * @param file
+     *            The spill file to read
+     */
+    public SpillScan(SpillFile file) {
+        this.file = file;
+        setEstimatedCardinality((int) Math.min(Integer.MAX_VALUE, file.numTuples()));
+    }
+
+    public TupleDesc getTupleDesc() {
+        return file.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        it = file.iterator();
+        it.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        if (it != null) {
+            it.close();
+            it = null;
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it.rewind();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        return it.hasNext() ? it.next() : null;
+    }
+
+    protected TupleBatch fetchNextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch batch = new TupleBatch(getTupleDesc(), TupleBatch.DEFAULT_SIZE);
+        return it.nextBatch(batch) ? batch : null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[0];
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+    }
+}
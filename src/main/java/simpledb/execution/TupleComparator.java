@@ -0,0 +1,48 @@
+package simpledb.execution;
+
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+
+import java.util.Comparator;
+
+/**
+ * Compares tuples on a list of fields, each in ascending or descending order.
+ * Shared by the sorting operators and the joins that walk sorted inputs.
+ */
+class TupleComparator implements Comparator<Tuple> {
+    final int[] fields;
+    final boolean[] asc;
+
+    public TupleComparator(int field, boolean asc) {
+        this(new int[]{ field }, new boolean[]{ asc });
+    }
+
+    public TupleComparator(int[] fields, boolean[] asc) {
+        this.fields = fields;
+        this.asc = asc;
+    }
+
+    public int compare(Tuple o1, Tuple o2) {
+        for (int i = 0; i < fields.length; i++) {
+            int c = compareFields(o1.getField(fields[i]), o2.getField(fields[i]));
+            if (c != 0)
+                return asc[i] ? c : -c;
+        }
+        return 0;
+    }
+
+    /**
+     * @return a negative number, zero or a positive number as t1 is less
+     *         than, equal to or greater than t2
+     */
+    static int compareFields(Field t1, Field t2) {
+        // 整数列不必经过Predicate.Op比较两次
+        if (t1 instanceof IntField && t2 instanceof IntField)
+            return Integer.compare(((IntField) t1).getValue(), ((IntField) t2).getValue());
+        if (t1.compare(Predicate.Op.EQUALS, t2))
+            return 0;
+        return t1.compare(Predicate.Op.GREATER_THAN, t2) ? 1 : -1;
+    }
+
+}
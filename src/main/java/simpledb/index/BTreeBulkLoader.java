@@ -0,0 +1,375 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * BTreeBulkLoader builds the pages of an empty BTreeFile bottom up from tuples
+ * sorted on the key field. Leaves are filled left to right; each internal
+ * level collects its children until it has enough for a page, so only the
+ * pages still waiting for their parent are kept in memory, a few pages per
+ * level, and the input can be much larger than memory.
+ * <p>
+ * A page is written once its parent is known, together with its siblings,
+ * so the pages are written in runs of consecutive page numbers at the end of
+ * the file, bypassing the BufferPool. The last pages of every level are
+ * balanced so that every page but the root is at least half full.
+ * <p>
+ * The keys copied up from the leaves are the shortest keys that separate
+ * them. Pages with compressed keys are filled by bytes rather than by tuples
+ * or entries.
+ *
+ * @see BTreeFile#bulkLoad
+ */
+class BTreeBulkLoader {
+
+	/**
+	 * A page built by the loader that is not written yet because its parent
+	 * is not known. Its parent pointer is filled in when it is written.
+	 */
+	private static class PendingPage {
+		final int pageNo;
+		final byte[] data;
+		// 与同一层左边的页之间的key，最左边的页为null
+		final Field separator;
+		// 压缩的key：作为父节点中的entry所占的字节数
+		int entrySize;
+
+		PendingPage(int pageNo, byte[] data, Field separator) {
+			this.pageNo = pageNo;
+			this.data = data;
+			this.separator = separator;
+		}
+	}
+
+	/**
+	 * The pages of one level that are waiting for their parent.
+	 */
+	private static class Level {
+		final List<PendingPage> pages = new ArrayList<>();
+		// 压缩的key：除第一页外各页的entry字节数之和
+		int entryBytes = 0;
+	}
+
+	private final BTreeFile f;
+	private final int keyField;
+	private final Type[] types;
+	private final int keySize;
+	private final int pageSize = BufferPool.getPageSize();
+
+	// 每个叶子页和内部页装多少元组/孩子，以及为了半满至少要装多少
+	private final int maxTuples;
+	private final int tuplesPerLeaf;
+	private final int minTuples;
+	private final int maxChildren;
+	private final int childrenPerPage;
+	private final int minChildren;
+	// 压缩的key按字节填充内部页：固定部分，最多、目标和剩余页至少使用的字节数
+	private final boolean compressed;
+	private final int fixedBytes;
+	private final int maxBytes;
+	private final int bytesPerPage;
+	private final int minBytes;
+	// 压缩的key按字节填充叶子页：固定部分，元组中key以外字段的字节数，目标字节数
+	private final int leafFixedBytes;
+	private final int otherFieldsBytes;
+	private final int bytesPerLeaf;
+
+	private int nextPageNo;
+	private int pagesWritten = 0;
+	private FileChannel channel;
+
+	// 还没有装进叶子页的元组，以及压缩的key时它们依次编码所占的字节数
+	private List<Tuple> tuples = new ArrayList<>();
+	private int tupleBytes = 0;
+	// 上一个叶子页和它最后的key，以及为下一个叶子页预留的页号
+	private int prevLeaf = 0;
+	private Field prevLeafLastKey = null;
+	private int nextLeaf = 0;
+	// levels.get(i)是第i层等待父节点的页，第0层是叶子页
+	private final List<Level> levels = new ArrayList<>();
+
+	/**
+	 * @param f - the B+ tree to load
+	 * @param fillFactor - the fraction of each page to fill, in (0, 1]; pages are
+	 *        filled at least half
+	 * @param firstPageNo - the page number of the first page to write
+	 */
+	BTreeBulkLoader(BTreeFile f, double fillFactor, int firstPageNo) {
+		this.f = f;
+		this.keyField = f.keyField();
+		TupleDesc td = f.getTupleDesc();
+		this.types = new Type[td.numFields()];
+		for (int i = 0; i < types.length; i++) {
+			types[i] = td.getFieldType(i);
+		}
+		this.nextPageNo = firstPageNo;
+
+		// 与BTreeLeafPage.getMaxTuples()和BTreeInternalPage.getMaxEntries()相同
+		maxTuples = (pageSize * 8 - 3 * BTreePage.INDEX_SIZE * 8) / (td.getSize() * 8 + 1);
+		keySize = f.hasCompositeKeys() ? td.getSize() : types[keyField].getLen();
+		int maxEntries = (pageSize * 8 - 2 * BTreePage.INDEX_SIZE * 8 - 8 - 1)
+				/ (keySize * 8 + BTreePage.INDEX_SIZE * 8 + 1);
+		maxChildren = maxEntries + 1;
+		minTuples = Math.max(1, maxTuples / 2);
+		minChildren = maxEntries / 2 + 1;
+		tuplesPerLeaf = Math.max(minTuples, (int) (maxTuples * fillFactor));
+		childrenPerPage = Math.max(minChildren, (int) (maxEntries * fillFactor) + 1);
+
+		// 与BTreeInternalPage.getUsedSpace()相同，页面最多用到保留key更新所需字节之前
+		compressed = !f.hasCompositeKeys() && BTreePage.compressesKeys(types[keyField]);
+		int compressedEntries = (pageSize * 8 - 2 * BTreePage.INDEX_SIZE * 8 - 8 - 1)
+				/ ((BTreePage.INDEX_SIZE + 2) * 8 + 1);
+		fixedBytes = 2 * BTreePage.INDEX_SIZE + 1 + (compressedEntries + 1 + 7) / 8;
+		maxBytes = pageSize - BTreeInternalPage.KEY_UPDATE_RESERVE;
+		minBytes = pageSize / 2;
+		bytesPerPage = Math.min(maxBytes, Math.max(minBytes, (int) (pageSize * fillFactor)));
+
+		// 与BTreeLeafPage.getUsedSpace()相同，叶子页不更新key，可以填满
+		otherFieldsBytes = td.getSize() - types[keyField].getLen();
+		int compressedTuples = (pageSize * 8 - 3 * BTreePage.INDEX_SIZE * 8)
+				/ ((BTreePage.KEY_LENGTH_SIZE + otherFieldsBytes) * 8 + 1);
+		leafFixedBytes = 3 * BTreePage.INDEX_SIZE + (compressedTuples + 7) / 8;
+		bytesPerLeaf = Math.max(minBytes, (int) (pageSize * fillFactor));
+	}
+
+	/**
+	 * Reads the input and writes the pages of the tree.
+	 *
+	 * @param sortedInput - the tuples, sorted on the key field; opened and closed here
+	 * @return the id of the root page, or null if the input is empty
+	 * @throws DbException if the input is not sorted on the key field
+	 */
+	BTreePageId load(OpIterator sortedInput) throws DbException, TransactionAbortedException {
+		try (RandomAccessFile raf = new RandomAccessFile(f.getFile(), "rw")) {
+			channel = raf.getChannel();
+			Field prev = null;
+			sortedInput.open();
+			try {
+				while (sortedInput.hasNext()) {
+					Tuple t = sortedInput.next();
+					Field key = f.keyOf(t);
+					if (prev != null && key.compare(Op.LESS_THAN, prev)) {
+						throw new DbException("bulk load input is not sorted on field " + keyField
+								+ ": " + key + " follows " + prev);
+					}
+					tuples.add(t);
+					// 剩下的元组还要够一个半满的叶子页，才能确定这一页右边还有叶子页
+					if (compressed) {
+						tupleBytes += recordSize(tuples.size() == 1 ? null : prev, key);
+						if (leafFixedBytes + tupleBytes >= bytesPerLeaf + minBytes) {
+							addLeaf(tuplesWithin(bytesPerLeaf), true);
+						}
+					} else if (tuples.size() >= tuplesPerLeaf + minTuples) {
+						addLeaf(tuplesPerLeaf, true);
+					}
+					prev = key;
+				}
+			} finally {
+				sortedInput.close();
+			}
+			BTreePageId root = finish();
+			channel.force(false);
+			return root;
+		} catch (IOException e) {
+			throw new DbException("Failed to bulk load B+ tree: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the number of pages written
+	 */
+	int getPagesWritten() {
+		return pagesWritten;
+	}
+
+	private void addLeaf(int n, boolean more) throws IOException {
+		List<Tuple> page = tuples.subList(0, n);
+		int pageNo = nextLeaf != 0 ? nextLeaf : nextPageNo++;
+		int rightSibling = more ? nextPageNo++ : 0;
+		byte[] data = BTreeFileEncoder.convertToLeafPage(page, pageSize, types.length, types, keyField, compressed);
+		// 父指针在写出时填；左右兄弟指针现在就知道
+		ByteBuffer.wrap(data).putInt(4, prevLeaf).putInt(8, rightSibling);
+		Field firstKey = f.keyOf(page.get(0));
+		Field separator = prevLeafLastKey == null ? null
+				: BTreeInternalPage.shortestSeparator(prevLeafLastKey, firstKey);
+		prevLeafLastKey = f.keyOf(page.get(n - 1));
+		tuples = new ArrayList<>(tuples.subList(n, tuples.size()));
+		if (compressed) {
+			// 剩下的第一个元组成为下一个叶子页的第一个元组，不再相对前一个key压缩
+			tupleBytes = 0;
+			for (int i = 0; i < tuples.size(); i++) {
+				tupleBytes += recordSize(i == 0 ? null : f.keyOf(tuples.get(i - 1)), f.keyOf(tuples.get(i)));
+			}
+		}
+		prevLeaf = pageNo;
+		nextLeaf = rightSibling;
+		addPage(0, new PendingPage(pageNo, data, separator));
+	}
+
+	/**
+	 * @return the number of bytes of the record of a tuple with the given key on a
+	 * leaf page with compressed keys, the same as in BTreeLeafPage
+	 */
+	private int recordSize(Field prevKey, Field key) {
+		return BTreePage.compressedKeySize(prevKey, key) + otherFieldsBytes;
+	}
+
+	/**
+	 * Returns the largest number of the first tuples waiting for a leaf whose records,
+	 * with compressed keys, take at most the given number of bytes; at least one.
+	 */
+	private int tuplesWithin(int bytes) {
+		int used = leafFixedBytes;
+		int n = 0;
+		Field prev = null;
+		while (n < tuples.size()) {
+			Field key = f.keyOf(tuples.get(n));
+			used += recordSize(prev, key);
+			if (used > bytes)
+				break;
+			prev = key;
+			n++;
+		}
+		return Math.max(1, n);
+	}
+
+	private void addPage(int level, PendingPage page) throws IOException {
+		if (levels.size() == level) {
+			levels.add(new Level());
+		}
+		Level l = levels.get(level);
+		List<PendingPage> pages = l.pages;
+		if (compressed && !pages.isEmpty()) {
+			Field prev = pages.size() == 1 ? null : pages.get(pages.size() - 1).separator;
+			page.entrySize = BTreeInternalPage.compressedEntrySize(prev, page.separator);
+			l.entryBytes += page.entrySize;
+		}
+		pages.add(page);
+		// 同样，剩下的孩子还要够一个半满的父节点
+		if (compressed) {
+			if (fixedBytes + l.entryBytes >= bytesPerPage + minBytes) {
+				addParent(level, childrenWithin(l, bytesPerPage));
+			}
+		} else if (pages.size() >= childrenPerPage + minChildren) {
+			addParent(level, childrenPerPage);
+		}
+	}
+
+	/**
+	 * Returns the largest number of the first pages waiting on a level whose parent,
+	 * with compressed keys, takes at most the given number of bytes; at least two.
+	 */
+	private int childrenWithin(Level level, int bytes) {
+		int used = fixedBytes;
+		int n = 1;
+		while (n < level.pages.size() && used + level.pages.get(n).entrySize <= bytes) {
+			used += level.pages.get(n).entrySize;
+			n++;
+		}
+		return Math.max(2, n);
+	}
+
+	/**
+	 * Builds the parent of the first n pages waiting on a level, and writes them.
+	 */
+	private void addParent(int level, int n) throws IOException {
+		Level l = levels.get(level);
+		List<PendingPage> children = l.pages.subList(0, n);
+		int childCategory = level == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+		int pageNo = nextPageNo++;
+
+		List<BTreeEntry> entries = new ArrayList<>(n - 1);
+		for (int i = 1; i < n; i++) {
+			entries.add(new BTreeEntry(children.get(i).separator,
+					new BTreePageId(f.getId(), children.get(i - 1).pageNo, childCategory),
+					new BTreePageId(f.getId(), children.get(i).pageNo, childCategory)));
+		}
+		byte[] data = BTreeFileEncoder.convertToInternalPage(entries, pageSize, keySize, compressed, childCategory);
+		// 第一个孩子与左边的页之间的key，就是这个父节点与左边的页之间的key
+		Field separator = children.get(0).separator;
+		for (PendingPage child : children) {
+			write(child, pageNo);
+		}
+		children.clear();
+		if (compressed) {
+			// 剩下的第二页成为父节点中的第一个key，不再相对前一个key压缩
+			List<PendingPage> pages = l.pages;
+			if (pages.size() > 1) {
+				pages.get(1).entrySize = BTreeInternalPage.compressedEntrySize(null, pages.get(1).separator);
+			}
+			l.entryBytes = 0;
+			for (int i = 1; i < pages.size(); i++) {
+				l.entryBytes += pages.get(i).entrySize;
+			}
+		}
+		addPage(level + 1, new PendingPage(pageNo, data, separator));
+	}
+
+	/**
+	 * Puts the remaining tuples into the last one or two leaves, and the pages
+	 * waiting on each level into the last one or two parents, up to the root.
+	 */
+	private BTreePageId finish() throws IOException {
+		int n = tuples.size();
+		if (compressed && leafFixedBytes + tupleBytes > pageSize) {
+			addLeaf(tuplesWithin(leafFixedBytes + tupleBytes / 2), true);
+			addLeaf(tuples.size(), false);
+		} else if (!compressed && n > maxTuples) {
+			addLeaf(n / 2, true);
+			addLeaf(n - n / 2, false);
+		} else if (n > 0) {
+			addLeaf(n, false);
+		}
+		if (levels.isEmpty()) {
+			return null;
+		}
+		for (int level = 0; ; level++) {
+			Level l = levels.get(level);
+			List<PendingPage> pages = l.pages;
+			int m = pages.size();
+			if (m == 1 && level == levels.size() - 1) {
+				// 只剩一页且没有更高的层：它就是根，父指针指向根指针页
+				PendingPage root = pages.get(0);
+				write(root, 0);
+				return new BTreePageId(f.getId(), root.pageNo,
+						level == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+			}
+			if (compressed && fixedBytes + l.entryBytes > maxBytes) {
+				addParent(level, childrenWithin(l, fixedBytes + l.entryBytes / 2));
+			} else if (!compressed && m > maxChildren) {
+				addParent(level, m / 2);
+			}
+			addParent(level, pages.size());
+		}
+	}
+
+	private void write(PendingPage page, int parent) throws IOException {
+		ByteBuffer buf = ByteBuffer.wrap(page.data);
+		buf.putInt(0, parent);
+		long offset = BTreeRootPtrPage.getPageSize() + (long) (page.pageNo - 1) * pageSize;
+		while (buf.hasRemaining()) {
+			offset += channel.write(buf, offset);
+		}
+		// 缓存中不能有这个页号的旧页
+		Database.getBufferPool().discardPage(
+				new BTreePageId(f.getId(), page.pageNo, BTreePageId.LEAF));
+		Database.getBufferPool().discardPage(
+				new BTreePageId(f.getId(), page.pageNo, BTreePageId.INTERNAL));
+		pagesWritten++;
+	}
+}
@@ -6,6 +6,8 @@ import java.util.*;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
 import simpledb.execution.Predicate.Op;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
@@ -19,7 +21,13 @@ import simpledb.transaction.TransactionId;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
- * 
+ *
+ * Searches, scans and inserts descend the tree optimistically by latch coupling: the
+ * root pointer page and the internal pages are locked only while the descent passes
+ * them, so concurrent transactions contend on the leaf pages they touch. An insert that
+ * has to split a page locks the pages it modifies, from the leaf up through the parent
+ * pointers, until the transaction completes, since an abort restores whole pages.
+ *
  * @see BTreeLeafPage#BTreeLeafPage
  * @see BTreeInternalPage#BTreeInternalPage
  * @see BTreeHeaderPage#BTreeHeaderPage
@@ -32,6 +40,7 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private final int keyField;
+	private final boolean compositeKeys;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -42,10 +51,30 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, key, td, false);
+	}
+
+	/**
+	 * Constructs a B+ tree file backed by the specified file, optionally with
+	 * composite keys. With composite keys the tuples are ordered on the key field
+	 * and then on their other fields, and the internal pages store all of these
+	 * fields, so that a search for a whole tuple descends straight to the leaf
+	 * holding it even when many tuples share its key field. Predicates on the key
+	 * field alone search and scan the tree as usual.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param compositeKeys - whether the tree is keyed on whole tuples
+	 * @see #keyOf(Tuple)
+	 */
+	public BTreeFile(File f, int key, TupleDesc td, boolean compositeKeys) {
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.compositeKeys = compositeKeys;
 	}
 
 	/**
@@ -169,68 +198,104 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * Returns true if this B+ tree is keyed on whole tuples, the key field first
+	 */
+	public boolean hasCompositeKeys() {
+		return compositeKeys;
+	}
+
+	/**
+	 * Returns the key on which this B+ tree orders tuple t: its key field or, with
+	 * composite keys, all of its fields. Searching for the key of a tuple with an
+	 * EQUALS {@link IndexPredicate} finds only that tuple in a tree with composite
+	 * keys.
+	 */
+	public Field keyOf(Tuple t) {
+		return compositeKeys ? CompositeKey.of(t, keyField) : t.getField(keyField);
+	}
+
+	/**
+	 * Finds and locks the leaf page in the B+ tree corresponding to the left-most page
+	 * possibly containing the key field f, starting from page pid.
+	 * 
+	 * The pages on the path are locked by latch coupling ("crabbing"): each internal page
+	 * is locked with READ_ONLY permission only until its child has been locked, and is
+	 * unlocked again then, so a descent does not keep other transactions from splitting
+	 * or merging the pages above the leaf. Pages that the transaction had locked before
+	 * the descent stay locked. The leaf page is locked with permission perm and stays
+	 * locked until the transaction completes; the leaves read protect the ranges of keys
+	 * a transaction has seen.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param latched - a page locked only to find pid, unlocked once pid is locked, or null
 	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
 	 * @return the left-most leaf page possibly containing the key field f
 	 * 
 	 */
-	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
-                                       Field f)
+	private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, PageId latched,
+                                       BTreePageId pid, Permissions perm, Field f)
 					throws DbException, TransactionAbortedException {
-		//如果是leaf page，递归结束，说明找到了
-		if (pid.pgcateg() == BTreePageId.LEAF) {
-			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
-		}
-		//读取internal page要使用READ_ONLY perm
-		BTreeInternalPage internalPage = (BTreeInternalPage)getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-		//如果f为null,那么直接找到内部节点的最左侧孩子节点指针进行遍历
-		if (null == f) {
-			BTreePageId childId = internalPage.getChildId(0);
-			return findLeafPage(tid, dirtypages, childId, perm, null);
-		}
-		Iterator<BTreeEntry> it = internalPage.iterator();
-		//如果找到最后一个entry还没找到，返回最后一个entry的右孩子
-		BTreeEntry entry = null;
-		while (it.hasNext()) {
-			entry = it.next();
-			Field key = entry.getKey();
-			if (key.compare(Op.GREATER_THAN_OR_EQ, f)) {
-				return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
+		BufferPool bufferPool = Database.getBufferPool();
+		while (true) {
+			boolean held = bufferPool.holdsLock(tid, pid);
+			//读取internal page要使用READ_ONLY perm
+			Permissions p = pid.pgcateg() == BTreePageId.LEAF ? perm : Permissions.READ_ONLY;
+			Page page = getPage(tid, dirtypages, pid, p);
+			// 孩子已经加锁，释放父节点上只为查找而加的锁
+			if (latched != null) {
+				bufferPool.unsafeReleasePage(tid, latched);
+			}
+			//如果是leaf page，说明找到了
+			if (pid.pgcateg() == BTreePageId.LEAF) {
+				return (BTreeLeafPage) page;
 			}
+			latched = held ? null : pid;
+			pid = childFor((BTreeInternalPage) page, f);
 		}
-		if (entry == null) {
+	}
+
+	/**
+	 * Returns the left-most child of an internal page possibly containing the key field f,
+	 * or its left-most child if f is null.
+	 * @see BTreeInternalPage#findChildId(Field)
+	 */
+	private BTreePageId childFor(BTreeInternalPage internalPage, Field f) throws DbException {
+		BTreePageId childId = internalPage.findChildId(f);
+		if (childId == null) {
 			throw new DbException("find Leaf Page error!");
-		} else {
-			return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
 		}
-
+		return childId;
 	}
 	
 	/**
-	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
-	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field)
+	 * Convenience method to find a leaf page when there is no dirtypages HashMap, starting
+	 * from the root pointer page. Used by the BTreeFile iterators and lookups. The root pointer
+	 * page is locked by latch coupling as well, unless the tree is empty.
+	 * @see #findLeafPage(TransactionId, Map, PageId, BTreePageId, Permissions, Field)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @return the left-most leaf page possibly containing the key field f, or null if the
+	 * tree has no root page
 	 * 
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid,
-                               Field f)
+	BTreeLeafPage findLeafPage(TransactionId tid, Field f)
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean held = Database.getBufferPool().holdsLock(tid, rootPtrId);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_ONLY);
+		BTreePageId rootId = rootPtr.getRootId();
+		if (rootId == null) {
+			// 空树：保留根指针页上的锁，插入第一个元组要对它加写锁
+			return null;
+		}
+		return findLeafPage(tid, dirtypages, held ? null : rootPtrId, rootId, Permissions.READ_ONLY, f);
 	}
 
 	/**
@@ -268,13 +333,15 @@ public class BTreeFile implements DbFile {
 		int num = numTuples / 2;
 		// 从右往左遍历剩元组，将原始叶子页中的一半元素拷贝到空的叶子页中，并记录要插入父节点的key
 		Field key = null;
-		while ((it.hasNext()) && (num-- > 0)) {
+		while ((it.hasNext()) && moreToMove(page, rightPage, num--)) {
 			Tuple tuple = it.next();
 			// 新页面的最后一个元组的key为复制到父节点的key
-			key = tuple.getField(page.keyField);
+			key = keyOf(tuple);
 			page.deleteTuple(tuple);
 			rightPage.insertTuple(tuple);
 		}
+		// 只需要一个能分隔两页的key：字符串key截去不需要的后缀
+		key = BTreeInternalPage.shortestSeparator(keyOf(it.next()), key);
 
 		// 更新兄弟指针
 		BTreePageId rightSiblingId = page.getRightSiblingId();
@@ -348,7 +415,7 @@ public class BTreeFile implements DbFile {
 
 		// 将原始页中的一半元素移动到新的内部节点页中
 		int num = numEntries / 2;
-		while (num-- > 0) {
+		while (moreToMove(page, rightPage, num--) && page.getNumEntries() > 1) {
 			BTreeEntry entry = it.next();
 			page.deleteKeyAndRightChild(entry);
 			rightPage.insertEntry(entry);
@@ -425,7 +492,7 @@ public class BTreeFile implements DbFile {
 		}
 
 		// split the parent if needed
-		if(parent.getNumEmptySlots() == 0) {
+		if(!parent.hasRoomFor(field)) {
 			parent = splitInternalPage(tid, dirtypages, parent, field);
 		}
 
@@ -481,6 +548,34 @@ public class BTreeFile implements DbFile {
 		}
 	}
 	
+	/**
+	 * Whether to move another entry from one internal page to another while splitting or
+	 * redistributing them. Pages with fixed-length keys move a given number of entries;
+	 * pages with compressed keys move entries until the receiving page is no smaller.
+	 * 
+	 * @param from - the page entries are moved from
+	 * @param to - the page entries are moved to
+	 * @param remaining - the number of entries still to move, for fixed-length keys
+	 */
+	private static boolean moreToMove(BTreeInternalPage from, BTreeInternalPage to, int remaining) {
+		if(from.hasCompressedKeys()) {
+			return to.getUsedSpace() < from.getUsedSpace();
+		}
+		return remaining > 0;
+	}
+
+	/**
+	 * Whether to move another tuple from one leaf page to another while splitting or
+	 * redistributing them, as for internal pages.
+	 * @see #moreToMove(BTreeInternalPage, BTreeInternalPage, int)
+	 */
+	private static boolean moreToMove(BTreeLeafPage from, BTreeLeafPage to, int remaining) {
+		if(from.hasCompressedKeys()) {
+			return to.getUsedSpace() < from.getUsedSpace();
+		}
+		return remaining > 0;
+	}
+
 	/**
 	 * Method to encapsulate the process of locking/fetching a page.  First the method checks the local 
 	 * cache ("dirtypages"), and if it can't find the requested page there, it fetches it from the buffer pool.  
@@ -528,27 +623,141 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		Map<PageId, Page> dirtypages = new HashMap<>();
 
+		// find and lock the left-most leaf page corresponding to the key field,
+		// and split the leaf page if there is no more room for the tuple
+		Field key = keyOf(t);
+		BTreeLeafPage leafPage = findLeafPageForInsert(tid, dirtypages, key);
+		if(!leafPage.hasRoomFor(t)) {
+			leafPage = splitLeafPage(tid, dirtypages, leafPage, key);
+		}
+
+		// insert the tuple into the leaf page
+		leafPage.insertTuple(t);
+
+        return new ArrayList<>(dirtypages.values());
+	}
+
+	/**
+	 * Insert a batch of tuples into this BTreeFile. The batch is sorted by the key
+	 * field first, so consecutive tuples usually land on the same leaf and the tree
+	 * is descended once per leaf rather than once per tuple.
+	 * 
+	 * @param tid - the transaction id
+	 * @param tuples - the tuples to insert
+	 * @return a list of all pages that were dirtied by this operation, each listed once
+	 * @see #insertTuple(TransactionId, Tuple)
+	 */
+	public List<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+			throws DbException, IOException, TransactionAbortedException {
+		List<Tuple> batch = new ArrayList<>();
+		tuples.forEachRemaining(batch::add);
+		batch.sort((a, b) -> {
+			Field fa = keyOf(a);
+			Field fb = keyOf(b);
+			if(fa.compare(Op.LESS_THAN, fb)) return -1;
+			return fa.compare(Op.GREATER_THAN, fb) ? 1 : 0;
+		});
+
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		BTreeLeafPage leafPage = null;
+		for(Tuple t : batch) {
+			Field key = keyOf(t);
+			// 元组已排好序，key不小于上一个元组的key；只有超出当前叶子的范围时才重新从根查找
+			if(leafPage == null || !coversKey(leafPage, key)) {
+				leafPage = findLeafPageForInsert(tid, dirtypages, key);
+			}
+			if(!leafPage.hasRoomFor(t)) {
+				leafPage = splitLeafPage(tid, dirtypages, leafPage, key);
+			}
+			leafPage.insertTuple(t);
+		}
+
+		return new ArrayList<>(dirtypages.values());
+	}
+
+	/**
+	 * Load tuples sorted on the key field into this BTreeFile, which must be empty.
+	 * The tree is built bottom up: leaves are filled left to right, each to the given
+	 * fraction of its capacity, and the internal levels are built above them as the
+	 * leaves are completed. The new pages are written directly to the end of the file
+	 * in runs of consecutive pages, and become visible when the root pointer page
+	 * returned is committed. If the transaction aborts instead, the tree stays empty.
+	 * 
+	 * Unsorted input can be sorted on the key field by an {@link OrderBy}, which
+	 * spills runs to disk when the input does not fit in its memory budget.
+	 * 
+	 * @param tid - the transaction id
+	 * @param sortedInput - the tuples to load, sorted on the key field; it is opened and
+	 *        closed by this method
+	 * @param fillFactor - the fraction of each page to fill, in (0, 1]; pages are always
+	 *        filled at least half, the occupancy the B+ tree keeps
+	 * @return a list of all pages that were dirtied by this operation
+	 * @throws DbException if the tree is not empty, or the input does not have the tuple
+	 *         descriptor of this file or is not sorted on the key field
+	 * @see BufferPool#bulkLoad(TransactionId, int, OpIterator, double)
+	 */
+	public List<Page> bulkLoad(TransactionId tid, OpIterator sortedInput, double fillFactor)
+			throws DbException, IOException, TransactionAbortedException {
+		if (!(fillFactor > 0 && fillFactor <= 1)) {
+			throw new IllegalArgumentException("fill factor must be in (0, 1]: " + fillFactor);
+		}
+		if (!td.equals(sortedInput.getTupleDesc())) {
+			throw new DbException("bulk load input " + sortedInput.getTupleDesc()
+					+ " does not match B+ tree tuples " + td);
+		}
+		Map<PageId, Page> dirtypages = new HashMap<>();
+
+		// 加载期间对根指针页持有写锁，其他事务在提交前看不到新的页
+		getRootPtrPage(tid, dirtypages);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+				BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+		if (rootPtr.getRootId() != null) {
+			throw new DbException("bulk load into a non-empty B+ tree");
+		}
+
+		// 空树的最后一页是getRootPtrPage创建的空叶子页，和findLeafPageForInsert一样从它开始
+		BTreeBulkLoader loader = new BTreeBulkLoader(this, fillFactor, Math.max(1, numPages()));
+		BTreePageId rootId = loader.load(sortedInput);
+		if (rootId != null) {
+			rootPtr.setRootId(rootId);
+		}
+		return new ArrayList<>(dirtypages.values());
+	}
+
+	/**
+	 * Lock the root pointer page, creating the root leaf if the tree is empty, and
+	 * find the left-most leaf page in which a tuple with key field f belongs.
+	 */
+	private BTreeLeafPage findLeafPageForInsert(TransactionId tid, Map<PageId, Page> dirtypages, Field f)
+			throws DbException, IOException, TransactionAbortedException {
 		// get a read lock on the root pointer page and use it to locate the root page
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		boolean held = Database.getBufferPool().holdsLock(tid, rootPtrId);
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId rootId = rootPtr.getRootId();
 
 		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
 			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
 			rootPtr.setRootId(rootId);
+			held = true;
 		}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
-		}
-
-		// insert the tuple into the leaf page
-		leafPage.insertTuple(t);
+		// 根指针页和内部页只在下降时加锁；需要分裂时splitLeafPage沿父指针对要修改的页加写锁
+		return findLeafPage(tid, dirtypages, held ? null : rootPtrId, rootId, Permissions.READ_WRITE, f);
+	}
 
-        return new ArrayList<>(dirtypages.values());
+	/**
+	 * Whether a key no smaller than any key already inserted into this leaf by the
+	 * current batch may also be inserted into it: either the leaf is the right-most
+	 * one, or the key does not exceed the largest key on the leaf.
+	 */
+	private boolean coversKey(BTreeLeafPage leafPage, Field key) {
+		if(leafPage.getRightSiblingId() == null) {
+			return true;
+		}
+		Iterator<Tuple> it = leafPage.reverseIterator();
+		return it.hasNext() && key.compare(Op.LESS_THAN_OR_EQ, keyOf(it.next()));
 	}
 	
 	/**
@@ -629,22 +838,26 @@ public class BTreeFile implements DbFile {
 		if(leftSiblingId != null) {
 			BTreeLeafPage leftSibling = (BTreeLeafPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
-			// steal some tuples from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			// steal some tuples from it. Pages with compressed keys merge if they fit on one page
+			boolean merge = page.hasCompressedKeys() ? leftSibling.canMergeWith(page)
+					: leftSibling.getNumEmptySlots() >= maxEmptySlots;
+			if(merge) {
 				mergeLeafPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
-			else {
+			else if(parent.canUpdateKey()) {
 				stealFromLeafPage(page, leftSibling, parent, leftEntry, false);				
 			}
 		}
 		else if(rightSiblingId != null) {	
 			BTreeLeafPage rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
-			// steal some tuples from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			// steal some tuples from it. Pages with compressed keys merge if they fit on one page
+			boolean merge = page.hasCompressedKeys() ? page.canMergeWith(rightSibling)
+					: rightSibling.getNumEmptySlots() >= maxEmptySlots;
+			if(merge) {
 				mergeLeafPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
-			else {
+			else if(parent.canUpdateKey()) {
 				stealFromLeafPage(page, rightSibling, parent, rightEntry, true);				
 			}
 		}
@@ -671,7 +884,9 @@ public class BTreeFile implements DbFile {
 		int pageNumTuples = page.getNumTuples();
 		int siblingNumTuples = sibling.getNumTuples();
 		// 如果不满足可窃取条件，抛出异常
-		if (siblingNumTuples < pageNumTuples) {
+		boolean canSteal = page.hasCompressedKeys() ? sibling.getUsedSpace() >= page.getUsedSpace()
+				: siblingNumTuples >= pageNumTuples;
+		if (!canSteal) {
 			throw new DbException("Can't steal from left sibling.");
 		}
 		Iterator<Tuple> siblingIt;
@@ -683,21 +898,18 @@ public class BTreeFile implements DbFile {
 		}
 		// 要steal的记录条数
 		int moveCount = siblingNumTuples - (pageNumTuples + siblingNumTuples) / 2;
-		while (moveCount-- > 0) {
+		while (moreToMove(sibling, page, moveCount--)) {
 			Tuple tuple = siblingIt.next();
 			sibling.deleteTuple(tuple);
 			page.insertTuple(tuple);
 		}
 
-		// 更新entry中的key值
-		Field key;
-		if (isRightSibling) {
-			key = siblingIt.next().getField(sibling.keyField);
-			entry.setKey(key);
-		} else {
-			key = page.iterator().next().getField(page.keyField);
-			entry.setKey(key);
-		}
+		// 更新entry中的key值：左页最后一个key和右页第一个key之间最短的key
+		BTreeLeafPage left = isRightSibling ? page : sibling;
+		BTreeLeafPage right = isRightSibling ? sibling : page;
+		Field key = BTreeInternalPage.shortestSeparator(keyOf(left.reverseIterator().next()),
+				keyOf(right.iterator().next()));
+		entry.setKey(key);
 		parent.updateEntry(entry);
 	}
 
@@ -732,22 +944,26 @@ public class BTreeFile implements DbFile {
 		if(leftSiblingId != null) {
 			BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
-			// steal some entries from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			// steal some entries from it. Pages with compressed keys merge if they fit on one page
+			boolean merge = page.hasCompressedKeys() ? leftSibling.canMergeWith(page, leftEntry.getKey())
+					: leftSibling.getNumEmptySlots() >= maxEmptySlots;
+			if(merge) {
 				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
-			else {
+			else if(parent.canUpdateKey()) {
 				stealFromLeftInternalPage(tid, dirtypages, page, leftSibling, parent, leftEntry);
 			}
 		}
 		else if(rightSiblingId != null) {
 			BTreeInternalPage rightSibling = (BTreeInternalPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
-			// steal some entries from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			// steal some entries from it. Pages with compressed keys merge if they fit on one page
+			boolean merge = page.hasCompressedKeys() ? page.canMergeWith(rightSibling, rightEntry.getKey())
+					: rightSibling.getNumEmptySlots() >= maxEmptySlots;
+			if(merge) {
 				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
-			else {
+			else if(parent.canUpdateKey()) {
 				stealFromRightInternalPage(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 		}
@@ -794,7 +1010,7 @@ public class BTreeFile implements DbFile {
 		moveCount--;
 
 		// 移动元素
-		while ((moveCount-- > 0) && (siblingIt.hasNext())) {
+		while (moreToMove(leftSibling, page, moveCount--) && (siblingIt.hasNext())) {
 			leftSibling.deleteKeyAndRightChild(left);
 			page.insertEntry(left);
 			if (siblingIt.hasNext()) {
@@ -850,7 +1066,7 @@ public class BTreeFile implements DbFile {
 		moveCount--;
 
 		// 移动元素
-		while ((moveCount-- > 0) && (iterator.hasNext())) {
+		while (moreToMove(rightSibling, page, moveCount--) && (iterator.hasNext())) {
 			rightSibling.deleteKeyAndLeftChild(right);
 			page.insertEntry(right);
 			right = iterator.next();
@@ -987,7 +1203,6 @@ public class BTreeFile implements DbFile {
 		// the parent is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
-		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
 		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged 
@@ -1003,7 +1218,7 @@ public class BTreeFile implements DbFile {
 			// release the parent page for reuse
 			setEmptyPage(tid, dirtypages, parent.getId().getPageNumber());
 		}
-		else if(parent.getNumEmptySlots() > maxEmptySlots) { 
+		else if(parent.isUnderfull()) { 
 			handleMinOccupancyPage(tid, dirtypages, parent);
 		}
 	}
@@ -1030,8 +1245,7 @@ public class BTreeFile implements DbFile {
 
 		// if the page is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
-		int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
-		if(page.getNumEmptySlots() > maxEmptySlots) { 
+		if(page.isUnderfull()) { 
 			handleMinOccupancyPage(tid, dirtypages, page);
 		}
 
@@ -1262,6 +1476,18 @@ public class BTreeFile implements DbFile {
 		return new BTreeSearchIterator(this, tid, ipred);
 	}
 
+	/**
+	 * Get a BTreeLookup for finding the tuples with given keys in this B+ tree
+	 * file, one key at a time. Lookups of ascending keys reuse the leaf pages
+	 * found by the previous lookups.
+	 *
+	 * @param tid - the transaction id
+	 * @return a BTreeLookup over this file
+	 */
+	public BTreeLookup lookup(TransactionId tid) {
+		return new BTreeLookup(this, tid);
+	}
+
 	/**
 	 * Get an iterator for all tuples in this B+ tree file in sorted order. This method 
 	 * will acquire a read lock on the affected pages of the file, and may block until 
@@ -1301,11 +1527,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, null);
-		it = curp.iterator();
+		curp = f.findLeafPage(tid, null);
+		it = curp == null ? null : curp.iterator();
 	}
 
 	/**
@@ -1368,6 +1591,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	final TransactionId tid;
 	final BTreeFile f;
 	final IndexPredicate ipred;
+	// 条件是整个key时与元组的整个key比较，否则只与key字段比较
+	final boolean wholeKeys;
 
 	/**
 	 * Constructor for this iterator
@@ -1379,24 +1604,22 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 		this.f = f;
 		this.tid = tid;
 		this.ipred = ipred;
+		this.wholeKeys = ipred.getField() instanceof CompositeKey;
 	}
 
 	/**
 	 * Open this iterator by getting an iterator on the first leaf page applicable
-	 * for the given predicate operation
+	 * for the given predicate operation, starting from the first tuple on that page
+	 * which can satisfy the predicate
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
+		Field start = null;
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, ipred.getField());
-		}
-		else {
-			curp = f.findLeafPage(tid, root, null);
+			start = ipred.getField();
 		}
-		it = curp.iterator();
+		curp = f.findLeafPage(tid, start);
+		it = curp == null ? null : curp.iterator(start);
 	}
 
 	/**
@@ -1412,7 +1635,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 			while (it.hasNext()) {
 				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
+				Field key = wholeKeys ? f.keyOf(t) : t.getField(f.keyField());
+				if (key.compare(ipred.getOp(), ipred.getField())) {
 					return t;
 				}
 				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
@@ -1421,7 +1645,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 					return null;
 				}
 				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
+						key.compare(Op.GREATER_THAN, ipred.getField())) {
 					// if the tuple is now greater than the field passed in and the operation
 					// is equals, we have reached the end
 					return null;
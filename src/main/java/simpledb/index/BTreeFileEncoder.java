@@ -229,11 +229,23 @@ public class BTreeFileEncoder {
 		// pointerbytes: left sibling pointer, right sibling pointer, parent pointer
 		int leafpointerbytes = 3 * BTreeLeafPage.INDEX_SIZE; 
 		int nrecords = (npagebytes * 8 - leafpointerbytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
+		if (BTreePage.compressesKeys(keyType)) {
+			// 按最长的key计算每页的元组数，压缩后一定放得下
+			int nheaderbytes = (compressedMaxRecords(npagebytes, typeAr, keyField) + 7) / 8;
+			nrecords = (npagebytes - leafpointerbytes - nheaderbytes)
+					/ (nrecbytes - keyType.getLen() + 2 + Type.STRING_LEN);
+		}
 
 		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
+		if (BTreePage.compressesKeys(keyType)) {
+			// 按最长的key计算每页的entry数，压缩后一定放得下
+			int nheaderbytes = (compressedMaxEntries(npagebytes) + 1 + 7) / 8;
+			nentries = (npagebytes - internalpointerbytes - nheaderbytes)
+					/ (BTreeInternalPage.INDEX_SIZE + 2 + Type.STRING_LEN);
+		}
 
 		List<List<BTreeEntry>> entries = new ArrayList<>();
 
@@ -503,6 +515,20 @@ public class BTreeFileEncoder {
 	public static byte[] convertToLeafPage(List<Tuple> tuples, int npagebytes,
 			int numFields, Type[] typeAr, int keyField)
 					throws IOException {
+		return convertToLeafPage(tuples, npagebytes, numFields, typeAr, keyField,
+				BTreePage.compressesKeys(typeAr[keyField]));
+	}
+
+	/**
+	 * Convert a set of tuples to a leaf page of a B+ tree whose keys are stored
+	 * whole, or prefix compressed.
+	 * @see #convertToLeafPage(List, int, int, Type[], int)
+	 */
+	static byte[] convertToLeafPage(List<Tuple> tuples, int npagebytes,
+			int numFields, Type[] typeAr, int keyField, boolean compressed)
+					throws IOException {
+		if (compressed)
+			return convertToCompressedLeafPage(tuples, npagebytes, typeAr, keyField);
 		int nrecbytes = 0;
 		for (int i = 0; i < numFields ; i++) {
 			nrecbytes += typeAr[i].getLen();
@@ -566,6 +592,69 @@ public class BTreeFileEncoder {
 		return baos.toByteArray();
 	}
 
+	/**
+	 * Convert a set of tuples to a byte array in the format of a BTreeLeafPage
+	 * with prefix compressed keys, used for STRING_TYPE keys
+	 * 
+	 * @param tuples - the set of tuples, which must fit on one page
+	 * @param npagebytes - number of bytes per page
+	 * @param typeAr - array containing the types of the tuples
+	 * @param keyField - the field of the tuples the B+ tree will be keyed on
+	 * @return a byte array which can be passed to the BTreeLeafPage constructor
+	 * @throws IOException
+	 */
+	private static byte[] convertToCompressedLeafPage(List<Tuple> tuples, int npagebytes,
+			Type[] typeAr, int keyField)
+					throws IOException {
+		int nrecords = compressedMaxRecords(npagebytes, typeAr, keyField);
+		int nheaderbytes = (nrecords + 7) / 8;
+		if (tuples.size() > nrecords)
+			throw new IllegalArgumentException("too many tuples for one page: " + tuples.size());
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(npagebytes);
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(0); // parent pointer
+		dos.writeInt(0); // left sibling pointer
+		dos.writeInt(0); // right sibling pointer
+
+		byte[] header = new byte[nheaderbytes];
+		for (int i = 0; i < tuples.size(); i++)
+			header[i / 8] |= (byte) (1 << (i % 8));
+		dos.write(header);
+
+		tuples.sort(new TupleComparator(keyField));
+		Field prev = null;
+		for (Tuple t : tuples) {
+			for (int j = 0; j < typeAr.length; j++) {
+				if (j == keyField) {
+					BTreePage.writeCompressedKey(dos, prev, t.getField(j));
+					prev = t.getField(j);
+				} else {
+					t.getField(j).serialize(dos);
+				}
+			}
+		}
+		if (dos.size() > npagebytes)
+			throw new IllegalArgumentException("tuples do not fit in a page of " + npagebytes + " bytes");
+		dos.write(new byte[npagebytes - dos.size()]);
+		return baos.toByteArray();
+	}
+
+	/**
+	 * @return the number of tuple slots of a BTreeLeafPage with compressed keys,
+	 * the same as BTreeLeafPage.getMaxTuples()
+	 */
+	private static int compressedMaxRecords(int npagebytes, Type[] typeAr, int keyField) {
+		// 每个元组至少占key以外的字段和两个长度字节
+		int nrecbytes = 2;
+		for (int i = 0; i < typeAr.length; i++) {
+			if (i != keyField)
+				nrecbytes += typeAr[i].getLen();
+		}
+		int pointerbytes = 3 * BTreeLeafPage.INDEX_SIZE;
+		return (npagebytes * 8 - pointerbytes * 8) /  (nrecbytes * 8 + 1);
+	}
+
 	/**
 	 *  Comparator to sort BTreeEntry objects by key
 	 */
@@ -621,7 +710,22 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(List<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
-		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+		return convertToInternalPage(entries, npagebytes, keyType.getLen(),
+				BTreePage.compressesKeys(keyType), childPageCategory);
+	}
+
+	/**
+	 * Convert a set of entries to an internal page of a B+ tree whose keys are
+	 * keyLen bytes long, or prefix compressed.
+	 * @see #convertToInternalPage(List, int, Type, int)
+	 */
+	static byte[] convertToInternalPage(List<BTreeEntry> entries, int npagebytes,
+			int keyLen, boolean compressed, int childPageCategory)
+					throws IOException {
+		if (compressed) {
+			return convertToCompressedInternalPage(entries, npagebytes, childPageCategory);
+		}
+		int nentrybytes = keyLen + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
@@ -670,7 +774,7 @@ public class BTreeFileEncoder {
 		}
 
 		for(int e = entrycount; e < nentries; e++) {
-			for (int j=0; j<keyType.getLen(); j++) {
+			for (int j=0; j<keyLen; j++) {
 				dos.writeByte(0);
 			}
 		}
@@ -694,6 +798,58 @@ public class BTreeFileEncoder {
 
 	}
 
+	/**
+	 * Convert a set of entries to a byte array in the format of a BTreeInternalPage
+	 * with prefix compressed keys, used for STRING_TYPE keys
+	 * 
+	 * @param entries - the set of entries, which must fit on one page
+	 * @param npagebytes - number of bytes per page
+	 * @param childPageCategory - the category of the child pages (either internal or leaf)
+	 * @return a byte array which can be passed to the BTreeInternalPage constructor
+	 * @throws IOException
+	 */
+	private static byte[] convertToCompressedInternalPage(List<BTreeEntry> entries, int npagebytes,
+			int childPageCategory)
+					throws IOException {
+		int nentries = compressedMaxEntries(npagebytes);
+		int nheaderbytes = (nentries + 1 + 7) / 8;
+		if (entries.size() > nentries)
+			throw new IllegalArgumentException("too many entries for one page: " + entries.size());
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(npagebytes);
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(0); // parent pointer
+		dos.writeByte((byte) childPageCategory);
+
+		byte[] header = new byte[nheaderbytes];
+		for (int i = 0; i < entries.size() + 1; i++)
+			header[i / 8] |= (byte) (1 << (i % 8));
+		dos.write(header);
+
+		entries.sort(new EntryComparator());
+		BTreeInternalPage.writeCompressedEntry(dos, null, null, entries.get(0).getLeftChild().getPageNumber());
+		Field prev = null;
+		for (BTreeEntry e : entries) {
+			BTreeInternalPage.writeCompressedEntry(dos, prev, e.getKey(), e.getRightChild().getPageNumber());
+			prev = e.getKey();
+		}
+		if (dos.size() > npagebytes)
+			throw new IllegalArgumentException("entries do not fit in a page of " + npagebytes + " bytes");
+		dos.write(new byte[npagebytes - dos.size()]);
+		return baos.toByteArray();
+	}
+
+	/**
+	 * @return the number of entry slots of a BTreeInternalPage with compressed keys,
+	 * the same as BTreeInternalPage.getMaxEntries()
+	 */
+	private static int compressedMaxEntries(int npagebytes) {
+		// 每个entry至少占一个孩子指针和两个长度字节
+		int nentrybytes = BTreeInternalPage.INDEX_SIZE + 2;
+		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
+		return (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);
+	}
+
 	/**
 	 * Create a byte array in the format of a BTreeRootPtrPage
 	 * 
@@ -13,19 +13,32 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 import simpledb.storage.RecordId;
+import simpledb.storage.StringField;
 
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Pages of a B+ tree keyed on a STRING_TYPE field, without composite keys,
+ * compress their keys: each key is stored with the length of the prefix it
+ * shares with the previous key on the page and only the rest of its bytes, so
+ * a page holds as many entries as their actual key lengths allow rather than as
+ * many fixed-length keys fit. These pages fill up by bytes, and are split,
+ * merged and redistributed by bytes rather than by entries; see
+ * {@link #hasRoomFor(Field)} and {@link #isUnderfull()}.
  *
  * @see BTreeFile
  * @see BufferPool
  *
  */
 public class BTreeInternalPage extends BTreePage {
+	// 替换一个key最多使页面增长的字节数：新key本身，以及下一个key与它的公共前缀变短
+	static final int KEY_UPDATE_RESERVE = 2 * Type.STRING_LEN + KEY_LENGTH_SIZE;
+
 	private final byte[] header;
 	private final Field[] keys;
 	private final int[] children;
+	private final boolean compressed;
 	private final int numSlots;
 	
 	private int childCategory; // either leaf or internal
@@ -43,7 +56,7 @@ public class BTreeInternalPage extends BTreePage {
 
         assert null == upperBound || null == prev || (prev.compare(Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkOccupancy || depth <= 0 || (getNumEntries() >= getMaxEntries() / 2);
+        assert !checkOccupancy || depth <= 0 || !isUnderfull();
 	}
 	
 	/**
@@ -62,6 +75,16 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * If the key field is a STRING_TYPE, the header is followed instead by a
+	 * record for each used slot in order: its child pointer and, except for the
+	 * first slot, its key as one byte for the length of the prefix shared with
+	 * the previous key, one byte for the length of the rest of the key, and the
+	 * rest of the key. The entry size in the formula above is then the smallest
+	 * record, a child pointer and the two length bytes.
+	 * <p>
+	 * In a B+ tree with composite keys each key is stored as all fields of a
+	 * tuple, the key field first, and keys are not compressed.
+	 * <p>
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -72,6 +95,7 @@ public class BTreeInternalPage extends BTreePage {
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
+		this.compressed = !compositeKeys && compressesKeys(td.getFieldType(key));
 		this.numSlots = getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -92,6 +116,13 @@ public class BTreeInternalPage extends BTreePage {
 			header[i] = dis.readByte();
 
 		keys = new Field[numSlots];
+		children = new int[numSlots];
+		if (compressed) {
+			readCompressedEntries(dis);
+			dis.close();
+			setBeforeImage();
+			return;
+		}
 		try{
 			// allocate and read the keys of this page
 			// start from 1 because the first key slot is not used
@@ -103,7 +134,6 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
-		children = new int[numSlots];
 		try{
 			// allocate and read the child pointers of this page
 			for (int i=0; i<children.length; i++)
@@ -120,7 +150,7 @@ public class BTreeInternalPage extends BTreePage {
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		int keySize = compressed ? KEY_LENGTH_SIZE : keySize();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
@@ -172,7 +202,7 @@ public class BTreeInternalPage extends BTreePage {
 		// if associated bit is not set, read forward to the next key, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
+			for (int i=0; i<keySize(); i++) {
 				try {
 					dis.readByte();
 				} catch (IOException e) {
@@ -185,7 +215,7 @@ public class BTreeInternalPage extends BTreePage {
 		// read the key field
 		Field f = null;
 		try {
-			f = td.getFieldType(keyField).parse(dis);
+			f = compositeKeys ? CompositeKey.parse(dis, td, keyField) : td.getFieldType(keyField).parse(dis);
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
@@ -224,6 +254,66 @@ public class BTreeInternalPage extends BTreePage {
 		return child;
 	}
 
+	/**
+	 * Read the child pointers and the prefix compressed keys of the used slots.
+	 */
+	private void readCompressedEntries(DataInputStream dis) throws IOException {
+		Arrays.fill(children, -1);
+		Field prev = null;
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			children[i] = dis.readInt();
+			// the first slot has a child pointer but no key
+			if (i == 0)
+				continue;
+			keys[i] = readCompressedKey(dis, prev);
+			prev = keys[i];
+		}
+	}
+
+	/**
+	 * Write an entry in the format of a page with compressed keys: the child pointer
+	 * and, unless the key is null, the key as the length of the prefix it shares with
+	 * the previous key on the page, and the rest of the key.
+	 * @param dos - the stream to write to
+	 * @param prevKey - the previous key on the page, or null if there is none
+	 * @param key - the key of the entry, or null for the first child pointer
+	 * @param child - the child page number
+	 */
+	static void writeCompressedEntry(DataOutputStream dos, Field prevKey, Field key, int child) throws IOException {
+		dos.writeInt(child);
+		if (key != null)
+			writeCompressedKey(dos, prevKey, key);
+	}
+
+	/**
+	 * @return the number of bytes writeCompressedEntry writes for the given entry
+	 */
+	static int compressedEntrySize(Field prevKey, Field key) {
+		if (key == null)
+			return INDEX_SIZE;
+		return INDEX_SIZE + compressedKeySize(prevKey, key);
+	}
+
+	/**
+	 * Returns the shortest key that is greater than left and no greater than right,
+	 * to separate two pages whose keys end with left and start with right. For string
+	 * keys this is the shortest prefix of right that is greater than left, so the
+	 * separators copied up from the leaves are usually much shorter than the keys.
+	 * For other keys, and if left equals right, it is right.
+	 * @param left - the largest key on the left page
+	 * @param right - the smallest key on the right page, no smaller than left
+	 */
+	static Field shortestSeparator(Field left, Field right) {
+		if (!(right instanceof StringField) || left.equals(right))
+			return right;
+		String r = ((StringField) right).getValue();
+		int shared = sharedPrefixLength(left, right);
+		// 公共前缀之后right的第一个字符大于left在该位置的字符（或者left已经结束）
+		return new StringField(r.substring(0, shared + 1), Type.STRING_LEN);
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
@@ -266,6 +356,24 @@ public class BTreeInternalPage extends BTreePage {
             }
         }
 
+		if (compressed) {
+			try {
+				Field prev = null;
+				for (int i=0; i<numSlots; i++) {
+					if (!isSlotUsed(i))
+						continue;
+					writeCompressedEntry(dos, prev, keys[i], children[i]);
+					if (i > 0)
+						prev = keys[i];
+				}
+				dos.write(new byte[len - dos.size()]);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the keys
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -273,7 +381,7 @@ public class BTreeInternalPage extends BTreePage {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
+				for (int j=0; j<keySize(); j++) {
 					try {
 						dos.writeByte(0);
 					} catch (IOException e) {
@@ -320,7 +428,7 @@ public class BTreeInternalPage extends BTreePage {
 
 		// padding
 		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+				keySize() * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -434,7 +542,12 @@ public class BTreeInternalPage extends BTreePage {
 			}	
 		}
 		children[rid.getTupleNumber()] = e.getRightChild().getPageNumber();
+		Field oldKey = keys[rid.getTupleNumber()];
 		keys[rid.getTupleNumber()] = e.getKey();
+		if (compressed && getFreeSpace() < 0) {
+			keys[rid.getTupleNumber()] = oldKey;
+			throw new DbException("no room on page to update entry with key " + e.getKey());
+		}
 	}
 
 	/**
@@ -483,6 +596,10 @@ public class BTreeInternalPage extends BTreePage {
 		if (emptySlot == -1)
 			throw new DbException("called insertEntry on page with no empty slots.");        
 
+		// 插入一个key不会使后面key的公共前缀变短，页面最多增长它自己的长度
+		if (compressed && getFreeSpace() < compressedEntrySize(null, e.getKey()))
+			throw new DbException("called insertEntry on page with no room for key " + e.getKey());
+
 		// find the child pointer matching the left or right child in this entry
 		int lessOrEqKey = -1;
 		for (int i=0; i<numSlots; i++) {
@@ -582,6 +699,92 @@ public class BTreeInternalPage extends BTreePage {
 		return cnt;
 	}
 
+	/**
+	 * @return true if the keys on this page are prefix compressed, so the page fills
+	 * up by bytes rather than by entries
+	 */
+	public boolean hasCompressedKeys() {
+		return compressed;
+	}
+
+	/**
+	 * Returns the number of bytes taken by the entries of this page and by its parent
+	 * pointer, child category, header and first child pointer.
+	 */
+	public int getUsedSpace() {
+		int used = INDEX_SIZE + 1 + header.length;
+		if (!compressed)
+			return used + INDEX_SIZE + getNumEntries() * (keySize() + INDEX_SIZE);
+		Field prev = null;
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			used += compressedEntrySize(prev, keys[i]);
+			if (i > 0)
+				prev = keys[i];
+		}
+		return used;
+	}
+
+	/**
+	 * Returns the number of bytes still free on this page; for pages with fixed-length
+	 * keys, the bytes of the empty slots.
+	 */
+	public int getFreeSpace() {
+		if (!compressed)
+			return getNumEmptySlots() * (keySize() + INDEX_SIZE);
+		return BufferPool.getPageSize() - getUsedSpace();
+	}
+
+	/**
+	 * Returns true if an entry with the given key can be inserted without splitting this
+	 * page. Pages with compressed keys also keep enough bytes free to replace one of their
+	 * keys with a longer one, which redistributing the children of a page requires.
+	 * @param key - the key of the entry to insert
+	 */
+	public boolean hasRoomFor(Field key) {
+		if (getNumEmptySlots() == 0)
+			return false;
+		return !compressed || getFreeSpace() >= compressedEntrySize(null, key) + KEY_UPDATE_RESERVE;
+	}
+
+	/**
+	 * Returns true if any key on this page can be replaced with a key of any length.
+	 */
+	public boolean canUpdateKey() {
+		return !compressed || getFreeSpace() >= KEY_UPDATE_RESERVE;
+	}
+
+	/**
+	 * Returns true if this page is below the minimum occupancy of a page that is not
+	 * the root: less than half full of entries, or for compressed keys less than a
+	 * quarter full of bytes. Pages with compressed keys are split and redistributed by
+	 * bytes, one variable-length entry at a time, so they are only guaranteed to be a
+	 * little less than half full afterwards.
+	 */
+	public boolean isUnderfull() {
+		if (!compressed)
+			return getNumEmptySlots() > getMaxEntries() - getMaxEntries()/2; // ceiling
+		int fixed = INDEX_SIZE + 1 + header.length;
+		return getUsedSpace() - fixed < (BufferPool.getPageSize() - fixed) / 4;
+	}
+
+	/**
+	 * Returns true if the entries of this page and of its right sibling, together with
+	 * the key between them in the parent, fit on one page; for compressed keys, leaving
+	 * the bytes kept free for key updates.
+	 * @param rightSibling - the right sibling of this page
+	 * @param parentKey - the key of the parent entry pointing to both pages
+	 */
+	public boolean canMergeWith(BTreeInternalPage rightSibling, Field parentKey) {
+		if (!compressed)
+			return getNumEntries() + rightSibling.getNumEntries() + 1 <= getMaxEntries();
+		int fixed = INDEX_SIZE + 1 + header.length;
+		// 合并后右页第一个key相对父节点的key编码，不会比现在更长
+		int merged = getUsedSpace() + rightSibling.getUsedSpace() - fixed + compressedEntrySize(null, parentKey);
+		return merged + KEY_UPDATE_RESERVE <= BufferPool.getPageSize();
+	}
+
 	/**
 	 * Returns true if associated slot on this page is filled.
 	 */
@@ -605,6 +808,59 @@ public class BTreeInternalPage extends BTreePage {
 			header[headerbyte] &= (0xFF ^ (1 << headerbit));
 	}
 
+	/**
+	 * Returns the id of the left-most child page possibly containing the key field f, or
+	 * the left-most child if f is null. The child is found by a binary search over the
+	 * sorted keys of this page, without creating BTreeEntry objects; empty slots between
+	 * the keys are skipped.
+	 * @param f - the key to search for
+	 * @return the id of the child page, or null if this page has no children
+	 */
+	public BTreePageId findChildId(Field f) {
+		if (!isSlotUsed(0)) {
+			return null;
+		}
+		int slot;
+		if (f == null) {
+			slot = 0;
+		} else {
+			// 第一个key >= f的槽位，它左边最近的已用槽位就是它的左孩子
+			int found = findSlot(f);
+			slot = (found == -1 ? numSlots : found) - 1;
+			while (!isSlotUsed(slot)) {
+				slot--;
+			}
+		}
+		return new BTreePageId(pid.getTableId(), children[slot], childCategory);
+	}
+
+	/**
+	 * Binary search for the first used slot whose key is greater than or equal to f.
+	 * @return the slot, or -1 if every key on this page is less than f
+	 */
+	private int findSlot(Field f) {
+		int lo = 1;
+		int hi = numSlots - 1;
+		int found = -1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			// 向右找到[mid, hi]中第一个已用的槽位
+			int used = mid;
+			while (used <= hi && !isSlotUsed(used)) {
+				used++;
+			}
+			if (used > hi) {
+				hi = mid - 1;
+			} else if (keys[used].compare(Op.GREATER_THAN_OR_EQ, f)) {
+				found = used;
+				hi = mid - 1;
+			} else {
+				lo = used + 1;
+			}
+		}
+		return found;
+	}
+
 	/**
 	 * @return an iterator over all entries on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return entries in empty slots!)
@@ -765,8 +1021,16 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key == null) {
+					continue;
+				}
+				// 左孩子在前一个使用中的槽位，中间可能有删除留下的空槽
+				int prev = entry - 1;
+				while(!p.isSlotUsed(prev) && prev > 0) {
+					--prev;
+				}
+				BTreePageId childId = p.getChildId(prev);
+				if(childId != null) {
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
@@ -14,6 +14,13 @@ import java.io.*;
 /**
  * Each instance of BTreeLeafPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Like {@link BTreeInternalPage}, pages of a B+ tree keyed on a STRING_TYPE
+ * field, without composite keys, compress the key of each tuple against the
+ * key of the previous tuple on the page, so a page holds as many tuples as
+ * their actual key lengths allow. These pages fill up by bytes, and are split,
+ * merged and redistributed by bytes rather than by tuples; see
+ * {@link #hasRoomFor(Tuple)} and {@link #isUnderfull()}.
  *
  * @see BTreeFile
  * @see BufferPool
@@ -22,6 +29,7 @@ import java.io.*;
 public class BTreeLeafPage extends BTreePage {
 	private final byte[] header;
 	private final Tuple[] tuples;
+	private final boolean compressed;
 	private final int numSlots;
 	
 	private int leftSibling; // leaf node or 0
@@ -34,14 +42,15 @@ public class BTreeLeafPage extends BTreePage {
 		Iterator<Tuple> it = this.iterator();
 		while (it.hasNext()) {
 			Tuple t = it.next();
-			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(fieldid)));
-			prev = t.getField(fieldid);
+			Field key = compositeKeys ? keyOf(t) : t.getField(fieldid);
+			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, key));
+			prev = key;
 			assert(t.getRecordId().getPageId().equals(this.getId()));
 		}
 
         assert null == upperBound || null == prev || (prev.compare(Predicate.Op.LESS_THAN_OR_EQ, upperBound));
 
-        assert !checkoccupancy || depth <= 0 || (getNumTuples() >= getMaxTuples() / 2);
+        assert !checkoccupancy || depth <= 0 || !isUnderfull();
 	}
 
 	/**
@@ -57,6 +66,13 @@ public class BTreeLeafPage extends BTreePage {
 	 * <p>
 	 *      ceiling(no. tuple slots / 8)
 	 * <p>
+	 * If the key field is a STRING_TYPE, the header is followed instead by a
+	 * record for each used slot in order: the fields of its tuple, with the key
+	 * field stored as one byte for the length of the prefix shared with the key
+	 * of the previous tuple, one byte for the length of the rest of the key, and
+	 * the rest of the key. The tuple size in the formula above is then the
+	 * smallest record, the other fields and the two length bytes.
+	 * <p>
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -67,6 +83,7 @@ public class BTreeLeafPage extends BTreePage {
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
 		super(id, key);
+		this.compressed = !compositeKeys && compressesKeys(td.getFieldType(key));
 		this.numSlots = getMaxTuples();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -100,8 +117,11 @@ public class BTreeLeafPage extends BTreePage {
 		tuples = new Tuple[numSlots];
 		try{
 			// allocate and read the actual records of this page
-			for (int i=0; i<tuples.length; i++)
-				tuples[i] = readNextTuple(dis,i);
+			if (compressed)
+				readCompressedTuples(dis);
+			else
+				for (int i=0; i<tuples.length; i++)
+					tuples[i] = readNextTuple(dis,i);
 		}catch(NoSuchElementException e){
 			e.printStackTrace();
 		}
@@ -114,7 +134,8 @@ public class BTreeLeafPage extends BTreePage {
 	 * Retrieve the maximum number of tuples this page can hold.
 	 */
 	public int getMaxTuples() {        
-		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
+		int tupleSize = compressed ? KEY_LENGTH_SIZE + otherFieldsSize() : td.getSize();
+		int bitsPerTupleIncludingHeader = tupleSize * 8 + 1;
 		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
 		int extraBits = 3 * INDEX_SIZE * 8;
         return (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader;
@@ -190,6 +211,49 @@ public class BTreeLeafPage extends BTreePage {
 		return t;
 	}
 
+	/**
+	 * Read the tuples of the used slots, with their keys prefix compressed.
+	 */
+	private void readCompressedTuples(DataInputStream dis) throws IOException, NoSuchElementException {
+		Field prev = null;
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			Tuple t = new Tuple(td);
+			t.setRecordId(new RecordId(pid, i));
+			try {
+				for (int j=0; j<td.numFields(); j++) {
+					if (j == keyField) {
+						prev = readCompressedKey(dis, prev);
+						t.setField(j, prev);
+					} else {
+						t.setField(j, td.getFieldType(j).parse(dis));
+					}
+				}
+			} catch (java.text.ParseException e) {
+				e.printStackTrace();
+				throw new NoSuchElementException("parsing error!");
+			}
+			tuples[i] = t;
+		}
+	}
+
+	/**
+	 * @return the number of bytes of the fields of a tuple other than the key field
+	 */
+	private int otherFieldsSize() {
+		return td.getSize() - td.getFieldType(keyField).getLen();
+	}
+
+	/**
+	 * @return the number of bytes of the record of a tuple with the given key on a
+	 * page with compressed keys
+	 * @param prevKey - the key of the previous tuple on the page, or null if there is none
+	 */
+	private int compressedRecordSize(Field prevKey, Field key) {
+		return compressedKeySize(prevKey, key) + otherFieldsSize();
+	}
+
 	/**
 	 * Generates a byte array representing the contents of this page.
 	 * Used to serialize this page to disk.
@@ -236,6 +300,30 @@ public class BTreeLeafPage extends BTreePage {
             }
         }
 
+		if (compressed) {
+			try {
+				Field prev = null;
+				for (int i=0; i<numSlots; i++) {
+					if (!isSlotUsed(i))
+						continue;
+					for (int j=0; j<td.numFields(); j++) {
+						Field f = tuples[i].getField(j);
+						if (j == keyField) {
+							writeCompressedKey(dos, prev, f);
+							prev = f;
+						} else {
+							f.serialize(dos);
+						}
+					}
+				}
+				dos.write(new byte[len - dos.size()]);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the tuples
 		for (int i=0; i<tuples.length; i++) {
 
@@ -305,8 +393,8 @@ public class BTreeLeafPage extends BTreePage {
 	 * Adds the specified tuple to the page such that all records remain in sorted order;  
 	 * the tuple should be updated to reflect
 	 *  that it is now stored on this page.
-	 * @throws DbException if the page is full (no empty slots) or tupledesc
-	 *         is mismatch.
+	 * @throws DbException if the page is full (no empty slots, or for compressed
+	 *         keys no room for the record) or tupledesc is mismatch.
 	 * @param t The tuple to add.
 	 */
 	public void insertTuple(Tuple t) throws DbException {
@@ -327,16 +415,31 @@ public class BTreeLeafPage extends BTreePage {
 
 		// find the last key less than or equal to the key being inserted
 		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
+		Field key = keyOf(t);
 		for (int i=0; i<numSlots; i++) {
 			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+				if(keyOf(tuples[i]).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
 					lessOrEqKey = i;
 				else
 					break;	
 			}
 		}
 
+		if (compressed) {
+			// 新元组在前后两个元组之间编码，后一个元组改为相对新元组的key编码
+			Field prev = lessOrEqKey == -1 ? null : keyOf(tuples[lessOrEqKey]);
+			Field next = null;
+			for (int i=lessOrEqKey+1; i<numSlots && next == null; i++) {
+				if (isSlotUsed(i))
+					next = keyOf(tuples[i]);
+			}
+			int growth = compressedRecordSize(prev, key);
+			if (next != null)
+				growth += compressedKeySize(key, next) - compressedKeySize(prev, next);
+			if (getFreeSpace() < growth)
+				throw new DbException("called addTuple on page with no room for key " + key);
+		}
+
 		// shift records back or forward to fill empty slot and make room for new record
 		// while keeping records in sorted order
 		int goodSlot = -1;
@@ -455,6 +558,82 @@ public class BTreeLeafPage extends BTreePage {
 		return cnt;
 	}
 
+	/**
+	 * @return true if the keys on this page are prefix compressed, so the page fills
+	 * up by bytes rather than by tuples
+	 */
+	public boolean hasCompressedKeys() {
+		return compressed;
+	}
+
+	/**
+	 * Returns the number of bytes taken by the tuples of this page and by its parent
+	 * and sibling pointers and header.
+	 */
+	public int getUsedSpace() {
+		int used = 3 * INDEX_SIZE + header.length;
+		if (!compressed)
+			return used + getNumTuples() * td.getSize();
+		Field prev = null;
+		for (int i=0; i<numSlots; i++) {
+			if (!isSlotUsed(i))
+				continue;
+			Field key = keyOf(tuples[i]);
+			used += compressedRecordSize(prev, key);
+			prev = key;
+		}
+		return used;
+	}
+
+	/**
+	 * Returns the number of bytes still free on this page; for pages with fixed-length
+	 * records, the bytes of the empty slots.
+	 */
+	public int getFreeSpace() {
+		if (!compressed)
+			return getNumEmptySlots() * td.getSize();
+		return BufferPool.getPageSize() - getUsedSpace();
+	}
+
+	/**
+	 * Returns true if tuple t can be inserted without splitting this page, wherever
+	 * its key falls on the page.
+	 * @param t - the tuple to insert
+	 */
+	public boolean hasRoomFor(Tuple t) {
+		if (getNumEmptySlots() == 0)
+			return false;
+		return !compressed || getFreeSpace() >= compressedRecordSize(null, keyOf(t));
+	}
+
+	/**
+	 * Returns true if this page is below the minimum occupancy of a page that is not
+	 * the root: less than half full of tuples, or for compressed keys less than a
+	 * quarter full of bytes. Pages with compressed keys are split and redistributed by
+	 * bytes, one variable-length record at a time, so they are only guaranteed to be a
+	 * little less than half full afterwards.
+	 */
+	public boolean isUnderfull() {
+		if (!compressed)
+			return getNumEmptySlots() > getMaxTuples() - getMaxTuples()/2; // ceiling
+		int fixed = 3 * INDEX_SIZE + header.length;
+		return getUsedSpace() - fixed < (BufferPool.getPageSize() - fixed) / 4;
+	}
+
+	/**
+	 * Returns true if the tuples of this page and of its right sibling fit on one page.
+	 * @param rightSibling - the right sibling of this page
+	 */
+	public boolean canMergeWith(BTreeLeafPage rightSibling) {
+		if (getNumTuples() + rightSibling.getNumTuples() > getMaxTuples())
+			return false;
+		if (!compressed)
+			return true;
+		int fixed = 3 * INDEX_SIZE + header.length;
+		// 合并后右页第一个元组相对左页最后一个元组编码，不会比现在更长
+		return getUsedSpace() + rightSibling.getUsedSpace() - fixed <= BufferPool.getPageSize();
+	}
+
 	/**
 	 * Returns true if associated slot on this page is filled.
 	 */
@@ -486,6 +665,46 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * @return an iterator over the tuples on this page, starting from the first one whose
+	 * key is greater than or equal to f, or from the first one if f is null
+	 * (calling remove on this iterator throws an UnsupportedOperationException)
+	 * @see #findSlot(Field)
+	 */
+	public Iterator<Tuple> iterator(Field f) {
+		return new BTreeLeafPageIterator(this, f == null ? 0 : findSlot(f));
+	}
+
+	/**
+	 * Returns the first used slot holding a tuple whose key is greater than or equal
+	 * to f. The slot is found by a binary search over the tuples of this page, which are
+	 * kept sorted on their keys; empty slots between the tuples are skipped.
+	 * @param f - the key to search for
+	 * @return the slot, or getMaxTuples() if every key on this page is less than f
+	 */
+	public int findSlot(Field f) {
+		int lo = 0;
+		int hi = numSlots - 1;
+		int found = numSlots;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			// 向右找到[mid, hi]中第一个已用的槽位
+			int used = mid;
+			while (used <= hi && !isSlotUsed(used)) {
+				used++;
+			}
+			if (used > hi) {
+				hi = mid - 1;
+			} else if (keyOf(tuples[used]).compare(Predicate.Op.GREATER_THAN_OR_EQ, f)) {
+				found = used;
+				hi = mid - 1;
+			} else {
+				lo = used + 1;
+			}
+		}
+		return found;
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -524,12 +743,17 @@ public class BTreeLeafPage extends BTreePage {
  * Helper class that implements the Java Iterator for tuples on a BTreeLeafPage.
  */
 class BTreeLeafPageIterator implements Iterator<Tuple> {
-	int curTuple = 0;
+	int curTuple;
 	Tuple nextToReturn = null;
 	final BTreeLeafPage p;
 
 	public BTreeLeafPageIterator(BTreeLeafPage p) {
+		this(p, 0);
+	}
+
+	public BTreeLeafPageIterator(BTreeLeafPage p, int start) {
 		this.p = p;
+		this.curTuple = start;
 	}
 
 	public boolean hasNext() {
@@ -0,0 +1,101 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.execution.Predicate.Op;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * BTreeLookup finds the tuples of a BTreeFile with a given key, for many keys
+ * in a row. When the keys are looked up in ascending order, a lookup starts
+ * from the leaf page the previous lookup stopped on if the key can be on that
+ * page, instead of searching down from the root again, so looking up the keys
+ * of a sorted batch reads each leaf page about once.
+ *
+ * @see BTreeFile#lookup(TransactionId)
+ */
+public class BTreeLookup {
+
+	private final BTreeFile f;
+	private final TransactionId tid;
+
+	// 上一次查找的key和停下的叶子页：这一页左边的元组都不大于lastKey
+	private Field lastKey = null;
+	private BTreePageId lastLeaf = null;
+	private List<Tuple> lastMatches = Collections.emptyList();
+	private int descents = 0;
+
+	BTreeLookup(BTreeFile f, TransactionId tid) {
+		this.f = f;
+		this.tid = tid;
+	}
+
+	/**
+	 * Find the tuples whose key field equals key.
+	 *
+	 * @param key - the key to look up
+	 * @return the matching tuples, in the order they appear in the B+ tree
+	 */
+	public List<Tuple> lookup(Field key) throws DbException, TransactionAbortedException {
+		if (lastKey != null && key.compare(Op.EQUALS, lastKey)) {
+			return lastMatches;
+		}
+		BTreeLeafPage page = null;
+		if (lastKey != null && key.compare(Op.GREATER_THAN, lastKey)) {
+			// key比上一次大，它的元组不会在lastLeaf左边；只要lastLeaf的最大key不小于key，就从这一页开始找
+			BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid, lastLeaf,
+					Permissions.READ_ONLY);
+			Iterator<Tuple> last = leaf.reverseIterator();
+			if (last.hasNext() && last.next().getField(f.keyField()).compare(Op.GREATER_THAN_OR_EQ, key)) {
+				page = leaf;
+			}
+		}
+		if (page == null) {
+			page = f.findLeafPage(tid, key);
+			if (page == null) {
+				return Collections.emptyList();
+			}
+			descents++;
+		}
+
+		List<Tuple> matches = new ArrayList<>();
+		// 第一页从第一个不小于key的元组开始，后面的页从头开始
+		Iterator<Tuple> it = page.iterator(key);
+		while (true) {
+			boolean done = false;
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				Field k = t.getField(f.keyField());
+				if (k.compare(Op.EQUALS, key)) {
+					matches.add(t);
+				} else if (k.compare(Op.GREATER_THAN, key)) {
+					done = true;
+					break;
+				}
+			}
+			BTreePageId next = page.getRightSiblingId();
+			if (done || next == null) {
+				break;
+			}
+			page = (BTreeLeafPage) Database.getBufferPool().getPage(tid, next, Permissions.READ_ONLY);
+			it = page.iterator();
+		}
+		lastKey = key;
+		lastLeaf = page.getId();
+		lastMatches = matches;
+		return matches;
+	}
+
+	/**
+	 * @return the number of lookups that had to search down from the root
+	 */
+	public int getDescents() {
+		return descents;
+	}
+}
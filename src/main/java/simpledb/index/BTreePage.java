@@ -5,10 +5,18 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
+import simpledb.storage.Field;
 import simpledb.storage.Page;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionId;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 /**
  * Each instance of BTreeInternalPage stores data for one page of a BTreeFile and 
  * implements the Page interface that is used by BufferPool.
@@ -22,10 +30,14 @@ public abstract class BTreePage implements Page {
 	protected volatile TransactionId dirtier = null;
 
 	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
+	// 压缩的key中，与前一个key的公共前缀长度和剩余字节数各占一个字节
+	static final int KEY_LENGTH_SIZE = 2;
 
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
+	// 树的key是否为整个元组（key字段在前）组成的CompositeKey
+	protected final boolean compositeKeys;
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
@@ -57,7 +69,78 @@ public abstract class BTreePage implements Page {
 	public BTreePage(BTreePageId id, int key) {
 		this.pid = id;
 		this.keyField = key;
-		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+		DbFile file = Database.getCatalog().getDatabaseFile(id.getTableId());
+		this.td = file.getTupleDesc();
+		this.compositeKeys = file instanceof BTreeFile && ((BTreeFile) file).hasCompositeKeys();
+	}
+
+	/**
+	 * @return the key on which this page orders tuple t: its key field, or its
+	 * CompositeKey if the tree has composite keys
+	 */
+	protected Field keyOf(Tuple t) {
+		return compositeKeys ? CompositeKey.of(t, keyField) : t.getField(keyField);
+	}
+
+	/**
+	 * @return the number of bytes a key of this page takes when stored uncompressed
+	 */
+	protected int keySize() {
+		return compositeKeys ? td.getSize() : td.getFieldType(keyField).getLen();
+	}
+
+	/**
+	 * @return true if pages of a B+ tree with keys of the given type, without
+	 * composite keys, store them prefix compressed, in variable-length records
+	 */
+	static boolean compressesKeys(Type keyType) {
+		return keyType == Type.STRING_TYPE;
+	}
+
+	/**
+	 * Write a prefix compressed key: the length of the prefix it shares with the
+	 * previous key on the page, the length of the rest of the key, and the rest.
+	 * @param dos - the stream to write to
+	 * @param prevKey - the previous key on the page, or null if there is none
+	 * @param key - the key to write
+	 */
+	static void writeCompressedKey(DataOutputStream dos, Field prevKey, Field key) throws IOException {
+		String s = ((StringField) key).getValue();
+		int shared = sharedPrefixLength(prevKey, key);
+		dos.writeByte(shared);
+		dos.writeByte(s.length() - shared);
+		dos.writeBytes(s.substring(shared));
+	}
+
+	/**
+	 * Read a key written by {@link #writeCompressedKey}.
+	 * @param prevKey - the previous key on the page, or null if there is none
+	 */
+	static Field readCompressedKey(DataInputStream dis, Field prevKey) throws IOException {
+		int shared = dis.readUnsignedByte();
+		byte[] rest = new byte[dis.readUnsignedByte()];
+		dis.readFully(rest);
+		String prev = prevKey == null ? "" : ((StringField) prevKey).getValue();
+		return new StringField(prev.substring(0, shared) + new String(rest), Type.STRING_LEN);
+	}
+
+	/**
+	 * @return the number of bytes writeCompressedKey writes for the given key
+	 */
+	static int compressedKeySize(Field prevKey, Field key) {
+		return KEY_LENGTH_SIZE + ((StringField) key).getValue().length() - sharedPrefixLength(prevKey, key);
+	}
+
+	static int sharedPrefixLength(Field prevKey, Field key) {
+		if (prevKey == null)
+			return 0;
+		String a = ((StringField) prevKey).getValue();
+		String b = ((StringField) key).getValue();
+		int n = Math.min(a.length(), b.length());
+		int i = 0;
+		while (i < n && a.charAt(i) == b.charAt(i))
+			i++;
+		return i;
 	}
 
 	/**
@@ -27,6 +27,7 @@ public class BTreeScan implements OpIterator {
 	private IndexPredicate ipred = null;
 	private transient DbFileIterator it;
 	private String tablename;
+	private int tableid;
 	private String alias;
 
 	/**
@@ -63,6 +64,28 @@ public class BTreeScan implements OpIterator {
 		return this.tablename;
 	}
 
+	/**
+	 * @return the id of the table this operator scans
+	 * */
+	public int getTableId() {
+		return this.tableid;
+	}
+
+	/**
+	 * @return the transaction this scan is running as a part of
+	 * */
+	public TransactionId getTransactionId() {
+		return this.tid;
+	}
+
+	/**
+	 * @return the index predicate the scanned tuples match, or null if the
+	 *         scan returns all tuples
+	 * */
+	public IndexPredicate getIndexPredicate() {
+		return this.ipred;
+	}
+
 	/**
 	 * @return Return the alias of the table this operator scans. 
 	 * */
@@ -86,6 +109,7 @@ public class BTreeScan implements OpIterator {
 	public void reset(int tableid, String tableAlias) {
 		this.isOpen=false;
 		this.alias = tableAlias;
+		this.tableid = tableid;
 		this.tablename = Database.getCatalog().getTableName(tableid);
 		if(ipred == null) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
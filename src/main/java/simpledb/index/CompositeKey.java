@@ -0,0 +1,140 @@
+package simpledb.index;
+
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * The key of a tuple in a B+ tree with composite keys: the key field of the
+ * tuple followed by its other fields, in order. Keys are compared field by
+ * field, and a key that is a prefix of another is the smaller one. A field
+ * compared with a CompositeKey is treated as a key of that one field, so a
+ * value of the key field, as given by an index predicate, sorts before every
+ * tuple with that value.
+ *
+ * @see BTreeFile#BTreeFile(java.io.File, int, TupleDesc, boolean)
+ */
+final class CompositeKey implements Field {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Field[] fields;
+
+	CompositeKey(Field... fields) {
+		this.fields = fields;
+	}
+
+	/**
+	 * @return the composite key of tuple t in a B+ tree keyed on keyField
+	 */
+	static CompositeKey of(Tuple t, int keyField) {
+		int[] order = fieldOrder(t.getTupleDesc().numFields(), keyField);
+		Field[] fields = new Field[order.length];
+		for (int i = 0; i < order.length; i++) {
+			fields[i] = t.getField(order[i]);
+		}
+		return new CompositeKey(fields);
+	}
+
+	/**
+	 * Read a composite key written by {@link #serialize} for tuples of td.
+	 */
+	static CompositeKey parse(DataInputStream dis, TupleDesc td, int keyField) throws ParseException {
+		int[] order = fieldOrder(td.numFields(), keyField);
+		Field[] fields = new Field[order.length];
+		for (int i = 0; i < order.length; i++) {
+			fields[i] = td.getFieldType(order[i]).parse(dis);
+		}
+		return new CompositeKey(fields);
+	}
+
+	// key字段在前，其余字段按原来的顺序
+	private static int[] fieldOrder(int numFields, int keyField) {
+		int[] order = new int[numFields];
+		order[0] = keyField;
+		for (int i = 0, j = 1; i < numFields; i++) {
+			if (i != keyField) {
+				order[j++] = i;
+			}
+		}
+		return order;
+	}
+
+	private int compareTo(Field other) {
+		Field[] o = other instanceof CompositeKey ? ((CompositeKey) other).fields : new Field[] { other };
+		int n = Math.min(fields.length, o.length);
+		for (int i = 0; i < n; i++) {
+			if (fields[i].compare(Predicate.Op.LESS_THAN, o[i]))
+				return -1;
+			if (fields[i].compare(Predicate.Op.GREATER_THAN, o[i]))
+				return 1;
+		}
+		return Integer.compare(fields.length, o.length);
+	}
+
+	@Override
+	public boolean compare(Predicate.Op op, Field value) {
+		int c = compareTo(value);
+		switch (op) {
+		case EQUALS:
+		case LIKE:
+			return c == 0;
+		case NOT_EQUALS:
+			return c != 0;
+		case GREATER_THAN:
+			return c > 0;
+		case GREATER_THAN_OR_EQ:
+			return c >= 0;
+		case LESS_THAN:
+			return c < 0;
+		case LESS_THAN_OR_EQ:
+			return c <= 0;
+		default:
+			throw new IllegalArgumentException("unsupported operator " + op);
+		}
+	}
+
+	/**
+	 * @return the type of the key field
+	 */
+	@Override
+	public Type getType() {
+		return fields[0].getType();
+	}
+
+	@Override
+	public void serialize(DataOutputStream dos) throws IOException {
+		for (Field f : fields) {
+			f.serialize(dos);
+		}
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof CompositeKey && Arrays.equals(fields, ((CompositeKey) o).fields);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(fields);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("(");
+		for (int i = 0; i < fields.length; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(fields[i]);
+		}
+		return sb.append(")").toString();
+	}
+}
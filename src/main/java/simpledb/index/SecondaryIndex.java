@@ -0,0 +1,373 @@
+package simpledb.index;
+
+import simpledb.common.Catalog;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Predicate.Op;
+import simpledb.execution.SeqScan;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A SecondaryIndex is a B+ tree over a field of a table other than the one
+ * the table is stored on, so that tuples can be found by that field without
+ * scanning the table. The table can be a HeapFile or a BTreeFile clustered on
+ * another field, and a table can have any number of secondary indexes.
+ * <p>
+ * Each entry of the index is a tuple holding the value of the indexed field
+ * and a locator for the tuple it was made from. For a HeapFile the locator is
+ * the page number and slot of the tuple's RecordId. Tuples of a BTreeFile move
+ * between pages when pages split, merge or redistribute, so for a BTreeFile
+ * the locator is the key of the tuple instead, and the tuple is found by
+ * searching the clustered tree. The B+ tree of the index has composite keys,
+ * so its entries are ordered on the value and then the locator, and the entry
+ * of a tuple is found by a single descent however many tuples share its value.
+ * <p>
+ * An index is registered with {@link Catalog#addIndex}, after which BufferPool
+ * keeps it up to date as tuples are inserted into and deleted from the table.
+ * To index a table that already holds tuples, call {@link #build} once after
+ * registering the index.
+ *
+ * @see SecondaryIndexScan
+ */
+public class SecondaryIndex {
+
+	private final int tableId;
+	private final int field;
+	private final BTreeFile file;
+	// 表是BTreeFile时为它的key字段，表是HeapFile时为-1
+	private final int clusteredKey;
+
+	/**
+	 * Create a secondary index, stored in the given file, over a field of a
+	 * table in the catalog.
+	 *
+	 * @param f - the file holding the B+ tree of the index
+	 * @param tableId - the table to index, a HeapFile or a BTreeFile
+	 * @param field - the field of the table to index
+	 * @throws IllegalArgumentException if the table is neither a HeapFile nor
+	 *         a BTreeFile, or if it is a BTreeFile clustered on field
+	 */
+	public SecondaryIndex(File f, int tableId, int field) {
+		DbFile table = Database.getCatalog().getDatabaseFile(tableId);
+		TupleDesc td = table.getTupleDesc();
+		TupleDesc entryTd;
+		if (table instanceof BTreeFile) {
+			clusteredKey = ((BTreeFile) table).keyField();
+			if (clusteredKey == field) {
+				throw new IllegalArgumentException("table " + tableId + " is already stored on field " + field);
+			}
+			entryTd = new TupleDesc(new Type[] { td.getFieldType(field), td.getFieldType(clusteredKey) },
+					new String[] { td.getFieldName(field), td.getFieldName(clusteredKey) });
+		} else if (table instanceof HeapFile) {
+			clusteredKey = -1;
+			entryTd = new TupleDesc(new Type[] { td.getFieldType(field), Type.INT_TYPE, Type.INT_TYPE },
+					new String[] { td.getFieldName(field), "page", "slot" });
+		} else {
+			throw new IllegalArgumentException("cannot index a " + table.getClass().getSimpleName());
+		}
+		this.tableId = tableId;
+		this.field = field;
+		this.file = new BTreeFile(f, 0, entryTd, true);
+	}
+
+	/**
+	 * @return the id of the indexed table
+	 */
+	public int getTableId() {
+		return tableId;
+	}
+
+	/**
+	 * @return the indexed field of the table
+	 */
+	public int getField() {
+		return field;
+	}
+
+	/**
+	 * @return the B+ tree holding the entries of this index
+	 */
+	public BTreeFile getFile() {
+		return file;
+	}
+
+	// 元组对应的entry：被索引字段的值，加上元组的位置
+	private Tuple entry(Tuple t) {
+		Tuple e = new Tuple(file.getTupleDesc());
+		e.setField(0, t.getField(field));
+		if (clusteredKey >= 0) {
+			e.setField(1, t.getField(clusteredKey));
+		} else {
+			RecordId rid = t.getRecordId();
+			e.setField(1, new IntField(rid.getPageId().getPageNumber()));
+			e.setField(2, new IntField(rid.getTupleNumber()));
+		}
+		return e;
+	}
+
+	private static boolean sameFields(Tuple a, Tuple b) {
+		for (int i = 0; i < a.getTupleDesc().numFields(); i++) {
+			if (!a.getField(i).equals(b.getField(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Add the entry for a tuple that was just inserted into the table. For a
+	 * HeapFile the tuple must carry the RecordId it was inserted at.
+	 *
+	 * @param tid - the transaction inserting the tuple
+	 * @param t - the inserted tuple
+	 * @return the pages of the index that were modified
+	 */
+	public List<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		return file.insertTuple(tid, entry(t));
+	}
+
+	/**
+	 * Remove the entry for a tuple that is being deleted from the table.
+	 *
+	 * @param tid - the transaction deleting the tuple
+	 * @param t - the tuple, with the RecordId it has in the table
+	 * @return the pages of the index that were modified
+	 * @throws DbException if the index has no entry for the tuple
+	 */
+	public List<Page> deleteTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		// entry的整个key只匹配这一个entry
+		DbFileIterator it = file.indexIterator(tid, new IndexPredicate(Op.EQUALS, file.keyOf(entry(t))));
+		it.open();
+		try {
+			if (it.hasNext()) {
+				return file.deleteTuple(tid, it.next());
+			}
+		} finally {
+			it.close();
+		}
+		throw new DbException("index on field " + field + " of table " + tableId + " has no entry for " + t);
+	}
+
+	/**
+	 * Add the entries for all tuples of the table to this empty index, by
+	 * sorting them and bulk loading the B+ tree, on behalf of transaction tid.
+	 * The modified pages are marked dirty in the buffer pool.
+	 *
+	 * @param tid - the transaction building the index
+	 * @throws DbException if the index is not empty
+	 * @see BTreeFile#bulkLoad(TransactionId, OpIterator, double)
+	 */
+	public void build(TransactionId tid) throws DbException, IOException, TransactionAbortedException {
+		int n = file.getTupleDesc().numFields();
+		int[] fields = new int[n];
+		boolean[] asc = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			fields[i] = i;
+			asc[i] = true;
+		}
+		OpIterator sorted = new OrderBy(fields, asc, new EntryScan(tid));
+		Database.getBufferPool().bulkLoad(tid, file.getId(), sorted, 1.0);
+	}
+
+	/**
+	 * Get an iterator over the tuples of the table whose indexed field matches
+	 * the predicate, in the order of the indexed field.
+	 * <p>
+	 * The matching entries are read from the index when the iterator is
+	 * opened, before any tuple is returned, so that deleting the returned
+	 * tuples, which removes their entries, does not disturb the reading of
+	 * the index. Tuples deleted after the iterator was opened are skipped.
+	 *
+	 * @param tid - the transaction reading the tuples
+	 * @param ipred - the predicate on the indexed field
+	 */
+	public DbFileIterator iterator(TransactionId tid, IndexPredicate ipred) {
+		return new SecondaryIndexIterator(tid, ipred);
+	}
+
+	private class SecondaryIndexIterator extends AbstractDbFileIterator {
+		private final TransactionId tid;
+		private final IndexPredicate ipred;
+		private List<Tuple> entries = null;
+		private int next = 0;
+		// BTreeFile中一个key可能对应多个元组，一次查找全部取出
+		private final Deque<Tuple> pending = new ArrayDeque<>();
+		// 当前被索引的值下已经查找过的key，(值, key)相同的entry只查找一次
+		private Field lastValue = null;
+		private final Set<Field> seenKeys = new HashSet<>();
+
+		SecondaryIndexIterator(TransactionId tid, IndexPredicate ipred) {
+			this.tid = tid;
+			this.ipred = ipred;
+		}
+
+		public void open() throws DbException, TransactionAbortedException {
+			entries = new ArrayList<>();
+			DbFileIterator it = file.indexIterator(tid, ipred);
+			it.open();
+			while (it.hasNext()) {
+				// 复制一份，entry所在的页面之后可能被修改
+				Tuple e = it.next();
+				Tuple copy = new Tuple(e.getTupleDesc());
+				for (int i = 0; i < e.getTupleDesc().numFields(); i++) {
+					copy.setField(i, e.getField(i));
+				}
+				entries.add(copy);
+			}
+			it.close();
+			next = 0;
+		}
+
+		@Override
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			if (entries == null) {
+				return null;
+			}
+			while (true) {
+				if (!pending.isEmpty()) {
+					Tuple t = relocate(pending.poll());
+					if (t != null) {
+						return t;
+					}
+					continue;
+				}
+				if (next >= entries.size()) {
+					return null;
+				}
+				Tuple e = entries.get(next++);
+				if (clusteredKey < 0) {
+					RecordId rid = new RecordId(new HeapPageId(tableId, ((IntField) e.getField(1)).getValue()),
+							((IntField) e.getField(2)).getValue());
+					Tuple t = ((HeapFile) Database.getCatalog().getDatabaseFile(tableId)).getTuple(tid, rid);
+					// open()之后槽位可能被删除后又插入了其他元组，重新检查条件
+					if (t != null && t.getField(field).compare(ipred.getOp(), ipred.getField())) {
+						return t;
+					}
+				} else {
+					lookup(e.getField(0), e.getField(1));
+				}
+			}
+		}
+
+		// 在聚簇的BTreeFile中查找key，留下被索引字段等于value的元组
+		private void lookup(Field value, Field key) throws DbException, TransactionAbortedException {
+			if (!value.equals(lastValue)) {
+				lastValue = value;
+				seenKeys.clear();
+			}
+			if (!seenKeys.add(key)) {
+				return;
+			}
+			BTreeFile table = (BTreeFile) Database.getCatalog().getDatabaseFile(tableId);
+			DbFileIterator it = table.indexIterator(tid, new IndexPredicate(Op.EQUALS, key));
+			it.open();
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				if (t.getField(field).equals(value)) {
+					pending.add(t);
+				}
+			}
+			it.close();
+		}
+
+		// 删除之前返回的元组可能让同一个key的其他元组移到别的页面，返回前确认元组
+		// 还在查找时的位置，否则按内容重新找到它；找不到说明它已被删除
+		private Tuple relocate(Tuple t) throws DbException, TransactionAbortedException {
+			RecordId rid = t.getRecordId();
+			Page p = Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+			if (p instanceof BTreeLeafPage) {
+				BTreeLeafPage leaf = (BTreeLeafPage) p;
+				int slot = rid.getTupleNumber();
+				if (slot < leaf.getMaxTuples() && leaf.isSlotUsed(slot) && sameFields(leaf.getTuple(slot), t)) {
+					return leaf.getTuple(slot);
+				}
+			}
+			BTreeFile table = (BTreeFile) Database.getCatalog().getDatabaseFile(tableId);
+			DbFileIterator it = table.indexIterator(tid, new IndexPredicate(Op.EQUALS, t.getField(clusteredKey)));
+			it.open();
+			try {
+				while (it.hasNext()) {
+					Tuple found = it.next();
+					if (sameFields(found, t)) {
+						return found;
+					}
+				}
+			} finally {
+				it.close();
+			}
+			return null;
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			close();
+			open();
+		}
+
+		public void close() {
+			super.close();
+			entries = null;
+			pending.clear();
+			lastValue = null;
+			seenKeys.clear();
+		}
+	}
+
+	/**
+	 * Reads the table and returns the entry of each tuple, for building the
+	 * index.
+	 */
+	private class EntryScan extends Operator {
+		private static final long serialVersionUID = 1L;
+		private OpIterator child;
+
+		EntryScan(TransactionId tid) {
+			this.child = new SeqScan(tid, tableId);
+		}
+
+		public TupleDesc getTupleDesc() {
+			return file.getTupleDesc();
+		}
+
+		public void open() throws DbException, TransactionAbortedException {
+			child.open();
+			super.open();
+		}
+
+		public void close() {
+			super.close();
+			child.close();
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			child.rewind();
+		}
+
+		protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+			return child.hasNext() ? entry(child.next()) : null;
+		}
+
+		@Override
+		public OpIterator[] getChildren() {
+			return new OpIterator[] { child };
+		}
+
+		@Override
+		public void setChildren(OpIterator[] children) {
+			child = children[0];
+		}
+	}
+}
@@ -0,0 +1,151 @@
+package simpledb.index;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+/**
+ * SecondaryIndexScan is an operator which reads the tuples of a table that
+ * match a predicate on a field with a secondary index, by searching the index
+ * and then fetching each matching tuple from the table.
+ *
+ * @see SecondaryIndex
+ */
+public class SecondaryIndexScan implements OpIterator {
+
+	private static final long serialVersionUID = 1L;
+
+	private boolean isOpen = false;
+	private final TransactionId tid;
+	private final SecondaryIndex index;
+	private final IndexPredicate ipred;
+	private final String alias;
+	private final TupleDesc myTd;
+	private transient DbFileIterator it;
+
+	/**
+	 * Creates a scan of the tuples of the indexed table that match a predicate
+	 * on the indexed field, as a part of the specified transaction.
+	 *
+	 * @param tid
+	 *            The transaction this scan is running as a part of.
+	 * @param index
+	 *            the secondary index to search
+	 * @param tableAlias
+	 *            the alias of the indexed table, which prefixes the field
+	 *            names of the returned tupleDesc as in a SeqScan
+	 * @param ipred
+	 *            The predicate on the indexed field to match
+	 */
+	public SecondaryIndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+		this.tid = tid;
+		this.index = index;
+		this.ipred = ipred;
+		this.alias = tableAlias;
+		this.it = index.iterator(tid, ipred);
+		TupleDesc td = Database.getCatalog().getTupleDesc(index.getTableId());
+		String[] newNames = new String[td.numFields()];
+		Type[] newTypes = new Type[td.numFields()];
+		for (int i = 0; i < td.numFields(); i++) {
+			// 与SeqScan的列名相同，这样可以在计划中代替SeqScan
+			newNames[i] = tableAlias + td.getFieldName(i);
+			newTypes[i] = td.getFieldType(i);
+		}
+		myTd = new TupleDesc(newTypes, newNames);
+	}
+
+	public SecondaryIndexScan(TransactionId tid, SecondaryIndex index, IndexPredicate ipred) {
+		this(tid, index, Database.getCatalog().getTableName(index.getTableId()), ipred);
+	}
+
+	/**
+	 * @return the name of the table the operator scans
+	 * */
+	public String getTableName() {
+		return Database.getCatalog().getTableName(index.getTableId());
+	}
+
+	/**
+	 * @return the id of the table this operator scans
+	 * */
+	public int getTableId() {
+		return index.getTableId();
+	}
+
+	/**
+	 * @return the alias of the table this operator scans
+	 * */
+	public String getAlias() {
+		return alias;
+	}
+
+	/**
+	 * @return the index this operator searches
+	 * */
+	public SecondaryIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return the predicate the scanned tuples match
+	 * */
+	public IndexPredicate getIndexPredicate() {
+		return ipred;
+	}
+
+	/**
+	 * @return the transaction this scan is running as a part of
+	 * */
+	public TransactionId getTransactionId() {
+		return tid;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		if (isOpen)
+			throw new DbException("double open on one OpIterator.");
+
+		it.open();
+		isOpen = true;
+	}
+
+	/**
+	 * Returns the TupleDesc of the indexed table, with field names prefixed
+	 * with the tableAlias string from the constructor, like the TupleDesc of
+	 * a SeqScan of the table.
+	 */
+	public TupleDesc getTupleDesc() {
+		return myTd;
+	}
+
+	public boolean hasNext() throws TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+		return it.hasNext();
+	}
+
+	public Tuple next() throws NoSuchElementException, TransactionAbortedException, DbException {
+		if (!isOpen)
+			throw new IllegalStateException("iterator is closed");
+
+		return it.next();
+	}
+
+	public void close() {
+		it.close();
+		isOpen = false;
+	}
+
+	public void rewind() throws DbException, NoSuchElementException, TransactionAbortedException {
+		close();
+		open();
+	}
+}
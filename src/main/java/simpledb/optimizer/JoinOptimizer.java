@@ -3,6 +3,10 @@ package simpledb.optimizer;
 import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFile;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -18,6 +22,9 @@ import static java.lang.Math.*;
  * logical plan.
  */
 public class JoinOptimizer {
+    // B+树内部页中子页号占的字节数
+    private static final int INDEX_POINTER_SIZE = 4;
+
     final LogicalPlan p;
     final List<LogicalJoinNode> joins;
 
@@ -75,7 +82,15 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        if (lj.p == Predicate.Op.EQUALS) {
+        if (lj.searchIndex && IndexNestedLoopJoin.supports(lj.p)
+                && IndexNestedLoopJoin.canSearch(plan2, t2id)) {
+            // 优化器估计plan1很小，逐个元组查plan2的B+树比读整个plan2便宜
+            j = new IndexNestedLoopJoin(p, plan1, plan2);
+        } else if (SortMergeJoin.supports(lj.p) && isSortedOn(plan1, t1id)
+                && isSortedOn(plan2, t2id)) {
+            // 两端已按连接列排序，合并一遍即可，不需要建hash表
+            j = new SortMergeJoin(p, plan1, plan2);
+        } else if (lj.p == Predicate.Op.EQUALS) {
             try {
                 // dynamically load HashEquiJoin -- if it doesn't exist, just
                 // fall back on regular join
@@ -94,8 +109,61 @@ public class JoinOptimizer {
 
     }
 
+    /**
+     * Return true if plan is known to return its tuples in ascending order of
+     * the given field: it scans a B+ tree keyed on the field, filters or sorts
+     * such a plan, or merges sorted inputs on the field.
+     *
+     * @param plan
+     *            The plan whose order is checked
+     * @param field
+     *            The index of the field in the TupleDesc of plan
+     */
+    public static boolean isSortedOn(OpIterator plan, int field) {
+        if (plan instanceof SeqScan) {
+            return isSortedTable(((SeqScan) plan).getTableId(), field);
+        } else if (plan instanceof BTreeScan) {
+            return isSortedTable(((BTreeScan) plan).getTableId(), field);
+        } else if (plan instanceof Filter) {
+            return isSortedOn(((Filter) plan).getChildren()[0], field);
+        } else if (plan instanceof OrderBy) {
+            OrderBy o = (OrderBy) plan;
+            return o.getOrderByField() == field && o.isASC();
+        } else if (plan instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) plan;
+            if (j.getSortedField() == field) return true;
+            // 相等连接的结果同样按另一端的连接列有序
+            JoinPredicate p = j.getJoinPredicate();
+            int td1n = j.getChildren()[0].getTupleDesc().numFields();
+            return p.getOperator() == Predicate.Op.EQUALS
+                    && (field == p.getField1() || field == td1n + p.getField2());
+        }
+        return false;
+    }
+
+    // BTreeFile按key的顺序返回元组
+    private static boolean isSortedTable(int tableId, int field) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
+    }
+
+    /**
+     * Estimate the cost of a join, assuming that neither input is sorted on
+     * its join field.
+     *
+     * @see #estimateJoinCost(LogicalJoinNode, int, int, double, double, boolean, boolean)
+     */
+    public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, false, false);
+    }
+
     /**
      * Estimate the cost of a join.
+     * <p>
+     * If the right-hand side is a table stored in a B+ tree keyed on its join
+     * field, searching the B+ tree for each tuple of the left-hand side is also
+     * considered, and is returned if it is cheaper than the other joins.
      * 
      * The cost of the join should be calculated based on the join algorithm (or
      * algorithms) that you implemented for Lab 2. It should be a function of
@@ -117,26 +185,77 @@ public class JoinOptimizer {
      * @param cost2
      *            Estimated cost of one full scan of the table on the right-hand
      *            side of the query
+     * @param sorted1
+     *            Whether the left-hand side arrives sorted on its join field
+     * @param sorted2
+     *            Whether the right-hand side arrives sorted on its join field;
+     *            for a base table, whether it is a B+ tree keyed on the field
      * @return An estimate of the cost of this query, in terms of cost1 and
      *         cost2
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
-            double cost1, double cost2) {
+            double cost1, double cost2, boolean sorted1, boolean sorted2) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
+            double indexCost = sorted2 ? estimateIndexJoinCost(j, card1, card2, cost1, cost2)
+                    : Double.MAX_VALUE;
+            if (sorted1 && sorted2 && SortMergeJoin.supports(j.p)) {
+                // SortMergeJoin：两端各读一遍，范围连接另外为每个结果元组比较一次
+                double cpuCost = card1 + card2;
+                if (j.p != Predicate.Op.EQUALS) {
+                    cpuCost += estimateTableJoinCardinality(j.p, j.t1Alias, j.t2Alias,
+                            j.f1PureName, j.f2PureName, card1, card2, false, false, null, null);
+                }
+                return min(indexCost, cost1 + cost2 + cpuCost);
+            }
             double ioCost = card1 * cost2;
             double cpuCost = card1 * card2;
-            return cost1 + ioCost + cpuCost;
+            return min(indexCost, cost1 + ioCost + cpuCost);
         }
     }
 
+    /**
+     * Estimate the cost of an IndexNestedLoopJoin, which searches the B+ tree
+     * of the right-hand table once for each tuple of the left-hand side: every
+     * search reads a path from the root to a leaf, and every result tuple is
+     * compared once.
+     *
+     * @return the cost, or Double.MAX_VALUE if the right-hand table cannot be
+     *         searched on its join field, or if the searches read more than
+     *         reading both sides once would
+     */
+    private double estimateIndexJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2) {
+        Integer tableId = j.t2Alias == null ? null : p.getTableId(j.t2Alias);
+        if (tableId == null || !IndexNestedLoopJoin.supports(j.p)) {
+            return Double.MAX_VALUE;
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        TupleDesc td = f.getTupleDesc();
+        if (!(f instanceof BTreeFile) || !j.f2PureName.equals(td.getFieldName(((BTreeFile) f).keyField()))) {
+            return Double.MAX_VALUE;
+        }
+        BTreeFile btree = (BTreeFile) f;
+        int numPages = max(1, btree.numPages());
+        double pageCost = cost2 / numPages;
+        boolean t2pkey = j.f2PureName.equals(Database.getCatalog().getPrimaryKey(tableId));
+        double matches = estimateTableJoinCardinality(j.p, j.t1Alias, j.t2Alias,
+                j.f1PureName, j.f2PureName, card1, card2, false, t2pkey, null, null);
+        double cost = cost1 + card1 * estimateIndexHeight(btree) * pageCost + matches;
+        // 只在左边足够小时用：查找的代价要低于两边各读一遍（如hash连接）
+        return cost < cost1 + cost2 + card1 + card2 ? cost : Double.MAX_VALUE;
+    }
+
+    // 从根到叶子的页数：每个内部页大约能放下一页大小除以(key + 子页号)个孩子
+    static int estimateIndexHeight(BTreeFile f) {
+        int keySize = f.getTupleDesc().getFieldType(f.keyField()).getLen();
+        int fanout = max(2, BufferPool.getPageSize() / (keySize + INDEX_POINTER_SIZE));
+        return 1 + (int) ceil(log(max(1, f.numPages())) / log(fanout));
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -251,6 +370,8 @@ public class JoinOptimizer {
             Map<String, Double> filterSelectivities, boolean explain)
             throws ParsingException {
 
+        // 没有连接时无需排序
+        if (joins.isEmpty()) return new ArrayList<>();
         PlanCache pc = new PlanCache();
         CostCard bestCostCard = new CostCard();
         for (int i = 1; i <= joins.size(); i++) {
@@ -397,21 +518,39 @@ public class JoinOptimizer {
             }
         }
 
+        // 只有基表的扫描确定是有序的；之前的join的输出按无序估计
+        boolean t1sorted = !doesJoin(prevBest, j.t1Alias)
+                && isSortedOn(j.t1Alias, j.f1PureName);
+        boolean t2sorted = j.t2Alias != null && !doesJoin(prevBest, j.t2Alias)
+                && isSortedOn(j.t2Alias, j.f2PureName);
+
         // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost, t1sorted, t2sorted);
+        double indexCost1 = t2sorted ? estimateIndexJoinCost(j, t1card, t2card, t1cost, t2cost)
+                : Double.MAX_VALUE;
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost, t2sorted, t1sorted);
+        double indexCost2 = t1sorted ? estimateIndexJoinCost(j2, t2card, t1card, t2cost, t1cost)
+                : Double.MAX_VALUE;
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
             cost1 = cost2;
+            indexCost1 = indexCost2;
             tmp = rightPkey;
             rightPkey = leftPkey;
             leftPkey = tmp;
         }
         if (cost1 >= bestCostSoFar)
             return null;
+        if (indexCost1 == cost1) {
+            // j可能也在其他子计划中，复制一份再标记
+            LogicalJoinNode indexed = new LogicalJoinNode(j.t1Alias, j.t2Alias,
+                    j.f1PureName, j.f2PureName, j.p);
+            indexed.searchIndex = true;
+            j = indexed;
+        }
 
         CostCard cc = new CostCard();
 
@@ -452,6 +591,26 @@ public class JoinOptimizer {
         return pkey1.equals(field);
     }
 
+    /**
+     * Return true if a scan of the specified table returns tuples in the
+     * order of field, i.e. the table is a B+ tree keyed on field
+     *
+     * @param tableAlias
+     *            The alias of the table in the query
+     * @param field
+     *            The pure name of the field
+     */
+    private boolean isSortedOn(String tableAlias, String field) {
+        int tableId = p.getTableId(tableAlias);
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        for (int i = 0; i < td.numFields(); i++) {
+            if (field.equals(td.getFieldName(i))) {
+                return isSortedTable(tableId, i);
+            }
+        }
+        return false;
+    }
+
     /**
      * Return true if a primary key field is joined by one of the joins in
      * joinlist
@@ -25,6 +25,10 @@ public class LogicalJoinNode {
     /** The join predicate */
     public Predicate.Op p;
 
+    /** Whether the join should search the B+ tree of t2 for each tuple of t1
+     * instead of reading t2; chosen by the JoinOptimizer. */
+    public boolean searchIndex;
+
     public LogicalJoinNode() {
     }
 
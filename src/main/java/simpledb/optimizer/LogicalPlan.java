@@ -4,6 +4,8 @@ import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.common.Type;
 import simpledb.execution.*;
+import simpledb.index.SecondaryIndex;
+import simpledb.index.SecondaryIndexScan;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionId;
 
@@ -15,14 +17,16 @@ import java.io.File;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consists of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, and group by fields. All the
+ * aggregates of a query, grouped by any number of fields, are computed
+ * by a single Aggregate operator in one pass over its input.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
  * {@link JoinOptimizer} to order joins optimally and to select the
- * best implementations for joins.
+ * best implementations for joins. A filter on a field with a secondary
+ * index is answered by a {@link SecondaryIndexScan} instead of a scan of
+ * the whole table when the index is estimated to be cheaper.
  */
 public class LogicalPlan {
     private List<LogicalJoinNode> joins;
@@ -32,13 +36,17 @@ public class LogicalPlan {
     private final Map<String,Integer> tableMap;
 
     private final List<LogicalSelectListNode> selectList;
-    private String groupByField = null;
-    private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    // GROUP BY的各个字段，以及select list中的不同聚合
+    private final List<String> groupByFields = new ArrayList<>();
+    private final List<LogicalSelectListNode> aggregates = new ArrayList<>();
+    // ORDER BY的各个字段及其顺序，按优先级排列
+    private final List<String> oByFields = new ArrayList<>();
+    private final List<Boolean> oByAsc = new ArrayList<>();
     private String query;
+    // 可以用B+树查找的比较
+    private static final Set<Predicate.Op> INDEX_OPS = EnumSet.of(Predicate.Op.EQUALS,
+            Predicate.Op.LESS_THAN, Predicate.Op.LESS_THAN_OR_EQ,
+            Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ);
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -189,34 +197,47 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  All aggregates of the query share the same GROUP BY
+        fields, and are computed together.
         @param op the aggregation operator
-        @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param afield the field to aggregate over, or * for COUNT(*)
+        @param gfield a field to group by, or null
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
         afield=disambiguateName(afield);
+        if (afield.equals("*"))
+            afield="null.*";
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
-        hasAgg = true;
+            addGroupByField(gfield);
+        for (LogicalSelectListNode a : aggregates) {
+            if (a.aggOp.equalsIgnoreCase(op) && a.fname.equals(afield))
+                return;
+        }
+        aggregates.add(new LogicalSelectListNode(op, afield));
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add a field to the GROUP BY fields of the query.  Each call adds a
+        field after the fields added before it.
+        @param gfield the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupByField(String gfield) throws ParsingException {
+        gfield=disambiguateName(gfield);
+        if (!groupByFields.contains(gfield))
+            groupByFields.add(gfield);
+    }
+
+    /** Add an ORDER BY expression in the specified order on the specified field.  Each call adds a
+        field that breaks the ties of the fields added before it.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
-        hasOrderBy = true;
+        oByFields.add(field);
+        oByAsc.add(asc);
     }
 
     /** Given a name of a field, try to figure out what table it belongs to by looking
@@ -260,6 +281,16 @@ public class LogicalPlan {
             throw new ParsingException("Field " + name + " does not appear in any tables.");
     }
 
+    // select list中的聚合在aggregates中的位置
+    private int aggregateIndex(LogicalSelectListNode si) throws ParsingException {
+        for (int i = 0; i < aggregates.size(); i++) {
+            LogicalSelectListNode a = aggregates.get(i);
+            if (a.aggOp.equalsIgnoreCase(si.aggOp) && a.fname.equals(si.fname))
+                return i;
+        }
+        throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") is not computed by the query");
+    }
+
     /** Convert the aggregate operator name s into an Aggregator.op operation.
      *  @throws ParsingException if s is not a valid operator name 
      */
@@ -273,6 +304,72 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /**
+     * For each table with a filter on a field that has a secondary index,
+     * choose the filter whose tuples are cheapest to read through the index,
+     * if that is cheaper than scanning the table, and replace the SeqScan of
+     * the table in subplanMap with a SecondaryIndexScan for the filter.
+     *
+     * @return the filter answered by the index scan of each table that has one
+     */
+    private Map<String, LogicalFilterNode> chooseIndexFilters(TransactionId t, Map<String, TableStats> statsMap) {
+        Map<String, LogicalFilterNode> chosen = new HashMap<>();
+        Map<String, Double> costs = new HashMap<>();
+        Map<String, OpIterator> scans = new HashMap<>();
+        for (LogicalFilterNode lf : filters) {
+            Integer tableId = getTableId(lf.tableAlias);
+            OpIterator subplan = subplanMap.get(lf.tableAlias);
+            if (tableId == null || subplan == null || !INDEX_OPS.contains(lf.p)) {
+                continue;
+            }
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(tableId));
+            int field;
+            try {
+                field = subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName);
+            } catch (NoSuchElementException e) {
+                // 下面处理过滤条件时报错
+                continue;
+            }
+            SecondaryIndex index = null;
+            for (SecondaryIndex i : Database.getCatalog().getIndexes(tableId)) {
+                if (i.getField() == field) {
+                    index = i;
+                }
+            }
+            if (index == null || s == null) {
+                continue;
+            }
+            Field f;
+            if (subplan.getTupleDesc().getFieldType(field) == Type.INT_TYPE)
+                f = new IntField(Integer.parseInt(lf.c));
+            else
+                f = new StringField(lf.c, Type.STRING_LEN);
+            double cost = estimateIndexScanCost(index, s, s.estimateSelectivity(field, lf.p, f));
+            if (cost < costs.getOrDefault(lf.tableAlias, s.estimateScanCost())) {
+                chosen.put(lf.tableAlias, lf);
+                costs.put(lf.tableAlias, cost);
+                scans.put(lf.tableAlias, new SecondaryIndexScan(t, index, lf.tableAlias, new IndexPredicate(lf.p, f)));
+            }
+        }
+        subplanMap.putAll(scans);
+        return chosen;
+    }
+
+    /**
+     * Estimate the cost of reading the tuples of a table that satisfy a filter
+     * through a secondary index: one path from the root of the index to a
+     * leaf, the leaf pages holding the matching entries, and one page of the
+     * table for every matching tuple, since the tuples are not stored in the
+     * order of the index.
+     */
+    private static double estimateIndexScanCost(SecondaryIndex index, TableStats s, double selectivity) {
+        DbFile table = Database.getCatalog().getDatabaseFile(index.getTableId());
+        double pageCost = s.estimateScanCost() / Math.max(1, table.numPages());
+        double leafPages = Math.max(1, index.getFile().numPages()) * selectivity;
+        double matches = s.estimateTableCardinality(selectivity);
+        return (JoinOptimizer.estimateIndexHeight(index.getFile()) + leafPages + matches) * pageCost;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -307,6 +404,9 @@ public class LogicalPlan {
             filterSelectivities.put(table.alias, 1.0);
         }
 
+        // 过滤条件在有二级索引的字段上、且通过索引读取比扫描全表便宜时，用索引扫描代替SeqScan
+        Map<String, LogicalFilterNode> indexFilters = chooseIndexFilters(t, statsMap);
+
         for (LogicalFilterNode lf : filters) {
             OpIterator subplan = subplanMap.get(lf.tableAlias);
             if (subplan == null) {
@@ -333,7 +433,10 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            // 索引扫描只返回满足这个条件的元组
+            if (indexFilters.get(lf.tableAlias) != lf) {
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            }
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
@@ -406,33 +509,36 @@ public class LogicalPlan {
         OpIterator node = subplanMap.entrySet().iterator().next().getValue();
 
         //walk the select list, to determine order in which to project output fields
+        boolean hasAgg = !aggregates.isEmpty();
         List<Integer> outFields = new ArrayList<>();
         List<Type> outTypes = new ArrayList<>();
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.get(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                // 聚合的输出在所有分组列之后，按aggregates中的顺序排列
+                outFields.add(groupByFields.size() + aggregateIndex(si));
                 TupleDesc td = node.getTupleDesc();
-//                int  id;
-                try {
-//                    id = 
-                    td.fieldNameToIndex(si.fname);
-                } catch (NoSuchElementException e) {
-                    throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
+                if (!si.fname.equals("null.*")) {
+                    try {
+                        td.fieldNameToIndex(si.fname);
+                    } catch (NoSuchElementException e) {
+                        throw new ParsingException("Unknown field " +  si.fname + " in SELECT list");
+                    }
                 }
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int g = groupByFields.indexOf(si.fname);
+                    if (g < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(g);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -457,20 +563,41 @@ public class LogicalPlan {
 
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
+            int[] gfields = new int[groupByFields.size()];
+            int[] afields = new int[aggregates.size()];
+            Aggregator.Op[] aops = new Aggregator.Op[aggregates.size()];
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                for (int i = 0; i < gfields.length; i++) {
+                    gfields[i] = td.fieldNameToIndex(groupByFields.get(i));
+                }
+                for (int i = 0; i < afields.length; i++) {
+                    LogicalSelectListNode a = aggregates.get(i);
+                    aops[i] = getAggOp(a.aggOp);
+                    if (a.fname.equals("null.*")) {
+                        // COUNT(*)只数行数，任取一列
+                        if (aops[i] != Aggregator.Op.COUNT)
+                            throw new ParsingException(a.aggOp + "(*) is not supported");
+                        afields[i] = 0;
+                    } else {
+                        afields[i] = td.fieldNameToIndex(a.fname);
+                    }
+                }
+                aggNode = new Aggregate(node, gfields, afields, aops);
             } catch (NoSuchElementException | IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
             node = aggNode;
         }
 
-        if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        if (!oByFields.isEmpty()) {
+            int[] fields = new int[oByFields.size()];
+            boolean[] asc = new boolean[oByFields.size()];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = node.getTupleDesc().fieldNameToIndex(oByFields.get(i));
+                asc[i] = oByAsc.get(i);
+            }
+            node = new OrderBy(fields, asc, node);
         }
 
         return new Project(outFields, outTypes, node);
@@ -29,7 +29,19 @@ public class OperatorCardinality {
         } else if (o instanceof Join) {
             return updateJoinCardinality((Join) o, tableAliasToId, tableStats);
         } else if (o instanceof HashEquiJoin) {
-            return updateHashEquiJoinCardinality((HashEquiJoin) o,
+            HashEquiJoin j = (HashEquiJoin) o;
+            return updateHashOrMergeJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof SortMergeJoin) {
+            SortMergeJoin j = (SortMergeJoin) o;
+            return updateHashOrMergeJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
+                    tableAliasToId, tableStats);
+        } else if (o instanceof IndexNestedLoopJoin) {
+            IndexNestedLoopJoin j = (IndexNestedLoopJoin) o;
+            return updateHashOrMergeJoinCardinality(j, j.getJoinPredicate(),
+                    j.getJoinField1Name(), j.getJoinField2Name(),
                     tableAliasToId, tableStats);
         } else if (o instanceof Aggregate) {
             return updateAggregateCardinality((Aggregate) o, tableAliasToId,
@@ -146,7 +158,9 @@ public class OperatorCardinality {
         return child1HasJoinPK || child2HasJoinPK;
     }
 
-    private static boolean updateHashEquiJoinCardinality(HashEquiJoin j,
+    // HashEquiJoin、SortMergeJoin和IndexNestedLoopJoin的基数估计相同，只取决于连接谓词和两端
+    private static boolean updateHashOrMergeJoinCardinality(Operator j, JoinPredicate p,
+                                                         String joinField1Name, String joinField2Name,
                                                          Map<String, Integer> tableAliasToId,
                                                          Map<String, TableStats> tableStats) {
 
@@ -156,10 +170,10 @@ public class OperatorCardinality {
         int child1Card = 1;
         int child2Card = 1;
 
-        String[] tmp1 = j.getJoinField1Name().split("[.]");
+        String[] tmp1 = joinField1Name.split("[.]");
         String tableAlias1 = tmp1[0];
         String pureFieldName1 = tmp1[1];
-        String[] tmp2 = j.getJoinField2Name().split("[.]");
+        String[] tmp2 = joinField2Name.split("[.]");
         String tableAlias2 = tmp2[0];
         String pureFieldName2 = tmp2[1];
 
@@ -194,8 +208,8 @@ public class OperatorCardinality {
                     .getTableName()).estimateTableCardinality(1.0);
         }
 
-        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(j
-                .getJoinPredicate().getOperator(), tableAlias1, tableAlias2,
+        j.setEstimatedCardinality(JoinOptimizer.estimateTableJoinCardinality(
+                p.getOperator(), tableAlias1, tableAlias2,
                 pureFieldName1, pureFieldName2, child1Card, child2Card,
                 child1HasJoinPK, child2HasJoinPK, tableStats, tableAliasToId));
         return child1HasJoinPK || child2HasJoinPK;
@@ -224,24 +238,26 @@ public class OperatorCardinality {
                     .estimateTableCardinality(1.0);
         }
 
-        String[] tmp = a.groupFieldName().split("[.]");
-        String tableAlias = tmp[0];
-        String pureFieldName = tmp[1];
-        Integer tableId = tableAliasToId.get(tableAlias);
-
-        double groupFieldAvgSelectivity = 1.0;
-        if (tableId != null) {
-            groupFieldAvgSelectivity = tableStats.get(
+        // 多个分组列时组数的估计为各列不同值个数之积，不超过子节点的基数
+        double groups = 1.0;
+        for (String groupFieldName : a.groupFieldNames()) {
+            String[] tmp = groupFieldName.split("[.]");
+            String tableAlias = tmp[0];
+            String pureFieldName = tmp[1];
+            Integer tableId = tableAliasToId.get(tableAlias);
+            if (tableId == null) {
+                a.setEstimatedCardinality(childCard);
+                return hasJoinPK;
+            }
+            double groupFieldAvgSelectivity = tableStats.get(
                     Database.getCatalog().getTableName(tableId))
                     .avgSelectivity(
                             Database.getCatalog().getTupleDesc(tableId)
                                     .fieldNameToIndex(pureFieldName),
                             Predicate.Op.EQUALS);
-            a.setEstimatedCardinality((int) (Math.min(childCard,
-                    1.0 / groupFieldAvgSelectivity)));
-            return hasJoinPK;
+            groups *= 1.0 / groupFieldAvgSelectivity;
         }
-        a.setEstimatedCardinality(childCard);
+        a.setEstimatedCardinality((int) Math.min(childCard, groups));
         return hasJoinPK;
     }
 }
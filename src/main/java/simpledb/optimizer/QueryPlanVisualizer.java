@@ -1,10 +1,13 @@
 package simpledb.optimizer;
 
 import java.io.PrintStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 
 import simpledb.execution.*;
+import simpledb.index.SecondaryIndexScan;
 import simpledb.storage.TupleDesc;
 import simpledb.storage.TupleDesc.TDItem;
 
@@ -12,10 +15,13 @@ public class QueryPlanVisualizer {
 
     static final String JOIN = "⨝";
     static final String HASH_JOIN = "⨝(hash)";
+    static final String MERGE_JOIN = "⨝(merge)";
+    static final String INDEX_JOIN = "⨝(index)";
     static final String SELECT = "σ";
     static final String PROJECT = "π";
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
+    static final String INDEX_SCAN = "scan(index)";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
     static final String SPACE = "  ";
@@ -29,7 +35,8 @@ public class QueryPlanVisualizer {
         Operator o = (Operator) root;
         OpIterator[] children = o.getChildren();
 
-        if (o instanceof Join || o instanceof HashEquiJoin) {
+        if (o instanceof Join || o instanceof HashEquiJoin || o instanceof SortMergeJoin
+                || o instanceof IndexNestedLoopJoin) {
             int d1 = this.calculateQueryPlanTreeDepth(children[0]);
             int d2 = this.calculateQueryPlanTreeDepth(children[1]);
             return Math.max(d1, d2) + 3;
@@ -67,24 +74,33 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof SecondaryIndexScan) {
+            String scan, tableName, alias;
+            if (queryPlan instanceof SeqScan) {
+                SeqScan s = (SeqScan) queryPlan;
+                scan = SCAN;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+            } else {
+                SecondaryIndexScan s = (SecondaryIndexScan) queryPlan;
+                scan = INDEX_SCAN;
+                tableName = s.getTableName();
+                alias = s.getAlias();
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
             else
                 alias = "";
             thisNode.text = String
-                    .format("%1$s(%2$s)", SCAN, tableName + alias);
-            if (SCAN.length() / 2 < parentUpperBarStartShift) {
+                    .format("%1$s(%2$s)", scan, tableName + alias);
+            if (scan.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - SCAN.length() / 2;
+                        - scan.length() / 2;
             } else {
-                thisNode.upBarPosition = currentStartPosition + SCAN.length()
+                thisNode.upBarPosition = currentStartPosition + scan.length()
                         / 2;
                 thisNode.textStartPosition = currentStartPosition;
             }
@@ -138,18 +154,29 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = left;
                 thisNode.rightChild = right;
                 thisNode.height = currentDepth;
-            } else if (plan instanceof HashEquiJoin) {
-                HashEquiJoin j = (HashEquiJoin) plan;
-                JoinPredicate jp = j.getJoinPredicate();
-                TupleDesc td = j.getTupleDesc();
+            } else if (plan instanceof HashEquiJoin || plan instanceof SortMergeJoin
+                    || plan instanceof IndexNestedLoopJoin) {
+                String joinText;
+                JoinPredicate jp;
+                if (plan instanceof HashEquiJoin) {
+                    joinText = HASH_JOIN;
+                    jp = ((HashEquiJoin) plan).getJoinPredicate();
+                } else if (plan instanceof SortMergeJoin) {
+                    joinText = MERGE_JOIN;
+                    jp = ((SortMergeJoin) plan).getJoinPredicate();
+                } else {
+                    joinText = INDEX_JOIN;
+                    jp = ((IndexNestedLoopJoin) plan).getJoinPredicate();
+                }
+                TupleDesc td = plan.getTupleDesc();
                 String field1 = td.getFieldName(jp.getField1());
                 String field2 = td.getFieldName(jp.getField2()
                         + children[0].getTupleDesc().numFields());
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", HASH_JOIN, field1
-                        + jp.getOperator() + field2,j.getEstimatedCardinality());
+                thisNode.text = String.format("%1$s(%2$s),card:%3$d", joinText, field1
+                        + jp.getOperator() + field2,plan.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
-                if (HASH_JOIN.length() / 2 > parentUpperBarStartShift)
-                    upBarShift = HASH_JOIN.length() / 2;
+                if (joinText.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = joinText.length() / 2;
                 SubTreeDescriptor left = this.buildTree(queryPlanDepth,
                         currentDepth + 3 + adjustDepth, children[0],
                         currentStartPosition, upBarShift);
@@ -158,7 +185,7 @@ public class QueryPlanVisualizer {
                         currentStartPosition + left.width + SPACE.length(), 0);
                 thisNode.upBarPosition = (left.upBarPosition + right.upBarPosition) / 2;
                 thisNode.textStartPosition = thisNode.upBarPosition
-                        - HASH_JOIN.length() / 2;
+                        - joinText.length() / 2;
                 thisNode.width = Math.max(
                         left.width + right.width + SPACE.length(),
                         thisNode.textStartPosition + thisNode.text.length()
@@ -174,14 +201,18 @@ public class QueryPlanVisualizer {
                 TupleDesc td = a.getTupleDesc();
                 int gfield = a.groupField();
 
+                List<String> aggs = new ArrayList<>();
+                for (int i = 0; i < a.aggregateOps().length; i++) {
+                    aggs.add(a.aggregateOps()[i] + "(" + a.aggregateFieldNames()[i] + ")");
+                }
                 if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s,card:%2$d",
+                            String.join(", ", aggs), a.getEstimatedCardinality());
                     alignTxt = td.getFieldName(0);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(),a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s(%2$s), %3$s,card:%4$d",
+                            GROUPBY, String.join(", ", a.groupFieldNames()),
+                            String.join(", ", aggs), a.getEstimatedCardinality());
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
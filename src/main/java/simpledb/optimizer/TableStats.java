@@ -92,89 +92,95 @@ public class TableStats {
         // in a single scan of the table.
         this.tupleNum = 0;
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableid);
-        DbFileIterator it = dbFile.iterator(new TransactionId());
-        this.td = dbFile.getTupleDesc();
-        this.scanCost = dbFile.numPages() * ioCostPerPage;
-        List<Integer> min_fields = new ArrayList<>();
-        List<Integer> max_fields = new ArrayList<>();
+        // 统计用的只读事务，结束时释放它在表上持有的读锁
+        TransactionId tid = new TransactionId();
         try {
-            it.open();
-            if(it.hasNext()) {
-                Tuple t = it.next();
-                Iterator<Field> field_it = t.fields();
-                while(field_it.hasNext()) {
-                    Field f = field_it.next();
-                    if(f.getType() == Type.INT_TYPE) {
-                        IntField intField = (IntField) f;
-                        min_fields.add(intField.getValue());
-                        max_fields.add(intField.getValue());
-                    } else {
-                        min_fields.add(0);
-                        max_fields.add(0);
+            DbFileIterator it = dbFile.iterator(tid);
+            this.td = dbFile.getTupleDesc();
+            this.scanCost = dbFile.numPages() * ioCostPerPage;
+            List<Integer> min_fields = new ArrayList<>();
+            List<Integer> max_fields = new ArrayList<>();
+            try {
+                it.open();
+                if(it.hasNext()) {
+                    Tuple t = it.next();
+                    Iterator<Field> field_it = t.fields();
+                    while(field_it.hasNext()) {
+                        Field f = field_it.next();
+                        if(f.getType() == Type.INT_TYPE) {
+                            IntField intField = (IntField) f;
+                            min_fields.add(intField.getValue());
+                            max_fields.add(intField.getValue());
+                        } else {
+                            min_fields.add(0);
+                            max_fields.add(0);
+                        }
                     }
                 }
-            }
-            while(it.hasNext()) {
-                Tuple t = it.next();
-                Iterator<Field> field_it = t.fields();
-                int idx = 0;
-                while(field_it.hasNext()) {
-                    Field f = field_it.next();
-                    if(f.getType() == Type.INT_TYPE) {
-                        IntField intField = (IntField) f;
-                        if(intField.getValue() < min_fields.get(idx)) {
-                            min_fields.set(idx, intField.getValue());
-                        }
-                        if(intField.getValue() > max_fields.get(idx)) {
-                            max_fields.set(idx, intField.getValue());
+                while(it.hasNext()) {
+                    Tuple t = it.next();
+                    Iterator<Field> field_it = t.fields();
+                    int idx = 0;
+                    while(field_it.hasNext()) {
+                        Field f = field_it.next();
+                        if(f.getType() == Type.INT_TYPE) {
+                            IntField intField = (IntField) f;
+                            if(intField.getValue() < min_fields.get(idx)) {
+                                min_fields.set(idx, intField.getValue());
+                            }
+                            if(intField.getValue() > max_fields.get(idx)) {
+                                max_fields.set(idx, intField.getValue());
+                            }
                         }
+                        ++idx;
                     }
-                    ++idx;
                 }
+                it.close();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
             }
-            it.close();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-        intHistograms = new ArrayList<>();
-        stringHistograms = new ArrayList<>();
-        Iterator<TupleDesc.TDItem> td_it = dbFile.getTupleDesc().iterator();
-        int idx = 0;
-        while(td_it.hasNext()) {
-            TupleDesc.TDItem item = td_it.next();
-            if(item.fieldType == Type.INT_TYPE) {
-                intHistograms.add(new IntHistogram(NUM_HIST_BINS, min_fields.get(idx), max_fields.get(idx)));
-                stringHistograms.add(null);
-            } else if(item.fieldType == Type.STRING_TYPE){
-                intHistograms.add(null);
-                stringHistograms.add(new StringHistogram(NUM_HIST_BINS));
+            intHistograms = new ArrayList<>();
+            stringHistograms = new ArrayList<>();
+            Iterator<TupleDesc.TDItem> td_it = dbFile.getTupleDesc().iterator();
+            int idx = 0;
+            while(td_it.hasNext()) {
+                TupleDesc.TDItem item = td_it.next();
+                if(item.fieldType == Type.INT_TYPE) {
+                    intHistograms.add(new IntHistogram(NUM_HIST_BINS, min_fields.get(idx), max_fields.get(idx)));
+                    stringHistograms.add(null);
+                } else if(item.fieldType == Type.STRING_TYPE){
+                    intHistograms.add(null);
+                    stringHistograms.add(new StringHistogram(NUM_HIST_BINS));
+                }
+                ++idx;
             }
-            ++idx;
-        }
-        try {
-            it.open();
-            while(it.hasNext()) {
-                Tuple t = it.next();
-                Iterator<Field> field_it = t.fields();
-                idx = 0;
-                while(field_it.hasNext()) {
-                    Field f = field_it.next();
-                    if(f.getType() == Type.INT_TYPE) {
-                        IntField intField = (IntField) f;
-                        IntHistogram intHistogram = intHistograms.get(idx);
-                        intHistogram.addValue(intField.getValue());
-                    } else if(f.getType() == Type.STRING_TYPE) {
-                        StringField stringField = (StringField) f;
-                        StringHistogram stringHistogram = stringHistograms.get(idx);
-                        stringHistogram.addValue(stringField.getValue());
+            try {
+                it.open();
+                while(it.hasNext()) {
+                    Tuple t = it.next();
+                    Iterator<Field> field_it = t.fields();
+                    idx = 0;
+                    while(field_it.hasNext()) {
+                        Field f = field_it.next();
+                        if(f.getType() == Type.INT_TYPE) {
+                            IntField intField = (IntField) f;
+                            IntHistogram intHistogram = intHistograms.get(idx);
+                            intHistogram.addValue(intField.getValue());
+                        } else if(f.getType() == Type.STRING_TYPE) {
+                            StringField stringField = (StringField) f;
+                            StringHistogram stringHistogram = stringHistograms.get(idx);
+                            stringHistogram.addValue(stringField.getValue());
+                        }
+                        ++idx;
                     }
-                    ++idx;
+                    ++tupleNum;
                 }
-                ++tupleNum;
+                it.close();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
             }
-            it.close();
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        } finally {
+            Database.getBufferPool().transactionComplete(tid);
         }
     }
 
@@ -25,6 +25,29 @@ public abstract class AbstractDbFileIterator implements DbFileIterator {
         return result;
     }
 
+    public boolean nextBatch(TupleBatch batch) throws DbException, TransactionAbortedException {
+        // a tuple fetched by hasNext() must not be lost
+        boolean added = false;
+        if (next != null && !batch.isFull()) {
+            batch.addTuple(next);
+            next = null;
+            added = true;
+        }
+        return readNextBatch(batch) || added;
+    }
+
+    /** Appends the next tuples from the underlying source to batch until it is full.
+    Subclasses that can fill a batch without reading tuples one at a time override this.
+    @return false if no tuple was added because the iteration is finished. */
+    protected boolean readNextBatch(TupleBatch batch) throws DbException, TransactionAbortedException {
+        int before = batch.numRows();
+        Tuple t;
+        while (!batch.isFull() && (t = readNext()) != null) {
+            batch.addTuple(t);
+        }
+        return batch.numRows() > before;
+    }
+
     /** If subclasses override this, they should call super.close(). */
     public void close() {
         // Ensures that a future call to next() will fail
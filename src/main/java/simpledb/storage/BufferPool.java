@@ -1,6 +1,9 @@
 package simpledb.storage;
 
 import simpledb.common.*;
+import simpledb.execution.OpIterator;
+import simpledb.index.BTreeFile;
+import simpledb.index.SecondaryIndex;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -9,7 +12,12 @@ import java.io.*;
 import java.sql.Timestamp;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
+import java.util.function.IntPredicate;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -19,6 +27,17 @@ import java.util.function.BiConsumer;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The page table is a concurrent hash from PageId to frame, so lookups take
+ * no lock. Each frame has its own latch and pin count: a frame is latched
+ * while its page is loaded, replaced or evicted, and pinned while a
+ * getPage call is using it. Eviction latches only its victim and skips
+ * pinned frames, so requests for different pages never contend.
+ * <p>
+ * Sequential scans can ask for the pages ahead of them to be read in the
+ * background with {@link #prefetchPages(List)}. Read-ahead uses free frames
+ * or evicts clean pages like any other miss, but never holds more than a
+ * quarter of the pool in pages that were prefetched and not used yet.
  * 
  * @Threadsafe, all fields are final
  */
@@ -30,28 +49,75 @@ public class BufferPool {
 
     private final Map<PageId, Integer> pidToBpidMap;
     private final Page[] pages;
+    // 每个frame一个latch，保护pages[bpid]的读写
+    private final ReentrantLock[] latches;
+    // 每个frame的pin计数，大于0的frame不能被淘汰
+    private final AtomicIntegerArray pinCounts;
     private final Queue<Integer> emptyPages;
     private final LockManager lockManager;
-    private final Map<TransactionId, List<Page>> tidToPagesMap;
-    
+    // 每个事务写过的页面，每个页面只记录一次
+    private final Map<TransactionId, Set<Page>> tidToPagesMap;
+    private final ReplacementPolicy replacementPolicy;
+    // 只有未被pin、未被latch的干净页面可以被淘汰（NO STEAL）
+    private final IntPredicate evictable;
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    // 预读线程，所有BufferPool共用
+    private static final ExecutorService PREFETCHER = Executors.newFixedThreadPool(2, r -> {
+        Thread t = new Thread(r, "prefetch");
+        t.setDaemon(true);
+        return t;
+    });
+    // frame中的页面是预读进来的且还没有被getPage使用过，由frame的latch保护
+    private final boolean[] prefetched;
+    private final AtomicInteger prefetchedUnused = new AtomicInteger();
+    private final LongAdder prefetchCount = new LongAdder();
+    private volatile int maxReadAhead = DEFAULT_MAX_READ_AHEAD;
+
     /** Default number of pages passed to the constructor. This is used by
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
+
+    /** Default upper bound of a scan's read-ahead window, in pages */
+    public static final int DEFAULT_MAX_READ_AHEAD = 32;
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages, evicting pages
+     * with an {@link LruKReplacementPolicy} (K = 2).
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, new LruKReplacementPolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param replacementPolicy the policy choosing which page to evict; it
+     *                          must be sized for numPages frames
+     */
+    public BufferPool(int numPages, ReplacementPolicy replacementPolicy) {
         pages = new Page[numPages];
-        pidToBpidMap = new LinkedHashMap<>();
-        emptyPages = new LinkedList<>();
+        latches = new ReentrantLock[numPages];
+        pinCounts = new AtomicIntegerArray(numPages);
+        prefetched = new boolean[numPages];
+        pidToBpidMap = new ConcurrentHashMap<>();
+        emptyPages = new ConcurrentLinkedQueue<>();
         for (int i = 0; i < numPages; i++) {
+            latches[i] = new ReentrantLock();
             emptyPages.add(i);
         }
         lockManager = new LockManager();
-        tidToPagesMap = new HashMap<>();
+        tidToPagesMap = new ConcurrentHashMap<>();
+        this.replacementPolicy = replacementPolicy;
+        this.evictable = bpid -> {
+            Page page = pages[bpid];
+            return pinCounts.get(bpid) == 0 && !latches[bpid].isLocked()
+                    && page != null && page.isDirty() == null;
+        };
     }
     
     public static int getPageSize() {
@@ -92,72 +158,212 @@ public class BufferPool {
         } else {
             acquireType = LockManager.PageLock.LockType.SHARE;
         }
-        // 循环获取锁，若时间超过50ms则等待超时，获取锁失败
-        long start = System.currentTimeMillis();
+        // 阻塞直到获取锁；若当前事务被选为死锁的牺牲者或等待超时，则抛出TransactionAbortedException
+        try {
+            lockManager.acquireLock(pid, tid, acquireType);
+        } catch (InterruptedException e) {
+            throw new TransactionAbortedException();
+        }
+        // 成功获取锁，查找所需要的Page
+        Page page = fetchPage(pid);
+        // 若要写Page，则将该Page添加到tid事务相关的PageList中
+        if(perm == Permissions.READ_WRITE) {
+            tidToPagesMap.computeIfAbsent(tid, k -> new LinkedHashSet<>()).add(page);
+        }
+        return page;
+    }
+
+    /**
+     * Return the cached copy of the page, reading it into a free or evicted
+     * frame if it is not cached. The frame is pinned while it is in use so
+     * that concurrent evictions leave it alone.
+     */
+    private Page fetchPage(PageId pid) throws DbException {
         while (true) {
+            Integer bpid = pidToBpidMap.get(pid);
+            if (bpid != null) {
+                pinCounts.incrementAndGet(bpid);
+                latches[bpid].lock();
+                try {
+                    Page page = pages[bpid];
+                    // frame可能在查表之后被淘汰并装入了其他页面，此时重试
+                    if (page != null && page.getId().equals(pid)) {
+                        hitCount.increment();
+                        if (prefetched[bpid]) {
+                            // 预读时已经记录过一次访问，第一次使用不再记录，预读的页面和普通的miss一样只算被访问一次
+                            prefetched[bpid] = false;
+                            prefetchedUnused.decrementAndGet();
+                        } else {
+                            replacementPolicy.recordAccess(bpid);
+                        }
+                        return page;
+                    }
+                } finally {
+                    latches[bpid].unlock();
+                    pinCounts.decrementAndGet(bpid);
+                }
+                continue;
+            }
+
+            DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+            int frame = allocateFrame();
+            latches[frame].lock();
             try {
-                if (lockManager.acquireLock(pid, tid, acquireType)) {
-                    break;
+                // 其他线程已经在装入同一个页面，归还frame后重试
+                if (pidToBpidMap.putIfAbsent(pid, frame) != null) {
+                    emptyPages.add(frame);
+                    continue;
                 }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                try {
+                    pages[frame] = dbFile.readPage(pid);
+                } catch (RuntimeException e) {
+                    pidToBpidMap.remove(pid, frame);
+                    emptyPages.add(frame);
+                    throw e;
+                }
+                missCount.increment();
+                replacementPolicy.recordAccess(frame);
+                return pages[frame];
+            } finally {
+                latches[frame].unlock();
+            }
+        }
+    }
+
+    /**
+     * Start reading the given pages into the buffer pool in the background,
+     * in order, and return immediately. Pages that are already cached are
+     * skipped. Read-ahead is best effort: it stops when the pool has no
+     * evictable page, or when a quarter of the pool already holds prefetched
+     * pages that nobody has asked for yet, so it never pushes out more than
+     * that share of the pages queries are using.
+     * <p>
+     * No locks are taken. Pages that are not cached only hold committed data
+     * (dirty pages are never evicted), and the page is checked and locked as
+     * usual when a transaction actually requests it with getPage.
+     *
+     * @param pids the pages to read, in the order they will be needed
+     */
+    public void prefetchPages(List<PageId> pids) {
+        if (pids.isEmpty()) return;
+        PREFETCHER.execute(() -> {
+            for (PageId pid : pids) {
+                if (!prefetch(pid)) break;
             }
-            long now = System.currentTimeMillis();
-            if (now - start > 50) {
-                throw new TransactionAbortedException();
+        });
+    }
+
+    /**
+     * Load a page into the pool on behalf of read-ahead.
+     *
+     * @return false if read-ahead should stop because the pool has no room
+     */
+    private boolean prefetch(PageId pid) {
+        if (pidToBpidMap.containsKey(pid)) return true;
+        Integer frame = emptyPages.poll();
+        if (frame == null) {
+            if (prefetchedUnused.get() >= Math.max(1, pages.length / 4)) return false;
+            try {
+                frame = evictPage();
+            } catch (DbException e) {
+                return false;
             }
         }
-//        Boolean success = false;
-//        final ExecutorService exec = Executors.newSingleThreadExecutor();
-//        Callable<Boolean> call = () -> {
-//            while(true) {
-//                try {
-//                    if (lockManager.acquireLock(pid, tid, acquireType)) {
-//                        return true;
-//                    }
-//                } catch (Exception e) {
-//                    e.printStackTrace();
-//                }
-//            }
-//        };
-//        try {
-//            Future<Boolean> future = exec.submit(call);
-//            success = future.get(500, TimeUnit.MILLISECONDS);
-//        } catch (Exception e) {
-////            e.printStackTrace();
-//        }
-//        exec.shutdown();
-//        if(!success) throw new TransactionAbortedException();
-        // 成功获取锁，查找所需要的Page
-        int bpid = getBufferPageId(pid);
-        // 若要写Page，则将该Page添加到tid事务相关的PageList中
-        if(perm == Permissions.READ_WRITE) {
-            List<Page> changedPages = tidToPagesMap.get(tid);
-            if(changedPages == null) {
-                tidToPagesMap.put(tid, new ArrayList<Page>(){});
-                changedPages = tidToPagesMap.get(tid);
+        latches[frame].lock();
+        try {
+            if (pidToBpidMap.putIfAbsent(pid, frame) != null) {
+                emptyPages.add(frame);
+                return true;
             }
-            changedPages.add(pages[bpid]);
+            try {
+                pages[frame] = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            } catch (RuntimeException e) {
+                // 页面不存在或表已被删除，放弃预读
+                pidToBpidMap.remove(pid, frame);
+                emptyPages.add(frame);
+                return false;
+            }
+            prefetched[frame] = true;
+            prefetchedUnused.incrementAndGet();
+            prefetchCount.increment();
+            replacementPolicy.recordAccess(frame);
+            return true;
+        } finally {
+            latches[frame].unlock();
         }
-        return pages[bpid];
     }
 
-    private int getBufferPageId(PageId pid) throws DbException {
-        int bpid;
-        if(!pidToBpidMap.containsKey(pid)) {
-            DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            if(emptyPages.isEmpty()) evictPage();
-            int emptyPage = emptyPages.remove();
-            pages[emptyPage] = dbFile.readPage(pid);
-            pidToBpidMap.put(pid, emptyPage);
-            bpid = emptyPage;
-        } else {
-            bpid = pidToBpidMap.get(pid);
-            if(bpid < 0 || bpid >= pages.length) {
-                throw new DbException("BPageId is not allowed.");
+    /**
+     * Return how many pages ahead a sequential scan may read. Scans grow
+     * their read-ahead window up to this bound, which never exceeds a
+     * quarter of the pool.
+     */
+    public int getMaxReadAhead() {
+        return Math.min(maxReadAhead, pages.length / 4);
+    }
+
+    /**
+     * Set the upper bound of a sequential scan's read-ahead window.
+     *
+     * @param pages the largest number of pages a scan may read ahead; 0
+     *              turns read-ahead off
+     */
+    public void setMaxReadAhead(int pages) {
+        this.maxReadAhead = Math.max(0, pages);
+    }
+
+    /** Return the number of pages loaded by read-ahead */
+    public long getPrefetchCount() {
+        return prefetchCount.sum();
+    }
+
+    /**
+     * Replace the cached copy of a page with the given version, loading the
+     * page into a frame first if it is not cached.
+     */
+    private void installPage(Page page) throws DbException {
+        PageId pid = page.getId();
+        while (true) {
+            fetchPage(pid);
+            Integer bpid = pidToBpidMap.get(pid);
+            if (bpid == null) continue;
+            latches[bpid].lock();
+            try {
+                Page cached = pages[bpid];
+                if (cached != null && cached.getId().equals(pid)) {
+                    pages[bpid] = page;
+                    return;
+                }
+            } finally {
+                latches[bpid].unlock();
             }
         }
-        return bpid;
+    }
+
+    /**
+     * Take a frame from the free list, evicting a page if there is none.
+     * The returned frame is empty and owned by the caller.
+     */
+    private int allocateFrame() throws DbException {
+        Integer frame = emptyPages.poll();
+        if (frame != null) return frame;
+        return evictPage();
+    }
+
+    /** Return the number of page requests that were served from the buffer pool */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /** Return the number of page requests that had to read the page from disk */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /** Reset the hit and miss counters, e.g. after warming up the buffer pool */
+    public void resetStats() {
+        hitCount.reset();
+        missCount.reset();
     }
 
     /**
@@ -184,9 +390,12 @@ public class BufferPool {
 
     /** Return true if the specified transaction has a lock on the specified page */
     public boolean holdsLock(TransactionId tid, PageId p) {
-        // some code goes here
-        // not necessary for lab1|lab2
-        return false;
+        return lockManager.isHoldLock(p, tid);
+    }
+
+    /** Return the lock manager, e.g. to read its wait and deadlock counters */
+    public LockManager getLockManager() {
+        return lockManager;
     }
 
     /**
@@ -211,17 +420,22 @@ public class BufferPool {
                 e.printStackTrace();
             }
         }
+        tidToPagesMap.remove(tid);
         lockManager.completeTransaction(tid);
     }
 
     private void recoverPages(TransactionId tid) throws DbException {
-        List<Page> changedPages = tidToPagesMap.get(tid);
+        Set<Page> changedPages = tidToPagesMap.get(tid);
         if(changedPages == null) return;
         for (Page changedPage : changedPages) {
             PageId pageId = changedPage.getId();
             DbFile dbFile = Database.getCatalog().getDatabaseFile(pageId.getTableId());
             Page oldPage = dbFile.readPage(pageId);
-            pages[getBufferPageId(pageId)] = oldPage;
+            installPage(oldPage);
+            // 回滚后的页面可能重新有了空位
+            if (dbFile instanceof HeapFile) {
+                ((HeapFile) dbFile).pageRestored((HeapPage) oldPage);
+            }
             changedPage.markDirty(false, tid);
         }
     }
@@ -237,6 +451,8 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
      *
+     * The tuple is also added to every secondary index over the table.
+     *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
      * @param t the tuple to add
@@ -246,8 +462,67 @@ public class BufferPool {
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
         List<Page> changedPages = dbFile.insertTuple(tid, t);
         // update BufferPool
-        tidToPagesMap.put(tid, changedPages);
-        updateBufferPool(tid);
+        updateBufferPool(tid, changedPages);
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            updateBufferPool(tid, index.insertTuple(tid, t));
+        }
+    }
+
+    /**
+     * Add a batch of tuples to the specified table on behalf of transaction
+     * tid. The file fills each page with as many tuples as fit before moving
+     * on to the next, so every page touched by the batch is locked, marked
+     * dirty and installed in the cache once, rather than once per tuple.
+     * The tuples are then added to the secondary indexes over the table.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param tuples the tuples to add
+     * @see DbFile#insertTuples
+     */
+    public void insertTuples(TransactionId tid, int tableId, Iterator<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        List<SecondaryIndex> indexes = Database.getCatalog().getIndexes(tableId);
+        if (indexes.isEmpty()) {
+            updateBufferPool(tid, dbFile.insertTuples(tid, tuples));
+            return;
+        }
+        // 插入后元组才有RecordId，留下这一批元组再更新索引
+        List<Tuple> batch = new ArrayList<>();
+        tuples.forEachRemaining(batch::add);
+        updateBufferPool(tid, dbFile.insertTuples(tid, batch.iterator()));
+        for (SecondaryIndex index : indexes) {
+            for (Tuple t : batch) {
+                updateBufferPool(tid, index.insertTuple(tid, t));
+            }
+        }
+    }
+
+    /**
+     * Load tuples sorted on the key field into an empty B+ tree on behalf of
+     * transaction tid, and mark the pages it dirtied as dirty, like insertTuple.
+     * The secondary indexes over the table are then built from the loaded tuples.
+     *
+     * @param tid the transaction loading the tuples
+     * @param tableId the table to load, which must be a BTreeFile
+     * @param sortedInput the tuples, sorted on the key field of the table
+     * @param fillFactor the fraction of each page to fill
+     * @see BTreeFile#bulkLoad(TransactionId, OpIterator, double)
+     */
+    public void bulkLoad(TransactionId tid, int tableId, OpIterator sortedInput, double fillFactor)
+        throws DbException, IOException, TransactionAbortedException {
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(dbFile instanceof BTreeFile)) {
+            throw new DbException("bulk load needs a B+ tree, table " + tableId + " is a "
+                    + dbFile.getClass().getSimpleName());
+        }
+        List<Page> changedPages = ((BTreeFile) dbFile).bulkLoad(tid, sortedInput, fillFactor);
+        updateBufferPool(tid, changedPages);
+        // 表原来是空的，它的索引也是空的
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            index.build(tid);
+        }
     }
 
     /**
@@ -260,6 +535,8 @@ public class BufferPool {
      * been dirtied to the cache (replacing any existing versions of those pages) so 
      * that future requests see up-to-date pages. 
      *
+     * The tuple is also removed from every secondary index over its table.
+     *
      * @param tid the transaction deleting the tuple.
      * @param t the tuple to delete
      */
@@ -267,18 +544,22 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         int tableId = t.getRecordId().getPageId().getTableId();
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        // 先删除索引entry，此时元组还在它的页面上
+        for (SecondaryIndex index : Database.getCatalog().getIndexes(tableId)) {
+            updateBufferPool(tid, index.deleteTuple(tid, t));
+        }
         List<Page> changedPages = dbFile.deleteTuple(tid, t);
         // update BufferPool
-        tidToPagesMap.put(tid, changedPages);
-        updateBufferPool(tid);
+        updateBufferPool(tid, changedPages);
     }
 
-    private void updateBufferPool(TransactionId tid) throws DbException {
-        List<Page> changedPages = tidToPagesMap.get(tid);
+    // 将修改过的页面标记为脏页并放入缓存，同时追加到事务的页面集合中（而不是覆盖之前记录的页面）
+    private void updateBufferPool(TransactionId tid, List<Page> changedPages) throws DbException {
+        Set<Page> pages = tidToPagesMap.computeIfAbsent(tid, k -> new LinkedHashSet<>());
         for (Page changedPage : changedPages) {
             changedPage.markDirty(true, tid);
-            int bpid = getBufferPageId(changedPage.getId());
-            pages[bpid] = changedPage;
+            installPage(changedPage);
+            pages.add(changedPage);
         }
     }
 
@@ -287,14 +568,10 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
-        pidToBpidMap.forEach((pageId, integer) -> {
-            try {
-                flushPage(pageId);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        });
+    public void flushAllPages() throws IOException {
+        for (PageId pageId : pidToBpidMap.keySet()) {
+            flushPage(pageId);
+        }
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -305,36 +582,102 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
-        pidToBpidMap.remove(pid);
+    public void discardPage(PageId pid) {
+        Integer bpid = pidToBpidMap.get(pid);
+        if(bpid == null) return;
+        latches[bpid].lock();
+        try {
+            Page page = pages[bpid];
+            if (page == null || !page.getId().equals(pid) || !pidToBpidMap.remove(pid, bpid)) {
+                return;
+            }
+            // 释放该页面占用的frame
+            pages[bpid] = null;
+            clearPrefetched(bpid);
+            replacementPolicy.remove(bpid);
+        } finally {
+            latches[bpid].unlock();
+        }
+        emptyPages.add(bpid);
+    }
+
+    /**
+     * Flushes a certain page to disk
+     * @param pid an ID indicating the page to flush
+     */
+    private void flushPage(PageId pid) throws IOException {
+        flushPage(pid, true);
     }
 
     /**
      * Flushes a certain page to disk
      * @param pid an ID indicating the page to flush
+     * @param log whether to log and force the update first; false if the
+     *            caller has already done so
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
-        if(!pidToBpidMap.containsKey(pid)) return;
+    private void flushPage(PageId pid, boolean log) throws IOException {
+        Integer bpid = pidToBpidMap.get(pid);
+        if(bpid == null) return;
         DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        Page page = pages[pidToBpidMap.get(pid)];
-        // append an update record to the log, with
-        // a before-image and after-image.
-        TransactionId dirtier = page.isDirty();
-        if (dirtier != null){
+        latches[bpid].lock();
+        try {
+            Page page = pages[bpid];
+            if (page == null || !page.getId().equals(pid)) return;
+            // append an update record to the log, with
+            // a before-image and after-image.
+            TransactionId dirtier = page.isDirty();
+            if (dirtier != null && log){
+                Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
+                Database.getLogFile().force();
+            }
+            dbFile.writePage(page);
+            page.markDirty(false, new TransactionId());
+        } finally {
+            latches[bpid].unlock();
+        }
+    }
+
+    /**
+     * Append an update record for the page to the log if it is dirty, without
+     * forcing the log.
+     *
+     * @return true if a record was written
+     */
+    private boolean logPage(PageId pid) throws IOException {
+        Integer bpid = pidToBpidMap.get(pid);
+        if(bpid == null) return false;
+        latches[bpid].lock();
+        try {
+            Page page = pages[bpid];
+            if (page == null || !page.getId().equals(pid)) return false;
+            TransactionId dirtier = page.isDirty();
+            if (dirtier == null) return false;
             Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
-            Database.getLogFile().force();
+            return true;
+        } finally {
+            latches[bpid].unlock();
         }
-        dbFile.writePage(page);
-        page.markDirty(false, new TransactionId());
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
-        List<Page> changedPages = tidToPagesMap.get(tid);
+    public void flushPages(TransactionId tid) throws IOException {
+        Set<Page> changedPages = tidToPagesMap.get(tid);
         if(changedPages == null) return;
+        // 先为所有脏页写日志并只force一次，再写回页面，而不是每个页面force一次
+        Set<PageId> pids = new LinkedHashSet<>();
+        for (Page changedPage : changedPages) {
+            pids.add(changedPage.getId());
+        }
+        boolean logged = false;
+        for (PageId pid : pids) {
+            logged |= logPage(pid);
+        }
+        if (logged) {
+            Database.getLogFile().force();
+        }
         for (Page changedPage : changedPages) {
-            flushPage(changedPage.getId());
+            flushPage(changedPage.getId(), false);
             // use current page contents as the before-image
             // for the next transaction that modifies this page.
             changedPage.setBeforeImage();
@@ -343,18 +686,43 @@ public class BufferPool {
 
     /**
      * Discards a page from the buffer pool.
-     * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * The victim is chosen by the replacement policy among the clean, unpinned
+     * pages; dirty pages are never evicted (NO STEAL). Only the victim's frame
+     * is latched, and the emptied frame is handed to the caller instead of
+     * being put back on the free list.
+     *
+     * @return the index of the emptied frame
      */
-    private synchronized void evictPage() throws DbException {
-        for (int bpid : pidToBpidMap.values()) {
-            Page page = pages[bpid];
-            if (page.isDirty() == null) {
-                discardPage(page.getId());
-                emptyPages.add(bpid);
-                return;
+    private int evictPage() throws DbException {
+        // 其他线程可能同时在淘汰或使用选中的frame，失败时重新选择
+        while (true) {
+            int bpid = replacementPolicy.chooseVictim(evictable);
+            if (bpid == -1) break;
+            if (!latches[bpid].tryLock()) continue;
+            try {
+                Page page = pages[bpid];
+                if (page == null || pinCounts.get(bpid) != 0 || page.isDirty() != null) continue;
+                pidToBpidMap.remove(page.getId(), bpid);
+                pages[bpid] = null;
+                clearPrefetched(bpid);
+                replacementPolicy.remove(bpid);
+                return bpid;
+            } finally {
+                latches[bpid].unlock();
             }
         }
+        // 淘汰失败时也可能有其他线程归还了frame
+        Integer frame = emptyPages.poll();
+        if (frame != null) return frame;
         throw new DbException("BufferPool is full of dirty pages.");
     }
 
+    // 预读的页面在被使用前就被移出了；调用者需持有frame的latch
+    private void clearPrefetched(int bpid) {
+        if (prefetched[bpid]) {
+            prefetched[bpid] = false;
+            prefetchedUnused.decrementAndGet();
+        }
+    }
+
 }
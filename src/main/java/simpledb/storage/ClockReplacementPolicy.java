@@ -0,0 +1,49 @@
+package simpledb.storage;
+
+import java.util.function.IntPredicate;
+
+/**
+ * CLOCK (second chance) replacement. Each frame has a reference bit that is
+ * set on access; the clock hand sweeps the frames, clearing set bits and
+ * evicting the first evictable frame whose bit is already clear.
+ * <p>
+ * CLOCK approximates LRU and is cheap, but it is not scan resistant. It is
+ * kept as a baseline for {@link LruKReplacementPolicy}.
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+
+    private final boolean[] referenced;
+    private int hand = 0;
+
+    public ClockReplacementPolicy(int numFrames) {
+        this.referenced = new boolean[numFrames];
+    }
+
+    public void recordAccess(int frame) {
+        referenced[frame] = true;
+    }
+
+    public void remove(int frame) {
+        referenced[frame] = false;
+    }
+
+    public int chooseVictim(IntPredicate evictable) {
+        int numFrames = referenced.length;
+        // 最多转两圈：第一圈清除引用位，第二圈必然能找到可淘汰的frame（如果存在）
+        for (int i = 0; i < 2 * numFrames; i++) {
+            int frame = hand;
+            hand = (hand + 1) % numFrames;
+            if (!evictable.test(frame)) continue;
+            if (referenced[frame]) {
+                referenced[frame] = false;
+            } else {
+                return frame;
+            }
+        }
+        return -1;
+    }
+
+    public String toString() {
+        return "CLOCK";
+    }
+}
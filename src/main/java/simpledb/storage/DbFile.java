@@ -48,6 +48,22 @@ public interface DbFile {
     List<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Inserts a batch of tuples into the file on behalf of transaction.
+     * Each target page should be filled with as many of the tuples as fit
+     * before moving on to the next, so that a page is locked and looked up
+     * once per batch rather than once per tuple.
+     *
+     * @param tid The transaction performing the update
+     * @param tuples The tuples to add.  Each tuple should be updated to
+     *          reflect that it is now stored in this file.
+     * @return A list containing each page that was modified, once
+     * @throws DbException if a tuple cannot be added
+     * @throws IOException if the needed file can't be read/written
+     */
+    List<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException;
+
     /**
      * Removes the specified tuple from the file on behalf of the specified
      * transaction.
@@ -98,4 +114,12 @@ public interface DbFile {
      * Returns the number of pages in this BTreeFile.
      */
     int numPages();
+
+    /**
+     * Release the operating system resources this file holds open, such as
+     * file handles. Called by the Catalog when the file is removed from it.
+     * The file may still be used afterwards and reopens them as needed.
+     */
+    default void close() {
+    }
 }
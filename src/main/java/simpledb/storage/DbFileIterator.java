@@ -30,6 +30,22 @@ public interface DbFileIterator{
     Tuple next()
         throws DbException, TransactionAbortedException, NoSuchElementException;
 
+    /**
+     * Appends the next tuples to batch until it is full or the iterator is
+     * exhausted. A caller should read an iterator either with this method or
+     * with hasNext()/next(), not both.
+     *
+     * @return false if no tuple was added because the iterator is exhausted
+     */
+    default boolean nextBatch(TupleBatch batch)
+        throws DbException, TransactionAbortedException {
+        int before = batch.numRows();
+        while (!batch.isFull() && hasNext()) {
+            batch.addTuple(next());
+        }
+        return batch.numRows() > before;
+    }
+
     /**
      * Resets the iterator to the start.
      * @throws DbException When rewind is unsupported.
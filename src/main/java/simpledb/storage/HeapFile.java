@@ -7,8 +7,13 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -22,6 +27,17 @@ import static java.lang.StrictMath.ceil;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * Pages are read and written with positional I/O on one FileChannel that
+ * stays open until {@link #close()}, so concurrent readers do not
+ * serialize on a shared file pointer. Read-mostly tables can additionally be
+ * memory mapped with {@link #setMemoryMapped(boolean)}.
+ * <p>
+ * Inserts are steered by a free-space map, a bitmap of the pages that may
+ * have an empty slot. It is built from the page headers the first time a
+ * tuple is inserted and then kept up to date by inserts, deletes and page
+ * writes, so an insert goes straight to a page with room instead of locking
+ * every page from the start of the file.
  * 
  * @see HeapPage#HeapPage
  * @author Sam Madden
@@ -31,6 +47,22 @@ public class HeapFile implements DbFile {
     private final File file;
     private final TupleDesc td;
 
+    // 顺序扫描连续读取这么多页后开始预读
+    private static final int READ_AHEAD_TRIGGER = 2;
+    // 第一个预读窗口的页数
+    private static final int INITIAL_READ_AHEAD = 4;
+
+    // 第一次读写时打开，之后一直复用
+    private volatile FileChannel channel;
+    private volatile boolean memoryMapped = false;
+    // 只读映射整个文件；文件增长后按需重新映射
+    private volatile MappedByteBuffer mapped;
+
+    // free-space map：可能有空slot的页面。只是提示，插入时会在持有锁的情况下重新检查。
+    // 第一次插入时根据磁盘上的页面header建立，由freeSpaceLock保护
+    private BitSet freePages;
+    private final Object freeSpaceLock = new Object();
+
     /**
      * Constructs a heap file backed by the specified file.
      * 
@@ -74,55 +106,136 @@ public class HeapFile implements DbFile {
         return this.td;
     }
 
+    /**
+     * Serve reads from a read-only memory mapping of the whole file instead of
+     * positional reads. Writes still go through the FileChannel; the mapping
+     * shares the OS page cache, so it always sees them. Meant for read-mostly
+     * tables, where it saves a copy and a system call per page read.
+     *
+     * @param memoryMapped true to read pages through a memory mapping
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        if (!memoryMapped) {
+            mapped = null;
+        }
+    }
+
+    /**
+     * @return true if pages are read through a memory mapping
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * Closes the FileChannel and drops the memory mapping, if any. Both are
+     * opened again the next time a page is read or written.
+     */
+    public synchronized void close() {
+        mapped = null;
+        FileChannel ch = channel;
+        channel = null;
+        if (ch != null) {
+            try {
+                ch.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private FileChannel channel() throws IOException {
+        FileChannel ch = channel;
+        if (ch == null) {
+            synchronized (this) {
+                ch = channel;
+                if (ch == null) {
+                    try {
+                        ch = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                StandardOpenOption.CREATE);
+                    } catch (AccessDeniedException e) {
+                        // 只读的表文件
+                        ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                    }
+                    channel = ch;
+                }
+            }
+        }
+        return ch;
+    }
+
+    /**
+     * Return a mapping that covers the given byte range, remapping the file if
+     * it has grown, or null if the file is too large to be mapped at once.
+     */
+    private MappedByteBuffer mapping(long end) throws IOException {
+        MappedByteBuffer m = mapped;
+        if (m != null && m.capacity() >= end) return m;
+        synchronized (this) {
+            m = mapped;
+            if (m == null || m.capacity() < end) {
+                long size = channel().size();
+                if (size > Integer.MAX_VALUE || size < end) return null;
+                m = channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+                mapped = m;
+            }
+            return m;
+        }
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) throws NoSuchElementException {
         if(pid.getTableId() != getId()) throw new NoSuchElementException("Read page: table id error.");
-        InputStream is = null;
+        if(!(pid instanceof HeapPageId)) throw new NoSuchElementException("Read page: page id error.");
         byte[] data = new byte[BufferPool.getPageSize()];
-        HeapPage hp = null;
-
+        long position = (long) pid.getPageNumber() * BufferPool.getPageSize();
         try {
-            is = Files.newInputStream(file.toPath());
-            long beforeDataLen = (long) pid.getPageNumber() * BufferPool.getPageSize();
-            is.skip(beforeDataLen);
-            int offset = 0;
-            int count = 0;
-            while (true) {
-                try {
-                    if (!(offset < data.length
-                            && (count = is.read(data, offset, data.length - offset)) >= 0)) break;
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+            MappedByteBuffer m = memoryMapped ? mapping(position + data.length) : null;
+            if (m != null) {
+                // duplicate()拥有独立的position，多个读者可以并发读取同一个映射
+                ByteBuffer view = m.duplicate();
+                view.position((int) position);
+                view.get(data);
+            } else {
+                ByteBuffer buf = ByteBuffer.wrap(data);
+                FileChannel ch = channel();
+                while (buf.hasRemaining()) {
+                    if (ch.read(buf, position + buf.position()) < 0) {
+                        throw new IOException("Read page: page read error.");
+                    }
                 }
-                offset += count;
             }
-            if (offset < data.length) throw new IOException("Read page: page read error.");
-            is.close();
-
-            if(!(pid instanceof HeapPageId)) throw new NoSuchElementException("Read page: page id error.");
-            HeapPageId hpid = (HeapPageId) pid;
-            hp = new HeapPage(hpid, data);
+            return new HeapPage((HeapPageId) pid, data);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        return hp;
     }
 
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         if(page.getId().getTableId() != getId()) throw new NoSuchElementException("Read page: table id error.");
-        byte[] data = page.getPageData();
-        RandomAccessFile rf = new RandomAccessFile(file, "rw");
-        if(page.getId().getPageNumber()>numPages()) {
-            rf.write(data);
-            rf.close();
-        } else {
-            rf.seek((long) page.getId().getPageNumber() * BufferPool.getPageSize());
-            rf.write(data);
-            rf.close();
+        ByteBuffer buf = ByteBuffer.wrap(page.getPageData());
+        long position = (long) page.getId().getPageNumber() * BufferPool.getPageSize();
+        FileChannel ch = channel();
+        while (buf.hasRemaining()) {
+            ch.write(buf, position + buf.position());
+        }
+        // 日志恢复通过writePage写回页面，顺便更新free-space map
+        if (page instanceof HeapPage) {
+            pageRestored((HeapPage) page);
         }
     }
 
+    /**
+     * Update the free-space map for a page whose contents were replaced
+     * without going through insertTuple or deleteTuple, as when BufferPool
+     * rolls back an aborted transaction by reinstalling the page from disk.
+     */
+    void pageRestored(HeapPage page) {
+        setHasFreeSpace(page.getId().getPageNumber(), page.getNumEmptySlots() != 0);
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
@@ -130,71 +243,355 @@ public class HeapFile implements DbFile {
         return (int) ceil((double) file.length() / BufferPool.getPageSize());
     }
 
+    /**
+     * Return the first page at or after from that may have an empty slot, or
+     * -1 if there is none. The free-space map is built from the page headers
+     * on disk the first time it is needed.
+     */
+    private int nextPageWithFreeSpace(int from) throws IOException {
+        synchronized (freeSpaceLock) {
+            if (freePages == null) {
+                freePages = loadFreeSpaceMap();
+            }
+            return freePages.nextSetBit(from);
+        }
+    }
+
+    /**
+     * Record whether a page has an empty slot. Does nothing until the map has
+     * been built, since building it reads the current state of every page.
+     */
+    private void setHasFreeSpace(int pageNo, boolean hasFreeSpace) {
+        synchronized (freeSpaceLock) {
+            if (freePages != null) {
+                freePages.set(pageNo, hasFreeSpace);
+            }
+        }
+    }
+
+    // 只读取每个页面的header，不经过BufferPool也不加锁
+    private BitSet loadFreeSpaceMap() throws IOException {
+        int numSlots = HeapPage.getNumTuples(td);
+        ByteBuffer header = ByteBuffer.allocate(HeapPage.getHeaderSize(td));
+        FileChannel ch = channel();
+        int numPages = numPages();
+        BitSet free = new BitSet(numPages);
+        for (int i = 0; i < numPages; i++) {
+            header.clear();
+            long position = (long) i * BufferPool.getPageSize();
+            while (header.hasRemaining() && ch.read(header, position + header.position()) >= 0) {
+                // keep reading until the header is complete or the file ends
+            }
+            if (HeapPage.hasEmptySlot(header.array(), numSlots)) {
+                free.set(i);
+            }
+        }
+        return free;
+    }
+
     // see DbFile.java for javadocs
     public List<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         BufferPool bufferPool = Database.getBufferPool();
-        for (int i = 0; i < numPages(); i++) {
+        // 根据free-space map直接跳到可能有空位的页面，而不是从第0页开始逐页加锁检查
+        for (int i = nextPageWithFreeSpace(0); i != -1; i = nextPageWithFreeSpace(i + 1)) {
             PageId pid = new HeapPageId(getId(), i);
+            boolean alreadyLocked = bufferPool.holdsLock(tid, pid);
             HeapPage page = (HeapPage) bufferPool.getPage(tid, pid, Permissions.READ_WRITE);
             // insert tuple into current page
             if(page.getNumEmptySlots() != 0) {
                 page.insertTuple(t);
+                if (page.getNumEmptySlots() == 0) {
+                    setHasFreeSpace(i, false);
+                }
                 ArrayList<Page> pages = new ArrayList<>();
                 pages.add(page);
                 return pages;
             } else {
-                bufferPool.unsafeReleasePage(tid, page.getId());
+                // map已过期（例如其他事务刚刚填满了该页）
+                setHasFreeSpace(i, false);
+                // 只释放本次为检查空位而加的锁，事务之前持有的锁要保留到事务结束
+                if (!alreadyLocked) {
+                    bufferPool.unsafeReleasePage(tid, page.getId());
+                }
             }
         }
         // insert tuple into new page
-        BufferedOutputStream outputStream = new BufferedOutputStream(new FileOutputStream(file, true));
-        byte[] emptyPageData = HeapPage.createEmptyPageData();
-        // 向文件末尾添加数据
-        outputStream.write(emptyPageData);
-        outputStream.close();
-        HeapPage hp = (HeapPage) bufferPool.getPage(tid, new HeapPageId(getId(), numPages() - 1), Permissions.READ_WRITE);
+        int newPageNo = appendEmptyPage();
+        HeapPage hp = (HeapPage) bufferPool.getPage(tid, new HeapPageId(getId(), newPageNo), Permissions.READ_WRITE);
         hp.insertTuple(t);
+        setHasFreeSpace(newPageNo, hp.getNumEmptySlots() != 0);
         ArrayList<Page> pages = new ArrayList<>();
         pages.add(hp);
         return pages;
     }
 
+    // see DbFile.java for javadocs
+    public List<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bufferPool = Database.getBufferPool();
+        List<Page> pages = new ArrayList<>();
+        Tuple next = tuples.hasNext() ? tuples.next() : null;
+        // 先填满已有的有空位的页面，每个页面只加锁、查找一次
+        for (int i = next == null ? -1 : nextPageWithFreeSpace(0); i != -1; i = nextPageWithFreeSpace(i + 1)) {
+            PageId pid = new HeapPageId(getId(), i);
+            boolean alreadyLocked = bufferPool.holdsLock(tid, pid);
+            HeapPage page = (HeapPage) bufferPool.getPage(tid, pid, Permissions.READ_WRITE);
+            if (page.getNumEmptySlots() == 0) {
+                setHasFreeSpace(i, false);
+                if (!alreadyLocked) {
+                    bufferPool.unsafeReleasePage(tid, pid);
+                }
+                continue;
+            }
+            next = fillPage(page, next, tuples);
+            pages.add(page);
+            if (next == null) {
+                return pages;
+            }
+        }
+        // 剩下的元组依次写入新追加的页面
+        while (next != null) {
+            int newPageNo = appendEmptyPage();
+            HeapPage page = (HeapPage) bufferPool.getPage(tid, new HeapPageId(getId(), newPageNo), Permissions.READ_WRITE);
+            next = fillPage(page, next, tuples);
+            pages.add(page);
+        }
+        return pages;
+    }
+
+    /**
+     * Insert first and then as many of the remaining tuples as fit into page.
+     *
+     * @return the first tuple that did not fit, or null if all were inserted
+     */
+    private Tuple fillPage(HeapPage page, Tuple first, Iterator<Tuple> rest) throws DbException {
+        int emptySlots = page.getNumEmptySlots();
+        Tuple next = first;
+        while (next != null && emptySlots > 0) {
+            page.insertTuple(next);
+            emptySlots--;
+            next = rest.hasNext() ? rest.next() : null;
+        }
+        setHasFreeSpace(page.getId().getPageNumber(), emptySlots != 0);
+        return next;
+    }
+
+    /**
+     * Append an empty page to the end of the file and return its page number.
+     */
+    private int appendEmptyPage() throws IOException {
+        ByteBuffer emptyPageData = ByteBuffer.wrap(HeapPage.createEmptyPageData());
+        FileChannel ch = channel();
+        // 向文件末尾添加数据；并发插入时每个事务各自追加一页
+        synchronized (this) {
+            long end = ch.size();
+            while (emptyPageData.hasRemaining()) {
+                ch.write(emptyPageData, end + emptyPageData.position());
+            }
+            return (int) (end / BufferPool.getPageSize());
+        }
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
         RecordId recordId = t.getRecordId();
         HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, recordId.getPageId(), Permissions.READ_WRITE);
         page.deleteTuple(t);
+        setHasFreeSpace(recordId.getPageId().getPageNumber(), true);
         ArrayList<Page> pages = new ArrayList<>();
         pages.add(page);
         return pages;
     }
 
+    /**
+     * Returns the tuple with the given record id, reading its page with a
+     * read lock on behalf of tid. Used by secondary indexes, which store the
+     * record ids of the tuples they point to.
+     *
+     * @param tid the transaction the page is read for
+     * @param rid the record id of the tuple, which must refer to this file
+     * @return the tuple, or null if its slot is empty
+     */
+    public Tuple getTuple(TransactionId tid, RecordId rid) throws DbException,
+            TransactionAbortedException {
+        if (rid.getPageId().getTableId() != getId()) {
+            throw new DbException("record " + rid + " is not in table " + getId());
+        }
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+        int slot = rid.getTupleNumber();
+        if (slot < 0 || slot >= page.numSlots || !page.isSlotUsed(slot)) {
+            return null;
+        }
+        return page.tupleAt(slot);
+    }
+
+    /**
+     * Returns an iterator over the tuples on the pages of this file that are
+     * claimed from morsels. Several iterators sharing the same morsels, e.g.
+     * one per worker of a parallel scan, together return every tuple of the
+     * file once, each reading the morsels it claims. The pages of a claimed
+     * morsel are prefetched. Rewinding the iterator claims further morsels;
+     * to read the file again, {@link PageMorsels#reset()} the morsels first.
+     *
+     * @param tid the transaction the pages are read for
+     * @param morsels the morsels shared by the iterators of the scan
+     */
+    public DbFileIterator iterator(TransactionId tid, PageMorsels morsels) {
+        return new AbstractDbFileIterator() {
+            private HeapPage currentPage = null;
+            private int nextSlot = 0;
+            // 当前morsel最后一页的下一页
+            private int morselEnd = 0;
+
+            @Override
+            protected Tuple readNext() throws DbException, TransactionAbortedException {
+                while (currentPage != null) {
+                    while (nextSlot < currentPage.numSlots) {
+                        int slot = nextSlot++;
+                        if (currentPage.isSlotUsed(slot)) return currentPage.tupleAt(slot);
+                    }
+                    nextPage();
+                }
+                return null;
+            }
+
+            @Override
+            protected boolean readNextBatch(TupleBatch batch) throws DbException, TransactionAbortedException {
+                int before = batch.numRows();
+                while (currentPage != null && !batch.isFull()) {
+                    nextSlot = currentPage.readInto(batch, nextSlot);
+                    if (nextSlot < currentPage.numSlots) break;
+                    nextPage();
+                }
+                return batch.numRows() > before;
+            }
+
+            // 读当前morsel的下一页；morsel读完后申请下一个morsel并预读它的其余页面
+            private void nextPage() throws DbException, TransactionAbortedException {
+                int pageNo = currentPage == null ? morselEnd : currentPage.pid.getPageNumber() + 1;
+                if (currentPage == null || pageNo >= morselEnd) {
+                    int numPages = numPages();
+                    pageNo = morsels.claim(numPages);
+                    if (pageNo < 0) {
+                        currentPage = null;
+                        return;
+                    }
+                    morselEnd = Math.min(numPages, pageNo + morsels.morselPages());
+                    prefetch(pageNo + 1, morselEnd);
+                }
+                PageId pid = new HeapPageId(getId(), pageNo);
+                currentPage = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                nextSlot = 0;
+            }
+
+            private void prefetch(int from, int to) {
+                BufferPool bufferPool = Database.getBufferPool();
+                to = Math.min(to, from + bufferPool.getMaxReadAhead());
+                if (from >= to) return;
+                List<PageId> pids = new ArrayList<>(to - from);
+                for (int i = from; i < to; i++) {
+                    pids.add(new HeapPageId(getId(), i));
+                }
+                bufferPool.prefetchPages(pids);
+            }
+
+            @Override
+            public void open() throws DbException, TransactionAbortedException {
+                currentPage = null;
+                morselEnd = 0;
+                nextPage();
+            }
+
+            @Override
+            public void rewind() throws DbException, TransactionAbortedException {
+                open();
+            }
+
+            @Override
+            public void close() {
+                super.close();
+                currentPage = null;
+            }
+        };
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         return new AbstractDbFileIterator() {
-            private Iterator<Tuple> tupleIterator = null;
             private HeapPage currentPage = null;
+            // 当前页面中下一个要读取的slot，readNext和readNextBatch共用
+            private int nextSlot = 0;
+            // 连续顺序读取的页面数，达到READ_AHEAD_TRIGGER后开始预读
+            private int sequentialPages = 0;
+            private int readAheadWindow = 0;
+            // 下一个还没有请求预读的页号
+            private int nextPrefetch = 0;
+
             @Override
             protected Tuple readNext() throws DbException, TransactionAbortedException {
-                if(tupleIterator==null || currentPage==null) return null;
-                if(tupleIterator.hasNext()) return tupleIterator.next();
-                else {
-                    if(currentPage.pid.getPageNumber()+1<numPages()) {
-                        PageId pid = new HeapPageId(currentPage.pid.getTableId(), currentPage.pid.getPageNumber()+1);
-                        currentPage = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
-                        tupleIterator = currentPage.iterator();
-                        return readNext();
-                    } else return null;
+                if(currentPage==null) return null;
+                while (true) {
+                    while (nextSlot < currentPage.numSlots) {
+                        int slot = nextSlot++;
+                        if (currentPage.isSlotUsed(slot)) return currentPage.tupleAt(slot);
+                    }
+                    if(currentPage.pid.getPageNumber()+1>=numPages()) return null;
+                    loadPage(currentPage.pid.getPageNumber()+1);
                 }
             }
 
+            private void loadPage(int pageNo) throws DbException, TransactionAbortedException {
+                PageId pid = new HeapPageId(getId(), pageNo);
+                currentPage = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                nextSlot = 0;
+                readAhead(pageNo);
+            }
+
+            // 直接从页面字节解码到batch中，不创建Tuple
+            @Override
+            protected boolean readNextBatch(TupleBatch batch) throws DbException, TransactionAbortedException {
+                if (currentPage == null) return false;
+                int before = batch.numRows();
+                while (!batch.isFull()) {
+                    nextSlot = currentPage.readInto(batch, nextSlot);
+                    if (nextSlot < currentPage.numSlots) break;
+                    if (currentPage.pid.getPageNumber() + 1 >= numPages()) break;
+                    loadPage(currentPage.pid.getPageNumber() + 1);
+                }
+                return batch.numRows() > before;
+            }
+
+            /**
+             * Once the scan has read READ_AHEAD_TRIGGER pages in a row, ask the
+             * buffer pool to load the pages ahead of it. Each time half of the
+             * window has been consumed the next window is requested, doubling
+             * in size up to the buffer pool's limit.
+             */
+            private void readAhead(int pageNo) {
+                BufferPool bufferPool = Database.getBufferPool();
+                int maxWindow = bufferPool.getMaxReadAhead();
+                if (maxWindow == 0 || ++sequentialPages < READ_AHEAD_TRIGGER) return;
+                if (nextPrefetch - pageNo > readAheadWindow / 2) return;
+                readAheadWindow = Math.min(readAheadWindow == 0 ? INITIAL_READ_AHEAD : readAheadWindow * 2, maxWindow);
+                int from = Math.max(nextPrefetch, pageNo + 1);
+                int to = Math.min(numPages(), pageNo + 1 + readAheadWindow);
+                if (from >= to) return;
+                List<PageId> pids = new ArrayList<>(to - from);
+                for (int i = from; i < to; i++) {
+                    pids.add(new HeapPageId(getId(), i));
+                }
+                bufferPool.prefetchPages(pids);
+                nextPrefetch = to;
+            }
+
             @Override
             public void open() throws DbException, TransactionAbortedException {
-                PageId pid = new HeapPageId(getId(), 0);
-                currentPage = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
-                tupleIterator = currentPage.iterator();
+                sequentialPages = 0;
+                readAheadWindow = 0;
+                nextPrefetch = 0;
+                loadPage(0);
             }
 
             @Override
@@ -205,11 +602,9 @@ public class HeapFile implements DbFile {
             @Override
             public void close() {
                 super.close();
-                tupleIterator = null;
                 currentPage = null;
             }
         };
     }
 
 }
-
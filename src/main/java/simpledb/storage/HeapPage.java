@@ -3,6 +3,7 @@ package simpledb.storage;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
+import simpledb.common.Type;
 import simpledb.common.Catalog;
 import simpledb.transaction.TransactionId;
 
@@ -15,6 +16,12 @@ import static java.lang.StrictMath.floor;
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The page keeps the bytes it was read from and decodes nothing up front.
+ * The header bits are tested in place, and tuples are views that decode
+ * their fields from fixed offsets only when an operator asks for them.
+ * Inserting a tuple encodes it straight into the page bytes, so
+ * getPageData is a plain copy.
  *
  * @see HeapFile
  * @see BufferPool
@@ -24,9 +31,17 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte[] header;
-    final Tuple[] tuples;
+    // 整个页面的字节，header位于开头
+    private byte[] data;
+    // 已经创建过的tuple，按slot缓存，避免重复扫描时重新分配
+    private final Tuple[] tuples;
+    // data是否已被延迟解码的tuple引用；为true时修改data前需要先复制一份
+    private boolean shared = false;
+    // 在此之前的slot都已被占用，插入时从这里开始找空位，批量插入时不必每次从头扫描header
+    private int firstFreeHint = 0;
     final int numSlots;
+    private final int headerSize;
+    private final int tupleSize;
     private TransactionId dirtyTid=null;
     private boolean isDirty=false;
 
@@ -53,22 +68,11 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
+        this.headerSize = getHeaderSize();
+        this.tupleSize = td.getSize();
+        // 只复制一次原始字节（不足一页时补0），不解码任何tuple
+        this.data = Arrays.copyOf(data, BufferPool.getPageSize());
+        this.tuples = new Tuple[numSlots];
 
         setBeforeImage();
     }
@@ -77,6 +81,11 @@ public class HeapPage implements Page {
         @return the number of tuples on this page
     */
     private int getNumTuples() {
+        return getNumTuples(td);
+    }
+
+    /** Retrieve the number of tuple slots on a page of a table with the given schema. */
+    static int getNumTuples(TupleDesc td) {
         return (int) floor((double) (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1));
     }
 
@@ -85,7 +94,23 @@ public class HeapPage implements Page {
      * @return the number of bytes in the header of a page in a HeapFile with each tuple occupying tupleSize bytes
      */
     private int getHeaderSize() {
-        return (int) ceil((double) getNumTuples() / 8);
+        return getHeaderSize(td);
+    }
+
+    /** Computes the number of header bytes of a page of a table with the given schema. */
+    static int getHeaderSize(TupleDesc td) {
+        return (int) ceil((double) getNumTuples(td) / 8);
+    }
+
+    /**
+     * Returns true if the given header, as stored at the start of a page's
+     * bytes, marks at least one of the numSlots slots as empty.
+     */
+    static boolean hasEmptySlot(byte[] header, int numSlots) {
+        for (int i = 0; i < numSlots; i++) {
+            if ((header[i/8] & (1<<(i%8))) == 0) return true;
+        }
+        return false;
     }
     
     /** Return a view of this page before it was modified
@@ -109,7 +134,7 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        oldData = getPageData();
         }
     }
 
@@ -121,37 +146,46 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Return the tuple in the given slot, creating a view of the page bytes
+     * the first time the slot is read.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    Tuple tupleAt(int slotId) {
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            t = new Tuple(td, new RecordId(pid, slotId), data, headerSize + slotId * tupleSize);
+            tuples[slotId] = t;
+            shared = true;
         }
+        return t;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+    /**
+     * Append the tuples in used slots, starting at fromSlot, to batch until it
+     * is full. Fields are decoded straight from the page bytes into the batch
+     * columns, so no Tuple is created.
+     *
+     * @return the slot to continue from, or the number of slots on this page
+     *         if every tuple has been read
+     */
+    public int readInto(TupleBatch batch, int fromSlot) {
+        int numFields = td.numFields();
+        int slot = fromSlot;
+        for (; slot < numSlots && !batch.isFull(); ++slot) {
+            if (!isSlotUsed(slot)) continue;
+            int row = batch.addRow();
+            int base = headerSize + slot * tupleSize;
+            for (int i = 0; i < numFields; i++) {
+                Type type = td.getFieldType(i);
+                int offset = base + td.getFieldOffset(i);
+                if (type == Type.INT_TYPE) {
+                    batch.setInt(row, i, Type.readInt(data, offset));
+                } else {
+                    batch.setField(row, i, type.parse(data, offset));
+                }
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+            batch.setRecordId(row, pid, slot);
         }
-
-        return t;
+        return slot;
     }
 
     /**
@@ -166,64 +200,7 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        return data.clone();
     }
 
     /**
@@ -252,6 +229,7 @@ public class HeapPage implements Page {
         int tupleId = t.getRecordId().getTupleNumber();
         if(!isSlotUsed(tupleId)) throw new DbException("Tuple slot is already empty.");
         markSlotUsed(tupleId, false);
+        tuples[tupleId] = null;
     }
 
     /**
@@ -264,16 +242,34 @@ public class HeapPage implements Page {
     public void insertTuple(Tuple t) throws DbException {
         if(!t.getTupleDesc().equals(td)) throw new DbException("Tuple Desc is mismatch.");
         int tupleId = -1;
-        for (int i = 0; i < tuples.length; ++i) {
+        for (int i = firstFreeHint; i < tuples.length; ++i) {
             if (!isSlotUsed(i)) {
                 tupleId = i;
                 break;
             }
         }
         if(tupleId == -1) throw new DbException("The page is full.");
+        // 之前交出去的tuple仍引用旧的字节，写入前先复制（copy on write）
+        if (shared) {
+            data = data.clone();
+            shared = false;
+            Arrays.fill(tuples, null);
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(tupleSize);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < td.numFields(); j++) {
+                t.getField(j).serialize(dos);
+            }
+            dos.flush();
+        } catch (IOException e) {
+            throw new DbException("Failed to serialize tuple: " + e.getMessage());
+        }
+        System.arraycopy(baos.toByteArray(), 0, data, headerSize + tupleId * tupleSize, tupleSize);
         t.setRecordId(new RecordId(pid, tupleId));
         tuples[tupleId] = t;
         markSlotUsed(tupleId, true);
+        firstFreeHint = tupleId + 1;
     }
 
     /**
@@ -310,15 +306,19 @@ public class HeapPage implements Page {
      * Returns true if associated slot on this page is filled.
      */
     public boolean isSlotUsed(int i) {
-        return (header[i/8] & (1<<(i%8))) != 0;
+        return (data[i/8] & (1<<(i%8))) != 0;
     }
 
     /**
      * Abstraction to fill or clear a slot on this page.
      */
     private void markSlotUsed(int i, boolean value) {
-        if(value) header[i/8] |= 1<<(i%8);
-        else header[i/8] &= ~(1<<(i%8));
+        // header不会被tuple引用，可以直接修改
+        if(value) data[i/8] |= 1<<(i%8);
+        else {
+            data[i/8] &= ~(1<<(i%8));
+            firstFreeHint = Math.min(firstFreeHint, i);
+        }
     }
 
     /**
@@ -336,7 +336,8 @@ public class HeapPage implements Page {
 
             @Override
             public Tuple next() {
-                return tuples[currentIndex++];
+                if (!hasNext()) throw new NoSuchElementException();
+                return tupleAt(currentIndex++);
             }
         };
     }
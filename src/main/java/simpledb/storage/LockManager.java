@@ -4,10 +4,28 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.Serializable;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.BiConsumer;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * LockManager implements page-level shared/exclusive locks for strict
+ * two-phase locking.
+ * <p>
+ * Every locked page has its own lock entry holding the granted locks and a
+ * FIFO queue of waiting requests; a request that cannot be granted parks on
+ * the entry's monitor until a release wakes it up, so lock calls on
+ * different pages never contend. Blocked transactions are recorded in a
+ * wait-for graph, and each new wait checks the graph for a cycle. When a
+ * cycle is found, only the youngest transaction in it (the one with the
+ * largest id) is aborted. Every wait between transactions is a lock wait
+ * and so is in the graph, and a transaction that is not in a cycle waits as
+ * long as it takes. A lock wait timeout can be set as a last-resort
+ * safeguard; it is off by default.
+ * <p>
+ * The pages locked by each transaction are indexed as well, so completing a
+ * transaction only touches the locks it holds.
+ */
 public class LockManager {
 
     public static class PageLock implements Serializable {
@@ -34,13 +52,64 @@ public class LockManager {
             return type + " " + transactionId;
         }
     }
+
+    /**
+     * 一个页面上的锁状态：已授予的锁和等待队列，由该对象自身的monitor保护
+     */
+    private static class LockEntry {
+        final Map<TransactionId, PageLock> holders = new HashMap<>();
+        final LinkedList<PageLock> waiters = new LinkedList<>();
+        // 已从pageLockMap中移除，持有该引用的线程需要重新获取entry
+        boolean removed = false;
+        // 正在entry的monitor上等待的线程数
+        int sleepers = 0;
+    }
+
     /**
      * 记录某个页面是否被加锁了,如果被加锁了,那么是哪些事务加的锁
      */
-    private final Map<PageId, Map<TransactionId, PageLock>> pageLockMap;
+    private final Map<PageId, LockEntry> pageLockMap;
+
+    /**
+     * 记录每个事务持有锁的页面，事务结束时只需释放这些页面上的锁
+     */
+    private final Map<TransactionId, Set<PageId>> tidToLockedPages;
+
+    /**
+     * wait-for graph：等待中的事务 -> 它所等待的事务，以及它所等待的页面。
+     * 以下三个字段均由waitsFor的monitor保护；加锁顺序为先LockEntry后waitsFor。
+     */
+    private final Map<TransactionId, Set<TransactionId>> waitsFor;
+    private final Map<TransactionId, LockEntry> waitingOn;
+    private final Set<TransactionId> victims;
+
+    /** Lock wait timeout that lets lock requests wait until they are granted */
+    public static final long NO_LOCK_WAIT_TIMEOUT = 0;
+
+    private final long lockWaitTimeoutMs;
+
+    private final LongAdder waitCount = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder deadlockAborts = new LongAdder();
+    private final LongAdder lockWaitTimeouts = new LongAdder();
 
     public LockManager() {
+        this(NO_LOCK_WAIT_TIMEOUT);
+    }
+
+    /**
+     * @param lockWaitTimeoutMs how long a lock request may wait before its
+     *                          transaction is aborted, or
+     *                          {@link #NO_LOCK_WAIT_TIMEOUT} to abort only
+     *                          deadlock victims
+     */
+    public LockManager(long lockWaitTimeoutMs) {
+        this.lockWaitTimeoutMs = lockWaitTimeoutMs;
         pageLockMap = new ConcurrentHashMap<>();
+        tidToLockedPages = new ConcurrentHashMap<>();
+        waitsFor = new HashMap<>();
+        waitingOn = new HashMap<>();
+        victims = new HashSet<>();
     }
 
     /**
@@ -49,96 +118,249 @@ public class LockManager {
      * 锁管理器中没有任何锁或者该页面没有被任何事务加锁，可以直接加读/写锁；
      * 如果t在页面有锁，分以下情况讨论：
      * 2.1 加的是读锁：直接加锁；
-     * 2.2 加的是写锁：如果锁数量为1，进行锁升级；如果锁数量大于1，会死锁，抛异常中断事务；
+     * 2.2 加的是写锁：如果锁数量为1，进行锁升级；否则等待其他读锁释放（不排队，优先于等待队列）；
      * 如果t在页面无锁，分以下情况讨论：
-     * 3.1 页面有读锁：如果锁数量为1，这个锁是读锁则可以加，是写锁就wait；如果锁数量大于1，说明有很多读锁，直接加；
-     * 3.2 页面是写锁：不管是多个读锁还是一个写锁，都不能加，wait
+     * 3.1 等待队列为空且与已有的锁兼容（都是读锁）：直接加；
+     * 3.2 否则进入等待队列，按FIFO顺序依次授予。
+     * 等待前先在wait-for graph中检查死锁，若存在环则中止环中最年轻的事务。
+     *
+     * @return true once the lock is granted; the call blocks until then
+     * @throws TransactionAbortedException if tid was chosen as a deadlock victim
+     *                                     or waited longer than the lock wait timeout
      */
-    public synchronized boolean acquireLock(PageId pageId, TransactionId tid, PageLock.LockType acquireType) throws TransactionAbortedException, InterruptedException {
-        // 获取当前页面上已经添加的锁
-        Map<TransactionId, PageLock> lockMap = pageLockMap.get(pageId);
-        // 当前page还没有加过锁
-        if (lockMap == null || lockMap.size() == 0) {
-            PageLock pageLock = new PageLock(acquireType, tid);
-            lockMap = new ConcurrentHashMap<>();
-            lockMap.put(tid, pageLock);
-            // 记录当前页面被当前事务加了一把什么样的锁
-            pageLockMap.put(pageId, lockMap);
-            return true;
-        }
-        // 若当前事务在当前page上加过锁了
-        if (isHoldLock(pageId, tid)) {
-            // 若当前事务希望在当前page上加读锁，此时无论lock是读锁还是写锁都可以加锁成功
-            if (acquireType == PageLock.LockType.SHARE) {
-                return true;
-            // 若当前事务希望在当前page上加写锁
-            } else if (acquireType == PageLock.LockType.EXCLUSIVE) {
-                // 若存在其他事务在当前页面上加了读锁 --> 直接抛出异常,防止等待锁升级产生死锁问题
-                if (lockMap.size() > 1) {
-                    return false;
-//                    throw new TransactionAbortedException();
-                //  若当前事务在当前页面上已经加了写锁
-                } else {
-                    // 获取当前事务在当前页面上加的锁
-                    PageLock lock = lockMap.get(tid);
-                    if(lock.getType() == PageLock.LockType.EXCLUSIVE) {
-                        return true;
-                    // 若当前页面只存在当前事务加的读锁 --> 进行锁升级
-                    } else if(lock.getType() == PageLock.LockType.SHARE) {
-                        lock.setType(PageLock.LockType.EXCLUSIVE);
-                        lockMap.put(tid, lock);
-                        pageLockMap.put(pageId, lockMap);
-                        return true;
+    public boolean acquireLock(PageId pageId, TransactionId tid, PageLock.LockType acquireType) throws TransactionAbortedException, InterruptedException {
+        PageLock request = null;
+        long waitStart = 0;
+        while (true) {
+            LockEntry entry = pageLockMap.computeIfAbsent(pageId, k -> new LockEntry());
+            Set<TransactionId> blockers;
+            synchronized (entry) {
+                if (entry.removed) continue;
+                if (isVictim(tid)) {
+                    cancel(entry, request, tid);
+                    throw new TransactionAbortedException();
+                }
+                if (request != null && lockWaitTimeoutMs != NO_LOCK_WAIT_TIMEOUT
+                        && System.nanoTime() - waitStart >= lockWaitTimeoutMs * 1000000) {
+                    cancel(entry, request, tid);
+                    lockWaitTimeouts.increment();
+                    throw new TransactionAbortedException();
+                }
+                // 等待期间持有的锁被释放（或entry被替换）时，需要重新排队
+                if (request != null && !entry.holders.containsKey(tid) && !entry.waiters.contains(request)) {
+                    entry.waiters.add(request);
+                }
+                if (tryGrant(entry, pageId, tid, acquireType, request)) {
+                    if (request != null) {
+                        entry.waiters.remove(request);
+                        stopWaiting(tid);
+                        waitNanos.add(System.nanoTime() - waitStart);
+                        // 队列头部变化，后面的请求可能可以被授予了
+                        entry.notifyAll();
                     }
+                    return true;
                 }
-            } else {
-                throw new IllegalArgumentException("wrong acquireType");
+                if (request == null) {
+                    request = new PageLock(acquireType, tid);
+                    // 锁升级不排队，否则可能和排在前面的写请求互相等待
+                    if (!entry.holders.containsKey(tid)) {
+                        entry.waiters.add(request);
+                    }
+                    waitCount.increment();
+                    waitStart = System.nanoTime();
+                }
+                blockers = blockers(entry, tid, request);
             }
-        // 若当前事务在当前page没加过锁
-        } else {
-            // 如果当前事务想要加共享锁
-            if (acquireType == PageLock.LockType.SHARE) {
-                PageLock.LockType addedLock = lockMap.values().iterator().next().getType();
-                // 当前页面已经被其他事务加了读锁，此处的读锁也可以直接加
-                if (addedLock == PageLock.LockType.SHARE) {
-                    PageLock pageLock = new PageLock(acquireType, tid);
-                    lockMap.put(tid, pageLock);
-                    pageLockMap.put(pageId, lockMap);
-                    return true;
-                // 若当前页面只有一个锁，并且为写锁，则等待
-                } else if (addedLock == PageLock.LockType.EXCLUSIVE){
-                    wait(5);
-                    return false;
-                } else {
-                    throw new IllegalArgumentException("wrong addedLock Type");
+
+            // 在LockEntry的monitor之外检测死锁，唤醒被选中的其他事务时不会与其他entry形成嵌套
+            LockEntry victimEntry = null;
+            synchronized (waitsFor) {
+                waitsFor.put(tid, blockers);
+                waitingOn.put(tid, entry);
+                TransactionId victim = findDeadlockVictim(tid);
+                if (victim != null) {
+                    victims.add(victim);
+                    waitsFor.remove(victim);
+                    victimEntry = waitingOn.remove(victim);
+                    deadlockAborts.increment();
+                }
+            }
+            if (victimEntry != null) {
+                synchronized (victimEntry) {
+                    victimEntry.notifyAll();
+                }
+            }
+
+            synchronized (entry) {
+                // 再次检查，避免在两个同步块之间错过唤醒
+                // 不限时等待时remaining为0，wait(0)一直等到被唤醒
+                long remaining = lockWaitTimeoutMs == NO_LOCK_WAIT_TIMEOUT ? 0
+                        : Math.max(1, lockWaitTimeoutMs - (System.nanoTime() - waitStart) / 1000000);
+                if (!entry.removed && !isVictim(tid) && !canGrant(entry, tid, acquireType, request)) {
+                    entry.sleepers++;
+                    try {
+                        entry.wait(remaining);
+                    } finally {
+                        entry.sleepers--;
+                    }
                 }
-            // 如果当前事务想要加写锁,那么直接等待 --> 因为当前页面上存在其他事务加的锁,无论锁类型是什么,都与写锁互斥,所以直接等待即可
-            } else if (acquireType == PageLock.LockType.EXCLUSIVE) {
-                wait(5);
-                return false;
-            } else {
-                throw new IllegalArgumentException("wrong acquireType");
             }
         }
+    }
+
+    /**
+     * Grant the lock if it is compatible with the locks held by other
+     * transactions and the request is not queued behind earlier requests.
+     */
+    private boolean tryGrant(LockEntry entry, PageId pageId, TransactionId tid, PageLock.LockType acquireType,
+                             PageLock request) {
+        if (!canGrant(entry, tid, acquireType, request)) return false;
+        PageLock held = entry.holders.get(tid);
+        if (held == null) {
+            entry.holders.put(tid, new PageLock(acquireType, tid));
+            tidToLockedPages.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pageId);
+        } else if (acquireType == PageLock.LockType.EXCLUSIVE) {
+            // 锁升级
+            held.setType(PageLock.LockType.EXCLUSIVE);
+        }
         return true;
     }
 
+    private boolean canGrant(LockEntry entry, TransactionId tid, PageLock.LockType acquireType, PageLock request) {
+        PageLock held = entry.holders.get(tid);
+        if (held != null) {
+            // 已持有写锁，或已持有读锁且只申请读锁
+            if (held.getType() == PageLock.LockType.EXCLUSIVE || acquireType == PageLock.LockType.SHARE) {
+                return true;
+            }
+            // 锁升级：当前事务是唯一的持有者
+            return entry.holders.size() == 1;
+        }
+        // 排在前面的请求先被授予
+        PageLock head = entry.waiters.peekFirst();
+        if (head != null && head != request) return false;
+        if (entry.holders.isEmpty()) return true;
+        if (acquireType == PageLock.LockType.EXCLUSIVE) return false;
+        for (PageLock lock : entry.holders.values()) {
+            if (lock.getType() == PageLock.LockType.EXCLUSIVE) return false;
+        }
+        return true;
+    }
+
+    /**
+     * The transactions tid waits for: the other holders of the page and, unless
+     * the request is an upgrade, the transactions queued ahead of it.
+     */
+    private Set<TransactionId> blockers(LockEntry entry, TransactionId tid, PageLock request) {
+        Set<TransactionId> blockers = new HashSet<>();
+        for (TransactionId holder : entry.holders.keySet()) {
+            if (!holder.equals(tid)) blockers.add(holder);
+        }
+        for (PageLock waiter : entry.waiters) {
+            if (waiter == request) break;
+            if (!waiter.transactionId.equals(tid)) blockers.add(waiter.transactionId);
+        }
+        return blockers;
+    }
+
+    /**
+     * Look for a cycle in the wait-for graph through tid and return the
+     * youngest transaction on it, or null if tid is not deadlocked.
+     * Must be called holding the waitsFor monitor.
+     */
+    private TransactionId findDeadlockVictim(TransactionId tid) {
+        Deque<TransactionId> path = new ArrayDeque<>();
+        Set<TransactionId> visited = new HashSet<>();
+        if (!findCycle(tid, tid, path, visited)) return null;
+        TransactionId youngest = tid;
+        for (TransactionId t : path) {
+            if (t.getId() > youngest.getId()) youngest = t;
+        }
+        return youngest;
+    }
+
+    // 深度优先搜索从current回到start的路径，path中记录环上的事务
+    private boolean findCycle(TransactionId start, TransactionId current, Deque<TransactionId> path,
+                              Set<TransactionId> visited) {
+        Set<TransactionId> next = waitsFor.get(current);
+        if (next == null) return false;
+        path.push(current);
+        for (TransactionId t : next) {
+            if (t.equals(start)) return true;
+            if (visited.add(t) && findCycle(start, t, path, visited)) return true;
+        }
+        path.pop();
+        return false;
+    }
+
+    private boolean isVictim(TransactionId tid) {
+        synchronized (waitsFor) {
+            return victims.contains(tid);
+        }
+    }
+
+    private void stopWaiting(TransactionId tid) {
+        synchronized (waitsFor) {
+            waitsFor.remove(tid);
+            waitingOn.remove(tid);
+            victims.remove(tid);
+        }
+    }
+
+    // 放弃等待：从等待队列中移除请求，并唤醒排在后面的请求
+    private void cancel(LockEntry entry, PageLock request, TransactionId tid) {
+        if (request != null && entry.waiters.remove(request)) {
+            if (entry.holders.isEmpty() && entry.waiters.isEmpty()) {
+                entry.removed = true;
+                pageLockMap.values().remove(entry);
+            }
+            entry.notifyAll();
+        }
+        stopWaiting(tid);
+    }
+
     /**
      * 释放指定页面的指定事务加的锁
      *
      * @param pageId 页id
      * @param tid    事务id
      */
-    public synchronized void releaseLock(PageId pageId, TransactionId tid) {
-        Map<TransactionId, PageLock> lockMap = pageLockMap.get(pageId);
-        if (lockMap == null || tid == null || lockMap.get(tid) == null) {
+    public void releaseLock(PageId pageId, TransactionId tid) {
+        if (tid == null) {
             return;
         }
-        lockMap.remove(tid);
-        if (lockMap.size() == 0) {
-            pageLockMap.remove(pageId);
+        Set<PageId> lockedPages = tidToLockedPages.get(tid);
+        if (lockedPages != null) {
+            lockedPages.remove(pageId);
+        }
+        LockEntry entry = release(pageId, tid);
+        if (entry != null) {
+            synchronized (entry) {
+                entry.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 释放锁但不唤醒等待者
+     *
+     * @return 仍有请求在等待的entry，调用者负责唤醒；没有等待者时返回null
+     */
+    private LockEntry release(PageId pageId, TransactionId tid) {
+        LockEntry entry = pageLockMap.get(pageId);
+        if (entry == null) {
+            return null;
+        }
+        synchronized (entry) {
+            if (entry.holders.remove(tid) == null) {
+                return null;
+            }
+            if (entry.holders.isEmpty() && entry.waiters.isEmpty()) {
+                entry.removed = true;
+                pageLockMap.remove(pageId, entry);
+            }
+            return entry.sleepers > 0 ? entry : null;
         }
-        this.notifyAll();
     }
 
     /**
@@ -148,18 +370,54 @@ public class LockManager {
      * @param tid    事务id
      * @return 事务是否持有对应页的锁
      */
-    public synchronized boolean isHoldLock(PageId pageId, TransactionId tid) {
-        Map<TransactionId, PageLock> lockMap = pageLockMap.get(pageId);
-        if (lockMap == null) {
+    public boolean isHoldLock(PageId pageId, TransactionId tid) {
+        LockEntry entry = pageLockMap.get(pageId);
+        if (entry == null) {
             return false;
         }
-        return lockMap.get(tid) != null;
+        synchronized (entry) {
+            return entry.holders.containsKey(tid);
+        }
     }
 
     /**
      * 释放事务对所有页面的锁
      */
-    public synchronized void completeTransaction(TransactionId tid) {
-        pageLockMap.forEach((pageId, transactionIdPageLockMap) -> releaseLock(pageId, tid));
+    public void completeTransaction(TransactionId tid) {
+        Set<PageId> lockedPages = tidToLockedPages.remove(tid);
+        if (lockedPages != null) {
+            // 先释放全部锁，再统一唤醒等待者，被唤醒的请求不会因为本事务尚未释放的其他锁而再次阻塞
+            List<LockEntry> toWake = new ArrayList<>();
+            for (PageId pageId : lockedPages) {
+                LockEntry entry = release(pageId, tid);
+                if (entry != null) toWake.add(entry);
+            }
+            for (LockEntry entry : toWake) {
+                synchronized (entry) {
+                    entry.notifyAll();
+                }
+            }
+        }
+        stopWaiting(tid);
+    }
+
+    /** Return the number of lock requests that had to wait */
+    public long getWaitCount() {
+        return waitCount.sum();
+    }
+
+    /** Return the total time lock requests spent waiting before being granted, in milliseconds */
+    public long getWaitTimeMillis() {
+        return waitNanos.sum() / 1000000;
+    }
+
+    /** Return the number of transactions aborted to break a deadlock */
+    public long getDeadlockAborts() {
+        return deadlockAborts.sum();
+    }
+
+    /** Return the number of transactions aborted because a lock wait timed out */
+    public long getLockWaitTimeouts() {
+        return lockWaitTimeouts.sum();
     }
 }
@@ -6,8 +6,11 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Debug;
 
 import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.lang.reflect.*;
+import java.util.concurrent.atomic.LongAdder;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -36,6 +39,17 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<u> Group commit: </u>
+<p>
+
+By default every commit forces the log to disk itself.  After
+enableGroupCommit(), forces requested through force() and logCommit()
+are instead handed to a LogFlusher thread: the caller appends its
+records, leaves the monitor and waits until the flusher has forced the
+log past its last record, so many committers share one fsync.  Methods
+that force while holding the BufferPool lock (abort, checkpoint) still
+force directly.
 */
 
 /**
@@ -92,6 +106,11 @@ public class LogFile {
     long currentOffset = -1;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
+    // 已追加的日志记录数，作为group commit中的LSN //protected by this
+    long appendedLsn = 0;
+
+    private volatile LogFlusher flusher;
+    private final LongAdder forceCount = new LongAdder();
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
 
@@ -127,6 +146,7 @@ public class LogFile {
     // the log.
     void preAppend() throws IOException {
         totalRecords++;
+        appendedLsn++;
         if(recoveryUndecided){
             recoveryUndecided = false;
             raf.seek(0);
@@ -164,7 +184,7 @@ public class LogFile {
                 raf.writeLong(tid.getId());
                 raf.writeLong(currentOffset);
                 currentOffset = raf.getFilePointer();
-                force();
+                forceNow();
                 tidToFirstLogRecord.remove(tid.getId());
             }
         }
@@ -175,17 +195,26 @@ public class LogFile {
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            raf.writeInt(COMMIT_RECORD);
+            raf.writeLong(tid.getId());
+            raf.writeLong(currentOffset);
+            currentOffset = raf.getFilePointer();
+            tidToFirstLogRecord.remove(tid.getId());
+            lsn = appendedLsn;
+            if (flusher == null) {
+                forceNow();
+                return;
+            }
+        }
+        // 在monitor之外等待，其他事务可以继续追加日志并共享同一次force
+        flusher.awaitDurable(lsn);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -319,7 +348,7 @@ public class LogFile {
                 long startCpOffset, endCpOffset;
                 Set<Long> keys = tidToFirstLogRecord.keySet();
                 Iterator<Long> els = keys.iterator();
-                force();
+                forceNow();
                 Database.getBufferPool().flushAllPages();
                 startCpOffset = raf.getFilePointer();
                 raf.writeInt(CHECKPOINT_RECORD);
@@ -473,6 +502,7 @@ public class LogFile {
     */
     public synchronized void shutdown() {
         try {
+            disableGroupCommit();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
             raf.close();
         } catch (IOException e) {
@@ -492,7 +522,9 @@ public class LogFile {
                 raf.seek(0);
                 Set<Long> commitId = new HashSet<>();
                 Map<Long, List<Page>> beforePages = new HashMap<>();
-                Map<Long, List<Page>> afterPages = new HashMap<>();
+                // 按日志顺序记录所有更新，重放时后面的after image覆盖前面的
+                List<Long> updateTids = new ArrayList<>();
+                List<Page> afterPages = new ArrayList<>();
                 // 记录checkpoint时间点所有活跃的事务,判断是回滚还是重放
                 Map<Long, Long> activeTransactions = new HashMap<>();
                 // 获取最新checkpoint位置
@@ -525,9 +557,8 @@ public class LogFile {
                             List<Page> before = beforePages.getOrDefault(cpTid, new ArrayList<>());
                             before.add(before_image);
                             beforePages.put(cpTid, before);
-                            List<Page> after = afterPages.getOrDefault(cpTid, new ArrayList<>());
-                            after.add(after_image);
-                            afterPages.put(cpTid, after);
+                            updateTids.add(cpTid);
+                            afterPages.add(after_image);
                             break;
                     }
                     raf.readLong();
@@ -543,13 +574,11 @@ public class LogFile {
                     }
                 }
 
-                // 处理已提交的事务
-                for (Long tid : afterPages.keySet()) {
-                    if (commitId.contains(tid)) {
-                        List<Page> pages = afterPages.get(tid);
-                        for (Page page : pages) {
-                            Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
-                        }
+                // 处理已提交的事务，按日志顺序重放
+                for (int i = 0; i < afterPages.size(); i++) {
+                    if (commitId.contains(updateTids.get(i))) {
+                        Page page = afterPages.get(i);
+                        Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
                     }
                 }
 
@@ -681,8 +710,81 @@ public class LogFile {
         raf.seek(curOffset);
     }
 
-    public  synchronized void force() throws IOException {
+    /** Force all log records appended so far to disk.  With group commit
+        enabled the caller waits for the flusher instead of forcing itself,
+        unless it already holds this LogFile's lock (e.g. pages flushed by a
+        checkpoint), in which case it forces directly.
+    */
+    public void force() throws IOException {
+        LogFlusher f = flusher;
+        if (f == null || Thread.holdsLock(this)) {
+            synchronized (this) {
+                forceNow();
+            }
+            return;
+        }
+        long lsn;
+        synchronized (this) {
+            lsn = appendedLsn;
+        }
+        f.awaitDurable(lsn);
+    }
+
+    // must hold this LogFile's lock
+    private void forceNow() throws IOException {
         raf.getChannel().force(true);
+        forceCount.increment();
+    }
+
+    /** Force the log without holding this LogFile's lock while the disk
+        is busy, so other transactions can keep appending.  Used by the
+        LogFlusher.
+
+        @return the LSN of the last record that is now on disk
+    */
+    long forceAppended() throws IOException {
+        while (true) {
+            FileChannel channel;
+            long lsn;
+            synchronized (this) {
+                channel = raf.getChannel();
+                lsn = appendedLsn;
+            }
+            try {
+                channel.force(true);
+                forceCount.increment();
+                return lsn;
+            } catch (ClosedChannelException e) {
+                // 日志被截断后raf被替换，对新文件重新force
+                synchronized (this) {
+                    if (raf.getChannel() == channel) throw e;
+                }
+            }
+        }
+    }
+
+    /** Turn on group commit: forces are batched by a background flusher
+        thread that waits at most maxDelayMillis for more committers to
+        join a batch, or until maxBatchSize of them are waiting.
+        Calling it again replaces the current settings.
+    */
+    public synchronized void enableGroupCommit(long maxDelayMillis, int maxBatchSize) {
+        disableGroupCommit();
+        flusher = new LogFlusher(this, maxDelayMillis, maxBatchSize);
+        flusher.start();
+    }
+
+    /** Turn off group commit after forcing every pending batch. */
+    public synchronized void disableGroupCommit() {
+        if (flusher != null) {
+            flusher.stop();
+            flusher = null;
+        }
+    }
+
+    /** Return the number of times the log has been forced to disk */
+    public long getForceCount() {
+        return forceCount.sum();
     }
 
 }
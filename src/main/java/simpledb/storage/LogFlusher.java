@@ -0,0 +1,125 @@
+package simpledb.storage;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * LogFlusher is the background thread behind group commit. Transactions that
+ * need the log on disk call {@link #awaitDurable(long)} with the LSN of their
+ * last record and block; the flusher waits a short while for more of them to
+ * arrive, forces the log once and wakes every transaction whose records are
+ * now durable.
+ * <p>
+ * A batch is forced as soon as maxBatchSize transactions are waiting or the
+ * oldest of them has waited maxDelayMillis, whichever comes first.
+ *
+ * @see LogFile#enableGroupCommit(long, int)
+ */
+class LogFlusher implements Runnable {
+
+    private final LogFile log;
+    private final long maxDelayMillis;
+    private final int maxBatchSize;
+    private final Thread thread;
+
+    // 以下字段由this的monitor保护
+    // 已请求持久化的最大LSN
+    private long requestedLsn = 0;
+    // 已经force到磁盘的最大LSN
+    private long durableLsn = 0;
+    // 当前批次中等待的事务数
+    private int waiting = 0;
+    private IOException failure;
+    private boolean stopped = false;
+
+    LogFlusher(LogFile log, long maxDelayMillis, int maxBatchSize) {
+        this.log = log;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.thread = new Thread(this, "log-flusher");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stop accepting batches. Requests that are already waiting are still
+     * forced by the flusher thread; this method does not wait for that, so it
+     * may be called while holding the LogFile's lock.
+     */
+    synchronized void stop() {
+        stopped = true;
+        notifyAll();
+    }
+
+    /**
+     * Block until every log record up to and including lsn is on disk.
+     *
+     * @throws IOException if forcing the log failed
+     */
+    void awaitDurable(long lsn) throws IOException {
+        synchronized (this) {
+            if (lsn <= durableLsn) return;
+            if (!stopped) {
+                if (lsn > requestedLsn) requestedLsn = lsn;
+                waiting++;
+                notifyAll();
+                try {
+                    while (durableLsn < lsn && failure == null && !stopped) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("interrupted while waiting for group commit");
+                }
+                if (failure != null) throw new IOException("group commit failed", failure);
+                if (durableLsn >= lsn) return;
+            }
+        }
+        // 已停止：由调用者自己force
+        long forced = log.forceAppended();
+        synchronized (this) {
+            if (forced > durableLsn) durableLsn = forced;
+        }
+    }
+
+    public void run() {
+        while (true) {
+            synchronized (this) {
+                try {
+                    while (requestedLsn <= durableLsn && !stopped) {
+                        wait();
+                    }
+                    if (requestedLsn <= durableLsn) return;
+                    // 等待更多事务加入本批次，直到批次满或超过最大延迟
+                    long deadline = System.currentTimeMillis() + maxDelayMillis;
+                    long remaining = maxDelayMillis;
+                    while (waiting < maxBatchSize && remaining > 0 && !stopped) {
+                        wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                } catch (InterruptedException e) {
+                    // 只会在JVM退出时发生，唤醒所有等待者后结束
+                    stopped = true;
+                    notifyAll();
+                    return;
+                }
+                waiting = 0;
+            }
+            try {
+                long forced = log.forceAppended();
+                synchronized (this) {
+                    if (forced > durableLsn) durableLsn = forced;
+                    notifyAll();
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+}
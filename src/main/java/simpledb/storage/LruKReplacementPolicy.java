@@ -0,0 +1,76 @@
+package simpledb.storage;
+
+import java.util.function.IntPredicate;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). The victim is the frame whose
+ * K-th most recent reference is the oldest; frames referenced fewer than K
+ * times have an infinite backward K-distance and are evicted first, least
+ * recently used among them first. A sequential scan touches each page once,
+ * so its pages are thrown out before pages that are looked up repeatedly,
+ * such as B+ tree root and internal pages.
+ * <p>
+ * The last K reference times of every frame are kept in one long array, so
+ * recording a reference never allocates.
+ */
+public class LruKReplacementPolicy implements ReplacementPolicy {
+
+    /** K used by {@link BufferPool} unless another policy is passed in. */
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    // history[frame * k + i] 为该frame第i+1近一次被访问的逻辑时间，0表示没有记录
+    private final long[] history;
+    private long clock = 0;
+
+    /**
+     * @param numFrames the number of frames in the BufferPool
+     * @param k the number of references remembered per frame; must be at least 1
+     */
+    public LruKReplacementPolicy(int numFrames, int k) {
+        if (k < 1) throw new IllegalArgumentException("k must be at least 1");
+        this.k = k;
+        this.history = new long[numFrames * k];
+    }
+
+    public LruKReplacementPolicy(int numFrames) {
+        this(numFrames, DEFAULT_K);
+    }
+
+    public void recordAccess(int frame) {
+        int base = frame * k;
+        // 将历史记录后移一位，腾出最近一次访问的位置
+        System.arraycopy(history, base, history, base + 1, k - 1);
+        history[base] = ++clock;
+    }
+
+    public void remove(int frame) {
+        int base = frame * k;
+        for (int i = 0; i < k; i++) {
+            history[base + i] = 0;
+        }
+    }
+
+    public int chooseVictim(IntPredicate evictable) {
+        int victim = -1;
+        long victimKth = Long.MAX_VALUE;
+        long victimLast = Long.MAX_VALUE;
+        int numFrames = history.length / k;
+        for (int frame = 0; frame < numFrames; frame++) {
+            if (!evictable.test(frame)) continue;
+            long kth = history[frame * k + k - 1];
+            long last = history[frame * k];
+            // 第K次访问越早（为0时表示访问不足K次）越先被淘汰，相同时按最近一次访问的LRU顺序
+            if (kth < victimKth || (kth == victimKth && last < victimLast)) {
+                victim = frame;
+                victimKth = kth;
+                victimLast = last;
+            }
+        }
+        return victim;
+    }
+
+    public String toString() {
+        return "LRU-" + k;
+    }
+}
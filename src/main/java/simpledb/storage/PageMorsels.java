@@ -0,0 +1,63 @@
+package simpledb.storage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PageMorsels hands out the pages of a file to the scans of a parallel query
+ * in small ranges of consecutive pages, called morsels. A scan claims the
+ * next morsel whenever it has read the previous one, so the pages are split
+ * among the scans as they go: a worker that is slowed down reads fewer
+ * morsels, and all workers run out of pages at about the same time.
+ *
+ * @see HeapFile#iterator(simpledb.transaction.TransactionId, PageMorsels)
+ */
+public class PageMorsels {
+
+    /** The default number of pages in a morsel. */
+    public static final int DEFAULT_MORSEL_PAGES = 16;
+
+    private final int morselPages;
+    // 下一个morsel的第一页
+    private final AtomicInteger next = new AtomicInteger();
+
+    public PageMorsels() {
+        this(DEFAULT_MORSEL_PAGES);
+    }
+
+    /**
+     * @param morselPages the number of pages in a morsel
+     */
+    public PageMorsels(int morselPages) {
+        if (morselPages <= 0) {
+            throw new IllegalArgumentException("a morsel needs at least one page");
+        }
+        this.morselPages = morselPages;
+    }
+
+    /** @return the number of pages in a morsel */
+    public int morselPages() {
+        return morselPages;
+    }
+
+    /**
+     * Claim the next morsel of a file. Safe to call from many threads; every
+     * page is handed out once until {@link #reset()}.
+     *
+     * @param numPages the number of pages in the file
+     * @return the first page of the morsel, or -1 if all pages have been
+     *         handed out
+     */
+    public int claim(int numPages) {
+        if (next.get() >= numPages) return -1;
+        int start = next.getAndAdd(morselPages);
+        return start < numPages ? start : -1;
+    }
+
+    /**
+     * Hand out the pages again from the first page, e.g. before the scans
+     * sharing the morsels are rewound. Must not be called while they run.
+     */
+    public void reset() {
+        next.set(0);
+    }
+}
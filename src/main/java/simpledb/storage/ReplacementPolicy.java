@@ -0,0 +1,45 @@
+package simpledb.storage;
+
+import java.util.function.IntPredicate;
+
+/**
+ * ReplacementPolicy decides which frame of the BufferPool is evicted when the
+ * pool is full. Frames are identified by their index in the BufferPool's page
+ * array, so implementations can keep their bookkeeping in primitive arrays
+ * sized to the number of frames and never allocate on the getPage path.
+ * <p>
+ * The BufferPool calls a policy from many threads without any common lock,
+ * holding at most the latch of the frame concerned. The reference history is
+ * only a heuristic, so implementations may lose updates when threads race,
+ * but they must stay within their arrays. The BufferPool re-checks every
+ * victim under its latch before evicting it.
+ *
+ * @see BufferPool
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Record a reference to the page currently held in the given frame. Called
+     * on every BufferPool hit and after a page has been loaded into a frame.
+     *
+     * @param frame the index of the referenced frame
+     */
+    void recordAccess(int frame);
+
+    /**
+     * Forget the history of the given frame, e.g. because its page has been
+     * evicted or discarded and the frame is free again.
+     *
+     * @param frame the index of the frame that was emptied
+     */
+    void remove(int frame);
+
+    /**
+     * Choose a frame to evict.
+     *
+     * @param evictable tells whether the page in a frame may be evicted (for
+     *                  example, it is clean); frames rejected by it are skipped
+     * @return the index of the victim frame, or -1 if no frame is evictable
+     */
+    int chooseVictim(IntPredicate evictable);
+}
@@ -0,0 +1,173 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+
+import java.io.*;
+
+/**
+ * A temporary file of tuples, created by {@link TempFileManager}. Tuples are
+ * appended through a large write buffer, so the file is written sequentially,
+ * and once writing is finished they can be read back any number of times in
+ * the order they were appended. Each tuple takes {@link TupleDesc#getSize()}
+ * bytes, in the same format as on a HeapPage.
+ */
+public class SpillFile {
+
+    // 写缓冲和读缓冲的大小
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final TempFileManager manager;
+    private final File file;
+    private final TupleDesc td;
+    private DataOutputStream out;
+    private long numTuples = 0;
+    private boolean deleted = false;
+
+    SpillFile(TempFileManager manager, File file, TupleDesc td) {
+        this.manager = manager;
+        this.file = file;
+        this.td = td;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of tuples appended so far */
+    public long numTuples() {
+        return numTuples;
+    }
+
+    /** @return the number of bytes the tuples appended so far take on disk */
+    public long numBytes() {
+        return numTuples * td.getSize();
+    }
+
+    /**
+     * Append a tuple to the end of the file.
+     *
+     * @throws IllegalStateException if writing has been finished
+     */
+    public void append(Tuple t) throws DbException {
+        if (deleted || (out == null && numTuples > 0)) {
+            throw new IllegalStateException("spill file is no longer writable");
+        }
+        try {
+            if (out == null) {
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+            }
+            for (int i = 0; i < td.numFields(); i++) {
+                t.getField(i).serialize(out);
+            }
+        } catch (IOException e) {
+            throw new DbException("Failed to write spill file: " + e.getMessage());
+        }
+        numTuples++;
+    }
+
+    /**
+     * Flush the buffered tuples and close the file for writing. Called by
+     * {@link #iterator()} if it has not been called before.
+     */
+    public void finishWriting() throws DbException {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new DbException("Failed to write spill file: " + e.getMessage());
+        } finally {
+            out = null;
+        }
+    }
+
+    /**
+     * @return an iterator over the tuples of this file, in the order they
+     *         were appended. Appending is finished first.
+     */
+    public DbFileIterator iterator() throws DbException {
+        finishWriting();
+        return new SpillFileIterator();
+    }
+
+    /**
+     * Close and remove the file. Iterators over it must not be used afterwards.
+     */
+    public void delete() {
+        if (deleted) return;
+        deleted = true;
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+            out = null;
+        }
+        file.delete();
+        manager.release(this);
+    }
+
+    private class SpillFileIterator extends AbstractDbFileIterator {
+        private InputStream in = null;
+        private long remaining;
+        // 当前块的字节以及块内下一个tuple的下标；每块新分配，返回的tuple直接引用它
+        private byte[] chunk = null;
+        private int chunkTuples = 0;
+        private int index = 0;
+
+        public void open() throws DbException {
+            close();
+            remaining = numTuples;
+            if (remaining == 0) return;
+            try {
+                in = new FileInputStream(file);
+            } catch (IOException e) {
+                throw new DbException("Failed to read spill file: " + e.getMessage());
+            }
+        }
+
+        public void rewind() throws DbException {
+            open();
+        }
+
+        protected Tuple readNext() throws DbException {
+            if (index == chunkTuples && !readChunk()) {
+                return null;
+            }
+            return new Tuple(td, null, chunk, td.getSize() * index++);
+        }
+
+        private boolean readChunk() throws DbException {
+            if (in == null || remaining == 0) return false;
+            int size = td.getSize();
+            chunkTuples = (int) Math.min(remaining, Math.max(1, BUFFER_SIZE / size));
+            chunk = new byte[chunkTuples * size];
+            try {
+                int read = 0;
+                while (read < chunk.length) {
+                    int n = in.read(chunk, read, chunk.length - read);
+                    if (n < 0) throw new EOFException("spill file is truncated");
+                    read += n;
+                }
+            } catch (IOException e) {
+                throw new DbException("Failed to read spill file: " + e.getMessage());
+            }
+            remaining -= chunkTuples;
+            index = 0;
+            return true;
+        }
+
+        public void close() {
+            super.close();
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+                in = null;
+            }
+            chunk = null;
+            chunkTuples = 0;
+            index = 0;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * TempFileManager creates the temporary files operators spill to when their
+ * working set does not fit in memory, and keeps track of them so that files
+ * left behind by an aborted query can be removed with {@link #deleteAll()}.
+ * Spill files are not part of the catalog and bypass the buffer pool: they
+ * are private to one operator and only ever written and read sequentially.
+ *
+ * @Threadsafe
+ */
+public class TempFileManager {
+
+    private final File directory;
+    private final Set<SpillFile> files = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Create a manager that puts its files in the system temporary directory.
+     */
+    public TempFileManager() {
+        this(null);
+    }
+
+    /**
+     * Create a manager that puts its files in the given directory.
+     *
+     * @param directory the directory for temporary files, or null for the
+     *                  system temporary directory
+     */
+    public TempFileManager(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Create an empty spill file for tuples with the given schema. The caller
+     * must {@link SpillFile#delete()} it when it is no longer needed.
+     */
+    public SpillFile createSpillFile(TupleDesc td) throws IOException {
+        File f = File.createTempFile("simpledb-spill", ".tmp", directory);
+        SpillFile spill = new SpillFile(this, f, td);
+        files.add(spill);
+        return spill;
+    }
+
+    // 由SpillFile.delete调用
+    void release(SpillFile spill) {
+        files.remove(spill);
+    }
+
+    /** @return the number of spill files that have not been deleted */
+    public int numFiles() {
+        return files.size();
+    }
+
+    /**
+     * Delete every spill file that is still around.
+     */
+    public void deleteAll() {
+        for (SpillFile spill : files) {
+            spill.delete();
+        }
+    }
+}
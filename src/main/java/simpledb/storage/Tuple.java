@@ -3,22 +3,27 @@ package simpledb.storage;
 import simpledb.common.Type;
 
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
-import java.util.List;
 
 /**
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * A tuple read from a page is a view of the page's bytes: each field is
+ * decoded the first time it is asked for, so operators that only look at a
+ * few columns never allocate the others.
  */
 public class Tuple implements Serializable {
 
     private static final long serialVersionUID = 1L;
     private TupleDesc td;
     private RecordId rid;
-    private final List<Field> fieldList;
+    private final Field[] fields;
+    // 延迟解码时字段所在的字节数组及tuple的起始偏移；为null表示所有字段都已设置
+    private final byte[] data;
+    private final int offset;
 
     /**
      * Create a new tuple with the specified schema (type).
@@ -29,13 +34,34 @@ public class Tuple implements Serializable {
      */
     public Tuple(TupleDesc td) {
         this.td = td;
-        fieldList = new ArrayList<>();
+        this.data = null;
+        this.offset = 0;
+        fields = new Field[td.numFields()];
         for (int i = 0; i < td.numFields(); i++) {
-            if(td.getFieldType(i) == Type.INT_TYPE) fieldList.add(new IntField(i));
-            else if(td.getFieldType(i) == Type.STRING_TYPE) fieldList.add(new StringField("", 0));
+            if(td.getFieldType(i) == Type.INT_TYPE) fields[i] = new IntField(i);
+            else if(td.getFieldType(i) == Type.STRING_TYPE) fields[i] = new StringField("", 0);
         }
     }
 
+    /**
+     * Create a tuple whose fields are decoded lazily from serialized bytes,
+     * laid out at the offsets given by {@link TupleDesc#getFieldOffset}. The
+     * bytes are not copied, so the caller must not change them while the
+     * tuple is in use.
+     *
+     * @param td the schema of this tuple
+     * @param rid the location of this tuple on disk
+     * @param data the bytes holding the tuple, e.g. a whole page
+     * @param offset the position of the tuple's first field in data
+     */
+    Tuple(TupleDesc td, RecordId rid, byte[] data, int offset) {
+        this.td = td;
+        this.rid = rid;
+        this.data = data;
+        this.offset = offset;
+        this.fields = new Field[td.numFields()];
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -71,7 +97,7 @@ public class Tuple implements Serializable {
      */
     public void setField(int i, Field f) {
         // TODO: check i >= 0 && i < td.numFields()
-        fieldList.set(i, f);
+        fields[i] = f;
     }
 
     /**
@@ -81,7 +107,13 @@ public class Tuple implements Serializable {
      *            field index to return. Must be a valid index.
      */
     public Field getField(int i) {
-        return fieldList.get(i);
+        Field f = fields[i];
+        if (f == null && data != null) {
+            // 并发解码同一个字段是无害的，结果相同
+            f = td.getFieldType(i).parse(data, offset + td.getFieldOffset(i));
+            fields[i] = f;
+        }
+        return f;
     }
 
     /**
@@ -93,11 +125,11 @@ public class Tuple implements Serializable {
      * where \t is any whitespace (except a newline)
      */
     public String toString() {
-        if(fieldList.size() == 0) return "";
+        if(fields.length == 0) return "";
         StringBuilder stringBuilder = new StringBuilder();
-        stringBuilder.append(fieldList.get(0));
-        for(int i = 1; i < fieldList.size(); ++i) {
-            stringBuilder.append(fieldList.get(i)).append("\t");
+        stringBuilder.append(getField(0));
+        for(int i = 1; i < fields.length; ++i) {
+            stringBuilder.append(getField(i)).append("\t");
         }
         return stringBuilder.toString();
     }
@@ -108,7 +140,10 @@ public class Tuple implements Serializable {
      * */
     public Iterator<Field> fields()
     {
-        return fieldList.iterator();
+        for (int i = 0; i < fields.length; i++) {
+            getField(i);
+        }
+        return Arrays.asList(fields).iterator();
     }
 
     /**
@@ -0,0 +1,231 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A column-oriented batch of up to {@link #capacity()} rows, used by the
+ * batch-at-a-time interface {@code OpIterator.nextBatch()}. Integer columns
+ * are stored as primitive <code>int[]</code> vectors, other columns as arrays
+ * of Fields.
+ * <p>
+ * Rows are appended with {@link #addRow()} and never removed; filters narrow
+ * the batch through a selection vector instead. {@link #size()} is the number
+ * of selected rows and {@link #row(int)} maps the i-th selected row to its
+ * physical row index. Without a selection vector every row is selected.
+ */
+public class TupleBatch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of rows operators put in a batch unless told otherwise. */
+    public static final int DEFAULT_SIZE = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    // INT_TYPE列的值，其他类型的列为null
+    private final int[][] ints;
+    // 非INT_TYPE列的值，INT_TYPE的列为null
+    private final Field[][] fields;
+    // 每一行来自哪个页面的哪个slot，没有RecordId的行为null
+    private final PageId[] pageIds;
+    private final int[] slots;
+    private int numRows = 0;
+    // 被选中的行号，按递增顺序；为null时所有行都被选中
+    private int[] selection = null;
+    private int selected = 0;
+
+    /**
+     * Create an empty batch.
+     *
+     * @param td the schema of the rows of this batch
+     * @param capacity the maximum number of rows in this batch
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        this.ints = new int[td.numFields()][];
+        this.fields = new Field[td.numFields()][];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                ints[i] = new int[capacity];
+            } else {
+                fields[i] = new Field[capacity];
+            }
+        }
+        this.pageIds = new PageId[capacity];
+        this.slots = new int[capacity];
+    }
+
+    // 投影得到的视图，与原batch共享列数组和选择向量
+    private TupleBatch(TupleDesc td, TupleBatch source, int[][] ints, Field[][] fields) {
+        this.td = td;
+        this.capacity = source.capacity;
+        this.ints = ints;
+        this.fields = fields;
+        this.pageIds = source.pageIds;
+        this.slots = source.slots;
+        this.numRows = source.numRows;
+        this.selection = source.selection;
+        this.selected = source.selected;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the maximum number of rows in this batch */
+    public int capacity() {
+        return capacity;
+    }
+
+    /** @return the number of rows appended to this batch, selected or not */
+    public int numRows() {
+        return numRows;
+    }
+
+    public boolean isFull() {
+        return numRows == capacity;
+    }
+
+    /** @return the number of selected rows */
+    public int size() {
+        return selection == null ? numRows : selected;
+    }
+
+    /** @return the physical row index of the i-th selected row */
+    public int row(int i) {
+        return selection == null ? i : selection[i];
+    }
+
+    /**
+     * Restrict the batch to the given rows.
+     *
+     * @param selection the physical indexes of the selected rows, in
+     *                  increasing order. The batch takes ownership of the array.
+     * @param size the number of valid entries in selection
+     */
+    public void setSelection(int[] selection, int size) {
+        this.selection = selection;
+        this.selected = size;
+    }
+
+    /**
+     * Append an empty row.
+     *
+     * @return the physical index of the new row
+     * @throws IllegalStateException if the batch is full
+     */
+    public int addRow() {
+        if (isFull()) throw new IllegalStateException("batch is full");
+        if (selection != null) throw new IllegalStateException("cannot append to a filtered batch");
+        pageIds[numRows] = null;
+        return numRows++;
+    }
+
+    /**
+     * Append a row holding the fields and RecordId of t.
+     */
+    public void addTuple(Tuple t) {
+        int row = addRow();
+        setFields(row, 0, t);
+        RecordId rid = t.getRecordId();
+        if (rid != null) {
+            setRecordId(row, rid.getPageId(), rid.getTupleNumber());
+        }
+    }
+
+    /**
+     * @return the values of an INT_TYPE column, indexed by physical row
+     */
+    public int[] getIntColumn(int col) {
+        if (ints[col] == null) throw new IllegalArgumentException("column " + col + " is not an int column");
+        return ints[col];
+    }
+
+    public Field getField(int row, int col) {
+        if (ints[col] != null) {
+            return new IntField(ints[col][row]);
+        }
+        return fields[col][row];
+    }
+
+    public void setInt(int row, int col, int value) {
+        ints[col][row] = value;
+    }
+
+    public void setField(int row, int col, Field f) {
+        if (ints[col] != null) {
+            ints[col][row] = ((IntField) f).getValue();
+        } else {
+            fields[col][row] = f;
+        }
+    }
+
+    /**
+     * Copy every field of t into the given row, starting at column firstCol.
+     */
+    public void setFields(int row, int firstCol, Tuple t) {
+        int n = t.getTupleDesc().numFields();
+        for (int i = 0; i < n; i++) {
+            setField(row, firstCol + i, t.getField(i));
+        }
+    }
+
+    /**
+     * Copy every column of a row of another batch into the given row,
+     * starting at column firstCol.
+     */
+    public void copyFields(int row, int firstCol, TupleBatch src, int srcRow) {
+        int n = src.td.numFields();
+        for (int i = 0; i < n; i++) {
+            if (src.ints[i] != null) {
+                ints[firstCol + i][row] = src.ints[i][srcRow];
+            } else {
+                fields[firstCol + i][row] = src.fields[i][srcRow];
+            }
+        }
+    }
+
+    public void setRecordId(int row, PageId pid, int slot) {
+        pageIds[row] = pid;
+        slots[row] = slot;
+    }
+
+    /** @return the RecordId of the given row, or null if it has none */
+    public RecordId getRecordId(int row) {
+        return pageIds[row] == null ? null : new RecordId(pageIds[row], slots[row]);
+    }
+
+    /**
+     * Build a row-oriented Tuple from the given physical row.
+     */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < td.numFields(); i++) {
+            t.setField(i, getField(row, i));
+        }
+        t.setRecordId(getRecordId(row));
+        return t;
+    }
+
+    /**
+     * Return a view of this batch holding only the given columns, in the given
+     * order. The view shares the column vectors and the selection of this
+     * batch, so nothing is copied.
+     *
+     * @param columns the columns of this batch to keep
+     * @param td the schema of the view
+     */
+    public TupleBatch project(List<Integer> columns, TupleDesc td) {
+        int[][] projectedInts = new int[columns.size()][];
+        Field[][] projectedFields = new Field[columns.size()][];
+        for (int i = 0; i < columns.size(); i++) {
+            projectedInts[i] = ints[columns.get(i)];
+            projectedFields[i] = fields[columns.get(i)];
+        }
+        return new TupleBatch(td, this, projectedInts, projectedFields);
+    }
+}
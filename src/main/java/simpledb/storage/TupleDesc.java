@@ -38,6 +38,8 @@ public class TupleDesc implements Serializable {
     }
 
     private final List<TDItem> tdItemList;
+    // 每个字段在tuple中的字节偏移，最后一项是tuple的大小
+    private final int[] fieldOffsets;
     /**
      * @return
      *        An iterator which iterates over all the field TDItems
@@ -64,8 +66,10 @@ public class TupleDesc implements Serializable {
         // TODO: check typeAr.length >= 1
         // TODO: check typeAr.length == fieldAr.length
         tdItemList = new ArrayList<>(typeAr.length);
+        fieldOffsets = new int[typeAr.length + 1];
         for(int i = 0; i < typeAr.length; ++i) {
             tdItemList.add(new TDItem(typeAr[i], fieldAr[i]));
+            fieldOffsets[i + 1] = fieldOffsets[i] + typeAr[i].getLen();
         }
     }
 
@@ -140,11 +144,21 @@ public class TupleDesc implements Serializable {
      *         Note that tuples from a given TupleDesc are of a fixed size.
      */
     public int getSize() {
-        int sizeSum = 0;
-        for(int i = 0; i < this.numFields(); ++i) {
-            sizeSum += this.getFieldType(i).getLen();
-        }
-        return sizeSum;
+        return fieldOffsets[numFields()];
+    }
+
+    /**
+     * Gets the byte offset of the ith field within a serialized tuple.
+     *
+     * @param i
+     *            The index of the field. It must be a valid index.
+     * @return the number of bytes before the ith field
+     * @throws NoSuchElementException
+     *             if i is not a valid field reference.
+     */
+    public int getFieldOffset(int i) throws NoSuchElementException {
+        if(i < 0 || i >= this.numFields()) throw new NoSuchElementException();
+        return fieldOffsets[i];
     }
 
     /**
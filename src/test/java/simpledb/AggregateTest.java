@@ -191,6 +191,51 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Unit test for an Aggregate with several group-by fields and several
+   * aggregates, computed in one pass
+   */
+  @Test public void multiGroupMultiAggregate() throws Exception {
+    OpIterator scan = TestUtil.createTupleList(3,
+        new Object[] { 1, "a", 2,
+                       1, "a", 4,
+                       1, "b", 6,
+                       3, "a", 2,
+                       3, "a", 8 });
+    Aggregate op = new Aggregate(scan, new int[] { 0, 1 }, new int[] { 2, 2, 1 },
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.MAX, Aggregator.Op.COUNT });
+    assertEquals(new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE,
+        Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE }), op.getTupleDesc());
+    OpIterator expected = TestUtil.createTupleList(5,
+        new Object[] { 1, "a", 6, 4, 2,
+                       1, "b", 6, 6, 1,
+                       3, "a", 10, 8, 2 });
+    op.open();
+    expected.open();
+    TestUtil.matchAllTuples(expected, op);
+    op.close();
+
+    // close之后再open重新读子节点计算
+    op.open();
+    expected.rewind();
+    TestUtil.matchAllTuples(expected, op);
+    op.close();
+  }
+
+  /**
+   * Unit test for an Aggregate whose groups do not fit in its memory budget
+   */
+  @Test public void spilledStringGroupBy() throws Exception {
+    Aggregate op = new Aggregate(scan3, 1, 0,
+        Aggregator.Op.SUM);
+    op.setMemoryBudget(1);
+    op.open();
+    sumstring.open();
+    TestUtil.matchAllTuples(sumstring, op);
+    assertTrue(op.getSpillCount() > 0);
+    op.close();
+  }
+
   /**
    * JUnit suite target
    */
@@ -176,6 +176,46 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		assertTrue(page.getId().getPageNumber() == 2 || otherPage.getId().getPageNumber() == 2);
 	}
 
+	/**
+	 * A shuffled batch insert keeps the tree valid, returns every dirtied page
+	 * once, and leaves every tuple findable in key order.
+	 */
+	@Test
+	public void testInsertTuples() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 1000, null, tuples, 0);
+
+		List<Tuple> batch = new ArrayList<>();
+		for(int i = 0; i < 3000; ++i) {
+			batch.add(BTreeUtility.getBTreeTuple(new int[]{ i * 7 % 3000, i }));
+		}
+		Collections.shuffle(batch, new Random(42));
+		List<Page> pages = bf.insertTuples(tid, batch.iterator());
+		assertEquals(pages.size(), new HashSet<>(pages).size());
+		for(Tuple t : batch) {
+			assertEquals(bf.getId(), t.getRecordId().getPageId().getTableId());
+		}
+
+		Map<PageId, Page> dirtypages = new HashMap<>();
+		for(Page p : pages) {
+			dirtypages.put(p.getId(), p);
+		}
+		BTreeChecker.checkRep(bf, tid, dirtypages, false);
+
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		int count = 0;
+		Field prev = null;
+		while(it.hasNext()) {
+			Field key = it.next().getField(0);
+			assertTrue(prev == null || prev.compare(Op.LESS_THAN_OR_EQ, key));
+			prev = key;
+			count++;
+		}
+		it.close();
+		assertEquals(tuples.size() + batch.size(), count);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -174,6 +174,37 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.reverseIterator() on a page with empty slots between entries
+	 */
+	@Test public void reverseIteratorSkipsEmptySlots() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		List<BTreeEntry> entries = new ArrayList<>();
+		Iterator<BTreeEntry> it = page.iterator();
+		while (it.hasNext())
+			entries.add(it.next());
+		for (int i = 1; i < entries.size(); i += 3) {
+			page.deleteKeyAndRightChild(entries.get(i));
+		}
+
+		List<BTreeEntry> forward = new ArrayList<>();
+		it = page.iterator();
+		while (it.hasNext())
+			forward.add(it.next());
+		Collections.reverse(forward);
+
+		it = page.reverseIterator();
+		for (BTreeEntry expected : forward) {
+			assertTrue(it.hasNext());
+			BTreeEntry e = it.next();
+			assertEquals(expected.getKey(), e.getKey());
+			assertEquals(expected.getLeftChild(), e.getLeftChild());
+			assertEquals(expected.getRightChild(), e.getRightChild());
+			assertEquals(expected.getRecordId(), e.getRecordId());
+		}
+		assertFalse(it.hasNext());
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
@@ -321,6 +352,48 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Returns the left-most child of the page possibly containing key, found by a linear scan.
+	 */
+	private static BTreePageId childFor(BTreeInternalPage page, int key) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while (it.hasNext()) {
+			e = it.next();
+			if (((IntField) e.getKey()).getValue() >= key)
+				return e.getLeftChild();
+		}
+		return e.getRightChild();
+	}
+
+	private static void checkSearch(BTreeInternalPage page) {
+		for (int[] entry : EXAMPLE_VALUES) {
+			for (int key = entry[1] - 1; key <= entry[1] + 1; key++) {
+				assertEquals(childFor(page, key), page.findChildId(new IntField(key)));
+			}
+		}
+		assertEquals(page.iterator().next().getLeftChild(), page.findChildId(null));
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.findChildId()
+	 */
+	@Test public void findChildId() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		checkSearch(page);
+
+		// 删除部分entry，在已用的槽位之间留下空槽位
+		Iterator<BTreeEntry> it = page.iterator();
+		List<BTreeEntry> entries = new ArrayList<>();
+		while (it.hasNext())
+			entries.add(it.next());
+		for (int i = 0; i < entries.size(); i++) {
+			if (i % 3 != 1)
+				page.deleteKeyAndRightChild(entries.get(i));
+		}
+		checkSearch(page);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
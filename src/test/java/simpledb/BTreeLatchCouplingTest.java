@@ -0,0 +1,121 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.index.BTreeUtility.BTreeWriter;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeLatchCouplingTest extends SimpleDbTestBase {
+	private static final int POLL_INTERVAL = 100;
+	private static final int ROWS = 10000;
+
+	private final List<TransactionId> tids = new ArrayList<>();
+	private BTreeFile bf;
+	private BTreePageId rootPtrId;
+	private BTreeInternalPage root;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		// 键为1..ROWS，叶子页除最后一页外都是满的
+		bf = BTreeUtility.createBTreeFile(2, ROWS, null, null, 0);
+		rootPtrId = BTreeRootPtrPage.getId(bf.getId());
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(rootPtrId);
+		root = (BTreeInternalPage) bf.readPage(rootPtr.getRootId());
+	}
+
+	@After
+	public void tearDown() {
+		for (TransactionId tid : tids) {
+			Database.getBufferPool().transactionComplete(tid);
+		}
+	}
+
+	private TransactionId newTransaction() {
+		TransactionId tid = new TransactionId();
+		tids.add(tid);
+		return tid;
+	}
+
+	private BTreeLeafPage firstLeaf() {
+		return (BTreeLeafPage) bf.readPage(root.iterator().next().getLeftChild());
+	}
+
+	private BTreeLeafPage lastLeaf() {
+		return (BTreeLeafPage) bf.readPage(root.reverseIterator().next().getRightChild());
+	}
+
+	@Test
+	public void searchKeepsOnlyTheLeafLocked() throws Exception {
+		TransactionId tid = newTransaction();
+		DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(ROWS / 2)));
+		it.open();
+		assertTrue(it.hasNext());
+		it.close();
+
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootPtrId));
+		assertFalse(Database.getBufferPool().holdsLock(tid, root.getId()));
+		boolean leafLocked = false;
+		Iterator<BTreeEntry> entries = root.iterator();
+		while (entries.hasNext()) {
+			leafLocked |= Database.getBufferPool().holdsLock(tid, entries.next().getLeftChild());
+		}
+		assertTrue(leafLocked);
+	}
+
+	@Test
+	public void insertWithoutSplitKeepsOnlyTheLeafLocked() throws Exception {
+		BTreeLeafPage last = lastLeaf();
+		assertTrue(last.getNumEmptySlots() > 0);
+
+		TransactionId tid = newTransaction();
+		Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(ROWS + 1, 2));
+
+		assertTrue(Database.getBufferPool().holdsLock(tid, last.getId()));
+		assertFalse(Database.getBufferPool().holdsLock(tid, rootPtrId));
+		assertFalse(Database.getBufferPool().holdsLock(tid, root.getId()));
+	}
+
+	@Test
+	public void splitIsNotBlockedByAnotherDescent() throws Exception {
+		assertEquals(0, firstLeaf().getNumEmptySlots());
+
+		// 第一个事务向最后一个叶子页插入且不提交
+		TransactionId tid1 = newTransaction();
+		Database.getBufferPool().insertTuple(tid1, bf.getId(), BTreeUtility.getBTreeTuple(ROWS + 1, 2));
+
+		// 第二个事务向第一个叶子页插入，要分裂它并修改根页
+		TransactionId tid2 = newTransaction();
+		BTreeWriter bw = new BTreeWriter(tid2, bf, 0, 1);
+		bw.start();
+		bw.join(100 * POLL_INTERVAL);
+
+		assertNull(bw.getError());
+		assertTrue(bw.succeeded());
+		assertTrue(Database.getBufferPool().holdsLock(tid2, root.getId()));
+		assertFalse(Database.getBufferPool().holdsLock(tid1, root.getId()));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeLatchCouplingTest.class);
+	}
+}
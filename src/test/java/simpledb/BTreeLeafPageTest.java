@@ -347,6 +347,65 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Returns the first tuple on the page whose key is at least key, found by a linear scan.
+	 */
+	private static Tuple firstAtLeast(BTreeLeafPage page, int key) {
+		Iterator<Tuple> it = page.iterator();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (((IntField) t.getField(0)).getValue() >= key)
+				return t;
+		}
+		return null;
+	}
+
+	private static void checkSearch(BTreeLeafPage page) {
+		for (int[] tuple : EXAMPLE_VALUES) {
+			for (int key = tuple[0] - 1; key <= tuple[0] + 1; key++) {
+				Iterator<Tuple> it = page.iterator(new IntField(key));
+				Tuple expected = firstAtLeast(page, key);
+				if (expected == null) {
+					assertFalse(it.hasNext());
+					assertEquals(page.getMaxTuples(), page.findSlot(new IntField(key)));
+				} else {
+					assertSame(expected, it.next());
+					assertEquals(expected.getRecordId().getTupleNumber(), page.findSlot(new IntField(key)));
+				}
+			}
+		}
+		Iterator<Tuple> all = page.iterator(null);
+		Iterator<Tuple> it = page.iterator();
+		while (it.hasNext())
+			assertSame(it.next(), all.next());
+		assertFalse(all.hasNext());
+	}
+
+	/**
+	 * Unit test for BTreeLeafPage.findSlot() and BTreeLeafPage.iterator(Field)
+	 */
+	@Test public void findSlot() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		checkSearch(page);
+
+		// 删除部分元组，在已用的槽位之间留下空槽位
+		Iterator<Tuple> it = page.iterator();
+		List<Tuple> tuples = new ArrayList<>();
+		while (it.hasNext())
+			tuples.add(it.next());
+		for (int i = 0; i < tuples.size(); i++) {
+			if (i % 3 != 1)
+				page.deleteTuple(tuples.get(i));
+		}
+		checkSearch(page);
+
+		// 空页
+		for (int i = 1; i < tuples.size(); i += 3)
+			page.deleteTuple(tuples.get(i));
+		assertEquals(page.getMaxTuples(), page.findSlot(new IntField(0)));
+		assertFalse(page.iterator(new IntField(0)).hasNext());
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -0,0 +1,86 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolConcurrencyTest extends SimpleDbTestBase {
+
+    private static final int THREADS = 8;
+    private static final int REQUESTS_PER_THREAD = 2000;
+
+    /**
+     * Many readers request random pages of a table that is much larger than
+     * the buffer pool, so hits, misses and evictions all run concurrently.
+     * Every request must return the page that was asked for.
+     */
+    @Test public void concurrentReadersWithEviction() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 40000, null, null);
+        int numPages = hf.numPages();
+        assertTrue(numPages > 40);
+        BufferPool bp = Database.resetBufferPool(16);
+
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            final long seed = i;
+            threads.add(new Thread(() -> {
+                Random r = new Random(seed);
+                TransactionId tid = new TransactionId();
+                try {
+                    for (int j = 0; j < REQUESTS_PER_THREAD; j++) {
+                        HeapPageId pid = new HeapPageId(hf.getId(), r.nextInt(numPages));
+                        Page p = bp.getPage(tid, pid, Permissions.READ_ONLY);
+                        if (!p.getId().equals(pid)) {
+                            throw new AssertionError("asked for " + pid + " but got " + p.getId());
+                        }
+                    }
+                    bp.transactionComplete(tid);
+                } catch (Throwable t) {
+                    error.compareAndSet(null, t);
+                }
+            }));
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+
+        if (error.get() != null) throw new AssertionError(error.get());
+        assertEquals((long) THREADS * REQUESTS_PER_THREAD, bp.getHitCount() + bp.getMissCount());
+    }
+
+    /**
+     * A discarded page must free its frame, so a pool can keep loading pages
+     * after discards.
+     */
+    @Test public void discardFreesFrame() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+        BufferPool bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < hf.numPages(); i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            bp.getPage(tid, pid, Permissions.READ_ONLY);
+            bp.discardPage(pid);
+        }
+        assertEquals(hf.numPages(), bp.getMissCount());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolConcurrencyTest.class);
+    }
+}
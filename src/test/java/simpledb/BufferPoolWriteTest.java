@@ -140,6 +140,29 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * Pages dirtied by earlier inserts of a transaction are still written out
+     * when it commits after a later insert touches a different page.
+     */
+    @Test public void commitFlushesEveryBatch() throws Exception {
+        List<Tuple> batch = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            batch.add(Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().insertTuples(tid, empty.getId(), batch.iterator());
+        for (int i = 0; i < 10; ++i) {
+            Database.getBufferPool().insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        Database.getBufferPool().transactionComplete(tid, true);
+
+        int onDisk = 0;
+        for (int i = 0; i < empty.numPages(); ++i) {
+            HeapPage p = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), i));
+            onDisk += 504 - p.getNumEmptySlots();
+        }
+        assertEquals(1010, onDisk);
+    }
+
     /**
      * JUnit suite target
      */
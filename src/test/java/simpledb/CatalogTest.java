@@ -97,6 +97,30 @@ public class CatalogTest extends SimpleDbTestBase {
     	assertEquals(f, Database.getCatalog().getDatabaseFile(id2));
     }
 
+    /**
+     * Files replaced by another file with the same id, and files removed by
+     * clear(), are closed; adding the same file again does not close it.
+     */
+    @Test public void closesRemovedFiles() {
+        int[] closed = new int[2];
+        int id3 = r.nextInt();
+        DbFile first = new SkeletonFile(id3, Utility.getTupleDesc(2)) {
+            @Override public void close() { closed[0]++; }
+        };
+        DbFile second = new SkeletonFile(id3, Utility.getTupleDesc(2)) {
+            @Override public void close() { closed[1]++; }
+        };
+        Database.getCatalog().addTable(first, SystemTestUtil.getUUID());
+        Database.getCatalog().addTable(first, SystemTestUtil.getUUID());
+        assertEquals(0, closed[0]);
+        Database.getCatalog().addTable(second, SystemTestUtil.getUUID());
+        assertEquals(1, closed[0]);
+        assertEquals(0, closed[1]);
+        Database.getCatalog().clear();
+        assertEquals(1, closed[0]);
+        assertEquals(1, closed[1]);
+    }
+
     /**
      * JUnit suite target
      */
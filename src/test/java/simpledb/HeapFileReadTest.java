@@ -81,6 +81,25 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * A closed HeapFile reopens its file, and its memory mapping, on the next
+     * read.
+     */
+    @Test
+    public void readPageAfterClose() {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        hf.readPage(pid);
+        hf.close();
+        assertEquals(484, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+        hf.setMemoryMapped(true);
+        hf.readPage(pid);
+        hf.close();
+        assertEquals(484, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+        // close twice is harmless
+        hf.close();
+        hf.close();
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -125,6 +144,70 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * A sequential scan reads pages ahead into the buffer pool, returns every
+     * tuple exactly once, and does not read ahead when it is turned off.
+     */
+    @Test
+    public void testIteratorReadAhead() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile bigFile = SystemTestUtil.createRandomHeapFile(2, 20000, null, tuples);
+        assertTrue(bigFile.numPages() > 32);
+
+        BufferPool bp = Database.resetBufferPool(32);
+        bp.setMaxReadAhead(0);
+        assertEquals(tuples.size(), scan(bigFile));
+        assertEquals(0, bp.getPrefetchCount());
+
+        bp = Database.resetBufferPool(32);
+        assertEquals(tuples.size(), scan(bigFile));
+        // read-ahead runs in the background, give it a moment to finish
+        for (int i = 0; i < 500 && bp.getPrefetchCount() == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(bp.getPrefetchCount() > 0);
+        // every page was requested exactly once by the scan
+        assertEquals(bigFile.numPages(), bp.getHitCount() + bp.getMissCount());
+    }
+
+    private int scan(HeapFile f) throws Exception {
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    /**
+     * Unit test for HeapFile.readPage() through a memory mapping: reads must
+     * match positional reads, and must see pages written and appended after
+     * the file was mapped.
+     */
+    @Test
+    public void readPageMemoryMapped() throws Exception {
+        HeapFile twoPageFile = SystemTestUtil.createRandomHeapFile(2, 520, null, null);
+        HeapPageId pid0 = new HeapPageId(twoPageFile.getId(), 0);
+        HeapPageId pid1 = new HeapPageId(twoPageFile.getId(), 1);
+        byte[] expected = twoPageFile.readPage(pid1).getPageData();
+
+        twoPageFile.setMemoryMapped(true);
+        assertTrue(twoPageFile.isMemoryMapped());
+        assertArrayEquals(expected, twoPageFile.readPage(pid1).getPageData());
+
+        // overwrite page 0 with page 1's contents, and append a copy of it
+        HeapPage page = new HeapPage(pid0, expected);
+        twoPageFile.writePage(page);
+        assertArrayEquals(expected, twoPageFile.readPage(pid0).getPageData());
+        HeapPageId pid2 = new HeapPageId(twoPageFile.getId(), 2);
+        twoPageFile.writePage(new HeapPage(pid2, expected));
+        assertEquals(3, twoPageFile.numPages());
+        assertArrayEquals(expected, twoPageFile.readPage(pid2).getPageData());
+    }
+
     /**
      * JUnit suite target
      */
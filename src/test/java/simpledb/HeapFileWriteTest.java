@@ -12,7 +12,9 @@ import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionId;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
@@ -90,6 +92,95 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * Inserts into a file of full pages go straight to a page with room
+     * instead of visiting every full page, and a slot freed by a delete is
+     * reused.
+     */
+    @Test public void insertUsesFreeSpaceMap() throws Exception {
+        int slotsPerPage = 504;
+        HeapFile full = SystemTestUtil.createRandomHeapFile(2, 10 * slotsPerPage, null, null);
+        assertEquals(10, full.numPages());
+        BufferPool bp = Database.resetBufferPool(50);
+
+        for (int i = 0; i < 20; ++i) {
+            full.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(11, full.numPages());
+        // one page request per insert, none for the full pages
+        assertEquals(20, bp.getHitCount() + bp.getMissCount());
+
+        // free a slot on page 3; the next insert must land there
+        DbFileIterator it = full.iterator(tid);
+        it.open();
+        Tuple onPage3 = null;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            if (t.getRecordId().getPageId().getPageNumber() == 3) {
+                onPage3 = t;
+                break;
+            }
+        }
+        it.close();
+        assertNotNull(onPage3);
+        full.deleteTuple(tid, onPage3);
+        Tuple inserted = Utility.getHeapTuple(-1, 2);
+        full.insertTuple(tid, inserted);
+        assertEquals(3, inserted.getRecordId().getPageId().getPageNumber());
+    }
+
+    /**
+     * Rolling back a transaction that filled a page frees its slots again,
+     * and the next insert reuses that page instead of appending a new one.
+     */
+    @Test public void abortRestoresFreeSpace() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        TransactionId aborted = new TransactionId();
+        for (int i = 0; i < 504; ++i) {
+            bp.insertTuple(aborted, empty.getId(), Utility.getHeapTuple(i, 2));
+        }
+        assertEquals(1, empty.numPages());
+        bp.transactionComplete(aborted, false);
+
+        Tuple t = Utility.getHeapTuple(-1, 2);
+        bp.insertTuple(tid, empty.getId(), t);
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(1, empty.numPages());
+    }
+
+    /**
+     * A batch insert fills each page before moving on to the next one, and
+     * requests each page from the buffer pool only once.
+     */
+    @Test public void insertTuples() throws Exception {
+        BufferPool bp = Database.resetBufferPool(50);
+        List<Tuple> batch = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            batch.add(Utility.getHeapTuple(i, 2));
+        }
+        List<Page> pages = empty.insertTuples(tid, batch.iterator());
+        assertEquals(2, pages.size());
+        assertEquals(2, empty.numPages());
+        assertEquals(2, bp.getHitCount() + bp.getMissCount());
+        assertEquals(0, ((HeapPage) pages.get(0)).getNumEmptySlots());
+        assertEquals(8, ((HeapPage) pages.get(1)).getNumEmptySlots());
+        for (int i = 0; i < batch.size(); ++i) {
+            RecordId rid = batch.get(i).getRecordId();
+            assertEquals(i / 504, rid.getPageId().getPageNumber());
+            assertEquals(i % 504, rid.getTupleNumber());
+        }
+
+        // the next batch starts on the page that still has room
+        batch.clear();
+        for (int i = 0; i < 10; ++i) {
+            batch.add(Utility.getHeapTuple(i, 2));
+        }
+        pages = empty.insertTuples(tid, batch.iterator());
+        assertEquals(2, pages.size());
+        assertEquals(1, pages.get(0).getId().getPageNumber());
+        assertEquals(2, pages.get(1).getId().getPageNumber());
+    }
+
     /**
      * JUnit suite target
      */
@@ -14,6 +14,7 @@ import simpledb.common.DbException;
 import simpledb.common.Utility;
 import simpledb.storage.HeapPage;
 import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
@@ -131,6 +132,30 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Tuples read from a page keep their values after their slot is deleted
+     * and reused, and the page bytes round-trip through the constructor.
+     */
+    @Test public void tuplesStableAfterSlotReuse() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Tuple first = page.iterator().next();
+        int v0 = ((IntField) first.getField(0)).getValue();
+        int v1 = ((IntField) first.getField(1)).getValue();
+
+        page.deleteTuple(first);
+        // the first free slot is the one that was just emptied
+        Tuple replacement = Utility.getHeapTuple(v0 + 1, 2);
+        page.insertTuple(replacement);
+        assertEquals(first.getRecordId(), replacement.getRecordId());
+
+        assertEquals(v0, ((IntField) first.getField(0)).getValue());
+        assertEquals(v1, ((IntField) first.getField(1)).getValue());
+
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        assertArrayEquals(page.getPageData(), copy.getPageData());
+        assertTrue(TestUtil.compareTuples(replacement, copy.iterator().next()));
+    }
+
     /**
      * JUnit suite target
      */
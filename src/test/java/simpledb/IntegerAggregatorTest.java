@@ -130,6 +130,32 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test SUM_COUNT partial aggregates merged into averages by SC_AVG
+   */
+  @Test public void mergeSumCountIntoAvg() throws Exception {
+    scan1.open();
+    IntegerAggregator first = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM_COUNT);
+    IntegerAggregator second = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM_COUNT);
+    for (int i = 0; i < 7; i++) {
+      (i % 2 == 0 ? first : second).mergeTupleIntoGroup(scan1.next());
+    }
+    // group 1: {2, 6} and {4}; group 3: {4} and {2, 6}; group 5: {7}
+    OpIterator it = first.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(3, new int[] { 1, 8, 2, 3, 4, 1, 5, 7, 1 }), it);
+
+    IntegerAggregator avg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SC_AVG);
+    for (IntegerAggregator partial : new IntegerAggregator[] { first, second }) {
+      OpIterator p = partial.iterator();
+      p.open();
+      while (p.hasNext()) avg.mergeTupleIntoGroup(p.next());
+    }
+    it = avg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1, new int[] { 1, 4, 3, 4, 5, 7 }), it);
+  }
+
   /**
    * Test IntegerAggregator.iterator() for OpIterator behaviour
    */
@@ -11,13 +11,23 @@ import org.junit.Test;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Utility;
+import simpledb.execution.Filter;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.IndexNestedLoopJoin;
+import simpledb.execution.OpIterator;
 import simpledb.execution.Predicate;
+import simpledb.execution.SortMergeJoin;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.BTreeUtility;
 import simpledb.optimizer.JoinOptimizer;
 import simpledb.optimizer.LogicalJoinNode;
+import simpledb.optimizer.LogicalPlan;
 import simpledb.optimizer.TableStats;
 import simpledb.storage.BufferPool;
 import simpledb.storage.HeapFile;
 import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.IntField;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionAbortedException;
@@ -528,6 +538,83 @@ public class JoinOptimizerTest extends SimpleDbTestBase {
         Assert.assertEquals(result.get(result.size() - 1).t2Alias, "bigTable");
     }
 
+    /**
+     * Inputs sorted on their join fields should be joined by SortMergeJoin,
+     * and be estimated cheaper than unsorted inputs.
+     */
+    @Test
+    public void sortMergeJoinForSortedInputs() throws Exception {
+        TransactionId tid = new TransactionId();
+        JoinOptimizer jo = new JoinOptimizer(new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM " + tableName1 + " t1, " + tableName2
+                        + " t2 WHERE t1.c1 = t2.c2;"), new ArrayList<>());
+        for (Predicate.Op op : new Predicate.Op[]{ Predicate.Op.EQUALS, Predicate.Op.LESS_THAN }) {
+            LogicalJoinNode node = new LogicalJoinNode(tableName1, tableName2,
+                    Integer.toString(1), Integer.toString(2), op);
+            Assert.assertTrue(jo.estimateJoinCost(node, 1000, 10000, 100, 1000, true, true)
+                    < jo.estimateJoinCost(node, 1000, 10000, 100, 1000));
+        }
+
+        // BTreeScan按key有序：key上的连接用SortMergeJoin，其他列上的连接不用
+        BTreeFile keyedOn0 = BTreeUtility.createRandomBTreeFile(2, 100, null, null, 0);
+        BTreeFile keyedOn1 = BTreeUtility.createRandomBTreeFile(2, 100, null, null, 1);
+        LogicalJoinNode node = new LogicalJoinNode("a", "b", "null", "null", Predicate.Op.EQUALS);
+        OpIterator j = JoinOptimizer.instantiateJoin(node,
+                new BTreeScan(tid, keyedOn0.getId(), "a", null),
+                new Filter(new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(0)),
+                        new BTreeScan(tid, keyedOn0.getId(), "b", null)));
+        Assert.assertTrue(j instanceof SortMergeJoin);
+        j = JoinOptimizer.instantiateJoin(node, new BTreeScan(tid, keyedOn0.getId(), "a", null),
+                new BTreeScan(tid, keyedOn1.getId(), "b", null));
+        Assert.assertTrue(j instanceof HashEquiJoin);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A join with a B+ tree keyed on the join field searches the B+ tree when
+     * the other side is small, and reads the whole B+ tree otherwise.
+     */
+    @Test
+    public void indexNestedLoopJoinForSelectiveOuter() throws Exception {
+        // 用带列名的TupleDesc重新登记B+树，优化器按列名判断它是否按连接列建的索引
+        BTreeFile keyed = BTreeUtility.createRandomBTreeFile(2, 20000, null, null, 0);
+        BTreeFile dim = new BTreeFile(keyed.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        Database.getCatalog().addTable(dim, "DIM");
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put(tableName1, stats1);
+        stats.put("DIM", new TableStats(dim.getId(), 19));
+
+        LogicalPlan plan = new LogicalPlan();
+        plan.addScan(tableId1, "t1");
+        plan.addScan(dim.getId(), "d");
+        List<LogicalJoinNode> nodes = new ArrayList<>();
+        nodes.add(new LogicalJoinNode("t1", "d", "c1", "c0", Predicate.Op.EQUALS));
+        Map<String, Double> filterSelectivities = new HashMap<>();
+        filterSelectivities.put("d", 1.0);
+
+        filterSelectivities.put("t1", 0.005);
+        LogicalJoinNode selective = new JoinOptimizer(plan, nodes)
+                .orderJoins(stats, filterSelectivities, false).get(0);
+        Assert.assertTrue(selective.searchIndex);
+        Assert.assertEquals("d", selective.t2Alias);
+
+        filterSelectivities.put("t1", 1.0);
+        LogicalJoinNode full = new JoinOptimizer(plan, nodes)
+                .orderJoins(stats, filterSelectivities, false).get(0);
+        Assert.assertFalse(full.searchIndex);
+
+        TransactionId tid = new TransactionId();
+        OpIterator j = JoinOptimizer.instantiateJoin(selective,
+                new BTreeScan(tid, dim.getId(), "t1", null),
+                new Filter(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(0)),
+                        new BTreeScan(tid, dim.getId(), "d", null)));
+        Assert.assertTrue(j instanceof IndexNestedLoopJoin);
+        j = JoinOptimizer.instantiateJoin(full, new BTreeScan(tid, dim.getId(), "t1", null),
+                new BTreeScan(tid, dim.getId(), "d", null));
+        Assert.assertTrue(j instanceof HashEquiJoin);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /**
      * Test a join ordering with an inequality, to make sure the inequality gets
      * put as the outermost join
@@ -9,10 +9,13 @@ import org.junit.Before;
 import org.junit.Test;
 
 import simpledb.common.Utility;
+import simpledb.execution.HashEquiJoin;
 import simpledb.execution.Join;
 import simpledb.execution.JoinPredicate;
 import simpledb.execution.OpIterator;
 import simpledb.execution.Predicate;
+import simpledb.execution.SortMergeJoin;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.systemtest.SimpleDbTestBase;
@@ -112,6 +115,103 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Unit test for HashEquiJoin.getNext(), with the whole build side in memory
+   * and with a memory budget so small that both sides are partitioned to
+   * disk, recursively, until each build partition holds a single tuple.
+   */
+  @Test public void hashEquiJoin() throws Exception {
+    for (long budget : new long[]{ HashEquiJoin.DEFAULT_MEMORY_BUDGET, 1 }) {
+      JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+      HashEquiJoin op = new HashEquiJoin(pred, scan1, scan2);
+      op.setMemoryBudget(budget);
+      op.open();
+      eqJoin.open();
+      TestUtil.matchAllTuples(eqJoin, op);
+      op.rewind();
+      eqJoin.rewind();
+      int expected = 0, actual = 0;
+      for (; eqJoin.hasNext(); eqJoin.next()) expected++;
+      for (; op.hasNext(); op.next()) actual++;
+      assertEquals(expected, actual);
+      op.close();
+      eqJoin.close();
+    }
+  }
+
+  /**
+   * Unit test for HashEquiJoin on string keys, where "Aa" and "BB" have the
+   * same hash code and must not be joined with each other.
+   */
+  @Test public void hashEquiJoinStringKeys() throws Exception {
+    OpIterator left = TestUtil.createTupleList(2,
+        new Object[] { "Aa", 1,
+                       "BB", 2,
+                       "c", 3 });
+    OpIterator right = TestUtil.createTupleList(1,
+        new Object[] { "BB", "c", "c", "d" });
+    OpIterator expected = TestUtil.createTupleList(3,
+        new Object[] { "BB", 2, "BB",
+                       "c", 3, "c",
+                       "c", 3, "c" });
+    HashEquiJoin op = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), left, right);
+    op.open();
+    TestUtil.compareDbIterators(expected, op);
+  }
+
+  /**
+   * Unit test for SortMergeJoin.getNext() using = and &gt; predicates, which
+   * must return exactly the tuples of the nested loops join.
+   */
+  @Test public void sortMergeJoin() throws Exception {
+    JoinPredicate eq = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    JoinPredicate gt = new JoinPredicate(0, Predicate.Op.GREATER_THAN, 0);
+    OpIterator[][] cases = {
+        { new SortMergeJoin(eq, scan1, scan2), eqJoin },
+        { new SortMergeJoin(gt, scan1, scan2), gtJoin } };
+    for (OpIterator[] c : cases) {
+      OpIterator op = c[0], expected = c[1];
+      op.open();
+      expected.open();
+      TestUtil.matchAllTuples(expected, op);
+      op.rewind();
+      int rows = 0;
+      for (; op.hasNext(); op.next()) rows++;
+      int expectedRows = 0;
+      for (expected.rewind(); expected.hasNext(); expected.next()) expectedRows++;
+      assertEquals(expectedRows, rows);
+      op.close();
+      expected.close();
+    }
+  }
+
+  /**
+   * Unit test for SortMergeJoin with duplicate keys on both sides, and with
+   * the range predicates that read child2 in the outer loop.
+   */
+  @Test public void sortMergeJoinDuplicates() throws Exception {
+    int[] left = { 1, 1, 2, 2, 2, 3 };
+    int[] right = { 1, 2, 2, 4 };
+    for (Predicate.Op op : new Predicate.Op[]{ Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+        Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ }) {
+      JoinPredicate pred = new JoinPredicate(0, op, 0);
+      SortMergeJoin smj = new SortMergeJoin(pred, TestUtil.createTupleList(1, left),
+          TestUtil.createTupleList(1, right));
+      Join nlj = new Join(pred, TestUtil.createTupleList(1, left), TestUtil.createTupleList(1, right));
+      smj.open();
+      nlj.open();
+      TestUtil.matchAllTuples(nlj, smj);
+      TestUtil.matchAllTuples(smj, nlj);
+      int expected = 0;
+      for (int l : left)
+        for (int r : right)
+          if (new IntField(l).compare(op, new IntField(r))) expected++;
+      int rows = 0;
+      for (smj.rewind(); smj.hasNext(); smj.next()) rows++;
+      assertEquals(expected, rows);
+    }
+  }
+
   /**
    * JUnit suite target
    */
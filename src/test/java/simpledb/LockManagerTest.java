@@ -0,0 +1,188 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LockManager;
+import simpledb.storage.LockManager.PageLock.LockType;
+import simpledb.storage.PageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private final PageId p0 = new HeapPageId(0, 0);
+    private final PageId p1 = new HeapPageId(0, 1);
+
+    /**
+     * A blocked request is granted as soon as the conflicting lock is
+     * released, without polling.
+     */
+    @Test public void waiterWokenOnRelease() throws Exception {
+        LockManager lm = new LockManager(10000);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquireLock(p0, t1, LockType.EXCLUSIVE);
+
+        Thread waiter = new Thread(() -> {
+            try {
+                lm.acquireLock(p0, t2, LockType.SHARE);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        waiter.start();
+        while (lm.getWaitCount() == 0) {
+            Thread.sleep(1);
+        }
+        assertFalse(lm.isHoldLock(p0, t2));
+        lm.completeTransaction(t1);
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertTrue(lm.isHoldLock(p0, t2));
+        assertEquals(0, lm.getDeadlockAborts());
+    }
+
+    /**
+     * Two transactions that wait for each other are detected immediately and
+     * only the younger one is aborted; the older one gets its lock.
+     */
+    @Test public void deadlockAbortsYoungest() throws Exception {
+        LockManager lm = new LockManager(60000);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        lm.acquireLock(p0, older, LockType.EXCLUSIVE);
+        lm.acquireLock(p1, younger, LockType.EXCLUSIVE);
+
+        AtomicReference<Throwable> olderError = new AtomicReference<>();
+        Thread olderThread = new Thread(() -> {
+            try {
+                lm.acquireLock(p1, older, LockType.EXCLUSIVE);
+            } catch (Throwable t) {
+                olderError.set(t);
+            }
+        });
+        olderThread.start();
+        while (lm.getWaitCount() == 0) {
+            Thread.sleep(1);
+        }
+
+        long start = System.currentTimeMillis();
+        try {
+            lm.acquireLock(p0, younger, LockType.EXCLUSIVE);
+            fail("expected the younger transaction to be aborted");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        lm.completeTransaction(younger);
+
+        olderThread.join(5000);
+        assertFalse(olderThread.isAlive());
+        assertNull(olderError.get());
+        assertTrue(lm.isHoldLock(p1, older));
+        assertEquals(1, lm.getDeadlockAborts());
+        assertEquals(0, lm.getLockWaitTimeouts());
+    }
+
+    /**
+     * Completing a transaction releases exactly the locks it holds, leaves
+     * other transactions' locks alone, and wakes the transactions waiting for
+     * any of its pages.
+     */
+    @Test public void completeReleasesOnlyOwnLocks() throws Exception {
+        LockManager lm = new LockManager(10000);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        lm.acquireLock(p0, t1, LockType.EXCLUSIVE);
+        lm.acquireLock(p1, t1, LockType.SHARE);
+        lm.acquireLock(p1, t2, LockType.SHARE);
+        lm.releaseLock(p1, t1);
+        lm.acquireLock(p1, t1, LockType.SHARE);
+
+        Thread waiter = new Thread(() -> {
+            try {
+                lm.acquireLock(p0, t3, LockType.SHARE);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        waiter.start();
+        while (lm.getWaitCount() == 0) {
+            Thread.sleep(1);
+        }
+
+        lm.completeTransaction(t1);
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertFalse(lm.isHoldLock(p0, t1));
+        assertFalse(lm.isHoldLock(p1, t1));
+        assertTrue(lm.isHoldLock(p1, t2));
+        assertTrue(lm.isHoldLock(p0, t3));
+    }
+
+    /**
+     * Without a lock wait timeout, which is the default, a long wait that is
+     * not part of a deadlock is never aborted.
+     */
+    @Test public void longWaitIsNotAbortedByDefault() throws Exception {
+        LockManager lm = new LockManager();
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquireLock(p0, t1, LockType.EXCLUSIVE);
+
+        AtomicReference<Exception> error = new AtomicReference<>();
+        Thread waiter = new Thread(() -> {
+            try {
+                lm.acquireLock(p0, t2, LockType.EXCLUSIVE);
+            } catch (Exception e) {
+                error.set(e);
+            }
+        });
+        waiter.start();
+        Thread.sleep(1000);
+        assertTrue(waiter.isAlive());
+        lm.completeTransaction(t1);
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertNull(error.get());
+        assertTrue(lm.isHoldLock(p0, t2));
+        assertEquals(0, lm.getLockWaitTimeouts());
+    }
+
+    /**
+     * A request that cannot be granted within the lock wait timeout aborts.
+     */
+    @Test public void waitTimesOut() throws Exception {
+        LockManager lm = new LockManager(50);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.acquireLock(p0, t1, LockType.SHARE);
+        try {
+            lm.acquireLock(p0, t2, LockType.EXCLUSIVE);
+            fail("expected the lock wait to time out");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertEquals(1, lm.getLockWaitTimeouts());
+        assertFalse(lm.isHoldLock(p0, t2));
+        // the cancelled request must not block later requests
+        lm.acquireLock(p0, t2, LockType.SHARE);
+        assertTrue(lm.isHoldLock(p0, t2));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
@@ -76,7 +76,11 @@ public class LockingTest extends TestUtil.CreateHeapFile {
       boolean expected) throws Exception {
 
     bp.getPage(tid1, pid1, perm1);
-    grabLock(tid2, pid2, perm2, expected);
+    TestUtil.LockGrabber t = grabLock(tid2, pid2, perm2, expected);
+
+    // a blocked grabber waits until the first transaction releases its locks
+    bp.transactionComplete(tid1);
+    t.join();
   }
 
   /**
@@ -88,8 +92,9 @@ public class LockingTest extends TestUtil.CreateHeapFile {
    * @param perm the type of lock desired
    * @param expected true if we expect the acquisition to succeed;
    *   false otherwise
+   * @return the grabber thread, which is still running if it is blocked
    */
-  public void grabLock(TransactionId tid, PageId pid, Permissions perm,
+  public TestUtil.LockGrabber grabLock(TransactionId tid, PageId pid, Permissions perm,
       boolean expected) throws Exception {
 
     TestUtil.LockGrabber t = new TestUtil.LockGrabber(tid, pid, perm);
@@ -98,9 +103,7 @@ public class LockingTest extends TestUtil.CreateHeapFile {
     // if we don't have the lock after TIMEOUT, we assume blocking.
     Thread.sleep(TIMEOUT);
     assertEquals(expected, t.acquired());
-
-    // TODO(ghuo): yes, stop() is evil, but this is unit test cleanup
-    t.join();
+    return t;
   }
 
   /**
@@ -0,0 +1,89 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.storage.ClockReplacementPolicy;
+import simpledb.storage.LruKReplacementPolicy;
+import simpledb.storage.ReplacementPolicy;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import static org.junit.Assert.*;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    /**
+     * Frames referenced only once are evicted before frames referenced
+     * twice, even if the twice-referenced frames are older.
+     */
+    @Test public void lruKPrefersSingleReference() {
+        ReplacementPolicy policy = new LruKReplacementPolicy(4, 2);
+        // frames 0 and 1 are "hot": referenced twice
+        policy.recordAccess(0);
+        policy.recordAccess(1);
+        policy.recordAccess(0);
+        policy.recordAccess(1);
+        // frames 2 and 3 are touched once by a scan, after the hot frames
+        policy.recordAccess(2);
+        policy.recordAccess(3);
+
+        assertEquals(2, policy.chooseVictim(frame -> true));
+        policy.remove(2);
+        policy.recordAccess(2);
+        assertEquals(3, policy.chooseVictim(frame -> true));
+    }
+
+    /**
+     * Among frames with K references, the one with the oldest K-th reference
+     * is evicted.
+     */
+    @Test public void lruKOldestKthReference() {
+        ReplacementPolicy policy = new LruKReplacementPolicy(3, 2);
+        policy.recordAccess(0);
+        policy.recordAccess(1);
+        policy.recordAccess(2);
+        policy.recordAccess(1);
+        policy.recordAccess(2);
+        policy.recordAccess(0);
+        // second most recent references: 0 -> t1, 1 -> t2, 2 -> t3
+        assertEquals(0, policy.chooseVictim(frame -> true));
+        assertEquals(1, policy.chooseVictim(frame -> frame != 0));
+    }
+
+    /**
+     * Frames rejected by the predicate are never chosen.
+     */
+    @Test public void skipsUnevictable() {
+        ReplacementPolicy lru = new LruKReplacementPolicy(2);
+        ReplacementPolicy clock = new ClockReplacementPolicy(2);
+        for (ReplacementPolicy policy : new ReplacementPolicy[]{ lru, clock }) {
+            policy.recordAccess(0);
+            policy.recordAccess(1);
+            assertEquals(1, policy.chooseVictim(frame -> frame == 1));
+            assertEquals(-1, policy.chooseVictim(frame -> false));
+        }
+    }
+
+    /**
+     * CLOCK gives referenced frames a second chance.
+     */
+    @Test public void clockSecondChance() {
+        ReplacementPolicy policy = new ClockReplacementPolicy(3);
+        policy.recordAccess(0);
+        policy.recordAccess(1);
+        policy.recordAccess(2);
+        // all bits are set, so the first sweep clears them and frame 0 goes
+        assertEquals(0, policy.chooseVictim(frame -> true));
+        policy.recordAccess(1);
+        // frame 1 was referenced again, so frame 2 is next
+        assertEquals(2, policy.chooseVictim(frame -> true));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
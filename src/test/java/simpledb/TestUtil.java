@@ -220,6 +220,10 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public List<Page> insertTuples(TransactionId tid, Iterator<Tuple> tuples) {
+            throw new RuntimeException("not implemented");
+        }
+
         public List<Page> deleteTuple(TransactionId tid, Tuple t) {
             throw new RuntimeException("not implemented");
         }
@@ -0,0 +1,80 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.execution.OrderBy;
+import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.*;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+
+/**
+ * Compares building a B+ tree index over a heap file by inserting its tuples
+ * in small transactions with sorting them with OrderBy and building the tree
+ * bottom up with bulkLoad, which writes every page once and fills it.
+ * <p>
+ * Run with: java simpledb.benchmark.BTreeBulkLoadBenchmark [rows] [batchSize]
+ */
+public class BTreeBulkLoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int batchSize = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        // 拆分内部页时要修改所有被移动孩子的父指针，默认的50页放不下这些脏页
+        Database.resetBufferPool(1000);
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, rows, null, null);
+        System.out.printf("%d rows%n", rows);
+        System.out.printf("%-14s %12s %10s %10s%n", "mode", "rows/s", "pages", "ms");
+
+        BTreeFile bf = emptyIndex();
+        long start = System.currentTimeMillis();
+        insertInBatches(table, bf, batchSize);
+        report("insert", rows, bf, start);
+
+        bf = emptyIndex();
+        start = System.currentTimeMillis();
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().bulkLoad(tid, bf.getId(),
+                new OrderBy(0, true, new SeqScan(tid, table.getId())), 1.0);
+        Database.getBufferPool().transactionComplete(tid);
+        report("sort + load", rows, bf, start);
+    }
+
+    private static BTreeFile emptyIndex() throws Exception {
+        File f = File.createTempFile("bulkload", ".dat");
+        f.deleteOnExit();
+        return BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+    }
+
+    // NO STEAL：每个事务修改的页都要放得进BufferPool，所以每batchSize个元组提交一次
+    private static void insertInBatches(HeapFile table, BTreeFile bf, int batchSize) throws Exception {
+        TransactionId scanTid = new TransactionId();
+        DbFileIterator it = table.iterator(scanTid);
+        it.open();
+        TransactionId tid = new TransactionId();
+        int n = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            Tuple copy = new Tuple(bf.getTupleDesc());
+            copy.setField(0, t.getField(0));
+            copy.setField(1, t.getField(1));
+            Database.getBufferPool().insertTuple(tid, bf.getId(), copy);
+            if (++n % batchSize == 0) {
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().transactionComplete(scanTid);
+    }
+
+    private static void report(String name, int rows, BTreeFile bf, long start) {
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        System.out.printf("%-14s %12.0f %10d %10d%n", name, 1000.0 * rows / elapsed, bf.numPages(), elapsed);
+    }
+}
@@ -0,0 +1,93 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of concurrent single-operation transactions on a
+ * B+ tree: writers insert random keys and readers look up random keys. The
+ * descent locks the internal pages only while it passes them, so
+ * transactions wait for each other only on the leaf pages they share and on
+ * the pages a split modifies.
+ * <p>
+ * Run with: java simpledb.benchmark.BTreeConcurrencyBenchmark [threads] [opsPerThread] [rows]
+ */
+public class BTreeConcurrencyBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int opsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int rows = args.length > 2 ? Integer.parseInt(args[2]) : 50000;
+
+        System.out.printf("%d threads, %d operations per thread, %d rows%n", threads, opsPerThread, rows);
+        System.out.printf("%-14s %12s %10s %12s %10s%n", "mix", "ops/s", "aborts", "lock waits", "ms");
+        run("lookups", threads, 0, opsPerThread, rows);
+        run("mixed", threads, threads / 2, opsPerThread, rows);
+        run("inserts", threads, threads, opsPerThread, rows);
+    }
+
+    private static void run(String name, int threads, int writers, int opsPerThread, int rows) throws Exception {
+        Database.reset();
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, rows, null, null, 0);
+        LockManager locks = Database.getBufferPool().getLockManager();
+        long waits = locks.getWaitCount();
+        AtomicLong aborts = new AtomicLong();
+
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            boolean writer = i < writers;
+            workers.add(new Thread(() -> {
+                try {
+                    for (int op = 0; op < opsPerThread; op++) {
+                        if (!runOnce(bf, writer)) {
+                            aborts.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        long start = System.currentTimeMillis();
+        for (Thread t : workers) t.start();
+        for (Thread t : workers) t.join();
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+        System.out.printf("%-14s %12.0f %10d %12d %10d%n", name,
+                1000.0 * threads * opsPerThread / elapsed, aborts.get(), locks.getWaitCount() - waits, elapsed);
+    }
+
+    // 在一个事务中插入或查找一个随机key；事务被中止时返回false
+    private static boolean runOnce(BTreeFile bf, boolean writer) throws Exception {
+        int key = ThreadLocalRandom.current().nextInt(BTreeUtility.MAX_RAND_VALUE);
+        TransactionId tid = new TransactionId();
+        try {
+            if (writer) {
+                Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(key, 2));
+            } else {
+                DbFileIterator it = bf.indexIterator(tid,
+                        new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+                it.open();
+                while (it.hasNext()) {
+                    it.next();
+                }
+                it.close();
+            }
+            Database.getBufferPool().transactionComplete(tid, true);
+            return true;
+        } catch (TransactionAbortedException e) {
+            Database.getBufferPool().transactionComplete(tid, false);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Builds a B+ tree keyed on URL-like strings that share a long prefix and reports
+ * its height, the fanout of the internal pages just above the leaves, the tuples
+ * per leaf and the rate of point lookups. Pages with string keys are prefix
+ * compressed and internal pages hold suffix-truncated separators, so both hold
+ * many times the fixed-width limits printed alongside.
+ * <p>
+ * Run with: java simpledb.benchmark.BTreeStringKeyBenchmark [rows] [lookups]
+ */
+public class BTreeStringKeyBenchmark {
+    private static final TupleDesc TD = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        File f = File.createTempFile("stringkey", ".dat");
+        f.deleteOnExit();
+        BTreeFile bf = new BTreeFile(f, 0, TD);
+        Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+
+        List<Tuple> tuples = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            Tuple t = new Tuple(TD);
+            t.setField(0, new StringField(url(i), Type.STRING_LEN));
+            t.setField(1, new IntField(i));
+            tuples.add(t);
+        }
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().bulkLoad(tid, bf.getId(), new TupleIterator(TD, tuples), 1.0);
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+                BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+        BTreePage page = (BTreePage) Database.getBufferPool().getPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+        int fanout = 0;
+        int height = 1;
+        while (page instanceof BTreeInternalPage) {
+            // 根可能只是部分填满，报告叶子的父节点
+            fanout = ((BTreeInternalPage) page).getNumEntries() + 1;
+            BTreePageId child = ((BTreeInternalPage) page).iterator().next().getLeftChild();
+            page = (BTreePage) Database.getBufferPool().getPage(tid, child, Permissions.READ_ONLY);
+            height++;
+        }
+        // 定长key的内部页最多能放的孩子数
+        int pointer = Type.INT_TYPE.getLen();
+        int fixedFanout = (BufferPool.getPageSize() * 8 - (2 * pointer * 8 + 8 + 1))
+                / (Type.STRING_TYPE.getLen() * 8 + pointer * 8 + 1) + 1;
+        // 最左边的叶子页，以及定长元组的叶子页最多能放的元组数
+        int leafTuples = ((BTreeLeafPage) page).getNumTuples();
+        int fixedLeafTuples = (BufferPool.getPageSize() * 8 - 3 * pointer * 8) / (TD.getSize() * 8 + 1);
+
+        Random r = new Random(1);
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < lookups; i++) {
+            DbFileIterator it = bf.indexIterator(tid,
+                    new IndexPredicate(Op.EQUALS, new StringField(url(r.nextInt(rows)), Type.STRING_LEN)));
+            it.open();
+            it.next();
+            it.close();
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        Database.getBufferPool().transactionComplete(tid);
+
+        System.out.printf("%d rows, %d pages%n", rows, bf.numPages());
+        System.out.printf("height %d, leaf parent fanout %d (fixed-width keys: at most %d)%n", height, fanout, fixedFanout);
+        System.out.printf("%d tuples per leaf (fixed-width rows: at most %d)%n", leafTuples, fixedLeafTuples);
+        System.out.printf("%.0f lookups/s%n", 1000.0 * lookups / elapsed);
+    }
+
+    private static String url(int i) {
+        return String.format("https://www.example.com/users/%08d/profile", i);
+    }
+}
@@ -0,0 +1,73 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Compares SELECT SUM(c1) FROM t WHERE c0 &lt; x GROUP BY c2 (and without the
+ * GROUP BY) run one tuple at a time through hasNext()/next() with the same
+ * plan run one batch at a time through nextBatch(). Every run starts with an
+ * empty buffer pool, so both read and decode every page; the file stays in
+ * the OS page cache, so this measures CPU cost rather than disk I/O.
+ * <p>
+ * Run with: java simpledb.benchmark.BatchExecutionBenchmark [rows] [iterations]
+ */
+public class BatchExecutionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, rows, 1000, null, null);
+        TransactionId tid = new TransactionId();
+
+        System.out.printf("%d rows, best of %d runs%n", rows, iterations);
+        System.out.printf("%-10s %-10s %14s%n", "grouping", "mode", "rows/s");
+        for (int gfield : new int[]{ Aggregator.NO_GROUPING, 2 }) {
+            for (boolean batch : new boolean[]{ false, true }) {
+                // warm up the JIT before timing
+                run(tid, table, batch, gfield);
+                long best = Long.MAX_VALUE;
+                for (int i = 0; i < iterations; i++) {
+                    best = Math.min(best, run(tid, table, batch, gfield));
+                }
+                System.out.printf("%-10s %-10s %14.0f%n", gfield == Aggregator.NO_GROUPING ? "none" : "c2",
+                        batch ? "batch" : "row", (double) rows * 1000000000L / best);
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    // returns the elapsed time in nanoseconds
+    private static long run(TransactionId tid, HeapFile table, boolean batch, int gfield) throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        Database.resetBufferPool(table.numPages() + 16);
+        long start = System.nanoTime();
+        Filter filter = new Filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(500)),
+                new SeqScan(tid, table.getId(), "t"));
+        IntegerAggregator agg = new IntegerAggregator(gfield,
+                gfield == Aggregator.NO_GROUPING ? null : table.getTupleDesc().getFieldType(gfield), 1, Aggregator.Op.SUM);
+        filter.open();
+        if (batch) {
+            TupleBatch b;
+            while ((b = filter.nextBatch()) != null) {
+                agg.mergeBatch(b);
+            }
+        } else {
+            while (filter.hasNext()) {
+                agg.mergeTupleIntoGroup(filter.next());
+            }
+        }
+        filter.close();
+        OpIterator result = agg.iterator();
+        result.open();
+        while (result.hasNext()) {
+            result.next();
+        }
+        result.close();
+        return System.nanoTime() - start;
+    }
+}
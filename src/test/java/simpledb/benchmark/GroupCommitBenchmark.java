@@ -0,0 +1,83 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Insert;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Measures commit throughput of concurrent single-row Insert transactions
+ * with group commit off and on. Every thread inserts into its own table, so
+ * transactions never wait for each other's page locks and the log force is
+ * the only shared bottleneck.
+ * <p>
+ * Run with: java simpledb.benchmark.GroupCommitBenchmark [threads] [commitsPerThread] [maxDelayMillis]
+ */
+public class GroupCommitBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int commitsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        long maxDelay = args.length > 2 ? Long.parseLong(args[2]) : 2;
+
+        System.out.printf("%d threads, %d commits per thread, max group delay %d ms%n",
+                threads, commitsPerThread, maxDelay);
+        System.out.printf("%-14s %12s %12s %10s%n", "mode", "commits/s", "log forces", "ms");
+        run("group off", threads, commitsPerThread, -1);
+        run("group on", threads, commitsPerThread, maxDelay);
+    }
+
+    private static void run(String name, int threads, int commitsPerThread, long maxDelay) throws Exception {
+        Database.reset();
+        List<HeapFile> tables = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            File f = File.createTempFile("groupcommit", ".dat");
+            f.deleteOnExit();
+            tables.add(Utility.createEmptyHeapFile(f.getAbsolutePath(), 2));
+        }
+        LogFile log = Database.getLogFile();
+        if (maxDelay >= 0) {
+            log.enableGroupCommit(maxDelay, threads);
+        }
+
+        long forces = log.getForceCount();
+        List<Thread> workers = new ArrayList<>();
+        for (HeapFile table : tables) {
+            workers.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < commitsPerThread; i++) {
+                        insertAndCommit(table, i);
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        long start = System.currentTimeMillis();
+        for (Thread t : workers) t.start();
+        for (Thread t : workers) t.join();
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        log.disableGroupCommit();
+
+        System.out.printf("%-14s %12.0f %12d %10d%n", name,
+                1000.0 * threads * commitsPerThread / elapsed, log.getForceCount() - forces, elapsed);
+    }
+
+    private static void insertAndCommit(HeapFile table, int value) throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Tuple tuple = new Tuple(Utility.getTupleDesc(2));
+        tuple.setField(0, new IntField(value));
+        tuple.setField(1, new IntField(0));
+        Insert insert = new Insert(t.getId(),
+                new TupleIterator(Utility.getTupleDesc(2), Collections.singletonList(tuple)), table.getId());
+        insert.open();
+        insert.next();
+        insert.close();
+        t.commit();
+    }
+}
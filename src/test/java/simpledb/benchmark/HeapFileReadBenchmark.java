@@ -0,0 +1,110 @@
+package simpledb.benchmark;
+
+import simpledb.storage.*;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Compares page read throughput of HeapFile's I/O paths: the old one that
+ * opens an InputStream and skips to the page on every read, positional reads
+ * on a shared FileChannel, and reads from a memory mapping. Every run opens
+ * a fresh HeapFile, so channels and mappings start cold, and several threads
+ * read every page of the file concurrently, as parallel scans would.
+ * <p>
+ * The OS page cache is not dropped between runs, so this measures the cost
+ * of the I/O path itself rather than of the disk.
+ * <p>
+ * Run with: java simpledb.benchmark.HeapFileReadBenchmark [rows] [threads] [iterations]
+ */
+public class HeapFileReadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, rows, null, null);
+        System.out.printf("%d pages, %d threads, best of %d runs%n", table.numPages(), threads, iterations);
+
+        Map<String, Function<HeapFile, HeapFile>> modes = new LinkedHashMap<>();
+        modes.put("stream", hf -> new StreamHeapFile(hf));
+        modes.put("channel", hf -> new HeapFile(hf.getFile(), hf.getTupleDesc()));
+        modes.put("mmap", hf -> {
+            HeapFile mapped = new HeapFile(hf.getFile(), hf.getTupleDesc());
+            mapped.setMemoryMapped(true);
+            return mapped;
+        });
+
+        System.out.printf("%-10s %14s%n", "mode", "pages/s");
+        for (Map.Entry<String, Function<HeapFile, HeapFile>> e : modes.entrySet()) {
+            // warm up the JIT before timing
+            run(e.getValue().apply(table), threads);
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < iterations; i++) {
+                best = Math.min(best, run(e.getValue().apply(table), threads));
+            }
+            System.out.printf("%-10s %14.0f%n", e.getKey(),
+                    (double) table.numPages() * threads * 1000000000L / best);
+        }
+    }
+
+    // returns the elapsed time in nanoseconds; closes hf afterwards
+    private static long run(HeapFile hf, int threads) throws InterruptedException {
+        int numPages = hf.numPages();
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final int first = i * numPages / threads;
+            readers.add(new Thread(() -> {
+                // every thread starts at a different page so they do not run in lock step
+                for (int j = 0; j < numPages; j++) {
+                    hf.readPage(new HeapPageId(hf.getId(), (first + j) % numPages));
+                }
+            }));
+        }
+        try {
+            long start = System.nanoTime();
+            for (Thread t : readers) t.start();
+            for (Thread t : readers) t.join();
+            return System.nanoTime() - start;
+        } finally {
+            hf.close();
+        }
+    }
+
+    /**
+     * The read path HeapFile used before it kept a FileChannel open.
+     */
+    private static class StreamHeapFile extends HeapFile {
+        StreamHeapFile(HeapFile hf) {
+            super(hf.getFile(), hf.getTupleDesc());
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            byte[] data = new byte[BufferPool.getPageSize()];
+            try (InputStream is = Files.newInputStream(getFile().toPath())) {
+                long toSkip = (long) pid.getPageNumber() * BufferPool.getPageSize();
+                while (toSkip > 0) {
+                    long skipped = is.skip(toSkip);
+                    if (skipped <= 0) {
+                        throw new IOException("page " + pid.getPageNumber() + " is past the end of the file");
+                    }
+                    toSkip -= skipped;
+                }
+                int offset = 0;
+                int count;
+                while (offset < data.length && (count = is.read(data, offset, data.length - offset)) >= 0) {
+                    offset += count;
+                }
+                return new HeapPage((HeapPageId) pid, data);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
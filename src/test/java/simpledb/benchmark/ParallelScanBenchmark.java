@@ -0,0 +1,62 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Measures how SELECT c2, SUM(c1) FROM t WHERE c0 &lt; x GROUP BY c2 scales
+ * with the number of workers of a parallel plan: morsel-driven scans and
+ * filters with a partial aggregate on every worker, gathered by an Exchange
+ * into the final aggregate. Every run starts with an empty buffer pool, so
+ * the workers read and decode every page; the file stays in the OS page
+ * cache, so this measures CPU cost rather than disk I/O.
+ * <p>
+ * Run with: java simpledb.benchmark.ParallelScanBenchmark [rows] [iterations]
+ */
+public class ParallelScanBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        HeapFile table = SystemTestUtil.createRandomHeapFile(3, rows, 1000, null, null);
+        TransactionId tid = new TransactionId();
+
+        System.out.printf("%d rows, %d pages, best of %d runs%n", rows, table.numPages(), iterations);
+        System.out.printf("%-8s %14s %8s%n", "workers", "rows/s", "speedup");
+        long serial = 0;
+        for (int degree = 1; ; degree *= 2) {
+            degree = Math.min(degree, Exchange.DEFAULT_DEGREE);
+            // warm up the JIT before timing
+            run(tid, table, degree);
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < iterations; i++) {
+                best = Math.min(best, run(tid, table, degree));
+            }
+            if (degree == 1) serial = best;
+            System.out.printf("%-8d %14.0f %8.2f%n", degree, (double) rows * 1000000000L / best,
+                    (double) serial / best);
+            if (degree == Exchange.DEFAULT_DEGREE) break;
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    // returns the elapsed time in nanoseconds
+    private static long run(TransactionId tid, HeapFile table, int degree) throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+        Database.resetBufferPool(table.numPages() + 16);
+        long start = System.nanoTime();
+        OpIterator[] pipelines = Parallel.filter(new Predicate(0, Predicate.Op.LESS_THAN, new IntField(500)),
+                Parallel.scans(tid, table.getId(), "t", degree));
+        OpIterator agg = Parallel.aggregate(pipelines, 1, 2, Aggregator.Op.SUM);
+        agg.open();
+        while (agg.hasNext()) {
+            agg.next();
+        }
+        agg.close();
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,99 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.*;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+import java.util.function.IntFunction;
+
+/**
+ * Measures how well each ReplacementPolicy protects a hot B+ tree working set
+ * from a concurrent full-table scan. A large heap file is scanned while point
+ * lookups on a small set of keys go through BTreeFile.indexIterator; the hit
+ * ratio of the lookups and of the whole workload is reported per policy.
+ * <p>
+ * Run with: java simpledb.benchmark.ReplacementPolicyBenchmark [scanRows] [bufferPages]
+ */
+public class ReplacementPolicyBenchmark {
+
+    private static final int HOT_KEYS = 32;
+    private static final int TUPLES_PER_LOOKUP = 100;
+
+    public static void main(String[] args) throws Exception {
+        int scanRows = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int bufferPages = args.length > 1 ? Integer.parseInt(args[1]) : BufferPool.DEFAULT_PAGES;
+
+        System.out.println("Creating tables...");
+        List<List<Integer>> indexTuples = new ArrayList<>();
+        BTreeFile index = BTreeUtility.createRandomBTreeFile(2, 60000, null, indexTuples, 0);
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, scanRows, null, null);
+
+        Random r = new Random(42);
+        int[] hotKeys = new int[HOT_KEYS];
+        for (int i = 0; i < HOT_KEYS; i++) {
+            hotKeys[i] = indexTuples.get(r.nextInt(indexTuples.size())).get(0);
+        }
+
+        Map<String, IntFunction<ReplacementPolicy>> policies = new LinkedHashMap<>();
+        policies.put("CLOCK", ClockReplacementPolicy::new);
+        policies.put("LRU-2", LruKReplacementPolicy::new);
+
+        System.out.printf("%d scanned rows, %d buffer pages, %d hot keys, one lookup every %d rows%n",
+                scanRows, bufferPages, HOT_KEYS, TUPLES_PER_LOOKUP);
+        System.out.printf("%-8s %14s %14s %10s%n", "policy", "lookup hit %", "total hit %", "ms");
+        for (Map.Entry<String, IntFunction<ReplacementPolicy>> e : policies.entrySet()) {
+            BufferPool bp = Database.resetBufferPool(bufferPages, e.getValue().apply(bufferPages));
+            run(bp, table, index, hotKeys, e.getKey());
+        }
+    }
+
+    private static void run(BufferPool bp, HeapFile table, BTreeFile index, int[] hotKeys, String name)
+            throws Exception {
+        TransactionId tid = new TransactionId();
+        Random r = new Random(7);
+        // warm up the hot set so every policy starts from the same state
+        for (int key : hotKeys) {
+            lookup(index, tid, key);
+        }
+        bp.resetStats();
+
+        long lookupHits = 0, lookupMisses = 0;
+        long start = System.currentTimeMillis();
+        SeqScan scan = new SeqScan(tid, table.getId(), "");
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            if (++n % TUPLES_PER_LOOKUP == 0) {
+                long hits = bp.getHitCount(), misses = bp.getMissCount();
+                lookup(index, tid, hotKeys[r.nextInt(hotKeys.length)]);
+                lookupHits += bp.getHitCount() - hits;
+                lookupMisses += bp.getMissCount() - misses;
+            }
+        }
+        scan.close();
+        long elapsed = System.currentTimeMillis() - start;
+        bp.transactionComplete(tid);
+
+        System.out.printf("%-8s %14.2f %14.2f %10d%n", name,
+                100.0 * lookupHits / (lookupHits + lookupMisses),
+                100.0 * bp.getHitCount() / (bp.getHitCount() + bp.getMissCount()),
+                elapsed);
+    }
+
+    private static void lookup(BTreeFile index, TransactionId tid, int key) throws Exception {
+        DbFileIterator it = index.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+        }
+        it.close();
+    }
+}
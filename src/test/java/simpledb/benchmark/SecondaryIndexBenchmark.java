@@ -0,0 +1,90 @@
+package simpledb.benchmark;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.SecondaryIndex;
+import simpledb.index.SecondaryIndexScan;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Builds a heap table with a secondary index on its second column and times point
+ * lookups on that column, once by scanning and filtering the table and once through
+ * the index, which reads a few index pages and then only the pages holding matches.
+ * <p>
+ * Run with: java simpledb.benchmark.SecondaryIndexBenchmark [rows] [lookups]
+ */
+public class SecondaryIndexBenchmark {
+    private static final TupleDesc TD = new TupleDesc(new Type[] { Type.INT_TYPE, Type.INT_TYPE });
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        Database.resetBufferPool(1000);
+
+        File f = File.createTempFile("heap", ".dat");
+        f.deleteOnExit();
+        HeapFile table = new HeapFile(f, TD);
+        Database.getCatalog().addTable(table, UUID.randomUUID().toString());
+        Random r = new Random(1);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < rows; i++) {
+            Tuple t = new Tuple(TD);
+            t.setField(0, new IntField(i));
+            t.setField(1, new IntField(r.nextInt(rows)));
+            Database.getBufferPool().insertTuple(tid, table.getId(), t);
+            if (i % 1000 == 999) {
+                Database.getBufferPool().transactionComplete(tid);
+                tid = new TransactionId();
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        File indexFile = File.createTempFile("index", ".dat");
+        indexFile.deleteOnExit();
+        SecondaryIndex index = new SecondaryIndex(indexFile, table.getId(), 1);
+        Database.getCatalog().addIndex(index);
+        tid = new TransactionId();
+        index.build(tid);
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        long start = System.currentTimeMillis();
+        int scanned = 0;
+        for (int i = 0; i < lookups; i++) {
+            Predicate p = new Predicate(1, Op.EQUALS, new IntField(r.nextInt(rows)));
+            scanned += count(new Filter(p, new SeqScan(tid, table.getId())));
+        }
+        long scanMs = Math.max(1, System.currentTimeMillis() - start);
+
+        start = System.currentTimeMillis();
+        int found = 0;
+        for (int i = 0; i < lookups; i++) {
+            IndexPredicate ipred = new IndexPredicate(Op.EQUALS, new IntField(r.nextInt(rows)));
+            found += count(new SecondaryIndexScan(tid, index, ipred));
+        }
+        long indexMs = Math.max(1, System.currentTimeMillis() - start);
+        Database.getBufferPool().transactionComplete(tid);
+
+        System.out.printf("%d rows, %d table pages, %d index pages%n", rows, table.numPages(), index.getFile().numPages());
+        System.out.printf("scan:  %.0f lookups/s (%d matches)%n", 1000.0 * lookups / scanMs, scanned);
+        System.out.printf("index: %.0f lookups/s (%d matches)%n", 1000.0 * lookups / indexMs, found);
+    }
+
+    private static int count(OpIterator it) throws Exception {
+        int n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+}
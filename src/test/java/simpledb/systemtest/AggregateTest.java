@@ -2,21 +2,30 @@ package simpledb.systemtest;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 import org.junit.Test;
+import simpledb.Parser;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.execution.Aggregate;
 import simpledb.execution.Aggregator;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
 import simpledb.execution.SeqScan;
+import simpledb.optimizer.TableStats;
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 public class AggregateTest extends SimpleDbTestBase {
     public void validateAggregate(DbFile table, Aggregator.Op operation, int aggregateColumn, int groupColumn, List<List<Integer>> expectedResult)
             throws DbException, TransactionAbortedException {
@@ -121,6 +130,152 @@ public class AggregateTest extends SimpleDbTestBase {
         doAggregate(Aggregator.Op.AVG, Aggregator.NO_GROUPING);
     }
 
+    // 按前两列分组，计算COUNT(*)、SUM(c2)、MAX(c2)、MIN(c1)；按分组值排序
+    private static List<List<Integer>> multiAggregate(List<List<Integer>> tuples) {
+        Map<List<Integer>, int[]> groups = new TreeMap<>((a, b) -> a.get(0).equals(b.get(0))
+                ? Integer.compare(a.get(1), b.get(1)) : Integer.compare(a.get(0), b.get(0)));
+        for (List<Integer> t : tuples) {
+            int[] a = groups.get(t.subList(0, 2));
+            if (a == null) {
+                groups.put(t.subList(0, 2), new int[]{ 1, t.get(2), t.get(2), t.get(1) });
+                continue;
+            }
+            a[0]++;
+            a[1] += t.get(2);
+            a[2] = Math.max(a[2], t.get(2));
+            a[3] = Math.min(a[3], t.get(1));
+        }
+        List<List<Integer>> results = new ArrayList<>();
+        for (Map.Entry<List<Integer>, int[]> e : groups.entrySet()) {
+            List<Integer> result = new ArrayList<>(e.getKey());
+            for (int v : e.getValue()) result.add(v);
+            results.add(result);
+        }
+        return results;
+    }
+
+    private static List<List<Integer>> readSorted(OpIterator op) throws DbException, TransactionAbortedException {
+        List<List<Integer>> results = new ArrayList<>();
+        op.open();
+        while (op.hasNext()) results.add(SystemTestUtil.tupleToList(op.next()));
+        op.close();
+        results.sort((a, b) -> a.get(0).equals(b.get(0))
+                ? Integer.compare(a.get(1), b.get(1)) : Integer.compare(a.get(0), b.get(0)));
+        return results;
+    }
+
+    @Test public void testMultipleGroupsAndAggregates()
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> createdTuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, ROWS * 8, MAX_VALUE / 8, null, createdTuples);
+        TransactionId tid = new TransactionId();
+        Aggregate ag = new Aggregate(new SeqScan(tid, table.getId(), ""), new int[]{ 0, 1 },
+                new int[]{ 0, 2, 2, 1 },
+                new Aggregator.Op[]{ Aggregator.Op.COUNT, Aggregator.Op.SUM, Aggregator.Op.MAX, Aggregator.Op.MIN });
+        assertEquals(multiAggregate(createdTuples), readSorted(ag));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testParsedMultipleGroupsAndAggregates() throws Exception {
+        List<List<Integer>> createdTuples = new ArrayList<>();
+        // SeqScan的列名为别名直接接上列名，列名以.开头时为t.c0、t.c1...
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, ROWS * 8, MAX_VALUE / 8, null, createdTuples, ".c");
+        Database.getCatalog().addTable(table, "t");
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("t", new TableStats(table.getId(), 1000));
+
+        TransactionId tid = new TransactionId();
+        OpIterator plan = new Parser().generateLogicalPlan(tid,
+                "SELECT t.c0, t.c1, COUNT(*), SUM(t.c2), MAX(t.c2), MIN(t.c1) FROM t GROUP BY t.c0, t.c1;")
+                .physicalPlan(tid, stats, false);
+        // 所有聚合在同一个Aggregate中计算，只扫描表一次
+        OpIterator op = plan;
+        int aggregates = 0;
+        int scans = 0;
+        while (op != null) {
+            if (op instanceof Aggregate) aggregates++;
+            if (op instanceof SeqScan) scans++;
+            op = op instanceof Operator ? ((Operator) op).getChildren()[0] : null;
+        }
+        assertEquals(1, aggregates);
+        assertEquals(1, scans);
+        assertEquals(Arrays.asList("t.c0", "t.c1"),
+                Arrays.asList(plan.getTupleDesc().getFieldName(0), plan.getTupleDesc().getFieldName(1)));
+        assertEquals(multiAggregate(createdTuples), readSorted(plan));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    // 先在内存中聚合，再用很小的内存预算分区聚合，结果应相同
+    @Test public void testSpilledAggregates()
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> createdTuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                COLUMNS, ROWS * 16, MAX_VALUE * 16, null, createdTuples);
+        TransactionId tid = new TransactionId();
+        int[] gfields = { 0, 1 };
+        int[] afields = { 0, 2, 2, 2, 2, 2 };
+        Aggregator.Op[] aops = { Aggregator.Op.COUNT, Aggregator.Op.SUM, Aggregator.Op.MAX,
+                Aggregator.Op.MIN, Aggregator.Op.AVG, Aggregator.Op.SUM_COUNT };
+        Aggregate inMemory = new Aggregate(new SeqScan(tid, table.getId(), ""), gfields, afields, aops);
+        List<List<Integer>> expected = readSorted(inMemory);
+        assertEquals(0, inMemory.getSpillCount());
+        assertEquals(0, inMemory.getSpilledBytes());
+        assertTrue(inMemory.getPeakMemory() > 0);
+
+        for (long budget : new long[]{ inMemory.getPeakMemory() / 8, inMemory.getPeakMemory() / 64 }) {
+            Aggregate spilled = new Aggregate(new SeqScan(tid, table.getId(), ""), gfields, afields, aops);
+            spilled.setMemoryBudget(budget);
+            assertEquals(expected, readSorted(spilled));
+            assertTrue(spilled.getSpillCount() > 0);
+            assertTrue(spilled.getSpilledBytes() > 0);
+            assertTrue(spilled.getPeakMemory() < inMemory.getPeakMemory());
+            assertEquals(0, Database.getTempFileManager().numFiles());
+
+            // rewind重新聚合各分区
+            spilled.open();
+            for (int i = 0; i < 2; i++) {
+                int rows = 0;
+                for (; spilled.hasNext(); spilled.next()) rows++;
+                assertEquals(expected.size(), rows);
+                spilled.rewind();
+            }
+            spilled.close();
+            assertEquals(0, Database.getTempFileManager().numFiles());
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    // 每组的和超出int范围时，溢出到磁盘的部分聚合仍保存完整的和与行数
+    @Test public void testSpilledAverageOfLargeValues()
+            throws IOException, DbException, TransactionAbortedException {
+        final int value = 2000000000;
+        Map<Integer, Integer> columnSpecification = new HashMap<>();
+        columnSpecification.put(1, value);
+        List<List<Integer>> createdTuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(
+                2, ROWS * 16, MAX_VALUE * 4, columnSpecification, createdTuples);
+        Map<Integer, Integer> counts = new TreeMap<>();
+        for (List<Integer> t : createdTuples) counts.merge(t.get(0), 1, Integer::sum);
+        List<List<Integer>> expected = new ArrayList<>();
+        for (Map.Entry<Integer, Integer> e : counts.entrySet()) {
+            expected.add(Arrays.asList(e.getKey(), value, e.getValue()));
+        }
+
+        TransactionId tid = new TransactionId();
+        int[] gfields = { 0 };
+        int[] afields = { 1, 1 };
+        Aggregator.Op[] aops = { Aggregator.Op.AVG, Aggregator.Op.COUNT };
+        Aggregate inMemory = new Aggregate(new SeqScan(tid, table.getId(), ""), gfields, afields, aops);
+        assertEquals(expected, readSorted(inMemory));
+        Aggregate spilled = new Aggregate(new SeqScan(tid, table.getId(), ""), gfields, afields, aops);
+        spilled.setMemoryBudget(1);
+        assertEquals(expected, readSorted(spilled));
+        assertTrue(spilled.getSpillCount() > 0);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(AggregateTest.class);
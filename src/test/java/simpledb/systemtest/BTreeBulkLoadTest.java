@@ -0,0 +1,271 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Predicate.Op;
+import simpledb.execution.SeqScan;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeBulkLoadTest extends SimpleDbTestBase {
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private void commit() {
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+	}
+
+	private static BTreeFile createEmptyBTreeFile() throws Exception {
+		File f = File.createTempFile("bulkload", ".dat");
+		f.deleteOnExit();
+		return BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), 2, 0);
+	}
+
+	// 按key排序的随机元组，key有重复
+	private static List<List<Integer>> sortedTuples(int rows, int maxValue) {
+		List<List<Integer>> tuples = new ArrayList<>();
+		BTreeUtility.generateRandomTuples(2, rows, maxValue, null, tuples);
+		tuples.sort(Comparator.comparing(t -> t.get(0)));
+		return tuples;
+	}
+
+	private static OpIterator input(List<List<Integer>> tuples) {
+		List<Tuple> list = new ArrayList<>();
+		for (List<Integer> t : tuples) {
+			list.add(BTreeUtility.getBTreeTuple(t));
+		}
+		return new TupleIterator(Utility.getTupleDesc(2), list);
+	}
+
+	private List<List<Integer>> scan(BTreeFile bf) throws Exception {
+		List<List<Integer>> result = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			result.add(BTreeUtility.tupleToList(it.next()));
+		}
+		it.close();
+		return result;
+	}
+
+	private BTreePage root(BTreeFile bf) throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		return (BTreePage) Database.getBufferPool().getPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+	}
+
+	@Test public void loadSortedInput() throws Exception {
+		// 1024字节的页：每个叶子页124个元组，每个内部页125个孩子，40000个元组是三层
+		BufferPool.setPageSize(1024);
+		Database.reset();
+		BTreeFile bf = createEmptyBTreeFile();
+		List<List<Integer>> tuples = sortedTuples(40000, 5000);
+
+		Database.getBufferPool().bulkLoad(tid, bf.getId(), input(tuples), 1.0);
+		commit();
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		assertEquals(tuples, scan(bf));
+		BTreePage root = root(bf);
+		assertEquals(BTreePageId.INTERNAL, root.getId().pgcateg());
+		assertEquals(BTreePageId.INTERNAL,
+				((BTreeInternalPage) root).iterator().next().getLeftChild().pgcateg());
+		// 叶子页是满的
+		int leaves = (40000 + 123) / 124;
+		assertTrue(bf.numPages() <= leaves + leaves / 100 + 3);
+
+		// 按key查找
+		for (int key : new int[] { tuples.get(0).get(0), 2500, tuples.get(39999).get(0) }) {
+			int expected = 0;
+			for (List<Integer> t : tuples) {
+				if (t.get(0) == key) expected++;
+			}
+			DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(key)));
+			it.open();
+			int found = 0;
+			while (it.hasNext()) {
+				assertEquals(key, ((IntField) it.next().getField(0)).getValue());
+				found++;
+			}
+			it.close();
+			assertEquals(expected, found);
+		}
+	}
+
+	@Test public void insertAndDeleteAfterLoad() throws Exception {
+		BufferPool.setPageSize(1024);
+		Database.reset();
+		BTreeFile bf = createEmptyBTreeFile();
+		List<List<Integer>> tuples = sortedTuples(20000, 5000);
+		Database.getBufferPool().bulkLoad(tid, bf.getId(), input(tuples), 0.8);
+		commit();
+
+		// 每个事务修改的页都要放得进BufferPool，所以分批提交
+		Random r = new Random(1);
+		for (int i = 0; i < 1000; i++) {
+			int key = r.nextInt(5000);
+			Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(key, 2));
+			tuples.add(Arrays.asList(key, key));
+			if (i % 10 == 9) commit();
+		}
+		for (int round = 0; round < 50; round++) {
+			DbFileIterator it = bf.iterator(tid);
+			it.open();
+			List<Tuple> deleted = new ArrayList<>();
+			while (deleted.size() < 20 && it.hasNext()) {
+				Tuple t = it.next();
+				if (t.getField(1).hashCode() % 2 == 0) deleted.add(t);
+			}
+			it.close();
+			for (Tuple t : deleted) {
+				Database.getBufferPool().deleteTuple(tid, t);
+				tuples.remove(BTreeUtility.tupleToList(t));
+			}
+			commit();
+		}
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		List<List<Integer>> expected = new ArrayList<>(tuples);
+		List<List<Integer>> actual = scan(bf);
+		Comparator<List<Integer>> order = Comparator.<List<Integer>, Integer>comparing(t -> t.get(0))
+				.thenComparing(t -> t.get(1));
+		expected.sort(order);
+		actual.sort(order);
+		assertEquals(expected, actual);
+	}
+
+	@Test public void fillFactor() throws Exception {
+		List<List<Integer>> tuples = sortedTuples(20000, 1 << 16);
+		BTreeFile full = createEmptyBTreeFile();
+		BTreeFile half = createEmptyBTreeFile();
+		Database.getBufferPool().bulkLoad(tid, full.getId(), input(tuples), 1.0);
+		Database.getBufferPool().bulkLoad(tid, half.getId(), input(tuples), 0.5);
+		commit();
+
+		BTreeChecker.checkRep(full, tid, new HashMap<>(), true);
+		BTreeChecker.checkRep(half, tid, new HashMap<>(), true);
+		assertEquals(tuples, scan(full));
+		assertEquals(tuples, scan(half));
+		assertTrue(half.numPages() >= 2 * full.numPages() - 2);
+
+		// 只有一个叶子页时它就是根
+		BTreeFile small = createEmptyBTreeFile();
+		Database.getBufferPool().bulkLoad(tid, small.getId(), input(tuples.subList(0, 10)), 1.0);
+		commit();
+		assertEquals(BTreePageId.LEAF, root(small).getId().pgcateg());
+		assertEquals(tuples.subList(0, 10), scan(small));
+	}
+
+	@Test public void loadUnsortedInputThroughOrderBy() throws Exception {
+		List<List<Integer>> tuples = new ArrayList<>();
+		HeapFile heap = SystemTestUtil.createRandomHeapFile(2, 30000, null, tuples);
+		BTreeFile bf = createEmptyBTreeFile();
+
+		OrderBy sorted = new OrderBy(0, true, new SeqScan(tid, heap.getId()));
+		sorted.setMemoryBudget(64 << 10);
+		Database.getBufferPool().bulkLoad(tid, bf.getId(), sorted, 0.9);
+		assertTrue(sorted.getSpillCount() > 0);
+		commit();
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		List<List<Integer>> actual = scan(bf);
+		for (int i = 1; i < actual.size(); i++) {
+			assertTrue(actual.get(i - 1).get(0) <= actual.get(i).get(0));
+		}
+		Comparator<List<Integer>> order = Comparator.<List<Integer>, Integer>comparing(t -> t.get(0))
+				.thenComparing(t -> t.get(1));
+		tuples.sort(order);
+		actual.sort(order);
+		assertEquals(tuples, actual);
+	}
+
+	@Test public void abortLeavesTreeEmpty() throws Exception {
+		BTreeFile bf = createEmptyBTreeFile();
+		List<List<Integer>> tuples = sortedTuples(5000, 1000);
+		Database.getBufferPool().bulkLoad(tid, bf.getId(), input(tuples), 1.0);
+		Database.getBufferPool().transactionComplete(tid, false);
+		tid = new TransactionId();
+		assertTrue(scan(bf).isEmpty());
+
+		// 再次加载
+		Database.getBufferPool().bulkLoad(tid, bf.getId(), input(tuples), 1.0);
+		commit();
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		assertEquals(tuples, scan(bf));
+	}
+
+	@Test public void rejectsUnsortedInputAndNonEmptyTree() throws Exception {
+		BTreeFile bf = createEmptyBTreeFile();
+		List<List<Integer>> tuples = sortedTuples(2000, 1000);
+		Collections.swap(tuples, 100, 1900);
+		try {
+			Database.getBufferPool().bulkLoad(tid, bf.getId(), input(tuples), 1.0);
+			fail("expected a DbException for unsorted input");
+		} catch (DbException e) {
+			// 期望的异常
+		}
+		Database.getBufferPool().transactionComplete(tid, false);
+		tid = new TransactionId();
+		assertTrue(scan(bf).isEmpty());
+
+		Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(1, 2));
+		commit();
+		try {
+			Database.getBufferPool().bulkLoad(tid, bf.getId(), input(sortedTuples(10, 10)), 1.0);
+			fail("expected a DbException for a non-empty tree");
+		} catch (DbException e) {
+			// 期望的异常
+		}
+	}
+
+	@Test public void emptyInput() throws Exception {
+		BTreeFile bf = createEmptyBTreeFile();
+		Database.getBufferPool().bulkLoad(tid, bf.getId(), input(new ArrayList<>()), 1.0);
+		commit();
+		assertTrue(scan(bf).isEmpty());
+		Database.getBufferPool().insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(1, 2));
+		commit();
+		assertEquals(1, scan(bf).size());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeBulkLoadTest.class);
+	}
+}
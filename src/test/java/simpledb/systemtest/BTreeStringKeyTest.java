@@ -0,0 +1,310 @@
+package simpledb.systemtest;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Type;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeStringKeyTest extends SimpleDbTestBase {
+	private static final TupleDesc TD = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE });
+
+	private TransactionId tid;
+
+	/**
+	 * Set up initial resources for each unit test.
+	 */
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		tid = new TransactionId();
+	}
+
+	@After
+	public void tearDown() {
+		Database.getBufferPool().transactionComplete(tid);
+
+		// set the page size back to the default
+		BufferPool.resetPageSize();
+		Database.reset();
+	}
+
+	private void commit() {
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+	}
+
+	private static BTreeFile createEmptyBTreeFile() throws Exception {
+		File f = File.createTempFile("stringkey", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = new BTreeFile(f, 0, TD);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
+	// 共享长前缀的key，例如URL
+	private static String url(int i) {
+		return String.format("https://www.example.com/users/%08d/profile", i);
+	}
+
+	private static Tuple tuple(int i) {
+		Tuple t = new Tuple(TD);
+		t.setField(0, new StringField(url(i), Type.STRING_LEN));
+		t.setField(1, new IntField(i));
+		return t;
+	}
+
+	private List<Integer> scan(BTreeFile bf) throws Exception {
+		List<Integer> result = new ArrayList<>();
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			result.add(((IntField) it.next().getField(1)).getValue());
+		}
+		it.close();
+		return result;
+	}
+
+	private int lookup(BTreeFile bf, int i) throws Exception {
+		DbFileIterator it = bf.indexIterator(tid,
+				new IndexPredicate(Op.EQUALS, new StringField(url(i), Type.STRING_LEN)));
+		it.open();
+		int found = 0;
+		while (it.hasNext()) {
+			assertEquals(i, ((IntField) it.next().getField(1)).getValue());
+			found++;
+		}
+		it.close();
+		return found;
+	}
+
+	private BTreePage root(BTreeFile bf) throws Exception {
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(tid,
+				BTreeRootPtrPage.getId(bf.getId()), Permissions.READ_ONLY);
+		return (BTreePage) Database.getBufferPool().getPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+	}
+
+	private void insertShuffled(BTreeFile bf, List<Integer> keys) throws Exception {
+		for (int i = 0; i < keys.size(); i++) {
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(keys.get(i)));
+			if (i % 10 == 9) commit();
+		}
+		commit();
+	}
+
+	private static List<Integer> shuffled(int n, long seed) {
+		List<Integer> keys = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			keys.add(i);
+		}
+		Collections.shuffle(keys, new Random(seed));
+		return keys;
+	}
+
+	@Test public void insertAndLookup() throws Exception {
+		BTreeFile bf = createEmptyBTreeFile();
+		List<Integer> keys = shuffled(6000, 1);
+		insertShuffled(bf, keys);
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		List<Integer> sorted = new ArrayList<>(keys);
+		Collections.sort(sorted);
+		assertEquals(sorted, scan(bf));
+		for (int i : new int[] { 0, 1, 2999, 5999 }) {
+			assertEquals(1, lookup(bf, i));
+		}
+		assertEquals(0, lookup(bf, 6000));
+
+		// 定长的元组每个叶子页最多放30个，需要200多个叶子页
+		assertTrue(bf.numPages() < 60);
+		BTreePage root = root(bf);
+		assertEquals(BTreePageId.INTERNAL, root.getId().pgcateg());
+		BTreeInternalPage rootPage = (BTreeInternalPage) root;
+		assertTrue(rootPage.hasCompressedKeys());
+		BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
+				rootPage.iterator().next().getLeftChild(), Permissions.READ_ONLY);
+		assertTrue(leaf.hasCompressedKeys());
+		assertTrue(leaf.getNumTuples() > 30);
+		// 复制到父节点的key截去了不需要的后缀
+		Iterator<BTreeEntry> it = rootPage.iterator();
+		while (it.hasNext()) {
+			String key = ((StringField) it.next().getKey()).getValue();
+			assertTrue(key, key.length() < url(0).length());
+		}
+	}
+
+	@Test public void deleteMergesAndRedistributes() throws Exception {
+		// 小页面使树有三层，删除时内部页也会合并和重新分配
+		BufferPool.setPageSize(1024);
+		Database.reset();
+		Database.resetBufferPool(500);
+		BTreeFile bf = createEmptyBTreeFile();
+		List<Integer> keys = shuffled(4000, 2);
+		insertShuffled(bf, keys);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		BTreePage root = root(bf);
+		assertEquals(BTreePageId.INTERNAL,
+				((BTreeInternalPage) root).iterator().next().getLeftChild().pgcateg());
+		int pages = bf.numPages();
+
+		// 重新分配会移动元组，所以每次删除前重新查找
+		Set<Integer> remaining = new TreeSet<>(keys);
+		List<Integer> order = shuffled(4000, 3);
+		for (int i = 0; i < 3600; i++) {
+			int key = order.get(i);
+			DbFileIterator it = bf.indexIterator(tid,
+					new IndexPredicate(Op.EQUALS, new StringField(url(key), Type.STRING_LEN)));
+			it.open();
+			Tuple t = it.next();
+			it.close();
+			Database.getBufferPool().deleteTuple(tid, t);
+			remaining.remove(key);
+			if (i % 10 == 9) commit();
+			if (i % 400 == 399) BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		}
+		commit();
+		assertEquals(new ArrayList<>(remaining), scan(bf));
+		for (int i : remaining) {
+			assertEquals(1, lookup(bf, i));
+		}
+		// 合并后的页面被重用；不重用的话2000个元组要再分配30多页
+		insertShuffled(bf, shuffled(2000, 4).stream().map(i -> i + 4000).collect(java.util.stream.Collectors.toList()));
+		assertTrue(bf.numPages() < pages + 10);
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+	}
+
+	@Test public void bulkLoad() throws Exception {
+		BTreeFile bf = createEmptyBTreeFile();
+		List<Tuple> tuples = new ArrayList<>();
+		for (int i = 0; i < 12000; i++) {
+			tuples.add(tuple(i));
+		}
+		Database.getBufferPool().bulkLoad(tid, bf.getId(), new TupleIterator(TD, tuples), 1.0);
+		commit();
+
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+		List<Integer> expected = new ArrayList<>();
+		for (int i = 0; i < 12000; i++) {
+			expected.add(i);
+		}
+		assertEquals(expected, scan(bf));
+		for (int i : new int[] { 0, 777, 11999 }) {
+			assertEquals(1, lookup(bf, i));
+		}
+		// 40多个叶子页，压缩的key两层就够了；定长的key每页最多31个孩子，需要三层
+		BTreePage root = root(bf);
+		assertEquals(BTreePageId.INTERNAL, root.getId().pgcateg());
+		assertEquals(BTreePageId.LEAF, ((BTreeInternalPage) root).iterator().next().getLeftChild().pgcateg());
+
+		// 加载后的树可以继续插入
+		Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(12000));
+		commit();
+		assertEquals(1, lookup(bf, 12000));
+		BTreeChecker.checkRep(bf, tid, new HashMap<>(), true);
+	}
+
+	@Test public void compressedPageRoundTrip() throws Exception {
+		BTreeFile bf = createEmptyBTreeFile();
+		List<BTreeEntry> entries = new ArrayList<>();
+		String[] keys = { "", "a", "ab", "abc", "abd", "b", url(1), url(2), url(10) };
+		for (int i = 0; i < keys.length; i++) {
+			entries.add(new BTreeEntry(new StringField(keys[i], Type.STRING_LEN),
+					new BTreePageId(bf.getId(), i + 1, BTreePageId.LEAF),
+					new BTreePageId(bf.getId(), i + 2, BTreePageId.LEAF)));
+		}
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.INTERNAL);
+		byte[] data = BTreeFileEncoder.convertToInternalPage(entries, BufferPool.getPageSize(),
+				Type.STRING_TYPE, BTreePageId.LEAF);
+		BTreeInternalPage page = new BTreeInternalPage(pid, data, 0);
+		assertEquals(keys.length, page.getNumEntries());
+		// 定长的key每个entry占136字节
+		assertTrue(page.getUsedSpace() < 300);
+
+		// 删除中间的entry留下空槽，重新编码后内容不变
+		Iterator<BTreeEntry> it = page.iterator();
+		it.next();
+		it.next();
+		page.deleteKeyAndRightChild(it.next());
+		BTreeInternalPage copy = new BTreeInternalPage(pid, page.getPageData(), 0);
+		assertArrayEquals(page.getPageData(), copy.getPageData());
+		List<String> expected = new ArrayList<>(Arrays.asList(keys));
+		expected.remove(2);
+		List<String> actual = new ArrayList<>();
+		int child = 1;
+		for (it = copy.iterator(); it.hasNext(); ) {
+			BTreeEntry e = it.next();
+			actual.add(((StringField) e.getKey()).getValue());
+			assertEquals(child, e.getLeftChild().getPageNumber());
+			child = e.getRightChild().getPageNumber();
+		}
+		assertEquals(expected, actual);
+		assertEquals(keys.length + 1, child);
+	}
+
+	@Test public void compressedLeafPageRoundTrip() throws Exception {
+		BTreeFile bf = createEmptyBTreeFile();
+		String[] keys = { "", "a", "ab", "abc", "abd", "b", url(1), url(2), url(10) };
+		List<Tuple> tuples = new ArrayList<>();
+		for (int i = 0; i < keys.length; i++) {
+			Tuple t = new Tuple(TD);
+			t.setField(0, new StringField(keys[i], Type.STRING_LEN));
+			t.setField(1, new IntField(i));
+			tuples.add(t);
+		}
+		BTreePageId pid = new BTreePageId(bf.getId(), 1, BTreePageId.LEAF);
+		byte[] data = BTreeFileEncoder.convertToLeafPage(tuples, BufferPool.getPageSize(),
+				TD.numFields(), new Type[] { Type.STRING_TYPE, Type.INT_TYPE }, 0);
+		BTreeLeafPage page = new BTreeLeafPage(pid, data, 0);
+		assertTrue(page.hasCompressedKeys());
+		assertEquals(keys.length, page.getNumTuples());
+		// 定长的元组每个占136字节
+		assertTrue(page.getUsedSpace() < 300);
+
+		// 删除中间的元组留下空槽，再插入到空槽之前，重新编码后内容不变
+		Iterator<Tuple> it = page.iterator();
+		it.next();
+		it.next();
+		page.deleteTuple(it.next());
+		page.insertTuple(tuple(5));
+		BTreeLeafPage copy = new BTreeLeafPage(pid, page.getPageData(), 0);
+		assertArrayEquals(page.getPageData(), copy.getPageData());
+		List<String> expected = new ArrayList<>(Arrays.asList(keys));
+		expected.remove(2);
+		expected.add(url(5));
+		Collections.sort(expected);
+		List<String> actual = new ArrayList<>();
+		for (it = copy.iterator(); it.hasNext(); ) {
+			actual.add(((StringField) it.next().getField(0)).getValue());
+		}
+		assertEquals(expected, actual);
+
+		// 页面按字节填满：相同前缀的key比定长的元组多放很多
+		int i = 100;
+		while (copy.hasRoomFor(tuple(i))) {
+			copy.insertTuple(tuple(i++));
+		}
+		assertTrue(copy.getNumTuples() > 100);
+		assertTrue(copy.getFreeSpace() >= 0);
+		assertArrayEquals(copy.getPageData(), new BTreeLeafPage(pid, copy.getPageData(), 0).getPageData());
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.Test suite() {
+		return new JUnit4TestAdapter(BTreeStringKeyTest.class);
+	}
+}
@@ -0,0 +1,149 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Runs plans batch-at-a-time through nextBatch() and checks that they return
+ * the same tuples as the row-at-a-time interface.
+ */
+public class BatchExecutionTest extends SimpleDbTestBase {
+    private static final int ROWS = 5000;
+
+    private TransactionId tid;
+    private HeapFile table;
+    private final List<List<Integer>> tuples = new ArrayList<>();
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        table = SystemTestUtil.createRandomHeapFile(3, ROWS, 100, null, tuples);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void scanBatches() throws Exception {
+        SeqScan scan = new SeqScan(tid, table.getId(), "t");
+        scan.open();
+        int rows = 0;
+        TupleBatch batch;
+        while ((batch = scan.nextBatch()) != null) {
+            assertTrue(batch.size() > 0);
+            assertTrue(batch.size() <= TupleBatch.DEFAULT_SIZE);
+            for (int i = 0; i < batch.size(); i++) {
+                assertNotNull(batch.getRecordId(batch.row(i)));
+            }
+            rows += batch.size();
+        }
+        scan.close();
+        assertEquals(ROWS, rows);
+
+        SystemTestUtil.matchTuples(new BatchRowIterator(new SeqScan(tid, table.getId(), "t")), tuples);
+    }
+
+    @Test public void filterAndProject() throws Exception {
+        Predicate p = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(30));
+        Filter filter = new Filter(p, new SeqScan(tid, table.getId(), "t"));
+        Project project = new Project(Arrays.asList(2, 1), new Type[]{ Type.INT_TYPE, Type.INT_TYPE }, filter);
+
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            if (t.get(1) < 30) {
+                expected.add(Arrays.asList(t.get(2), t.get(1)));
+            }
+        }
+        SystemTestUtil.matchTuples(new BatchRowIterator(project), expected);
+    }
+
+    @Test public void hashEquiJoin() throws Exception {
+        List<List<Integer>> smallTuples = new ArrayList<>();
+        HeapFile small = SystemTestUtil.createRandomHeapFile(2, 50, 100, null, smallTuples);
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, small.getId(), "s"), new SeqScan(tid, table.getId(), "t"));
+
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            for (List<Integer> s : smallTuples) {
+                if (s.get(0).equals(t.get(0))) {
+                    List<Integer> out = new ArrayList<>(s);
+                    out.addAll(t);
+                    expected.add(out);
+                }
+            }
+        }
+        SystemTestUtil.matchTuples(new BatchRowIterator(join), expected);
+    }
+
+    @Test public void aggregate() throws Exception {
+        for (Aggregator.Op op : new Aggregator.Op[]{ Aggregator.Op.MIN, Aggregator.Op.MAX,
+                Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.COUNT }) {
+            Predicate p = new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(50));
+            Aggregate agg = new Aggregate(new Filter(p, new SeqScan(tid, table.getId(), "t")),
+                    1, Aggregator.NO_GROUPING, op);
+            int expected = aggregate(op, tuples, -1);
+            SystemTestUtil.matchTuples(agg, Collections.singletonList(Collections.singletonList(expected)));
+
+            agg = new Aggregate(new SeqScan(tid, table.getId(), "t"), 1, 0, op);
+            Set<Integer> groups = new TreeSet<>();
+            for (List<Integer> t : tuples) groups.add(t.get(0));
+            List<List<Integer>> expectedGroups = new ArrayList<>();
+            for (int g : groups) {
+                expectedGroups.add(Arrays.asList(g, aggregate(op, tuples, g)));
+            }
+            SystemTestUtil.matchTuples(agg, expectedGroups);
+        }
+    }
+
+    // 按行计算期望的聚合结果；group为-1时只聚合第0列>=50的行
+    private static int aggregate(Aggregator.Op op, List<List<Integer>> tuples, int group) {
+        int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE, sum = 0, count = 0;
+        for (List<Integer> t : tuples) {
+            if (group == -1 ? t.get(0) < 50 : t.get(0) != group) continue;
+            int v = t.get(1);
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+            sum += v;
+            count++;
+        }
+        switch (op) {
+            case MIN: return min;
+            case MAX: return max;
+            case SUM: return sum;
+            case AVG: return sum / count;
+            default: return count;
+        }
+    }
+
+    /** A tuple buffered by hasNext() is returned by the next batch. */
+    @Test public void mixHasNextAndBatch() throws Exception {
+        Filter filter = new Filter(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0)),
+                new SeqScan(tid, table.getId(), "t"));
+        filter.open();
+        assertTrue(filter.hasNext());
+        int rows = 0;
+        TupleBatch batch;
+        while ((batch = filter.nextBatch()) != null) {
+            rows += batch.size();
+        }
+        filter.close();
+        assertEquals(ROWS, rows);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BatchExecutionTest.class);
+    }
+}
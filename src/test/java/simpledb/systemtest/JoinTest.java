@@ -8,13 +8,25 @@ import java.util.Map;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.execution.BatchRowIterator;
+import simpledb.execution.Filter;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.IndexNestedLoopJoin;
 import simpledb.execution.Join;
 import simpledb.execution.JoinPredicate;
 import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
+import simpledb.execution.SortMergeJoin;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.BTreeUtility;
 import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -79,6 +91,134 @@ public class JoinTest extends SimpleDbTestBase {
         validateJoin(1, 3, 1, 3);
     }
 
+    /**
+     * Joins two tables with HashEquiJoin under a memory budget far smaller
+     * than the build side, through both the row and the batch interface, and
+     * checks that the spill files are gone once the join is closed.
+     */
+    public void validateHashJoin(int table1Rows, int table2Rows, int maxValue, long budget)
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, table1Rows, maxValue, null, t1Tuples);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, table2Rows, maxValue, null, t2Tuples);
+
+        List<List<Integer>> expectedResults = new ArrayList<>();
+        for (List<Integer> t1 : t1Tuples) {
+            for (List<Integer> t2 : t2Tuples) {
+                if (t1.get(0).equals(t2.get(0))) {
+                    List<Integer> out = new ArrayList<>(t1);
+                    out.addAll(t2);
+                    expectedResults.add(out);
+                }
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        for (boolean batch : new boolean[]{ false, true }) {
+            HashEquiJoin joinOp = new HashEquiJoin(p, new SeqScan(tid, table1.getId(), ""),
+                    new SeqScan(tid, table2.getId(), ""));
+            joinOp.setMemoryBudget(budget);
+            joinOp.open();
+            assertTrue(Database.getTempFileManager().numFiles() > 0);
+            joinOp.close();
+            assertEquals(0, Database.getTempFileManager().numFiles());
+
+            SystemTestUtil.matchTuples(batch ? new BatchRowIterator(joinOp) : joinOp, expectedResults);
+            assertEquals(0, Database.getTempFileManager().numFiles());
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testHashJoinSpills()
+            throws IOException, DbException, TransactionAbortedException {
+        validateHashJoin(5000, 5000, 10000, 16 << 10);
+    }
+
+    /** Every tuple has the same key, so partitioning never makes the build side fit. */
+    @Test public void testHashJoinSpillsSkewed()
+            throws IOException, DbException, TransactionAbortedException {
+        validateHashJoin(200, 100, 1, 4 << 10);
+    }
+
+    /**
+     * Joins two B+ trees scanned in key order with SortMergeJoin, on every
+     * predicate it supports, and compares with the expected result.
+     */
+    @Test public void testSortMergeJoin() throws Exception {
+        List<List<Integer>> t1Tuples = new ArrayList<>();
+        BTreeFile table1 = BTreeUtility.createRandomBTreeFile(COLUMNS, 300, 100, null, t1Tuples, 0);
+        List<List<Integer>> t2Tuples = new ArrayList<>();
+        BTreeFile table2 = BTreeUtility.createRandomBTreeFile(COLUMNS, 200, 100, null, t2Tuples, 0);
+
+        TransactionId tid = new TransactionId();
+        for (Predicate.Op op : new Predicate.Op[]{ Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+                Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ }) {
+            List<List<Integer>> expectedResults = new ArrayList<>();
+            for (List<Integer> t1 : t1Tuples) {
+                for (List<Integer> t2 : t2Tuples) {
+                    if (new IntField(t1.get(0)).compare(op, new IntField(t2.get(0)))) {
+                        List<Integer> out = new ArrayList<>(t1);
+                        out.addAll(t2);
+                        expectedResults.add(out);
+                    }
+                }
+            }
+            SortMergeJoin joinOp = new SortMergeJoin(new JoinPredicate(0, op, 0),
+                    new BTreeScan(tid, table1.getId(), "t1", null),
+                    new BTreeScan(tid, table2.getId(), "t2", null));
+            SystemTestUtil.matchTuples(joinOp, expectedResults);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Joins heap files with a B+ tree by searching the B+ tree, on every
+     * predicate IndexNestedLoopJoin supports, with and without a filter on
+     * the B+ tree side, and compares with the expected result.
+     */
+    @Test public void testIndexNestedLoopJoin() throws Exception {
+        List<List<Integer>> innerTuples = new ArrayList<>();
+        BTreeFile inner = BTreeUtility.createRandomBTreeFile(COLUMNS, 1000, 200, null, innerTuples, 0);
+        List<List<Integer>> outerTuples = new ArrayList<>();
+        HeapFile outer = SystemTestUtil.createRandomHeapFile(COLUMNS, 1500, 200, null, outerTuples);
+        List<List<Integer>> smallOuterTuples = new ArrayList<>();
+        HeapFile smallOuter = SystemTestUtil.createRandomHeapFile(COLUMNS, 40, 200, null, smallOuterTuples);
+
+        TransactionId tid = new TransactionId();
+        Predicate filter = new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(100));
+        for (Predicate.Op op : new Predicate.Op[]{ Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+                Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ }) {
+            // 范围连接的结果很多，用小的外表
+            boolean equals = op == Predicate.Op.EQUALS;
+            HeapFile table1 = equals ? outer : smallOuter;
+            List<List<Integer>> t1Tuples = equals ? outerTuples : smallOuterTuples;
+            for (boolean filtered : new boolean[]{ false, true }) {
+                List<List<Integer>> expectedResults = new ArrayList<>();
+                for (List<Integer> t1 : t1Tuples) {
+                    for (List<Integer> t2 : innerTuples) {
+                        if (new IntField(t1.get(0)).compare(op, new IntField(t2.get(0)))
+                                && (!filtered || t2.get(1) > 100)) {
+                            List<Integer> out = new ArrayList<>(t1);
+                            out.addAll(t2);
+                            expectedResults.add(out);
+                        }
+                    }
+                }
+                SeqScan scan = new SeqScan(tid, inner.getId(), "t2");
+                IndexNestedLoopJoin joinOp = new IndexNestedLoopJoin(new JoinPredicate(0, op, 0),
+                        new SeqScan(tid, table1.getId(), "t1"), filtered ? new Filter(filter, scan) : scan);
+                SystemTestUtil.matchTuples(joinOp, expectedResults);
+                if (equals) {
+                    // 排好序的key大多在上一次停下的叶子页上找到，不必从根查找
+                    assertTrue(joinOp.getDescents() < 10);
+                }
+            }
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(JoinTest.class);
@@ -2,6 +2,7 @@ package simpledb.systemtest;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Test;
 
@@ -435,6 +436,48 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestGroupCommitCrash()
+            throws Exception {
+        setup();
+
+        // *** Test:
+        // with group commit, two transactions commit concurrently on
+        // different tables, one more aborts and a checkpoint runs;
+        // after a crash the committed data must be there
+
+        Database.getLogFile().enableGroupCommit(5, 2);
+        try {
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            Thread other = new Thread(() -> {
+                try {
+                    doInsert(hf2, 31, 32);
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            });
+            other.start();
+            doInsert(hf1, 30, -1);
+            other.join();
+            assertNull(error.get());
+            dontInsert(hf1, 33);
+            Database.getLogFile().logCheckpoint();
+            doInsert(hf1, 34, -1);
+        } finally {
+            Database.getLogFile().disableGroupCommit();
+        }
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 30, true);
+        look(hf2, t, 31, true);
+        look(hf2, t, 32, true);
+        look(hf1, t, 33, false);
+        look(hf1, t, 34, true);
+        t.commit();
+    }
+
 
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
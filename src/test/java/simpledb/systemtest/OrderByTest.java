@@ -0,0 +1,118 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.OrderBy;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Sorts a table on two fields, in memory and with memory budgets small enough
+ * that the sort spills runs to disk, and checks the order of the result.
+ */
+public class OrderByTest extends SimpleDbTestBase {
+    private static final int ROWS = 3000;
+
+    private TransactionId tid;
+    private HeapFile table;
+    private final List<List<Integer>> tuples = new ArrayList<>();
+    // 按第0列升序、第1列降序排列的期望结果
+    private final List<List<Integer>> sorted = new ArrayList<>();
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        table = SystemTestUtil.createRandomHeapFile(3, ROWS, 50, null, tuples);
+        tid = new TransactionId();
+        sorted.addAll(tuples);
+        sorted.sort(Comparator.<List<Integer>>comparingInt(t -> t.get(0))
+                .thenComparing(t -> t.get(1), Comparator.reverseOrder()));
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private OrderBy orderBy(long budget) {
+        OrderBy op = new OrderBy(new int[]{ 0, 1 }, new boolean[]{ true, false },
+                new SeqScan(tid, table.getId(), "t"));
+        op.setMemoryBudget(budget);
+        return op;
+    }
+
+    // 检查op按排序键的顺序返回expected中的元组；排序键相同的元组顺序不限
+    private void validate(OrderBy op, List<List<Integer>> expected) throws Exception {
+        SystemTestUtil.matchTuples(op, expected);
+        op.open();
+        for (List<Integer> t : expected) {
+            assertTrue(op.hasNext());
+            List<Integer> actual = SystemTestUtil.tupleToList(op.next());
+            assertEquals(t.subList(0, 2), actual.subList(0, 2));
+        }
+        assertFalse(op.hasNext());
+        op.close();
+    }
+
+    @Test public void inMemory() throws Exception {
+        OrderBy op = orderBy(OrderBy.DEFAULT_MEMORY_BUDGET);
+        validate(op, sorted);
+        assertEquals(0, op.getSpillCount());
+        assertEquals(0, op.getSpilledBytes());
+    }
+
+    @Test public void spills() throws Exception {
+        OrderBy op = orderBy(32 << 10);
+        validate(op, sorted);
+        assertTrue(op.getSpillCount() > 1);
+        assertTrue(op.getSpilledBytes() >= (long) ROWS * table.getTupleDesc().getSize());
+        assertEquals(0, Database.getTempFileManager().numFiles());
+
+        // rewind合并同样的run
+        op.open();
+        for (int i = 0; i < 2; i++) {
+            int rows = 0;
+            for (; op.hasNext(); op.next()) rows++;
+            assertEquals(ROWS, rows);
+            op.rewind();
+        }
+        op.close();
+    }
+
+    /** One tuple per run: more runs than can be merged at once. */
+    @Test public void multiPassMerge() throws Exception {
+        OrderBy op = orderBy(1);
+        validate(op, sorted);
+        // 第一趟每个元组一个run，之后的归并也写run
+        assertTrue(op.getSpillCount() > ROWS);
+        assertEquals(0, Database.getTempFileManager().numFiles());
+    }
+
+    @Test public void limit() throws Exception {
+        // 选一个排序键与下一个元组不同的位置截断，使前n个元组是确定的
+        int n = 100;
+        while (sorted.get(n - 1).subList(0, 2).equals(sorted.get(n).subList(0, 2))) n++;
+        for (long budget : new long[]{ OrderBy.DEFAULT_MEMORY_BUDGET, 32 << 10 }) {
+            OrderBy op = orderBy(budget);
+            op.setLimit(n);
+            validate(op, sorted.subList(0, n));
+            if (budget == OrderBy.DEFAULT_MEMORY_BUDGET) {
+                assertEquals(0, op.getSpillCount());
+            }
+        }
+        OrderBy op = orderBy(OrderBy.DEFAULT_MEMORY_BUDGET);
+        op.setLimit(0);
+        validate(op, Collections.emptyList());
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(OrderByTest.class);
+    }
+}
@@ -0,0 +1,225 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Runs scans, filters, projections, aggregates and hash joins in parallel
+ * with Exchange over morsel-driven scans, and checks the results against the
+ * tuples of the tables.
+ */
+public class ParallelTest extends SimpleDbTestBase {
+    private static final int ROWS = 30000;
+    private static final int DEGREE = 4;
+
+    private TransactionId tid;
+    private HeapFile table;
+    private final List<List<Integer>> tuples = new ArrayList<>();
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        table = SystemTestUtil.createRandomHeapFile(3, ROWS, 100, null, tuples);
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private SeqScan[] scans() {
+        return Parallel.scans(tid, table.getId(), "t", DEGREE);
+    }
+
+    private static List<List<Integer>> sorted(List<List<Integer>> tuples) {
+        List<List<Integer>> copy = new ArrayList<>(tuples);
+        copy.sort((a, b) -> {
+            for (int i = 0; i < a.size(); i++) {
+                int c = Integer.compare(a.get(i), b.get(i));
+                if (c != 0) return c;
+            }
+            return 0;
+        });
+        return copy;
+    }
+
+    // 读出op的全部元组；顺序不确定，排序后比较
+    private static List<List<Integer>> readAll(OpIterator op) throws Exception {
+        List<List<Integer>> result = new ArrayList<>();
+        while (op.hasNext()) {
+            result.add(SystemTestUtil.tupleToList(op.next()));
+        }
+        return result;
+    }
+
+    private static void validate(OpIterator op, List<List<Integer>> expected) throws Exception {
+        op.open();
+        assertEquals(sorted(expected), sorted(readAll(op)));
+        op.close();
+    }
+
+    @Test public void scanReturnsEveryTupleOnce() throws Exception {
+        assertTrue(table.numPages() > 2 * DEGREE);
+        validate(new Exchange(scans()), tuples);
+        for (int p = 0; p < table.numPages(); p++) {
+            assertTrue(Database.getBufferPool().holdsLock(tid, new HeapPageId(table.getId(), p)));
+        }
+    }
+
+    @Test public void filterAndProject() throws Exception {
+        Predicate p = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(30));
+        OpIterator[] pipelines = Parallel.project(Arrays.asList(2, 0), Arrays.asList(Type.INT_TYPE, Type.INT_TYPE),
+                Parallel.filter(p, scans()));
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            if (t.get(0) < 30) expected.add(Arrays.asList(t.get(2), t.get(0)));
+        }
+        validate(new Exchange(pipelines), expected);
+    }
+
+    @Test public void rewindAndReopen() throws Exception {
+        Exchange exchange = new Exchange(scans());
+        exchange.open();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(ROWS, readAll(exchange).size());
+            exchange.rewind();
+        }
+        // 只读一部分就rewind，未读完的worker被取消
+        for (int i = 0; i < 100; i++) exchange.next();
+        exchange.rewind();
+        assertEquals(ROWS, readAll(exchange).size());
+        exchange.close();
+        validate(exchange, tuples);
+    }
+
+    private List<List<Integer>> expectedAggregate(int gfield, Aggregator.Op aop) {
+        // 每组的{值, 行数}；AVG的值为和
+        Map<Integer, long[]> groups = new TreeMap<>();
+        for (List<Integer> t : tuples) {
+            int g = gfield == Aggregator.NO_GROUPING ? 0 : t.get(gfield);
+            int v = t.get(1);
+            long[] a = groups.get(g);
+            if (a == null) {
+                groups.put(g, new long[]{ v, 1 });
+                continue;
+            }
+            switch (aop) {
+                case MIN: a[0] = Math.min(a[0], v); break;
+                case MAX: a[0] = Math.max(a[0], v); break;
+                default: a[0] += v;
+            }
+            a[1]++;
+        }
+        List<List<Integer>> expected = new ArrayList<>();
+        for (Map.Entry<Integer, long[]> e : groups.entrySet()) {
+            long[] a = e.getValue();
+            int v = (int) (aop == Aggregator.Op.COUNT ? a[1] : aop == Aggregator.Op.AVG ? a[0] / a[1] : a[0]);
+            expected.add(gfield == Aggregator.NO_GROUPING
+                    ? Collections.singletonList(v)
+                    : Arrays.asList(e.getKey(), v));
+        }
+        return expected;
+    }
+
+    @Test public void aggregate() throws Exception {
+        for (int gfield : new int[]{ Aggregator.NO_GROUPING, 2 }) {
+            for (Aggregator.Op aop : new Aggregator.Op[]{ Aggregator.Op.COUNT, Aggregator.Op.SUM,
+                    Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.AVG }) {
+                Aggregate agg = Parallel.aggregate(scans(), 1, gfield, aop);
+                Aggregate serial = new Aggregate(new SeqScan(tid, table.getId(), "t"), 1, gfield, aop);
+                assertEquals(serial.getTupleDesc(), agg.getTupleDesc());
+                validate(agg, expectedAggregate(gfield, aop));
+                validate(serial, expectedAggregate(gfield, aop));
+            }
+        }
+    }
+
+    // 每个pipeline的部分和都超出int范围，合并后的平均值仍然准确
+    @Test public void averageOfLargeValues() throws Exception {
+        final int value = 2000000000;
+        Map<Integer, Integer> columnSpecification = new HashMap<>();
+        columnSpecification.put(1, value);
+        List<List<Integer>> large = new ArrayList<>();
+        HeapFile t = SystemTestUtil.createRandomHeapFile(2, ROWS / 5, 3, columnSpecification, large);
+        Set<Integer> groups = new TreeSet<>();
+        for (List<Integer> row : large) groups.add(row.get(0));
+        List<List<Integer>> expected = new ArrayList<>();
+        for (int g : groups) expected.add(Arrays.asList(g, value));
+
+        Aggregate agg = Parallel.aggregate(Parallel.scans(tid, t.getId(), "t", DEGREE), 1, 0, Aggregator.Op.AVG);
+        validate(agg, expected);
+        agg = Parallel.aggregate(Parallel.scans(tid, t.getId(), "t", DEGREE), 1,
+                Aggregator.NO_GROUPING, Aggregator.Op.AVG);
+        validate(agg, Collections.singletonList(Collections.singletonList(value)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sumCountCannotBeMerged() {
+        Parallel.aggregate(scans(), 1, Aggregator.NO_GROUPING, Aggregator.Op.SUM_COUNT);
+    }
+
+    @Test public void hashJoin() throws Exception {
+        List<List<Integer>> dimTuples = new ArrayList<>();
+        HeapFile dim = SystemTestUtil.createRandomHeapFile(2, 500, 200, null, dimTuples);
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> d : dimTuples) {
+            for (List<Integer> t : tuples) {
+                if (d.get(0).equals(t.get(0))) {
+                    List<Integer> out = new ArrayList<>(d);
+                    out.addAll(t);
+                    expected.add(out);
+                }
+            }
+        }
+        Exchange join = Parallel.hashJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                Parallel.scans(tid, dim.getId(), "d", DEGREE), scans());
+        validate(join, expected);
+        // close之后再open重新建表
+        validate(join, expected);
+    }
+
+    @Test public void workerFailureIsRethrown() throws Exception {
+        BTreeFile btree = BTreeUtility.createRandomBTreeFile(2, 1000, null, null, 0);
+        Exchange exchange = new Exchange(Parallel.scans(tid, btree.getId(), "b", DEGREE));
+        exchange.open();
+        try {
+            readAll(exchange);
+            fail("expected a DbException from the workers");
+        } catch (DbException e) {
+            // 期望的异常
+        }
+        exchange.close();
+
+        // 建表失败时所有worker都退出，不会一直等待
+        Exchange join = Parallel.hashJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                Parallel.scans(tid, btree.getId(), "b", DEGREE), scans());
+        join.open();
+        try {
+            readAll(join);
+            fail("expected a DbException from the workers");
+        } catch (DbException e) {
+            // 期望的异常
+        }
+        join.close();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ParallelTest.class);
+    }
+}
@@ -0,0 +1,252 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+import simpledb.Parser;
+import simpledb.common.Database;
+import simpledb.execution.*;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.*;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.*;
+import simpledb.transaction.TransactionId;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+    private static final int ROWS = 3000;
+    private static final int MAX_VALUE = 200;
+
+    private static SecondaryIndex createIndex(DbFile table, int field) throws Exception {
+        File f = File.createTempFile("index", ".dat");
+        f.deleteOnExit();
+        SecondaryIndex index = new SecondaryIndex(f, table.getId(), field);
+        Database.getCatalog().addIndex(index);
+        TransactionId tid = new TransactionId();
+        index.build(tid);
+        Database.getBufferPool().transactionComplete(tid);
+        return index;
+    }
+
+    private static List<List<Integer>> matching(List<List<Integer>> tuples, int field, Op op, int value) {
+        List<List<Integer>> result = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            if (new IntField(t.get(field)).compare(op, new IntField(value))) {
+                result.add(t);
+            }
+        }
+        return result;
+    }
+
+    // 用索引查找的结果应与直接在元组列表中筛选的结果相同，索引的B+树应保持合法
+    private static void validateIndex(SecondaryIndex index, List<List<Integer>> tuples) throws Exception {
+        TransactionId tid = new TransactionId();
+        int field = index.getField();
+        for (int v = 0; v <= MAX_VALUE; v += 7) {
+            SystemTestUtil.matchTuples(
+                    new SecondaryIndexScan(tid, index, new IndexPredicate(Op.EQUALS, new IntField(v))),
+                    matching(tuples, field, Op.EQUALS, v));
+        }
+        SystemTestUtil.matchTuples(
+                new SecondaryIndexScan(tid, index, new IndexPredicate(Op.LESS_THAN, new IntField(MAX_VALUE / 4))),
+                matching(tuples, field, Op.LESS_THAN, MAX_VALUE / 4));
+        SystemTestUtil.matchTuples(
+                new SecondaryIndexScan(tid, index, new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(MAX_VALUE / 2))),
+                matching(tuples, field, Op.GREATER_THAN_OR_EQ, MAX_VALUE / 2));
+        BTreeChecker.checkRep(index.getFile(), tid, new HashMap<>(), true);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static List<List<Integer>> randomTuples(int rows) {
+        Random r = new Random();
+        List<List<Integer>> tuples = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            tuples.add(Arrays.asList(r.nextInt(MAX_VALUE), r.nextInt(MAX_VALUE)));
+        }
+        return tuples;
+    }
+
+    private static void insert(DbFile table, List<List<Integer>> tuples) throws Exception {
+        TransactionId tid = new TransactionId();
+        List<Tuple> batch = new ArrayList<>();
+        for (List<Integer> values : tuples) {
+            batch.add(BTreeUtility.getBTreeTuple(values));
+        }
+        Insert insert = new Insert(tid, new TupleIterator(table.getTupleDesc(), batch), table.getId());
+        insert.open();
+        assertEquals(tuples.size(), ((IntField) insert.next().getField(0)).getValue());
+        insert.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static int delete(OpIterator child, TransactionId tid) throws Exception {
+        Delete delete = new Delete(tid, child);
+        delete.open();
+        int count = ((IntField) delete.next().getField(0)).getValue();
+        delete.close();
+        return count;
+    }
+
+    @Test public void testHeapFileIndex() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples);
+        SecondaryIndex index = createIndex(table, 1);
+        assertEquals(Collections.singletonList(index), Database.getCatalog().getIndexes(table.getId()));
+        validateIndex(index, tuples);
+
+        // 插入和删除经过BufferPool，索引随之更新
+        List<List<Integer>> inserted = randomTuples(500);
+        insert(table, inserted);
+        tuples.addAll(inserted);
+        validateIndex(index, tuples);
+
+        TransactionId tid = new TransactionId();
+        Predicate p = new Predicate(0, Op.LESS_THAN, new IntField(MAX_VALUE / 3));
+        int deleted = delete(new Filter(p, new SeqScan(tid, table.getId())), tid);
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(matching(tuples, 0, Op.LESS_THAN, MAX_VALUE / 3).size(), deleted);
+        tuples.removeIf(t -> t.get(0) < MAX_VALUE / 3);
+        validateIndex(index, tuples);
+    }
+
+    @Test public void testBTreeFileIndex() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        BTreeFile table = BTreeUtility.createRandomBTreeFile(2, ROWS, MAX_VALUE, null, tuples, 0);
+        SecondaryIndex index = createIndex(table, 1);
+        validateIndex(index, tuples);
+
+        List<List<Integer>> inserted = randomTuples(500);
+        insert(table, inserted);
+        tuples.addAll(inserted);
+        validateIndex(index, tuples);
+
+        // 通过索引删除：删除会让同一个key的元组在页面之间移动
+        TransactionId tid = new TransactionId();
+        IndexPredicate ipred = new IndexPredicate(Op.LESS_THAN, new IntField(MAX_VALUE / 3));
+        int deleted = delete(new SecondaryIndexScan(tid, index, ipred), tid);
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(matching(tuples, 1, Op.LESS_THAN, MAX_VALUE / 3).size(), deleted);
+        tuples.removeIf(t -> t.get(1) < MAX_VALUE / 3);
+        validateIndex(index, tuples);
+        SystemTestUtil.matchTuples(table, tuples);
+    }
+
+    @Test public void testAbortRemovesEntries() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, ROWS, MAX_VALUE, null, tuples);
+        SecondaryIndex index = createIndex(table, 1);
+
+        TransactionId tid = new TransactionId();
+        for (List<Integer> values : randomTuples(100)) {
+            Database.getBufferPool().insertTuple(tid, table.getId(), BTreeUtility.getBTreeTuple(values));
+        }
+        Database.getBufferPool().transactionComplete(tid, false);
+        validateIndex(index, tuples);
+    }
+
+    // 所有元组的被索引字段相同：删除一个元组只需一次下降找到它的entry，不用遍历相同值的entry
+    @Test public void testDeleteFromDuplicateValues() throws Exception {
+        // 一个事务删除一半元组，脏页要能都留在缓冲池中
+        Database.resetBufferPool(1000);
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, ROWS * 10, MAX_VALUE,
+                Collections.singletonMap(1, 7), tuples);
+        SecondaryIndex index = createIndex(table, 1);
+        assertTrue(index.getFile().numPages() > 50);
+
+        // 最后一页的最后一个元组，它的entry在所有相同值的entry之后
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = table.iterator(tid);
+        it.open();
+        Tuple last = null;
+        while (it.hasNext()) {
+            last = it.next();
+        }
+        it.close();
+        BufferPool bp = Database.getBufferPool();
+        long requests = bp.getHitCount() + bp.getMissCount();
+        bp.deleteTuple(tid, last);
+        assertTrue(bp.getHitCount() + bp.getMissCount() - requests < 10);
+        bp.transactionComplete(tid);
+        tuples.remove(Arrays.asList(((IntField) last.getField(0)).getValue(), 7));
+
+        tid = new TransactionId();
+        Predicate p = new Predicate(0, Op.LESS_THAN, new IntField(MAX_VALUE / 2));
+        int deleted = delete(new Filter(p, new SeqScan(tid, table.getId())), tid);
+        Database.getBufferPool().transactionComplete(tid);
+        assertTrue(deleted > 0);
+        tuples.removeIf(t -> t.get(0) < MAX_VALUE / 2);
+        validateIndex(index, tuples);
+    }
+
+    // 扫描打开后删除匹配的元组并在空出的槽位插入不匹配的元组，扫描不应返回它们
+    @Test public void testRecheckReusedSlots() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, 10, MAX_VALUE, null, tuples);
+        SecondaryIndex index = createIndex(table, 1);
+        int value = tuples.get(0).get(1);
+
+        TransactionId tid = new TransactionId();
+        SecondaryIndexScan scan = new SecondaryIndexScan(tid, index, new IndexPredicate(Op.EQUALS, new IntField(value)));
+        scan.open();
+        Predicate p = new Predicate(1, Op.EQUALS, new IntField(value));
+        int deleted = delete(new Filter(p, new SeqScan(tid, table.getId())), tid);
+        for (int i = 0; i < deleted; i++) {
+            Database.getBufferPool().insertTuple(tid, table.getId(),
+                    BTreeUtility.getBTreeTuple(Arrays.asList(i, value + MAX_VALUE)));
+        }
+        assertEquals(1, table.numPages());
+        assertFalse(scan.hasNext());
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testPlannerUsesIndex() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        // SeqScan的列名为别名直接接上列名，列名以.开头时为t.c0、t.c1
+        HeapFile table = SystemTestUtil.createRandomHeapFile(2, ROWS * 4, MAX_VALUE * 4, null, tuples, ".c");
+        Database.getCatalog().addTable(table, "t");
+        createIndex(table, 1);
+        Map<String, TableStats> stats = new HashMap<>();
+        stats.put("t", new TableStats(table.getId(), 1000));
+
+        // 选择性高的条件通过索引读取
+        TransactionId tid = new TransactionId();
+        OpIterator plan = new Parser().generateLogicalPlan(tid, "SELECT * FROM t WHERE t.c1 = 5;")
+                .physicalPlan(tid, stats, false);
+        assertTrue(plan instanceof Project);
+        OpIterator scan = ((Project) plan).getChildren()[0];
+        assertTrue(scan instanceof SecondaryIndexScan);
+        assertEquals("t.c1", scan.getTupleDesc().getFieldName(1));
+        SystemTestUtil.matchTuples(plan, matching(tuples, 1, Op.EQUALS, 5));
+
+        // 大部分元组都满足的条件仍然扫描整个表
+        plan = new Parser().generateLogicalPlan(tid, "SELECT * FROM t WHERE t.c1 > 5;")
+                .physicalPlan(tid, stats, false);
+        scan = ((Project) plan).getChildren()[0];
+        assertTrue(scan instanceof Filter);
+        assertTrue(((Filter) scan).getChildren()[0] instanceof SeqScan);
+        SystemTestUtil.matchTuples(plan, matching(tuples, 1, Op.GREATER_THAN, 5));
+        Database.getBufferPool().transactionComplete(tid);
+
+        // 删除的计划也可以通过索引读取要删除的元组
+        tid = new TransactionId();
+        plan = new Parser().generateLogicalPlan(tid, "SELECT * FROM t WHERE t.c1 = 10;")
+                .physicalPlan(tid, stats, false);
+        OpIterator child = ((Project) plan).getChildren()[0];
+        assertTrue(child instanceof SecondaryIndexScan);
+        assertEquals(matching(tuples, 1, Op.EQUALS, 10).size(), delete(child, tid));
+        Database.getBufferPool().transactionComplete(tid);
+        tuples.removeIf(t -> t.get(1) == 10);
+        SystemTestUtil.matchTuples(table, tuples);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SecondaryIndexTest.class);
+    }
+}